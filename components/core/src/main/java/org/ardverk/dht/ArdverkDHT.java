@@ -16,6 +16,7 @@
 
 package org.ardverk.dht;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketAddress;
@@ -43,6 +44,7 @@ import org.ardverk.dht.routing.RouteTable;
 import org.ardverk.dht.rsrc.Key;
 import org.ardverk.dht.rsrc.Value;
 import org.ardverk.dht.storage.Datastore;
+import org.ardverk.io.IoUtils;
 import org.ardverk.lang.BindableUtils;
 
 
@@ -101,6 +103,10 @@ public class ArdverkDHT extends AbstractDHT {
     
     BindableUtils.unbind(datastore);
     BindableUtils.unbind(routeTable);
+    
+    if (routeTable instanceof Closeable) {
+      IoUtils.close((Closeable)routeTable);
+    }
   }
   
   /**
@@ -45,6 +45,16 @@ public class KUID extends ByteArray<KUID> implements Identifier,
   
   private static final int MSB = 1 << Byte.SIZE-1;
   
+  /**
+   * The number of bits in a word.
+   */
+  private static final int WORD_SIZE = Long.SIZE;
+  
+  /**
+   * The number of bytes in a word.
+   */
+  private static final int WORD_BYTES = WORD_SIZE / Byte.SIZE;
+  
   /**
    * Creates and returns a random {@link KUID} of the given length in bytes.
    */
@@ -138,10 +148,25 @@ public class KUID extends ByteArray<KUID> implements Identifier,
     return new KUID(maxKey);
   }
   
+  /**
+   * The {@link KUID}'s value packed into big-endian 64-bit words. The 
+   * last word is zero-padded if the length isn't a multiple of eight.
+   * The words are created lazily as many {@link KUID}s are never used
+   * in any bitwise operation.
+   * 
+   * @see #words()
+   */
+  private transient volatile long[] words;
+  
   private KUID(byte[] key) {
     super(key);
   }
   
+  private KUID(byte[] key, long[] words) {
+    super(key);
+    this.words = words;
+  }
+  
   @Override
   public KUID getId() {
     return this;
@@ -165,11 +190,32 @@ public class KUID extends ByteArray<KUID> implements Identifier,
     return length() * Byte.SIZE;
   }
   
+  /**
+   * Returns the length of the {@link KUID} in 64-bit words.
+   */
+  public int lengthInWords() {
+    return (value.length + WORD_BYTES - 1) / WORD_BYTES;
+  }
+  
+  /**
+   * Copies the {@link KUID}'s value as big-endian 64-bit words into 
+   * the given array and returns it. The last word is zero-padded if 
+   * the length isn't a multiple of eight bytes.
+   */
+  public long[] getWords(long[] dst, int offset) {
+    long[] words = words();
+    System.arraycopy(words, 0, dst, offset, words.length);
+    return dst;
+  }
+  
   @Override
   public boolean isBitSet(int bitIndex) {
-    int index = (int)(bitIndex / Byte.SIZE);
-    int bit = (int)(bitIndex % Byte.SIZE);
-    return (value[index] & mask(bit)) != 0;
+    if (bitIndex < 0 || bitIndex >= lengthInBits()) {
+      throw new IndexOutOfBoundsException("bitIndex=" + bitIndex);
+    }
+    
+    long word = words()[bitIndex / WORD_SIZE];
+    return (word & (Long.MIN_VALUE >>> (bitIndex % WORD_SIZE))) != 0L;
   }
   
   @Override
@@ -178,21 +224,19 @@ public class KUID extends ByteArray<KUID> implements Identifier,
       throw new IllegalArgumentException("otherKey=" + otherId);      
     }
     
+    long[] words = words();
+    long[] otherWords = otherId.words();
+    
     boolean allNull = true;
-    for (int i = 0; i < value.length; i++) {
-      byte b1 = value[i];
-      byte b2 = otherId.value[i];
+    for (int i = 0; i < words.length; i++) {
+      long w1 = words[i];
+      long w2 = otherWords[i];
       
-      if (b1 != b2) {
-        int xor = b1 ^ b2;
-        for (int j = 0; j < Byte.SIZE; j++) {
-          if ((xor & mask(j)) != 0) {
-            return (i * Byte.SIZE) + j;
-          }
-        }
+      if (w1 != w2) {
+        return (i * WORD_SIZE) + Long.numberOfLeadingZeros(w1 ^ w2);
       }
       
-      if (b1 != 0) {
+      if (w1 != 0L) {
         allNull = false;
       }
     }
@@ -210,7 +254,19 @@ public class KUID extends ByteArray<KUID> implements Identifier,
       return false;
     }
     
-    for (int i = 0; i < prefix.value.length; i++) {
+    // Compare all complete words of the prefix and then 
+    // the remaining bytes.
+    long[] words = words();
+    long[] prefixWords = prefix.words();
+    
+    int count = prefix.value.length / WORD_BYTES;
+    for (int i = 0; i < count; i++) {
+      if (words[i] != prefixWords[i]) {
+        return false;
+      }
+    }
+    
+    for (int i = count * WORD_BYTES; i < prefix.value.length; i++) {
       if (value[i] != prefix.value[i]) {
         return false;
       }
@@ -225,22 +281,33 @@ public class KUID extends ByteArray<KUID> implements Identifier,
       throw new IllegalArgumentException("otherId=" + otherId);
     }
 
-    byte[] data = new byte[length()];
-    for (int i = 0; i < value.length; i++) {
-      data[i] = (byte) (value[i] ^ otherId.value[i]);
+    long[] words = words();
+    long[] otherWords = otherId.words();
+    
+    long[] dst = new long[words.length];
+    for (int i = 0; i < words.length; i++) {
+      dst[i] = words[i] ^ otherWords[i];
     }
 
-    return new KUID(data);
+    return new KUID(toBytes(dst, value.length), dst);
   }
 
   @Override
   public KUID negate() {
-    byte[] data = new byte[length()];
-    for (int i = 0; i < value.length; i++) {
-      data[i] = (byte)(~value[i]);
+    long[] words = words();
+    
+    long[] dst = new long[words.length];
+    for (int i = 0; i < words.length; i++) {
+      dst[i] = ~words[i];
+    }
+    
+    // Keep the padding of the last word zero
+    int padding = (dst.length * WORD_BYTES - value.length) * Byte.SIZE;
+    if (padding != 0) {
+      dst[dst.length-1] &= -1L << padding;
     }
     
-    return new KUID(data);
+    return new KUID(toBytes(dst, value.length), dst);
   }
   
   /**
@@ -330,7 +397,12 @@ public class KUID extends ByteArray<KUID> implements Identifier,
    * Returns {@code true} if all bits of the {@link KUID} are zero
    */
   public boolean isMin() {
-    return equalTo((byte)0x00);
+    for (long word : words()) {
+      if (word != 0L) {
+        return false;
+      }
+    }
+    return true;
   }
   
   /**
@@ -365,7 +437,27 @@ public class KUID extends ByteArray<KUID> implements Identifier,
    * Compares the {@link KUID}s by their XOR distance.
    */
   public int compareTo(KUID key, KUID otherId) {
-    return xor(key).compareTo(otherId.xor(key));
+    if (!isCompatible(key) || !isCompatible(otherId)) {
+      throw new IllegalArgumentException("key=" + key + ", otherId=" + otherId);
+    }
+    
+    long[] words = words();
+    long[] keyWords = key.words();
+    long[] otherWords = otherId.words();
+    
+    // Compare the XOR distances word-by-word without 
+    // creating any intermediate KUIDs.
+    for (int i = 0; i < words.length; i++) {
+      long d1 = words[i] ^ keyWords[i];
+      long d2 = otherWords[i] ^ keyWords[i];
+      
+      if (d1 != d2) {
+        // Unsigned comparison
+        return (d1 + Long.MIN_VALUE) < (d2 + Long.MIN_VALUE) ? -1 : 1;
+      }
+    }
+    
+    return 0;
   }
   
   @Override
@@ -389,6 +481,44 @@ public class KUID extends ByteArray<KUID> implements Identifier,
     return new BigInteger(1 /* unsigned */, value);
   }
   
+  /**
+   * Returns the {@link KUID}'s value as big-endian 64-bit words. 
+   * Concurrent calls may create the words more than once which is
+   * harmless as they're always equal.
+   */
+  private long[] words() {
+    long[] words = this.words;
+    if (words == null) {
+      words = toWords(value);
+      this.words = words;
+    }
+    return words;
+  }
+  
+  /**
+   * Packs the given bytes into big-endian 64-bit words.
+   */
+  private static long[] toWords(byte[] value) {
+    long[] words = new long[(value.length + WORD_BYTES - 1) / WORD_BYTES];
+    for (int i = 0; i < value.length; i++) {
+      int shift = (WORD_BYTES - 1 - (i % WORD_BYTES)) * Byte.SIZE;
+      words[i / WORD_BYTES] |= (value[i] & 0xFFL) << shift;
+    }
+    return words;
+  }
+  
+  /**
+   * Unpacks the given big-endian 64-bit words into bytes.
+   */
+  private static byte[] toBytes(long[] words, int length) {
+    byte[] value = new byte[length];
+    for (int i = 0; i < value.length; i++) {
+      int shift = (WORD_BYTES - 1 - (i % WORD_BYTES)) * Byte.SIZE;
+      value[i] = (byte)(words[i / WORD_BYTES] >>> shift);
+    }
+    return value;
+  }
+  
   /**
    * Returns a bit mask where the given bit is set
    */
@@ -16,5 +16,17 @@
 
 package org.ardverk.dht.codec;
 
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * An abstract implementation of {@link MessageCodec}.
+ */
 public abstract class AbstractMessageCodec implements MessageCodec {
+  
+  @Override
+  public Decoder createDecoder(SocketAddress src, ByteBuffer buffer) throws IOException {
+    return createDecoder(src, new ByteBufferInputStream(buffer));
+  }
 }
\ No newline at end of file
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.codec;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} that reads from a {@link ByteBuffer}.
+ */
+public class ByteBufferInputStream extends InputStream {
+  
+  private final ByteBuffer buffer;
+  
+  public ByteBufferInputStream(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+  
+  @Override
+  public int read() {
+    if (!buffer.hasRemaining()) {
+      return -1;
+    }
+    return buffer.get() & 0xFF;
+  }
+  
+  @Override
+  public int read(byte[] b, int off, int len) {
+    if (len == 0) {
+      return 0;
+    }
+    
+    int remaining = buffer.remaining();
+    if (remaining == 0) {
+      return -1;
+    }
+    
+    int length = Math.min(len, remaining);
+    buffer.get(b, off, length);
+    return length;
+  }
+  
+  @Override
+  public long skip(long n) {
+    int length = (int)Math.min(Math.max(0L, n), buffer.remaining());
+    buffer.position(buffer.position() + length);
+    return length;
+  }
+  
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+  
+  /**
+   * Returns the next {@code length} bytes as a {@link ByteBuffer} that 
+   * shares its content with the underlying {@link ByteBuffer} and 
+   * advances the position by {@code length} bytes.
+   */
+  public ByteBuffer slice(int length) throws EOFException {
+    if (length < 0 || buffer.remaining() < length) {
+      throw new EOFException("length=" + length 
+          + ", remaining=" + buffer.remaining());
+    }
+    
+    ByteBuffer slice = buffer.slice();
+    slice.limit(length);
+    buffer.position(buffer.position() + length);
+    return slice;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.codec;
+
+import java.io.ByteArrayOutputStream;
+
+import org.ardverk.dht.message.Message;
+
+/**
+ * A reusable {@link ByteArrayOutputStream} for encoding {@link Message}s.
+ * Each {@link Thread} has its own {@link EncodeBuffer}.
+ */
+public class EncodeBuffer extends ByteArrayOutputStream {
+  
+  private static final int INITIAL_SIZE = 1024;
+  
+  /**
+   * {@link EncodeBuffer}s that grew beyond this size are not reused.
+   */
+  private static final int MAX_RETAINED_SIZE = 64 * 1024;
+  
+  private static final ThreadLocal<EncodeBuffer> BUFFERS = new ThreadLocal<EncodeBuffer>() {
+    @Override
+    protected EncodeBuffer initialValue() {
+      return new EncodeBuffer();
+    }
+  };
+  
+  /**
+   * Returns the calling {@link Thread}'s {@link EncodeBuffer}. The 
+   * {@link EncodeBuffer} is empty and its content is only valid 
+   * until the next call of this method.
+   */
+  public static EncodeBuffer get() {
+    EncodeBuffer buffer = BUFFERS.get();
+    if (MAX_RETAINED_SIZE < buffer.buf.length) {
+      buffer = new EncodeBuffer();
+      BUFFERS.set(buffer);
+    }
+    
+    buffer.reset();
+    return buffer;
+  }
+  
+  private EncodeBuffer() {
+    super(INITIAL_SIZE);
+  }
+  
+  /**
+   * Returns the {@link EncodeBuffer}'s internal {@code byte[]}. Only 
+   * the first {@link #size()} bytes are valid.
+   */
+  public byte[] getBuffer() {
+    return buf;
+  }
+}
\ No newline at end of file
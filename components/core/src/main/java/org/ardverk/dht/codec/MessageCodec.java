@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 
 import org.ardverk.dht.message.Message;
 
@@ -36,6 +37,14 @@ public interface MessageCodec {
    */
   public Decoder createDecoder(SocketAddress src, InputStream in) throws IOException;
   
+  /**
+   * Creates and returns a {@link Decoder} that reads directly from the 
+   * given {@link ByteBuffer}. The decoded {@link Message}s may share 
+   * their content with a {@link ByteBuffer} that is backed by an array. 
+   * The caller must therefore not modify or reuse such a {@link ByteBuffer}.
+   */
+  public Decoder createDecoder(SocketAddress src, ByteBuffer buffer) throws IOException;
+  
   /**
    * Creates and retruns an {@link Encoder}.
    */
@@ -20,9 +20,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 import org.ardverk.dht.codec.AbstractMessageCodec;
+import org.ardverk.dht.codec.ByteBufferInputStream;
 import org.ardverk.dht.message.Message;
+import org.ardverk.dht.message.StoreRequest;
+import org.ardverk.dht.rsrc.Value;
 
 
 /**
@@ -31,13 +36,42 @@ import org.ardverk.dht.message.Message;
  */
 public class BencodeMessageCodec extends AbstractMessageCodec {
   
+  /**
+   * The max number of encoded {@link StoreRequest} bodies that are 
+   * kept for sending the same STORE to many destinations.
+   */
+  private static final int BODY_CACHE_SIZE = 16;
+  
+  /**
+   * The time in seconds for which an encoded {@link StoreRequest} 
+   * body is being reused.
+   */
+  private static final long BODY_CACHE_TIMEOUT = 10L;
+  
+  private final BodyCache bodies = new BodyCache(
+      BODY_CACHE_SIZE, BODY_CACHE_TIMEOUT, TimeUnit.SECONDS);
+  
   @Override
-  public Decoder createDecoder(final SocketAddress src, final InputStream in) {
+  public Decoder createDecoder(SocketAddress src, InputStream in) {
+    return createDecoder(src, new MessageInputStream(in));
+  }
+  
+  /**
+   * Creates and returns a {@link Decoder} that parses the {@link Message}s 
+   * directly from the given {@link ByteBuffer}. The {@link Value}s of 
+   * {@link Message}s are slices of the {@link ByteBuffer} if it's backed 
+   * by an array.
+   */
+  @Override
+  public Decoder createDecoder(SocketAddress src, ByteBuffer buffer) {
+    return createDecoder(src, new MessageInputStream(
+        new ByteBufferInputStream(buffer)));
+  }
+  
+  private static Decoder createDecoder(final SocketAddress src, 
+      final MessageInputStream mis) {
     Decoder decoder = new Decoder() {
       
-      private final MessageInputStream mis 
-        = new MessageInputStream(in);
-      
       @Override
       public Message read() throws IOException {
         return mis.readMessage(src);
@@ -59,7 +93,13 @@ public class BencodeMessageCodec extends AbstractMessageCodec {
       
       @Override
       public void write(Message message) throws IOException {
-        mos.writeMessage(message);
+        mos.writeHeader(message);
+        
+        if (message instanceof StoreRequest) {
+          mos.write(bodies.getBody((StoreRequest)message));
+        } else {
+          mos.writeBody(message);
+        }
       }
       
       @Override
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.codec.bencode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.ardverk.collection.FixedSizeHashMap;
+import org.ardverk.dht.message.StoreRequest;
+import org.ardverk.dht.rsrc.Key;
+import org.ardverk.dht.rsrc.Value;
+import org.ardverk.lang.TimeStamp;
+
+/**
+ * A small cache of encoded {@link StoreRequest} bodies. A STORE is sent 
+ * with the same {@link Key} and {@link Value} instances to up to 
+ * {@code w} {@link org.ardverk.dht.routing.Contact}s and only the 
+ * header differs from one {@link StoreRequest} to the other.
+ * 
+ * <p>The {@link Key}s and {@link Value}s are weakly referenced and the
+ * bodies expire after a timeout. The cache is meant for the duration of
+ * a STORE operation and mustn't keep big {@link Value}s alive.
+ */
+class BodyCache {
+  
+  private final FixedSizeHashMap<Entry, Body> bodies;
+  
+  private final long timeoutInMillis;
+  
+  public BodyCache(int maxSize, long timeout, TimeUnit unit) {
+    this.bodies = new FixedSizeHashMap<>(maxSize, maxSize);
+    this.timeoutInMillis = unit.toMillis(timeout);
+  }
+  
+  /**
+   * Returns the encoded body of the given {@link StoreRequest}.
+   * 
+   * @see MessageOutputStream#writeBody(org.ardverk.dht.message.Message)
+   */
+  public byte[] getBody(StoreRequest request) throws IOException {
+    Entry entry = new Entry(request.getKey(), request.getValue());
+    
+    synchronized (bodies) {
+      purge();
+      
+      Body body = bodies.get(entry);
+      if (body != null) {
+        return body.data;
+      }
+    }
+    
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    MessageOutputStream out = new MessageOutputStream(baos);
+    out.writeBody(request);
+    out.close();
+    
+    byte[] data = baos.toByteArray();
+    synchronized (bodies) {
+      bodies.put(entry, new Body(data));
+    }
+    return data;
+  }
+  
+  /**
+   * Returns the number of bodies.
+   */
+  public int size() {
+    synchronized (bodies) {
+      purge();
+      return bodies.size();
+    }
+  }
+  
+  /**
+   * Removes the bodies that have expired or whose {@link Key} 
+   * or {@link Value} was garbage collected.
+   */
+  private void purge() {
+    for (Iterator<Map.Entry<Entry, Body>> it 
+        = bodies.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Entry, Body> entry = it.next();
+      if (entry.getKey().isCleared() 
+          || entry.getValue().creationTime.getAgeInMillis() 
+            >= timeoutInMillis) {
+        it.remove();
+      }
+    }
+  }
+  
+  /**
+   * The {@link Entry} compares the {@link Key} and {@link Value}
+   * by identity. The {@link Value}'s content isn't looked at.
+   */
+  private static class Entry {
+    
+    private final WeakReference<Key> key;
+    
+    private final WeakReference<Value> value;
+    
+    private final int hashCode;
+    
+    public Entry(Key key, Value value) {
+      this.key = new WeakReference<Key>(key);
+      this.value = new WeakReference<Value>(value);
+      this.hashCode = 31 * System.identityHashCode(key) 
+          + System.identityHashCode(value);
+    }
+    
+    /**
+     * Returns {@code true} if either the {@link Key} or the 
+     * {@link Value} was garbage collected.
+     */
+    public boolean isCleared() {
+      return key.get() == null || value.get() == null;
+    }
+    
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      } else if (!(o instanceof Entry)) {
+        return false;
+      }
+      
+      Entry other = (Entry)o;
+      return !isCleared() 
+          && key.get() == other.key.get() 
+          && value.get() == other.value.get();
+    }
+  }
+  
+  /**
+   * An encoded body and the time it was encoded.
+   */
+  private static class Body {
+    
+    private final TimeStamp creationTime = TimeStamp.now();
+    
+    private final byte[] data;
+    
+    public Body(byte[] data) {
+      this.data = data;
+    }
+  }
+}
\ No newline at end of file
@@ -23,11 +23,13 @@ import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.SocketAddress;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
 import org.ardverk.coding.BencodingInputStream;
 import org.ardverk.dht.KUID;
+import org.ardverk.dht.codec.ByteBufferInputStream;
 import org.ardverk.dht.lang.IntegerValue;
 import org.ardverk.dht.lang.StringValue;
 import org.ardverk.dht.message.DefaultNodeRequest;
@@ -182,6 +184,20 @@ public class MessageInputStream extends BencodingInputStream {
       throw new IOException("length=" + length);
     }
     
+    // Slice the payload rather than copying it if we're reading
+    // straight from an array backed ByteBuffer.
+    if (in instanceof ByteBufferInputStream) {
+      ByteBuffer slice = ((ByteBufferInputStream)in).slice((int)length);
+      if (slice.hasArray()) {
+        return new ByteArrayValue(slice.array(), 
+            slice.arrayOffset() + slice.position(), slice.remaining());
+      }
+      
+      byte[] data = new byte[slice.remaining()];
+      slice.get(data);
+      return new ByteArrayValue(data);
+    }
+    
     // TODO: This is kinda wasteful but doing for now because it's easy.
     byte[] data = new byte[(int)length];
     StreamUtils.readFully(in, data);
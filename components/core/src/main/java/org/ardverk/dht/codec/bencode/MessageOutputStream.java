@@ -156,6 +156,15 @@ public class MessageOutputStream extends BencodingOutputStream {
   }
   
   public void writeMessage(Message message) throws IOException {
+    writeHeader(message);
+    writeBody(message);
+  }
+  
+  /**
+   * Writes the parts of the given {@link Message} that are specific 
+   * to its destination.
+   */
+  public void writeHeader(Message message) throws IOException {
     
     writeByte(Constants.VERSION);
     
@@ -166,7 +175,16 @@ public class MessageOutputStream extends BencodingOutputStream {
     // Write the source and destination
     writeSender(message.getContact());
     writeSocketAddress(message.getAddress());
+  }
+  
+  /**
+   * Writes the parts of the given {@link Message} that don't depend 
+   * on its destination. The body of a {@link Message} can be encoded 
+   * once and be sent to many destinations.
+   */
+  public void writeBody(Message message) throws IOException {
     
+    OpCode opcode = OpCode.valueOf(message);
     switch (opcode) {
       case PING_REQUEST:
         writePingRequest((PingRequest)message);
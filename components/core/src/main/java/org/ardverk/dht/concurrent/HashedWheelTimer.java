@@ -0,0 +1,412 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.concurrent;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ardverk.lang.Precoditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed wheel timer for large numbers of short lived timeouts that
+ * are usually cancelled before they expire (e.g. request timeouts).
+ * Scheduling and cancelling a {@link Timeout} are O(1) operations.
+ *
+ * <p>The timer is not precise. {@link Timeout}s expire on the tick
+ * that follows their deadline and the tasks are executed on the
+ * timer's own {@link Thread}. Long running tasks should therefore
+ * be handed off to a different {@link Thread}.
+ */
+public class HashedWheelTimer implements Closeable {
+  
+  private static final Logger LOG
+    = LoggerFactory.getLogger(HashedWheelTimer.class);
+  
+  private static final int INIT = 0;
+  
+  private static final int STARTED = 1;
+  
+  private static final int CLOSED = 2;
+  
+  /**
+   * The max number of {@link Timeout}s that are moved from the
+   * pending queue into the wheel per tick.
+   */
+  private static final int MAX_TRANSFERS_PER_TICK = 100000;
+  
+  private final AtomicInteger state = new AtomicInteger(INIT);
+  
+  private final CountDownLatch startLatch = new CountDownLatch(1);
+  
+  private final Queue<WheelTimeout> pending
+    = new ConcurrentLinkedQueue<WheelTimeout>();
+  
+  private final Queue<WheelTimeout> cancelled
+    = new ConcurrentLinkedQueue<WheelTimeout>();
+  
+  private final String name;
+  
+  private final long tickDuration;
+  
+  private final Bucket[] wheel;
+  
+  private final int mask;
+  
+  private volatile long startTime = 0L;
+  
+  private volatile Thread thread = null;
+  
+  /**
+   * Creates a {@link HashedWheelTimer} with a 100ms tick
+   * and 512 ticks per wheel.
+   */
+  public HashedWheelTimer(String name) {
+    this(name, 100L, TimeUnit.MILLISECONDS, 512);
+  }
+  
+  /**
+   * Creates a {@link HashedWheelTimer}.
+   */
+  public HashedWheelTimer(String name, long tickDuration,
+      TimeUnit unit, int ticksPerWheel) {
+    
+    if (tickDuration <= 0L) {
+      throw new IllegalArgumentException("tickDuration=" + tickDuration);
+    }
+    
+    if (ticksPerWheel <= 0 || (1 << 30) < ticksPerWheel) {
+      throw new IllegalArgumentException("ticksPerWheel=" + ticksPerWheel);
+    }
+    
+    this.name = Precoditions.notNull(name, "name");
+    this.tickDuration = unit.toNanos(tickDuration);
+    
+    // Round up to the next power of two
+    int length = 1;
+    while (length < ticksPerWheel) {
+      length <<= 1;
+    }
+    
+    this.wheel = new Bucket[length];
+    for (int i = 0; i < wheel.length; i++) {
+      wheel[i] = new Bucket();
+    }
+    
+    this.mask = length - 1;
+  }
+  
+  /**
+   * Schedules the given {@link Runnable} for execution after the
+   * given delay.
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    Precoditions.notNull(task, "task");
+    
+    start();
+    
+    long deadline = System.nanoTime()
+        + unit.toNanos(Math.max(0L, delay)) - startTime;
+    
+    WheelTimeout timeout = new WheelTimeout(task, deadline);
+    pending.add(timeout);
+    return timeout;
+  }
+  
+  /**
+   * Returns the number of {@link Timeout}s that haven't been
+   * moved into the wheel yet.
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+  
+  /**
+   * Starts the timer's {@link Thread} if it isn't running yet.
+   */
+  private void start() {
+    switch (state.get()) {
+      case INIT:
+        if (state.compareAndSet(INIT, STARTED)) {
+          Thread thread = new Thread(new Worker(), name);
+          thread.setDaemon(true);
+          thread.start();
+          
+          this.thread = thread;
+        }
+        break;
+      case STARTED:
+        break;
+      default:
+        throw new IllegalStateException("closed");
+    }
+    
+    try {
+      startLatch.await();
+    } catch (InterruptedException err) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted", err);
+    }
+  }
+  
+  /**
+   * Stops the timer. Pending {@link Timeout}s will never expire.
+   */
+  @Override
+  public void close() {
+    if (state.getAndSet(CLOSED) == STARTED) {
+      Thread thread = this.thread;
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+    
+    startLatch.countDown();
+  }
+  
+  /**
+   * A handle for a scheduled task.
+   */
+  public static interface Timeout {
+    
+    /**
+     * Cancels the {@link Timeout} and returns {@code true} on success.
+     */
+    public boolean cancel();
+    
+    /**
+     * Returns {@code true} if the {@link Timeout} was cancelled.
+     */
+    public boolean isCancelled();
+    
+    /**
+     * Returns {@code true} if the {@link Timeout} has expired.
+     */
+    public boolean isExpired();
+  }
+  
+  private class Worker implements Runnable {
+    
+    private long tick = 0L;
+    
+    @Override
+    public void run() {
+      long now = System.nanoTime();
+      
+      // Zero is used to signal that the timer hasn't been started
+      startTime = (now != 0L) ? now : 1L;
+      startLatch.countDown();
+      
+      while (state.get() == STARTED) {
+        long deadline = waitForNextTick();
+        if (deadline < 0L) {
+          break;
+        }
+        
+        removeCancelled();
+        transferPending();
+        
+        wheel[(int)(tick & mask)].expire(deadline);
+        ++tick;
+      }
+    }
+    
+    /**
+     * Sleeps until the next tick and returns its deadline (relative
+     * to the start time) or a negative value if the timer was closed.
+     */
+    private long waitForNextTick() {
+      long deadline = tickDuration * (tick + 1L);
+      
+      while (true) {
+        long now = System.nanoTime() - startTime;
+        long sleepTime = (deadline - now + 999999L) / 1000000L;
+        
+        if (sleepTime <= 0L) {
+          return now;
+        }
+        
+        try {
+          Thread.sleep(sleepTime);
+        } catch (InterruptedException err) {
+          if (state.get() == CLOSED) {
+            return -1L;
+          }
+        }
+      }
+    }
+    
+    private void removeCancelled() {
+      WheelTimeout timeout = null;
+      while ((timeout = cancelled.poll()) != null) {
+        Bucket bucket = timeout.bucket;
+        if (bucket != null) {
+          bucket.remove(timeout);
+        }
+      }
+    }
+    
+    private void transferPending() {
+      for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+        WheelTimeout timeout = pending.poll();
+        if (timeout == null) {
+          break;
+        }
+        
+        if (timeout.isCancelled()) {
+          continue;
+        }
+        
+        long expiration = timeout.deadline / tickDuration;
+        timeout.remainingRounds = (expiration - tick) / wheel.length;
+        
+        // Timeouts that are already overdue go into the current tick
+        long ticks = Math.max(expiration, tick);
+        wheel[(int)(ticks & mask)].add(timeout);
+      }
+    }
+  }
+  
+  /**
+   * A {@link Bucket} is a doubly linked list of {@link WheelTimeout}s.
+   * It's only accessed by the timer's {@link Thread}.
+   */
+  private static class Bucket {
+    
+    private WheelTimeout head = null;
+    
+    private WheelTimeout tail = null;
+    
+    public void add(WheelTimeout timeout) {
+      timeout.bucket = this;
+      
+      if (head == null) {
+        head = tail = timeout;
+      } else {
+        tail.next = timeout;
+        timeout.prev = tail;
+        tail = timeout;
+      }
+    }
+    
+    public void remove(WheelTimeout timeout) {
+      WheelTimeout prev = timeout.prev;
+      WheelTimeout next = timeout.next;
+      
+      if (prev != null) {
+        prev.next = next;
+      } else {
+        head = next;
+      }
+      
+      if (next != null) {
+        next.prev = prev;
+      } else {
+        tail = prev;
+      }
+      
+      timeout.prev = null;
+      timeout.next = null;
+      timeout.bucket = null;
+    }
+    
+    /**
+     * Expires all {@link WheelTimeout}s whose deadline has passed
+     * and decrements the remaining rounds of all others.
+     */
+    public void expire(long deadline) {
+      WheelTimeout timeout = head;
+      while (timeout != null) {
+        WheelTimeout next = timeout.next;
+        
+        if (timeout.isCancelled()) {
+          remove(timeout);
+        } else if (timeout.remainingRounds <= 0L
+            && timeout.deadline <= deadline) {
+          remove(timeout);
+          timeout.expire();
+        } else {
+          --timeout.remainingRounds;
+        }
+        
+        timeout = next;
+      }
+    }
+  }
+  
+  private class WheelTimeout implements Timeout {
+    
+    private static final int WAITING = 0;
+    
+    private static final int CANCELLED = 1;
+    
+    private static final int EXPIRED = 2;
+    
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+    
+    private final Runnable task;
+    
+    private final long deadline;
+    
+    private long remainingRounds = 0L;
+    
+    private Bucket bucket = null;
+    
+    private WheelTimeout prev = null;
+    
+    private WheelTimeout next = null;
+    
+    private WheelTimeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+    
+    @Override
+    public boolean cancel() {
+      if (state.compareAndSet(WAITING, CANCELLED)) {
+        cancelled.add(this);
+        return true;
+      }
+      return false;
+    }
+    
+    @Override
+    public boolean isCancelled() {
+      return state.get() == CANCELLED;
+    }
+    
+    @Override
+    public boolean isExpired() {
+      return state.get() == EXPIRED;
+    }
+    
+    private void expire() {
+      if (state.compareAndSet(WAITING, EXPIRED)) {
+        try {
+          task.run();
+        } catch (Throwable t) {
+          LOG.error("Exception", t);
+        }
+      }
+    }
+  }
+}
\ No newline at end of file
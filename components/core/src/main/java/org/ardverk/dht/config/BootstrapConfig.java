@@ -19,6 +19,7 @@ package org.ardverk.dht.config;
 import java.util.concurrent.TimeUnit;
 
 import org.ardverk.dht.concurrent.ExecutorKey;
+import org.ardverk.dht.io.TrafficClass;
 
 
 public class BootstrapConfig extends Config {
@@ -33,6 +34,13 @@ public class BootstrapConfig extends Config {
     pingConfig.setExecutorKey(executorKey);
     lookupConfig.setExecutorKey(executorKey);
   }
+  
+  @Override
+  public void setTrafficClass(TrafficClass trafficClass) {
+    super.setTrafficClass(trafficClass);
+    pingConfig.setTrafficClass(trafficClass);
+    lookupConfig.setTrafficClass(trafficClass);
+  }
 
   public PingConfig getPingConfig() {
     return pingConfig;
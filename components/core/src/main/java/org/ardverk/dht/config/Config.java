@@ -19,15 +19,21 @@ package org.ardverk.dht.config;
 import java.util.concurrent.TimeUnit;
 
 import org.ardverk.dht.concurrent.ExecutorKey;
+import org.ardverk.dht.io.TrafficClass;
 import org.ardverk.dht.routing.Contact;
+import org.ardverk.dht.routing.RoundTripTimeEstimator;
 
 
 public abstract class Config {
 
+  private volatile boolean adaptiveTimeout = true;
+  
   private volatile double adaptiveTimeoutMultiplier = -1;
   
   private volatile ExecutorKey executorKey = ExecutorKey.DEFAULT;
   
+  private volatile TrafficClass trafficClass = TrafficClass.DEFAULT;
+  
   private volatile long operationTimeoutInMillis;
   
   public Config() {
@@ -52,23 +58,67 @@ public abstract class Config {
   public void setExecutorKey(ExecutorKey executorKey) {
     this.executorKey = executorKey;
   }
+  
+  public TrafficClass getTrafficClass() {
+    return trafficClass;
+  }
+  
+  public void setTrafficClass(TrafficClass trafficClass) {
+    this.trafficClass = trafficClass;
+  }
 
   public final long getOperationTimeoutInMillis() {
     return getOperationTimeout(TimeUnit.MILLISECONDS);
   }
   
+  public boolean isAdaptiveTimeout() {
+    return adaptiveTimeout;
+  }
+  
+  /**
+   * Turns adaptive timeouts on or off. They're on by default and 
+   * computed from the RTT estimates.
+   */
+  public void setAdaptiveTimeout(boolean adaptiveTimeout) {
+    this.adaptiveTimeout = adaptiveTimeout;
+  }
+  
   public double getRoundTripTimeMultiplier() {
     return adaptiveTimeoutMultiplier;
   }
 
+  /**
+   * Sets the multiplier that is applied to a {@link Contact}'s single
+   * RTT if there are no RTT estimates at all. It's off by default 
+   * (not positive) and such {@link Contact}s get the full timeout.
+   */
   public void setRountTripTimeMultiplier(double adaptiveTimeoutMultiplier) {
     this.adaptiveTimeoutMultiplier = adaptiveTimeoutMultiplier;
   }
   
   public long getAdaptiveTimeout(Contact dst, 
       long defaultTimeout, TimeUnit unit) {
+    return getAdaptiveTimeout(dst, null, defaultTimeout, unit);
+  }
+  
+  /**
+   * Returns an adaptive timeout for the given {@link Contact}. The
+   * {@link RoundTripTimeEstimator} is used for {@link Contact}s we 
+   * know nothing about.
+   * 
+   * @see #setAdaptiveTimeout(boolean)
+   * @see #setRountTripTimeMultiplier(double)
+   */
+  public long getAdaptiveTimeout(Contact dst, 
+      RoundTripTimeEstimator defaultEstimator, 
+      long defaultTimeout, TimeUnit unit) {
+    
+    if (!isAdaptiveTimeout()) {
+      return defaultTimeout;
+    }
+    
     double multiplier = getRoundTripTimeMultiplier();
     return ConfigUtils.getAdaptiveTimeout(dst, 
-        multiplier, defaultTimeout, unit);
+        defaultEstimator, multiplier, defaultTimeout, unit);
   }
 }
\ No newline at end of file
@@ -19,6 +19,8 @@ package org.ardverk.dht.config;
 import java.util.concurrent.TimeUnit;
 
 import org.ardverk.dht.routing.Contact;
+import org.ardverk.dht.routing.ContactUtils;
+import org.ardverk.dht.routing.RoundTripTimeEstimator;
 
 class ConfigUtils {
 
@@ -46,11 +48,27 @@ class ConfigUtils {
     return time;
   }
   
+  /**
+   * Returns an adaptive timeout for the given {@link Contact}. It's 
+   * computed from the smoothed RTT and RTT variance of the 
+   * {@link Contact} or, if they're unknown, of the given default 
+   * {@link RoundTripTimeEstimator} (may be {@code null}). The multiplier 
+   * is applied to the {@link Contact}'s RTT only if there are no RTT 
+   * samples at all and if it's positive. The default timeout is 
+   * returned otherwise.
+   */
   public static long getAdaptiveTimeout(Contact dst, 
-      double multiplier, long defaultTimeout, TimeUnit unit) {
+      RoundTripTimeEstimator defaultEstimator, double multiplier, 
+      long defaultTimeout, TimeUnit unit) {
+    
+    RoundTripTimeEstimator estimator 
+      = ContactUtils.getRoundTripTimeEstimator(dst, defaultEstimator);
+    if (estimator != null && estimator.hasSamples()) {
+      return estimator.getTimeout(defaultTimeout, unit);
+    }
     
     long rttInMillis = dst.getRoundTripTimeInMillis();
-    if (0L < rttInMillis && 0d < multiplier) {
+    if (0d < multiplier && 0L < rttInMillis) {
       long timeout = (long)(rttInMillis * multiplier);
       long adaptive = Math.min(timeout, 
           unit.toMillis(defaultTimeout));
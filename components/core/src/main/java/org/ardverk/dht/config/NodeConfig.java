@@ -29,6 +29,8 @@ public class NodeConfig extends Config {
   
   private volatile boolean randomize = false;
   
+  private volatile boolean proximityRouting = false;
+  
   private volatile int alpha = 4;
 
   private volatile long boostFrequency 
@@ -64,6 +66,21 @@ public class NodeConfig extends Config {
     this.randomize = randomize;
   }
 
+  public boolean isProximityRouting() {
+    return proximityRouting;
+  }
+
+  /**
+   * Turns proximity routing on or off for a single lookup operation.
+   * Among equally close candidates the lookup queries the one with the
+   * lowest round trip time first. The {@link org.ardverk.dht.routing.RouteTable} 
+   * has its own setting in 
+   * {@link org.ardverk.dht.routing.RouteTableConfig#setProximityRouting(boolean)}.
+   */
+  public void setProximityRouting(boolean proximityRouting) {
+    this.proximityRouting = proximityRouting;
+  }
+
   public int getAlpha() {
     return alpha;
   }
@@ -19,6 +19,7 @@ package org.ardverk.dht.config;
 import java.util.concurrent.TimeUnit;
 
 import org.ardverk.dht.concurrent.ExecutorKey;
+import org.ardverk.dht.io.TrafficClass;
 
 
 public class PutConfig extends Config {
@@ -37,6 +38,14 @@ public class PutConfig extends Config {
     getConfig.setExecutorKey(executorKey);
   }
   
+  @Override
+  public void setTrafficClass(TrafficClass trafficClass) {
+    super.setTrafficClass(trafficClass);
+    lookupConfig.setTrafficClass(trafficClass);
+    storeConfig.setTrafficClass(trafficClass);
+    getConfig.setTrafficClass(trafficClass);
+  }
+  
   public NodeConfig getLookupConfig() {
     return lookupConfig;
   }
@@ -19,6 +19,7 @@ package org.ardverk.dht.config;
 import java.util.concurrent.TimeUnit;
 
 import org.ardverk.dht.concurrent.ExecutorKey;
+import org.ardverk.dht.io.TrafficClass;
 import org.ardverk.utils.TimeUtils;
 
 
@@ -36,6 +37,11 @@ public class QuickenConfig extends Config {
   private volatile long bucketTimeoutInMillis 
     = TimeUtils.convert(5L*60L, TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
   
+  // INIT
+  {
+    setTrafficClass(TrafficClass.BACKGROUND);
+  }
+  
   @Override
   public void setExecutorKey(ExecutorKey executorKey) {
     super.setExecutorKey(executorKey);
@@ -43,6 +49,13 @@ public class QuickenConfig extends Config {
     lookupConfig.setExecutorKey(executorKey);
   }
   
+  @Override
+  public void setTrafficClass(TrafficClass trafficClass) {
+    super.setTrafficClass(trafficClass);
+    pingConfig.setTrafficClass(trafficClass);
+    lookupConfig.setTrafficClass(trafficClass);
+  }
+  
   public PingConfig getPingConfig() {
     return pingConfig;
   }
@@ -49,8 +49,24 @@ public abstract class AbstractResponseHandler<V extends Entity>
   
   private volatile TimeStamp lastResponseTime = null;
   
+  private final TrafficClass trafficClass;
+  
   public AbstractResponseHandler(Provider<MessageDispatcher> messageDispatcher) {
+    this(messageDispatcher, TrafficClass.DEFAULT);
+  }
+  
+  public AbstractResponseHandler(Provider<MessageDispatcher> messageDispatcher, 
+      TrafficClass trafficClass) {
     super(messageDispatcher);
+    this.trafficClass = Precoditions.notNull(trafficClass, "trafficClass");
+  }
+  
+  /**
+   * Returns the {@link TrafficClass} of the {@link RequestMessage}s
+   * that are being sent by this {@link ResponseHandler}.
+   */
+  public TrafficClass getTrafficClass() {
+    return trafficClass;
   }
   
   /**
@@ -152,8 +168,11 @@ public abstract class AbstractResponseHandler<V extends Entity>
   public void send(Contact dst, RequestMessage message, 
       long timeout, TimeUnit unit) throws IOException {
     
-    KUID contactId = dst.getId();
-    send(contactId, message, timeout, unit);
+    if (isOpen()) {
+      getMessageDispatcher().send(this, trafficClass, 
+          dst, message, timeout, unit);
+      lastSendTime = TimeStamp.now();
+    }
   }
   
   /**
@@ -166,8 +185,8 @@ public abstract class AbstractResponseHandler<V extends Entity>
       long timeout, TimeUnit unit) throws IOException {
     
     if (isOpen()) {
-      getMessageDispatcher().send(this, contactId, 
-          message, timeout, unit);
+      getMessageDispatcher().send(this, trafficClass, 
+          contactId, message, timeout, unit);
       lastSendTime = TimeStamp.now();
     }
   }
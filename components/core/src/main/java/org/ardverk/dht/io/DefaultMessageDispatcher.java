@@ -107,6 +107,15 @@ public class DefaultMessageDispatcher extends MessageDispatcher {
     return store;
   }
 
+  /**
+   * {@link StoreRequest}s are not re-sent. They're big and 
+   * usually sent over TCP.
+   */
+  @Override
+  protected boolean isRetransmit(RequestMessage request) {
+    return !(request instanceof StoreRequest);
+  }
+  
   @Override
   protected ResponseMessage handleRequest0(RequestMessage request) throws IOException {
     
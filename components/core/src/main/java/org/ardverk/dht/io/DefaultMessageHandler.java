@@ -64,7 +64,9 @@ public class DefaultMessageHandler implements MessageCallback {
     
     Contact src = response.getContact();
     
-    if (src instanceof RoundTripTime) {
+    // We don't know which transmission the response belongs 
+    // to if the request was re-sent (Karn's algorithm).
+    if (src instanceof RoundTripTime && entity.getRetransmits() == 0) {
       ((RoundTripTime)src).setRoundTripTime(time, unit);
     }
     
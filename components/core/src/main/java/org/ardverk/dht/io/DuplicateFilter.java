@@ -0,0 +1,227 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.ardverk.dht.message.MessageId;
+
+/**
+ * A lock-free and time-windowed filter for duplicate {@link MessageId}s.
+ * 
+ * <p>The filter stores 64-bit hashes of the {@link MessageId}s in two
+ * generations of open addressing tables. The current generation takes 
+ * all new hashes and is rotated once the time window has elapsed. A 
+ * {@link MessageId} is therefore remembered for at least one and at 
+ * most two time windows.
+ * 
+ * <p>NOTE: Hashes may get overwritten if the actual message rate is
+ * much higher than the expected rate. The filter may therefore miss 
+ * some duplicates but it'll (practically) never reject a new 
+ * {@link MessageId}.
+ */
+class DuplicateFilter {
+  
+  /**
+   * The number of slots that are probed for each hash.
+   */
+  private static final int PROBES = 4;
+  
+  private final AtomicReference<Window> window;
+  
+  private final AtomicLong checked = new AtomicLong();
+  
+  private final AtomicLong duplicates = new AtomicLong();
+  
+  private final long windowInNanos;
+  
+  private final int capacity;
+  
+  /**
+   * Creates a {@link DuplicateFilter} for the given number of 
+   * expected {@link MessageId}s per second.
+   */
+  public DuplicateFilter(int expectedRate, long window, TimeUnit unit) {
+    if (expectedRate <= 0) {
+      throw new IllegalArgumentException("expectedRate=" + expectedRate);
+    }
+    
+    if (window <= 0L) {
+      throw new IllegalArgumentException("window=" + window);
+    }
+    
+    this.windowInNanos = unit.toNanos(window);
+    
+    // Keep the tables at most half full
+    long expected = Math.max(1L, expectedRate 
+        * Math.max(1L, unit.toSeconds(window)));
+    
+    int capacity = PROBES;
+    while (capacity < 2L * expected && capacity < (1 << 30)) {
+      capacity <<= 1;
+    }
+    
+    this.capacity = capacity;
+    
+    Generation current = new Generation(capacity, System.nanoTime());
+    this.window = new AtomicReference<Window>(
+        new Window(current, new Generation(capacity, current.creationTime)));
+  }
+  
+  /**
+   * Adds the given {@link MessageId} to the filter and returns 
+   * {@code true} if it wasn't in the filter yet.
+   */
+  public boolean add(MessageId messageId) {
+    checked.incrementAndGet();
+    
+    long hash = messageId.longHashCode();
+    
+    // Zero is used to mark empty slots
+    if (hash == 0L) {
+      hash = 1L;
+    }
+    
+    Window window = rotate(System.nanoTime());
+    
+    if (window.previous.contains(hash) 
+        || !window.current.add(hash)) {
+      duplicates.incrementAndGet();
+      return false;
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Rotates the generations if the current generation is older than
+   * the time window and returns the (new) {@link Window}.
+   */
+  private Window rotate(long now) {
+    while (true) {
+      Window current = window.get();
+      if ((now - current.current.creationTime) < windowInNanos) {
+        return current;
+      }
+      
+      Window rotated = new Window(
+          new Generation(capacity, now), current.current);
+      
+      if (window.compareAndSet(current, rotated)) {
+        return rotated;
+      }
+    }
+  }
+  
+  /**
+   * Returns the number of {@link MessageId}s that were checked.
+   */
+  public long getCheckedCount() {
+    return checked.get();
+  }
+  
+  /**
+   * Returns the number of duplicate {@link MessageId}s.
+   */
+  public long getDuplicateCount() {
+    return duplicates.get();
+  }
+  
+  private static class Window {
+    
+    private final Generation current;
+    
+    private final Generation previous;
+    
+    public Window(Generation current, Generation previous) {
+      this.current = current;
+      this.previous = previous;
+    }
+  }
+  
+  private static class Generation {
+    
+    private final AtomicLongArray slots;
+    
+    private final int mask;
+    
+    private final long creationTime;
+    
+    public Generation(int capacity, long creationTime) {
+      this.slots = new AtomicLongArray(capacity);
+      this.mask = capacity - 1;
+      this.creationTime = creationTime;
+    }
+    
+    /**
+     * Returns {@code true} if the given hash is in the table.
+     */
+    public boolean contains(long hash) {
+      int index = index(hash);
+      for (int i = 0; i < PROBES; i++) {
+        if (slots.get((index + i) & mask) == hash) {
+          return true;
+        }
+      }
+      return false;
+    }
+    
+    /**
+     * Adds the given hash to the table and returns {@code true} if
+     * it wasn't in the table yet. The first probed slot gets
+     * overwritten if all probed slots are taken.
+     */
+    public boolean add(long hash) {
+      int index = index(hash);
+      
+      while (true) {
+        int free = -1;
+        for (int i = 0; i < PROBES; i++) {
+          int slot = (index + i) & mask;
+          long value = slots.get(slot);
+          
+          if (value == hash) {
+            return false;
+          } else if (value == 0L && free == -1) {
+            free = slot;
+          }
+        }
+        
+        if (free != -1) {
+          if (slots.compareAndSet(free, 0L, hash)) {
+            return true;
+          }
+          
+          // Somebody else took the slot. Try again!
+          continue;
+        }
+        
+        long value = slots.get(index);
+        if (slots.compareAndSet(index, value, hash)) {
+          return true;
+        }
+      }
+    }
+    
+    private int index(long hash) {
+      return (int)(hash ^ (hash >>> 32)) & mask;
+    }
+  }
+}
\ No newline at end of file
@@ -17,15 +17,11 @@
 package org.ardverk.dht.io;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.NavigableSet;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
-import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Provider;
@@ -45,7 +41,6 @@ import org.ardverk.dht.message.ValueRequest;
 import org.ardverk.dht.message.ValueResponse;
 import org.ardverk.dht.routing.Contact;
 import org.ardverk.dht.routing.RouteTable;
-import org.ardverk.dht.utils.XorComparator;
 import org.ardverk.lang.TimeStamp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -77,7 +72,7 @@ abstract class LookupResponseHandler<T extends LookupEntity>
   public LookupResponseHandler(Provider<MessageDispatcher> messageDispatcher, 
       Contact[] contacts, RouteTable routeTable, KUID lookupId, 
       NodeConfig config) {
-    super(messageDispatcher);
+    super(messageDispatcher, config.getTrafficClass());
     
     this.config = config;
     lookupManager = new LookupManager(contacts, routeTable, lookupId);
@@ -177,8 +172,9 @@ abstract class LookupResponseHandler<T extends LookupEntity>
    */
   private void lookup(Contact dst) throws IOException {
     long defaultTimeout = config.getLookupTimeoutInMillis();
-    long adaptiveTimeout = config.getAdaptiveTimeout(
-        dst, defaultTimeout, TimeUnit.MILLISECONDS);
+    long adaptiveTimeout = config.getAdaptiveTimeout(dst, 
+        getMessageDispatcher().getRoundTripTimeEstimator(), 
+        defaultTimeout, TimeUnit.MILLISECONDS);
     lookup(dst, lookupManager.lookupId, adaptiveTimeout, TimeUnit.MILLISECONDS);
   }
   
@@ -363,30 +359,28 @@ abstract class LookupResponseHandler<T extends LookupEntity>
     
     private final boolean randomize = config.isRandomize();
     
+    private final boolean proximity = config.isProximityRouting();
+    
     private final RouteTable routeTable;
     
     private final KUID lookupId;
     
     /**
-     * A {@link Set} of all responses
-     */
-    private final NavigableSet<Contact> responses;
-    
-    /**
-     * A {@link Set} of the k-closest responses
+     * All responses sorted by their XOR distance to the lookup 
+     * {@link KUID}. The first k elements are the k-closest responses.
      */
-    private final NavigableSet<Contact> closest;
+    private final ContactList responses;
     
     /**
-     * A {@link Set} of {@link Contact}s to query
+     * The {@link Contact}s to query sorted by their XOR distance.
      */
-    private final NavigableSet<Contact> query;
+    private final ContactList query;
     
     /**
      * A history of all {@link KUID}s that were added to the 
-     * {@link #query} {@link NavigableSet}.
+     * {@link #query} {@link ContactList} and their hop.
      */
-    private final Map<KUID, Integer> history = new HashMap<>();
+    private final HopTable history = new HopTable();
     
     private int currentHop = 0;
     
@@ -399,10 +393,8 @@ abstract class LookupResponseHandler<T extends LookupEntity>
       Contact localhost = routeTable.getIdentity();
       KUID contactId = localhost.getId();
       
-      XorComparator comparator = new XorComparator(lookupId);
-      this.responses = new TreeSet<Contact>(comparator);
-      this.closest = new TreeSet<Contact>(comparator);
-      this.query = new TreeSet<Contact>(comparator);
+      this.responses = new ContactList(lookupId);
+      this.query = new ContactList(lookupId);
       
       history.put(contactId, 0);
       
@@ -420,11 +412,18 @@ abstract class LookupResponseHandler<T extends LookupEntity>
         return;
       }
       
+      Contact[] added = new Contact[contacts.length];
+      
+      int count = 0;
       for (Contact contact : contacts) {
         if (addToQuery(contact, currentHop+1)) {
-          routeTable.add(contact);
+          added[count++] = contact;
         }
       }
+      
+      if (count > 0) {
+        routeTable.addAll(Arrays.copyOf(added, count));
+      }
     }
     
     public void handleTimeout(long time, TimeUnit unit) {
@@ -432,18 +431,11 @@ abstract class LookupResponseHandler<T extends LookupEntity>
     }
     
     public Contact[] getClosest() {
-      int length = Math.min(routeTable.getK(), responses.size());
-      Contact[] closest = new Contact[length];
-      
-      Iterator<Contact> it = responses.iterator();
-      for (int i = 0; i < closest.length; i++) {
-        closest[i] = it.next();
-      }
-      return closest;
+      return responses.toArray(getClosestCount());
     }
     
     public Contact[] getContacts() {
-      return responses.toArray(new Contact[0]);
+      return responses.toArray(responses.size());
     }
     
     public int getHop() {
@@ -454,16 +446,17 @@ abstract class LookupResponseHandler<T extends LookupEntity>
       return timeouts;
     }
     
+    /**
+     * Returns the number of k-closest responses.
+     */
+    private int getClosestCount() {
+      return Math.min(routeTable.getK(), responses.size());
+    }
+    
     private boolean addToResponses(Contact contact) {
       if (responses.add(contact)) {
-        closest.add(contact);
-        
-        if (closest.size() > routeTable.getK()) {
-          closest.pollLast();
-        }
-        
         KUID contactId = contact.getId();
-        currentHop = history.get(contactId);
+        currentHop = history.get(contactId, currentHop);
         return true;
       }
       
@@ -472,8 +465,7 @@ abstract class LookupResponseHandler<T extends LookupEntity>
     
     private boolean addToQuery(Contact contact, int hop) {
       KUID contactId = contact.getId();
-      if (!history.containsKey(contactId)) { 
-        history.put(contactId, hop);
+      if (history.put(contactId, hop)) { 
         query.add(contact);
         return true;
       }
@@ -482,8 +474,9 @@ abstract class LookupResponseHandler<T extends LookupEntity>
     }
     
     private boolean isCloserThanClosest(Contact other) {
-      if (!closest.isEmpty()) {
-        Contact contact = closest.last();
+      int count = getClosestCount();
+      if (count > 0) {
+        Contact contact = responses.get(count-1);
         KUID contactId = contact.getId();
         KUID otherId = other.getId();
         return otherId.isCloserTo(lookupId, contactId);
@@ -499,9 +492,9 @@ abstract class LookupResponseHandler<T extends LookupEntity>
     public boolean hasNext(boolean force) {
       if (!query.isEmpty()) {
         
-        Contact contact = query.first();
+        Contact contact = query.get(0);
         if (force || exhaustive
-            || closest.size() < routeTable.getK() 
+            || responses.size() < routeTable.getK() 
             || isCloserThanClosest(contact)) {
           return true;
         }
@@ -511,47 +504,222 @@ abstract class LookupResponseHandler<T extends LookupEntity>
     }
     
     public Contact next() {
-      Contact contact = null;
+      if (query.isEmpty()) {
+        throw new NoSuchElementException();
+      }
       
-      if (randomize && !query.isEmpty()) {
-        
-        // Knuth: Can we pick a random element from a set of 
-        // items whose cardinality we do not know?
-        //
-        // Pick an item and store it. Pick the next one, and replace 
-        // the first one with it with probability 1/2. Pick the third 
-        // one, and do a replace with probability 1/3, and so on. At 
-        // the end, the item you've stored has a probability of 1/n 
-        // of being any particular element.
-        //
-        // NOTE: We do know the cardinality but we don't have the 
-        // required methods to retrieve elements from the Set and 
-        // are forced to use the Iterator (streaming) as described 
-        // above.
+      int index = 0;
+      
+      if (randomize) {
+        // Pick a random element from the first k elements.
+        int length = Math.min(routeTable.getK(), query.size());
+        index = ThreadLocalRandom.current().nextInt(length);
+      } else if (proximity) {
+        index = getLowestLatency();
+      }
+      
+      return query.remove(index);
+    }
+    
+    /**
+     * Returns the index of the {@link Contact} with the lowest round 
+     * trip time among the {@link Contact}s that share the longest common 
+     * prefix with the lookup {@link KUID} and are therefore equally 
+     * useful in terms of progress.
+     */
+    private int getLowestLatency() {
+      int prefix = query.get(0).getId().commonPrefix(lookupId);
+      int length = Math.min(routeTable.getK(), query.size());
+      
+      int index = 0;
+      long lowest = query.get(0).getRoundTripTimeInMillis();
+      
+      for (int i = 1; i < length; i++) {
+        Contact contact = query.get(i);
+        if (contact.getId().commonPrefix(lookupId) != prefix) {
+          break;
+        }
         
-        int index = 0;
-        for (Contact c : query) {
-          
-          if (index >= routeTable.getK()) {
-            break;
-          }
-          
-          // First element is always true because 1/1 >= random[0..1]!
-          if (1d/++index >= Math.random()) {
-            contact = c;
-          }
+        long rtt = contact.getRoundTripTimeInMillis();
+        if (0L <= rtt && (lowest < 0L || rtt < lowest)) {
+          index = i;
+          lowest = rtt;
         }
+      }
+      
+      return index;
+    }
+  }
+  
+  /**
+   * A growable array of {@link Contact}s that is kept sorted by the 
+   * XOR distance to a given {@link KUID}. Duplicates (elements with 
+   * the same distance) are rejected.
+   */
+  private static class ContactList {
+    
+    private final KUID lookupId;
+    
+    private Contact[] elements = new Contact[16];
+    
+    private int size = 0;
+    
+    public ContactList(KUID lookupId) {
+      this.lookupId = lookupId;
+    }
+    
+    public int size() {
+      return size;
+    }
+    
+    public boolean isEmpty() {
+      return size == 0;
+    }
+    
+    public Contact get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+      }
+      return elements[index];
+    }
+    
+    public boolean add(Contact contact) {
+      int index = indexOf(contact.getId());
+      if (index >= 0) {
+        return false;
+      }
+      
+      index = -(index + 1);
+      
+      if (size == elements.length) {
+        elements = Arrays.copyOf(elements, 2 * size);
+      }
+      
+      System.arraycopy(elements, index, elements, index+1, size-index);
+      elements[index] = contact;
+      ++size;
+      return true;
+    }
+    
+    public Contact remove(int index) {
+      Contact contact = get(index);
+      
+      int moved = size - index - 1;
+      if (moved > 0) {
+        System.arraycopy(elements, index+1, elements, index, moved);
+      }
+      
+      elements[--size] = null;
+      return contact;
+    }
+    
+    /**
+     * Returns a copy of the first length elements.
+     */
+    public Contact[] toArray(int length) {
+      return Arrays.copyOf(elements, Math.min(length, size));
+    }
+    
+    /**
+     * Binary search for the given {@link KUID}. Returns the index 
+     * of the element or {@code -(insertion point) - 1}.
+     */
+    private int indexOf(KUID contactId) {
+      int lo = 0;
+      int hi = size - 1;
+      
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
         
-        query.remove(contact);
+        KUID midId = elements[mid].getId();
+        int cmp = midId.compareTo(lookupId, contactId);
         
-      } else {
-        contact = query.pollFirst();
+        if (cmp < 0) {
+          lo = mid + 1;
+        } else if (cmp > 0) {
+          hi = mid - 1;
+        } else {
+          return mid;
+        }
       }
       
-      if (contact == null) {
-        throw new NoSuchElementException();
+      return -(lo + 1);
+    }
+  }
+  
+  /**
+   * An open addressing hash table that maps {@link KUID}s to 
+   * primitive {@code int} hop values.
+   */
+  private static class HopTable {
+    
+    private KUID[] keys = new KUID[32];
+    
+    private int[] hops = new int[32];
+    
+    private int size = 0;
+    
+    /**
+     * Adds the given {@link KUID} and returns {@code true} if
+     * it wasn't already in the table.
+     */
+    public boolean put(KUID contactId, int hop) {
+      int index = indexOf(keys, contactId);
+      if (keys[index] != null) {
+        return false;
       }
-      return contact;
+      
+      keys[index] = contactId;
+      hops[index] = hop;
+      
+      // Keep the load factor below 0.5
+      if (++size >= keys.length/2) {
+        resize();
+      }
+      
+      return true;
+    }
+    
+    /**
+     * Returns the hop of the given {@link KUID} or the default 
+     * value if there is no such {@link KUID}.
+     */
+    public int get(KUID contactId, int defaultValue) {
+      int index = indexOf(keys, contactId);
+      return keys[index] != null ? hops[index] : defaultValue;
+    }
+    
+    private void resize() {
+      KUID[] oldKeys = keys;
+      int[] oldHops = hops;
+      
+      keys = new KUID[2 * oldKeys.length];
+      hops = new int[keys.length];
+      
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != null) {
+          int index = indexOf(keys, oldKeys[i]);
+          keys[index] = oldKeys[i];
+          hops[index] = oldHops[i];
+        }
+      }
+    }
+    
+    /**
+     * Returns the index of the given {@link KUID} or the index
+     * of the free slot where it should be stored.
+     */
+    private static int indexOf(KUID[] keys, KUID contactId) {
+      int mask = keys.length - 1;
+      
+      int h = contactId.hashCode();
+      int index = (h ^ (h >>> 16)) & mask;
+      
+      while (keys[index] != null && !keys[index].equals(contactId)) {
+        index = (index + 1) & mask;
+      }
+      
+      return index;
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ardverk.dht.io;
+
+/**
+ * A {@link MessageBatchListener} receives {@link MessageEvent}s 
+ * in batches rather than one callback per message.
+ */
+public interface MessageBatchListener {
+  
+  /**
+   * Called with all {@link MessageEvent}s that have accumulated 
+   * since the previous call in the order they occurred.
+   * 
+   * <p>NOTE: The {@link MessageEvent}s are recycled once the call 
+   * returns and must not be retained.
+   * 
+   * @param events the {@link MessageEvent}s
+   * @param length the number of {@link MessageEvent}s
+   * @param dropped the number of {@link MessageEvent}s that were 
+   * discarded because the event buffer overflowed
+   */
+  public void handleEvents(MessageEvent[] events, int length, int dropped);
+}
\ No newline at end of file
@@ -19,21 +19,20 @@ package org.ardverk.dht.io;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.SocketAddress;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.ardverk.collection.FixedSizeHashSet;
-import org.ardverk.concurrent.EventUtils;
 import org.ardverk.concurrent.ExecutorUtils;
 import org.ardverk.dht.KUID;
+import org.ardverk.dht.concurrent.HashedWheelTimer;
+import org.ardverk.dht.concurrent.HashedWheelTimer.Timeout;
 import org.ardverk.dht.io.transport.Endpoint;
 import org.ardverk.dht.io.transport.Transport;
 import org.ardverk.dht.io.transport.TransportCallback;
@@ -43,6 +42,8 @@ import org.ardverk.dht.message.MessageId;
 import org.ardverk.dht.message.RequestMessage;
 import org.ardverk.dht.message.ResponseMessage;
 import org.ardverk.dht.routing.Contact;
+import org.ardverk.dht.routing.ContactUtils;
+import org.ardverk.dht.routing.RoundTripTimeEstimator;
 import org.ardverk.io.IoUtils;
 import org.ardverk.lang.Bindable;
 import org.ardverk.lang.BindableUtils;
@@ -65,9 +66,46 @@ public abstract class MessageDispatcher
   private static final Logger LOG 
     = LoggerFactory.getLogger(MessageDispatcher.class);
   
-  private static final ScheduledExecutorService EXECUTOR 
-    = ExecutorUtils.newSingleThreadScheduledExecutor(
-      "MessageDispatcherThread");
+  /**
+   * The expected number of {@link ResponseMessage}s per second. It's 
+   * used to size the duplicate {@link ResponseMessage} filter.
+   */
+  private static final int EXPECTED_RESPONSE_RATE = 1024;
+  
+  /**
+   * The time in seconds for which received {@link MessageId}s 
+   * are being remembered.
+   */
+  private static final long DUPLICATE_WINDOW = 30L;
+  
+  /**
+   * The default max number of concurrent {@link RequestMessage}s 
+   * per destination.
+   */
+  public static final int DEFAULT_MAX_REQUESTS_PER_DESTINATION = 8;
+  
+  /**
+   * The default max number of concurrent {@link RequestMessage}s.
+   */
+  public static final int DEFAULT_MAX_REQUESTS_IN_FLIGHT = 512;
+  
+  /**
+   * The default max number of {@link RequestMessage}s that are 
+   * waiting for either of the above limits.
+   */
+  public static final int DEFAULT_MAX_QUEUED_REQUESTS = 4096;
+  
+  private static final HashedWheelTimer TIMER 
+    = new HashedWheelTimer("MessageDispatcherThread");
+  
+  /**
+   * Sends the queued {@link RequestMessage}s once they're granted a 
+   * slot and notifies the {@link MessageCallback}s of the ones that
+   * failed. This happens neither on the {@link HashedWheelTimer}'s 
+   * thread nor on the thread that released the slot.
+   */
+  private static final ExecutorService EXECUTOR 
+    = ExecutorUtils.newCachedThreadPool("MessageDispatcherSendThread");
   
   private final TransportCallback callback = new TransportCallback() {
     @Override
@@ -93,25 +131,62 @@ public abstract class MessageDispatcher
     }
   };
   
-  private final List<MessageListener> listeners 
-    = new CopyOnWriteArrayList<MessageListener>();
+  private final MessageEventBus eventBus = new MessageEventBus();
   
   private final MessageEntityManager entityManager 
     = new MessageEntityManager();
+  
+  private final RequestLimiter limiter = new RequestLimiter(
+      DEFAULT_MAX_REQUESTS_PER_DESTINATION, DEFAULT_MAX_REQUESTS_IN_FLIGHT, 
+      DEFAULT_MAX_QUEUED_REQUESTS);
+  
+  private final TrafficShaper shaper = new TrafficShaper();
+  
+  private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+  
+  private final Runnable drain = new Runnable() {
+    @Override
+    public void run() {
+      drainScheduled.set(false);
+      execute(shaper.poll());
+      scheduleDrain();
+    }
+  };
     
+  private final HashedWheelTimer timer;
+  
   private final ScheduledExecutorService executor;
   
   private final MessageFactory factory;
   
   private final ResponseChecker checker;
   
+  /**
+   * The {@link RoundTripTimeEstimator} of all {@link Contact}s. It's
+   * used for {@link Contact}s we know nothing about.
+   */
+  private final RoundTripTimeEstimator estimator 
+    = new RoundTripTimeEstimator();
+  
   private Transport transport = null;
   
+  private volatile RetransmitPolicy retransmitPolicy = null;
+  
   /**
    * Creates a {@link MessageDispatcher}.
    */
   public MessageDispatcher(MessageFactory factory) {
-    this(EXECUTOR, factory);
+    this(TIMER, factory);
+  }
+  
+  /**
+   * Creates a {@link MessageDispatcher} with a custom 
+   * {@link HashedWheelTimer} that is used to
+   * keep for timing out requests.
+   */
+  public MessageDispatcher(HashedWheelTimer timer, 
+      MessageFactory factory) {
+    this(Precoditions.notNull(timer, "timer"), null, factory);
   }
   
   /**
@@ -121,12 +196,17 @@ public abstract class MessageDispatcher
    */
   public MessageDispatcher(ScheduledExecutorService executor, 
       MessageFactory factory) {
+    this(null, Precoditions.notNull(executor, "executor"), factory);
+  }
+  
+  private MessageDispatcher(HashedWheelTimer timer, 
+      ScheduledExecutorService executor, MessageFactory factory) {
+    this.timer = timer;
     this.executor = executor;
     this.factory = factory;
     
-    // TODO: Is memorizing the 512 most recently received MessageIds
-    // too much or too little? 
-    this.checker = new ResponseChecker(factory, 512);
+    this.checker = new ResponseChecker(factory, 
+        EXPECTED_RESPONSE_RATE, DUPLICATE_WINDOW, TimeUnit.SECONDS);
   }
   
   /**
@@ -175,10 +255,22 @@ public abstract class MessageDispatcher
     }
   }
   
+  /**
+   * Closes the {@link MessageDispatcher}. The {@link RequestMessage}s
+   * that are still queued fail with an {@link IOException}.
+   */
   @Override
   public void close() {
     unbind(true);
+    
+    List<Runnable> queued = new ArrayList<Runnable>(limiter.clear());
+    queued.addAll(shaper.clear());
+    
     entityManager.close();
+    
+    for (Runnable task : queued) {
+      ((PendingRequest)task).close();
+    }
   }
   
   /**
@@ -188,6 +280,145 @@ public abstract class MessageDispatcher
     return factory;
   }
   
+  /**
+   * Returns the number of {@link ResponseMessage}s that were 
+   * dropped because they were duplicates.
+   */
+  public long getDuplicateResponseCount() {
+    return checker.getDuplicateCount();
+  }
+  
+  /**
+   * Returns the number of {@link RequestMessage}s that are 
+   * waiting for a {@link ResponseMessage}.
+   */
+  public int getInFlightCount() {
+    return limiter.getInFlightCount();
+  }
+  
+  /**
+   * Returns the number of {@link RequestMessage}s that are 
+   * queued because there are too many {@link RequestMessage}s
+   * in flight or because of the rate limit.
+   */
+  public int getQueuedCount() {
+    return limiter.getQueuedCount() + shaper.getQueuedCount();
+  }
+  
+  /**
+   * Returns the {@link RoundTripTimeEstimator} that is fed with the
+   * RTT of every {@link ResponseMessage}.
+   */
+  public RoundTripTimeEstimator getRoundTripTimeEstimator() {
+    return estimator;
+  }
+  
+  /**
+   * Returns the max number of concurrent {@link RequestMessage}s
+   * per destination.
+   */
+  public int getMaxRequestsPerDestination() {
+    return limiter.getMaxPerDestination();
+  }
+  
+  /**
+   * Returns the max number of concurrent {@link RequestMessage}s.
+   */
+  public int getMaxRequestsInFlight() {
+    return limiter.getMaxInFlight();
+  }
+  
+  /**
+   * Returns the max number of queued {@link RequestMessage}s.
+   */
+  public int getMaxQueuedRequests() {
+    return limiter.getMaxQueueSize();
+  }
+  
+  /**
+   * Sets the max number of concurrent {@link RequestMessage}s per 
+   * destination and in total and how many {@link RequestMessage}s may
+   * wait for either limit before new ones are rejected. The defaults
+   * are {@link #DEFAULT_MAX_REQUESTS_PER_DESTINATION}, 
+   * {@link #DEFAULT_MAX_REQUESTS_IN_FLIGHT} and 
+   * {@link #DEFAULT_MAX_QUEUED_REQUESTS}. A quarter of the slots is
+   * reserved for {@link TrafficClass#FOREGROUND} requests.
+   */
+  public void setRequestLimits(int maxPerDestination, 
+      int maxInFlight, int maxQueued) {
+    execute(limiter.setLimits(maxPerDestination, maxInFlight, maxQueued));
+  }
+  
+  /**
+   * Returns the max number of {@link RequestMessage}s per second or 
+   * a non-positive value if there is no rate limit.
+   */
+  public double getRateLimit() {
+    return shaper.getRate();
+  }
+  
+  /**
+   * Sets the max number of {@link RequestMessage}s per second and 
+   * how many {@link RequestMessage}s may be sent at once. A 
+   * non-positive rate turns the rate limit off. It's off by default.
+   */
+  public void setRateLimit(double requestsPerSecond, int burst) {
+    shaper.setRate(requestsPerSecond, burst);
+  }
+  
+  /**
+   * Returns the {@link RetransmitPolicy} or {@code null} if 
+   * {@link RequestMessage}s are never re-sent.
+   */
+  public RetransmitPolicy getRetransmitPolicy() {
+    return retransmitPolicy;
+  }
+  
+  /**
+   * Sets the {@link RetransmitPolicy}. It's off by default and
+   * {@code null} turns it off.
+   */
+  public void setRetransmitPolicy(RetransmitPolicy retransmitPolicy) {
+    this.retransmitPolicy = retransmitPolicy;
+  }
+  
+  /**
+   * Returns {@code true} if the given {@link RequestMessage} may be
+   * re-sent according to the {@link RetransmitPolicy}.
+   */
+  protected boolean isRetransmit(RequestMessage request) {
+    return true;
+  }
+  
+  /**
+   * Sends a {@link RequestMessage} to the given {@link Contact}. 
+   * The {@link Contact}'s {@link RoundTripTimeEstimator} is used
+   * to pace retransmissions.
+   * 
+   * @see #send(MessageCallback, KUID, RequestMessage, long, TimeUnit)
+   */
+  public void send(MessageCallback callback, 
+      Contact dst, RequestMessage request, 
+      long timeout, TimeUnit unit) throws IOException {
+    send(callback, TrafficClass.DEFAULT, dst, request, timeout, unit);
+  }
+  
+  /**
+   * Sends a {@link RequestMessage} of the given {@link TrafficClass}
+   * to the given {@link Contact}.
+   * 
+   * @see #send(MessageCallback, Contact, RequestMessage, long, TimeUnit)
+   */
+  public void send(MessageCallback callback, TrafficClass trafficClass, 
+      Contact dst, RequestMessage request, 
+      long timeout, TimeUnit unit) throws IOException {
+    
+    RoundTripTimeEstimator estimator 
+      = ContactUtils.getRoundTripTimeEstimator(dst, this.estimator);
+    send(callback, trafficClass, dst.getId(), 
+        estimator, request, timeout, unit);
+  }
+  
   /**
    * Sends a {@link RequestMessage} to the a {@link Contact} with the 
    * given {@link KUID}.
@@ -199,11 +430,86 @@ public abstract class MessageDispatcher
   public void send(MessageCallback callback, 
       KUID contactId, RequestMessage request, 
       long timeout, TimeUnit unit) throws IOException {
+    send(callback, TrafficClass.DEFAULT, contactId, request, timeout, unit);
+  }
+  
+  /**
+   * Sends a {@link RequestMessage} of the given {@link TrafficClass}
+   * to the a {@link Contact} with the given {@link KUID}.
+   * 
+   * @see #send(MessageCallback, KUID, RequestMessage, long, TimeUnit)
+   */
+  public void send(MessageCallback callback, TrafficClass trafficClass, 
+      KUID contactId, RequestMessage request, 
+      long timeout, TimeUnit unit) throws IOException {
+    send(callback, trafficClass, contactId, 
+        estimator, request, timeout, unit);
+  }
+  
+  /**
+   * Sends the {@link RequestMessage} right away if the number of
+   * concurrent {@link RequestMessage}s to its destination and in total
+   * is below the limits and if the rate limit permits it. It's queued 
+   * otherwise and sent as soon as possible. The timeout starts when 
+   * the {@link RequestMessage} is actually sent.
+   */
+  private void send(MessageCallback callback, 
+      TrafficClass trafficClass, KUID contactId, 
+      RoundTripTimeEstimator estimator, RequestMessage request, 
+      long timeout, TimeUnit unit) throws IOException {
+    
+    if (callback == null) {
+      send(null, callback, trafficClass, contactId, 
+          estimator, request, timeout, unit);
+      return;
+    }
+    
+    Slot slot = new Slot(request.getAddress());
+    PendingRequest pending = new PendingRequest(slot, callback, 
+        trafficClass, contactId, estimator, request, timeout, unit);
+    
+    switch (limiter.acquire(slot.key, trafficClass, pending)) {
+      case ACQUIRED:
+        pending.acquired = true;
+        if (!shaper.offer(trafficClass, pending)) {
+          scheduleDrain();
+          break;
+        }
+        
+        boolean success = false;
+        try {
+          send(slot, callback, trafficClass, contactId, 
+              estimator, request, timeout, unit);
+          success = true;
+        } finally {
+          if (!success) {
+            slot.release();
+          }
+        }
+        break;
+      case QUEUED:
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Queued: " + request);
+        }
+        pending.scheduleExpiry();
+        break;
+      default:
+        reject(callback, contactId, request);
+        break;
+    }
+  }
+  
+  private void send(Slot slot, MessageCallback callback, 
+      TrafficClass trafficClass, KUID contactId, 
+      RoundTripTimeEstimator estimator, RequestMessage request, 
+      long timeout, TimeUnit unit) throws IOException {
     
+    MessageEntity messageEntity = null;
     if (callback != null) {
       RequestEntity entity = new RequestEntity(
           contactId, request);
-      entityManager.add(callback, entity, timeout, unit);
+      messageEntity = entityManager.add(callback, 
+          entity, slot, timeout, unit);
     }
     
     Transport transport = null;
@@ -215,10 +521,133 @@ public abstract class MessageDispatcher
       throw new IOException();
     }
     
+    send0(transport, contactId, request, timeout, unit);
+    
+    RetransmitPolicy policy = retransmitPolicy;
+    if (messageEntity != null && policy != null 
+        && isRetransmit(request)) {
+      Retransmitter retransmitter = new Retransmitter(transport, 
+          messageEntity, trafficClass, policy, estimator, timeout, unit);
+      retransmitter.schedule();
+    }
+  }
+  
+  private void send0(Transport transport, KUID contactId, 
+      RequestMessage request, long timeout, TimeUnit unit) 
+        throws IOException {
     transport.send(contactId, request, timeout, unit);
     fireMessageSent(contactId, request);
   }
   
+  /**
+   * Schedules a task that sends the {@link RequestMessage}s that are
+   * waiting for the rate limit (unless it's scheduled already).
+   */
+  private void scheduleDrain() {
+    long delay = shaper.getDelay(TimeUnit.MILLISECONDS);
+    if (0L <= delay && drainScheduled.compareAndSet(false, true)) {
+      schedule(drain, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+  
+  /**
+   * Executes the given tasks in order on the {@link #EXECUTOR}.
+   */
+  private static void execute(final List<Runnable> tasks) {
+    if (tasks.isEmpty()) {
+      return;
+    }
+    
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (Runnable task : tasks) {
+          task.run();
+        }
+      }
+    });
+  }
+  
+  /**
+   * Releases the {@link Slot} of a queued {@link RequestMessage} that 
+   * failed to be sent (if it holds one) and notifies its 
+   * {@link MessageCallback} asynchronously.
+   */
+  private void fail(final Slot slot, final MessageCallback callback, 
+      final KUID contactId, final RequestMessage request, 
+      final Throwable t) {
+    
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        if (slot != null) {
+          slot.release();
+        }
+        
+        MessageEntity entity = entityManager.get(request.getMessageId());
+        if (entity != null) {
+          entity.handleException(t);
+        } else {
+          handleException(callback, 
+              new RequestEntity(contactId, request), t);
+        }
+      }
+    };
+    
+    EXECUTOR.execute(task);
+  }
+  
+  /**
+   * Fails a {@link RequestMessage} whose timeout has expired while it
+   * was still waiting for a {@link Slot}. The {@link RequestMessage} 
+   * was never sent and the {@link MessageCallback} is therefore not 
+   * notified through {@link MessageCallback#handleTimeout(RequestEntity, 
+   * long, TimeUnit)}.
+   */
+  private void expire(final MessageCallback callback, 
+      final KUID contactId, final RequestMessage request) {
+    
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Expired while queued: " + request);
+    }
+    
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        IOException err = new IOException("Expired while queued");
+        handleException(callback, 
+            new RequestEntity(contactId, request), err);
+      }
+    };
+    
+    EXECUTOR.execute(task);
+  }
+  
+  /**
+   * Rejects a {@link RequestMessage} because there are too many 
+   * queued {@link RequestMessage}s. The {@link MessageCallback} is 
+   * notified asynchronously to not re-enter it while its caller
+   * may still be holding locks.
+   */
+  private void reject(final MessageCallback callback, 
+      final KUID contactId, final RequestMessage request) {
+    
+    if (LOG.isErrorEnabled()) {
+      LOG.error("Too many queued requests: " + request);
+    }
+    
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        IOException err = new IOException("Too many queued requests");
+        handleException(callback, 
+            new RequestEntity(contactId, request), err);
+      }
+    };
+    
+    EXECUTOR.execute(task);
+  }
+  
   /**
    * Callback method for outgoing {@link Message} that failed to be sent.
    * Returns {@code true} if the {@link Throwable} was handled or not.
@@ -322,56 +751,73 @@ public abstract class MessageDispatcher
    * Adds the given {@link MessageListener}.
    */
   public void addMessageListener(MessageListener l) {
-    listeners.add(Precoditions.notNull(l, "l"));
+    eventBus.addMessageListener(l);
   }
   
   /**
    * Removes the given {@link MessageListener}.
    */
   public void removeMessageListener(MessageListener l) {
-    listeners.remove(l);
+    eventBus.removeMessageListener(l);
   }
   
   /**
    * Returns all {@link MessageListener}s.
    */
   public MessageListener[] getMessageListeners() {
-    return listeners.toArray(new MessageListener[0]);
+    return eventBus.getMessageListeners();
+  }
+  
+  /**
+   * Returns the {@link MessageEventBus} that delivers the
+   * {@link MessageEvent}s.
+   */
+  public MessageEventBus getMessageEventBus() {
+    return eventBus;
   }
   
   /**
    * Fires a message sent event.
    */
-  protected void fireMessageSent(final KUID contactId, final Message message) {
-    
-    if (!listeners.isEmpty()) {
-      Runnable event = new Runnable() {
-        @Override
-        public void run() {
-          for (MessageListener l : listeners) {
-            l.handleMessageSent(contactId, message);
-          }
-        }
-      };
-      EventUtils.fireEvent(event);
-    }
+  protected void fireMessageSent(KUID contactId, Message message) {
+    eventBus.fireMessageSent(contactId, message);
   }
   
   /**
    * Fires a message received event.
    */
-  protected void fireMessageReceived(final Message message) {
-    if (!listeners.isEmpty()) {
-      Runnable event = new Runnable() {
-        @Override
-        public void run() {
-          for (MessageListener l : listeners) {
-            l.handleMessageReceived(message);
-          }
-        }
-      };
-      EventUtils.fireEvent(event);
+  protected void fireMessageReceived(Message message) {
+    eventBus.fireMessageReceived(message);
+  }
+  
+  /**
+   * Schedules the given timeout task on the {@link HashedWheelTimer}
+   * or the {@link ScheduledExecutorService}.
+   */
+  private Timeout schedule(Runnable task, long timeout, TimeUnit unit) {
+    if (timer != null) {
+      return timer.schedule(task, timeout, unit);
     }
+    
+    final ScheduledFuture<?> future 
+      = executor.schedule(task, timeout, unit);
+    
+    return new Timeout() {
+      @Override
+      public boolean cancel() {
+        return future.cancel(true);
+      }
+      
+      @Override
+      public boolean isCancelled() {
+        return future.isCancelled();
+      }
+      
+      @Override
+      public boolean isExpired() {
+        return future.isDone() && !future.isCancelled();
+      }
+    };
   }
   
   /**
@@ -382,69 +828,81 @@ public abstract class MessageDispatcher
    */
   private class MessageEntityManager implements Closeable {
     
-    private final Map<MessageId, MessageEntity> callbacks 
-      = Collections.synchronizedMap(new HashMap<MessageId, MessageEntity>());
+    private final ConcurrentMap<MessageId, MessageEntity> callbacks 
+      = new ConcurrentHashMap<MessageId, MessageEntity>(
+          256, 0.75f, Runtime.getRuntime().availableProcessors());
     
-    private boolean open = true;
+    private volatile boolean open = true;
     
     @Override
     public void close() {
-      synchronized (callbacks) {
-        if (!open) {
-          return;
-        }
-        
-        open = false;
-        
-        for (MessageEntity entity : callbacks.values()) {
-          entity.cancel();
-        }
-        
-        callbacks.clear();
+      open = false;
+      
+      for (MessageEntity entity : callbacks.values()) {
+        entity.cancel();
       }
+      
+      callbacks.clear();
     }
     
     /**
      * Adds a {@link RequestEntity} and its {@link MessageCallback}.
+     * The {@link MessageEntity} is added before its timeout is 
+     * scheduled, so the timeout always finds and removes it.
      */
-    public void add(MessageCallback callback, RequestEntity entity, 
-        long timeout, TimeUnit unit) {
+    public MessageEntity add(MessageCallback callback, RequestEntity entity, 
+        Slot slot, long timeout, TimeUnit unit) {
       
       final MessageId messageId = entity.getMessageId();
       
-      synchronized (callbacks) {
-        
-        if (!open) {
-          throw new IllegalStateException();
-        }
-        
-        if (callbacks.containsKey(messageId)) {
-          throw new IllegalArgumentException("messageId=" + messageId);
-        }
-        
-        Runnable task = new Runnable() {
-          @Override
-          public void run() {
-            MessageEntity entity 
-              = callbacks.remove(messageId);
-            
-            if (entity != null) {
-              try {
-                entity.handleTimeout();
-              } catch (IOException err) {
-                LOG.error("IOException", err);
-              }
+      if (!open) {
+        throw new IllegalStateException();
+      }
+      
+      final MessageEntity messageEntity 
+        = new MessageEntity(callback, entity, slot);
+      
+      if (callbacks.putIfAbsent(messageId, messageEntity) != null) {
+        throw new IllegalArgumentException("messageId=" + messageId);
+      }
+      
+      // Make sure we're not leaking the MessageEntity if the 
+      // MessageEntityManager was closed in the meantime.
+      if (!open && callbacks.remove(messageId, messageEntity)) {
+        messageEntity.cancel();
+        throw new IllegalStateException();
+      }
+      
+      Runnable task = new Runnable() {
+        @Override
+        public void run() {
+          if (callbacks.remove(messageId, messageEntity)) {
+            try {
+              messageEntity.handleTimeout();
+            } catch (IOException err) {
+              LOG.error("IOException", err);
             }
           }
-        };
-        
-        ScheduledFuture<?> future 
-          = executor.schedule(task, timeout, unit);
-        
-        MessageEntity messageEntity = new MessageEntity(
-            future, callback, entity);
-        callbacks.put(messageId, messageEntity);
+        }
+      };
+      
+      Timeout future = null;
+      try {
+        future = schedule(task, timeout, unit);
+      } finally {
+        if (future == null && callbacks.remove(messageId, messageEntity)) {
+          messageEntity.cancel();
+        }
       }
+      
+      messageEntity.future = future;
+      
+      // The MessageEntity may have been closed in the meantime.
+      if (!messageEntity.isOpen()) {
+        future.cancel();
+      }
+      
+      return messageEntity;
     }
     
     /**
@@ -470,29 +928,55 @@ public abstract class MessageDispatcher
     
     private final TimeStamp creationTime = TimeStamp.now();
     
-    private final ScheduledFuture<?> future;
+    private volatile Timeout future = null;
 
     private final MessageCallback callback;
     
     private final RequestEntity entity;
     
+    private final Slot slot;
+    
     private final AtomicBoolean open = new AtomicBoolean(true);
     
-    private MessageEntity(ScheduledFuture<?> future, 
-        MessageCallback callback, 
-        RequestEntity entity) {
+    private volatile Timeout retransmit = null;
+    
+    private MessageEntity(MessageCallback callback, 
+        RequestEntity entity, Slot slot) {
       
-      this.future = Precoditions.notNull(future, "future");
       this.callback = Precoditions.notNull(callback, "callback");
       this.entity = Precoditions.notNull(entity, "entity");
+      this.slot = slot;
     }
 
     /**
      * Cancels the {@link MessageEntity}.
      */
     public boolean cancel() {
-      future.cancel(true);
-      return open.getAndSet(false);
+      Timeout future = this.future;
+      if (future != null) {
+        future.cancel();
+      }
+      
+      boolean success = open.getAndSet(false);
+      
+      Timeout retransmit = this.retransmit;
+      if (retransmit != null) {
+        retransmit.cancel();
+      }
+      
+      if (success && slot != null) {
+        slot.release();
+      }
+      
+      return success;
+    }
+    
+    /**
+     * Returns {@code true} if the {@link MessageEntity} is still
+     * waiting for a {@link ResponseMessage}.
+     */
+    public boolean isOpen() {
+      return open.get();
     }
     
     /**
@@ -506,7 +990,13 @@ public abstract class MessageDispatcher
         success = MessageDispatcher.this.handleResponse(callback, entity, 
             response, time, TimeUnit.MILLISECONDS);
         
-        if (!success) {
+        if (success) {
+          // We don't know which transmission the response belongs
+          // to if the request was re-sent (Karn's algorithm).
+          if (entity.getRetransmits() == 0) {
+            estimator.sample(time, TimeUnit.MILLISECONDS);
+          }
+        } else {
           MessageDispatcher.this.handleIllegalResponse(callback, 
               entity, response, time, TimeUnit.MILLISECONDS);
         }
@@ -537,6 +1027,248 @@ public abstract class MessageDispatcher
     }
   }
   
+  /**
+   * A {@link Slot} represents a {@link RequestMessage}'s share of the
+   * {@link RequestLimiter}. It can be released multiple times but only
+   * the first call has an effect.
+   */
+  private class Slot {
+    
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    
+    private final SocketAddress key;
+    
+    private Slot(SocketAddress key) {
+      this.key = Precoditions.notNull(key, "key");
+    }
+    
+    /**
+     * Releases the {@link Slot} and sends the {@link RequestMessage}s
+     * that were waiting for it.
+     */
+    public void release() {
+      if (released.getAndSet(true)) {
+        return;
+      }
+      
+      execute(limiter.release(key));
+    }
+  }
+  
+  /**
+   * A {@link PendingRequest} is a {@link RequestMessage} that is 
+   * waiting for a {@link Slot} and/or the rate limit.
+   */
+  private class PendingRequest implements Runnable {
+    
+    private final Slot slot;
+    
+    private final MessageCallback callback;
+    
+    private final TrafficClass trafficClass;
+    
+    private final KUID contactId;
+    
+    private final RoundTripTimeEstimator estimator;
+    
+    private final RequestMessage request;
+    
+    private final long timeout;
+    
+    private final TimeUnit unit;
+    
+    /**
+     * Whether or not the {@link PendingRequest} holds its {@link Slot}.
+     */
+    private volatile boolean acquired = false;
+    
+    private volatile Timeout expiry = null;
+    
+    private PendingRequest(Slot slot, MessageCallback callback, 
+        TrafficClass trafficClass, KUID contactId, 
+        RoundTripTimeEstimator estimator, RequestMessage request, 
+        long timeout, TimeUnit unit) {
+      
+      this.slot = slot;
+      this.callback = callback;
+      this.trafficClass = trafficClass;
+      this.contactId = contactId;
+      this.estimator = estimator;
+      this.request = request;
+      this.timeout = timeout;
+      this.unit = unit;
+    }
+    
+    /**
+     * Called by the {@link RequestLimiter} once the {@link Slot} was 
+     * granted and by the {@link TrafficShaper} once the rate limit 
+     * permits it.
+     */
+    @Override
+    public void run() {
+      if (!acquired) {
+        acquired = true;
+        
+        Timeout expiry = this.expiry;
+        if (expiry != null) {
+          expiry.cancel();
+        }
+        
+        if (!shaper.offer(trafficClass, this)) {
+          scheduleDrain();
+          return;
+        }
+      }
+      
+      try {
+        send(slot, callback, trafficClass, contactId, 
+            estimator, request, timeout, unit);
+      } catch (Exception err) {
+        fail(slot, callback, contactId, request, err);
+      }
+    }
+    
+    /**
+     * Schedules a task that removes the {@link PendingRequest} from the
+     * {@link RequestLimiter} and fails it if it's still waiting for a 
+     * {@link Slot} when its timeout expires.
+     */
+    public void scheduleExpiry() {
+      if (timeout <= 0L) {
+        return;
+      }
+      
+      Runnable task = new Runnable() {
+        @Override
+        public void run() {
+          if (limiter.remove(slot.key, PendingRequest.this)) {
+            expire(callback, contactId, request);
+          }
+        }
+      };
+      
+      expiry = schedule(task, timeout, unit);
+    }
+    
+    /**
+     * Fails the {@link PendingRequest} because the 
+     * {@link MessageDispatcher} was closed.
+     */
+    public void close() {
+      fail(acquired ? slot : null, callback, contactId, 
+          request, new IOException("closed"));
+    }
+  }
+  
+  /**
+   * The {@link Retransmitter} re-sends a {@link RequestMessage} with the
+   * same {@link MessageId} until a {@link ResponseMessage} was received, 
+   * the {@link RetransmitPolicy}'s max number of retransmissions was 
+   * reached or the next retransmission would happen after the timeout.
+   */
+  private class Retransmitter implements Runnable {
+    
+    private final Transport transport;
+    
+    private final MessageEntity messageEntity;
+    
+    private final TrafficClass trafficClass;
+    
+    private final RetransmitPolicy policy;
+    
+    private final RoundTripTimeEstimator estimator;
+    
+    /**
+     * The number of times the interval was backed off by previous 
+     * requests without a RTT sample since.
+     */
+    private final int backoffs;
+    
+    private final long timeoutInMillis;
+    
+    private int retransmits = 0;
+    
+    public Retransmitter(Transport transport, MessageEntity messageEntity, 
+        TrafficClass trafficClass, RetransmitPolicy policy, 
+        RoundTripTimeEstimator estimator, long timeout, TimeUnit unit) {
+      
+      this.transport = transport;
+      this.messageEntity = messageEntity;
+      this.trafficClass = trafficClass;
+      this.policy = policy;
+      this.estimator = estimator;
+      this.backoffs = estimator.getBackoffs();
+      this.timeoutInMillis = unit.toMillis(timeout);
+    }
+    
+    /**
+     * Schedules the next retransmission.
+     */
+    public void schedule() {
+      long delay = policy.getRetransmitDelay(estimator, 
+          backoffs, ++retransmits, TimeUnit.MILLISECONDS);
+      
+      if (delay < 0L) {
+        return;
+      }
+      
+      long age = messageEntity.creationTime.getAgeInMillis();
+      if (timeoutInMillis <= age + delay) {
+        return;
+      }
+      
+      Timeout retransmit = MessageDispatcher.this.schedule(
+          this, delay, TimeUnit.MILLISECONDS);
+      messageEntity.retransmit = retransmit;
+      
+      // The MessageEntity may have been closed in the meantime.
+      if (!messageEntity.isOpen()) {
+        retransmit.cancel();
+      }
+    }
+    
+    @Override
+    public void run() {
+      if (!messageEntity.isOpen()) {
+        return;
+      }
+      
+      RequestEntity entity = messageEntity.entity;
+      long remaining = timeoutInMillis 
+          - messageEntity.creationTime.getAgeInMillis();
+      
+      if (remaining <= 0L) {
+        return;
+      }
+      
+      // Retransmissions don't wait for the rate limit. We skip
+      // this one and try again after the next (longer) interval.
+      if (!shaper.tryAcquire(trafficClass)) {
+        schedule();
+        return;
+      }
+      
+      // Count it before it's sent. The response may arrive 
+      // before send0() returns.
+      entity.retransmitted();
+      estimator.backoff();
+      
+      try {
+        send0(transport, entity.getId(), entity.getRequest(), 
+            remaining, TimeUnit.MILLISECONDS);
+      } catch (IOException err) {
+        LOG.error("IOException", err);
+        return;
+      }
+      
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Retransmit #" + retransmits + ": " + entity);
+      }
+      
+      schedule();
+    }
+  }
+  
   /**
    * The {@link ResponseChecker} makes sure {@link ResponseMessage}s fulfill
    * certain requirements before they're considered for further processing.
@@ -548,12 +1280,19 @@ public abstract class MessageDispatcher
     
     private final MessageFactory factory;
     
-    private final Set<MessageId> history;
+    private final DuplicateFilter history;
     
-    public ResponseChecker(MessageFactory factory, int historySize) {
+    public ResponseChecker(MessageFactory factory, 
+        int expectedRate, long window, TimeUnit unit) {
       this.factory = Precoditions.notNull(factory, "factory");
-      this.history = Collections.synchronizedSet(
-          new FixedSizeHashSet<MessageId>(historySize));
+      this.history = new DuplicateFilter(expectedRate, window, unit);
+    }
+    
+    /**
+     * Returns the number of duplicate {@link ResponseMessage}s.
+     */
+    public long getDuplicateCount() {
+      return history.getDuplicateCount();
     }
     
     /**
@@ -561,17 +1300,20 @@ public abstract class MessageDispatcher
      */
     public boolean check(ResponseMessage response) {
       MessageId messageId = response.getMessageId();
-      if (!history.add(messageId)) {
+      
+      // Check the signature first. It's stateless and forged 
+      // responses shouldn't make it into the history.
+      Contact contact = response.getContact();
+      if (!factory.isFor(messageId, contact.getRemoteAddress())) {
         if (LOG.isErrorEnabled()) {
-          LOG.error("Multiple respones: " + response);
+          LOG.error("Wrong MessageId signature: " + response);
         }
         return false;
       }
       
-      Contact contact = response.getContact();
-      if (!factory.isFor(messageId, contact.getRemoteAddress())) {
+      if (!history.add(messageId)) {
         if (LOG.isErrorEnabled()) {
-          LOG.error("Wrong MessageId signature: " + response);
+          LOG.error("Multiple respones: " + response);
         }
         return false;
       }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ardverk.dht.io;
+
+import org.ardverk.dht.KUID;
+import org.ardverk.dht.message.Message;
+
+/**
+ * A {@link MessageEvent} describes a single {@link Message} that was
+ * sent or received.
+ * 
+ * <p>NOTE: {@link MessageEvent}s are preallocated and recycled by the 
+ * {@link MessageEventBus}. They must not be retained beyond the 
+ * {@link MessageBatchListener} callback.
+ * 
+ * @see MessageBatchListener
+ */
+public class MessageEvent {
+  
+  /**
+   * The type of the {@link MessageEvent}. Each type corresponds
+   * to a callback method of the {@link MessageListener}.
+   */
+  public static enum Type {
+    MESSAGE_SENT,
+    MESSAGE_RECEIVED;
+  }
+  
+  private Type type = null;
+  
+  private KUID contactId = null;
+  
+  private Message message = null;
+  
+  MessageEvent() {
+  }
+  
+  void set(Type type, KUID contactId, Message message) {
+    this.type = type;
+    this.contactId = contactId;
+    this.message = message;
+  }
+  
+  void clear() {
+    set(null, null, null);
+  }
+  
+  /**
+   * Returns the {@link Type} of the {@link MessageEvent}.
+   */
+  public Type getType() {
+    return type;
+  }
+  
+  /**
+   * Returns the {@link KUID} of the receiver or {@code null} 
+   * if it's a {@link Type#MESSAGE_RECEIVED} event.
+   */
+  public KUID getContactId() {
+    return contactId;
+  }
+  
+  /**
+   * Returns the {@link Message}.
+   */
+  public Message getMessage() {
+    return message;
+  }
+  
+  /**
+   * Calls the {@link MessageListener}'s callback method for 
+   * this {@link MessageEvent}.
+   */
+  public void dispatch(MessageListener l) {
+    switch (type) {
+      case MESSAGE_SENT:
+        l.handleMessageSent(contactId, message);
+        break;
+      case MESSAGE_RECEIVED:
+        l.handleMessageReceived(message);
+        break;
+      default:
+        throw new IllegalStateException("type=" + type);
+    }
+  }
+  
+  @Override
+  public String toString() {
+    return type + ": contactId=" + contactId + ", message=" + message;
+  }
+}
\ No newline at end of file
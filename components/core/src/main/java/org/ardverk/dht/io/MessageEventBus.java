@@ -0,0 +1,314 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ardverk.concurrent.EventUtils;
+import org.ardverk.dht.KUID;
+import org.ardverk.dht.message.Message;
+import org.ardverk.lang.Precoditions;
+
+/**
+ * The {@link MessageEventBus} delivers {@link MessageEvent}s to 
+ * {@link MessageListener}s and {@link MessageBatchListener}s.
+ * 
+ * <p>Events are written into a ring buffer of preallocated 
+ * {@link MessageEvent}s and delivered in batches by a single task.
+ * The task is only scheduled when the buffer goes from empty to 
+ * non-empty. The buffer is swapped with a spare buffer for delivery,
+ * so firing an event doesn't allocate anything and never waits for 
+ * the listeners.
+ */
+public class MessageEventBus {
+  
+  /**
+   * The default number of undelivered {@link MessageEvent}s 
+   * that are being buffered.
+   */
+  public static final int DEFAULT_EVENT_BUFFER_SIZE = 4096;
+  
+  /**
+   * What to do if the event buffer is full.
+   */
+  public static enum OverflowPolicy {
+    
+    /**
+     * Discards the oldest undelivered {@link MessageEvent}.
+     */
+    DROP_OLDEST,
+    
+    /**
+     * Discards the new {@link MessageEvent}.
+     */
+    DROP_NEWEST;
+  }
+  
+  private final List<MessageListener> listeners 
+    = new CopyOnWriteArrayList<MessageListener>();
+  
+  private final List<MessageBatchListener> batchListeners 
+    = new CopyOnWriteArrayList<MessageBatchListener>();
+  
+  private final AtomicLong firedCount = new AtomicLong();
+  
+  private final AtomicLong droppedCount = new AtomicLong();
+  
+  /**
+   * The lock for the ring buffer and the fields below.
+   */
+  private final Object lock = new Object();
+  
+  /**
+   * The lock that serializes the deliveries. It's held while
+   * the spare buffer is being used.
+   */
+  private final Object deliverLock = new Object();
+  
+  private MessageEvent[] buffer;
+  
+  private MessageEvent[] spare;
+  
+  private int head = 0;
+  
+  private int size = 0;
+  
+  private int dropped = 0;
+  
+  private boolean scheduled = false;
+  
+  private volatile OverflowPolicy policy;
+  
+  private final Runnable deliver = new Runnable() {
+    @Override
+    public void run() {
+      deliverEvents();
+    }
+  };
+  
+  public MessageEventBus() {
+    this(DEFAULT_EVENT_BUFFER_SIZE, OverflowPolicy.DROP_OLDEST);
+  }
+  
+  /**
+   * Creates a {@link MessageEventBus} that buffers up to the 
+   * given number of undelivered {@link MessageEvent}s.
+   */
+  public MessageEventBus(int eventBufferSize, OverflowPolicy policy) {
+    if (eventBufferSize <= 0) {
+      throw new IllegalArgumentException("eventBufferSize=" + eventBufferSize);
+    }
+    
+    this.buffer = allocate(eventBufferSize);
+    this.spare = allocate(eventBufferSize);
+    this.policy = Precoditions.notNull(policy, "policy");
+  }
+  
+  /**
+   * Returns the {@link OverflowPolicy}.
+   */
+  public OverflowPolicy getOverflowPolicy() {
+    return policy;
+  }
+  
+  /**
+   * Sets the {@link OverflowPolicy}.
+   */
+  public void setOverflowPolicy(OverflowPolicy policy) {
+    this.policy = Precoditions.notNull(policy, "policy");
+  }
+  
+  /**
+   * Adds the given {@link MessageListener}.
+   */
+  public void addMessageListener(MessageListener l) {
+    listeners.add(Precoditions.notNull(l, "l"));
+  }
+  
+  /**
+   * Removes the given {@link MessageListener}.
+   */
+  public void removeMessageListener(MessageListener l) {
+    listeners.remove(l);
+  }
+  
+  /**
+   * Returns all {@link MessageListener}s.
+   */
+  public MessageListener[] getMessageListeners() {
+    return listeners.toArray(new MessageListener[0]);
+  }
+  
+  /**
+   * Adds the given {@link MessageBatchListener}.
+   */
+  public void addMessageBatchListener(MessageBatchListener l) {
+    batchListeners.add(Precoditions.notNull(l, "l"));
+  }
+  
+  /**
+   * Removes the given {@link MessageBatchListener}.
+   */
+  public void removeMessageBatchListener(MessageBatchListener l) {
+    batchListeners.remove(l);
+  }
+  
+  /**
+   * Returns all {@link MessageBatchListener}s.
+   */
+  public MessageBatchListener[] getMessageBatchListeners() {
+    return batchListeners.toArray(new MessageBatchListener[0]);
+  }
+  
+  /**
+   * Returns the number of {@link MessageEvent}s that were fired
+   * (including the dropped ones).
+   */
+  public long getFiredCount() {
+    return firedCount.get();
+  }
+  
+  /**
+   * Returns the number of {@link MessageEvent}s that were dropped
+   * because the event buffer overflowed.
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+  
+  /**
+   * Fires a message sent event.
+   */
+  public void fireMessageSent(KUID contactId, Message message) {
+    fireEvent(MessageEvent.Type.MESSAGE_SENT, contactId, message);
+  }
+  
+  /**
+   * Fires a message received event.
+   */
+  public void fireMessageReceived(Message message) {
+    fireEvent(MessageEvent.Type.MESSAGE_RECEIVED, null, message);
+  }
+  
+  private boolean hasListeners() {
+    return !listeners.isEmpty() || !batchListeners.isEmpty();
+  }
+  
+  /**
+   * Writes the event into the ring buffer and schedules its delivery 
+   * unless a delivery is already pending.
+   */
+  private void fireEvent(MessageEvent.Type type, 
+      KUID contactId, Message message) {
+    
+    if (!hasListeners()) {
+      return;
+    }
+    
+    firedCount.incrementAndGet();
+    
+    boolean schedule = false;
+    
+    synchronized (lock) {
+      int length = buffer.length;
+      
+      if (size == length) {
+        droppedCount.incrementAndGet();
+        ++dropped;
+        
+        if (policy == OverflowPolicy.DROP_NEWEST) {
+          return;
+        }
+        
+        head = (head + 1) % length;
+        --size;
+      }
+      
+      buffer[(head + size) % length].set(type, contactId, message);
+      ++size;
+      
+      if (!scheduled) {
+        scheduled = true;
+        schedule = true;
+      }
+    }
+    
+    if (schedule) {
+      EventUtils.fireEvent(deliver);
+    }
+  }
+  
+  /**
+   * Delivers all buffered {@link MessageEvent}s.
+   */
+  private void deliverEvents() {
+    synchronized (deliverLock) {
+      MessageEvent[] events = null;
+      int length = 0;
+      int dropped = 0;
+      
+      synchronized (lock) {
+        events = buffer;
+        length = size;
+        dropped = this.dropped;
+        
+        // The events wrap around only if the buffer overflowed.
+        if (head != 0) {
+          Collections.rotate(Arrays.asList(events), -head);
+        }
+        
+        buffer = spare;
+        spare = events;
+        
+        head = 0;
+        size = 0;
+        this.dropped = 0;
+        scheduled = false;
+      }
+      
+      try {
+        if (!listeners.isEmpty()) {
+          for (int i = 0; i < length; i++) {
+            for (MessageListener l : listeners) {
+              events[i].dispatch(l);
+            }
+          }
+        }
+        
+        for (MessageBatchListener l : batchListeners) {
+          l.handleEvents(events, length, dropped);
+        }
+      } finally {
+        for (int i = 0; i < length; i++) {
+          events[i].clear();
+        }
+      }
+    }
+  }
+  
+  private static MessageEvent[] allocate(int length) {
+    MessageEvent[] events = new MessageEvent[length];
+    for (int i = 0; i < events.length; i++) {
+      events[i] = new MessageEvent();
+    }
+    return events;
+  }
+}
\ No newline at end of file
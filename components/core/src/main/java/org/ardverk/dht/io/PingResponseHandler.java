@@ -45,7 +45,7 @@ public class PingResponseHandler extends AbstractResponseHandler<PingEntity> {
   
   public PingResponseHandler(Provider<MessageDispatcher> messageDispatcher, 
       SocketAddress address, PingConfig config) {
-    super(messageDispatcher);
+    super(messageDispatcher, config.getTrafficClass());
     
     sender = new SocketAddressPingSender(address);
     this.config = config;
@@ -53,7 +53,7 @@ public class PingResponseHandler extends AbstractResponseHandler<PingEntity> {
   
   public PingResponseHandler(Provider<MessageDispatcher> messageDispatcher, 
       Contact contact, PingConfig config) {
-    super(messageDispatcher);
+    super(messageDispatcher, config.getTrafficClass());
     
     sender = new ContactPingSender(contact);
     this.config = config;
@@ -138,8 +138,9 @@ public class PingResponseHandler extends AbstractResponseHandler<PingEntity> {
       PingRequest request = factory.createPingRequest(contact);
       
       long timeout = config.getPingTimeoutInMillis();
-      long adaptiveTimeout = config.getAdaptiveTimeout(
-          contact, timeout, TimeUnit.MILLISECONDS);
+      long adaptiveTimeout = config.getAdaptiveTimeout(contact, 
+          getMessageDispatcher().getRoundTripTimeEstimator(), 
+          timeout, TimeUnit.MILLISECONDS);
       send(contact, request, adaptiveTimeout, TimeUnit.MILLISECONDS);
     }
   }
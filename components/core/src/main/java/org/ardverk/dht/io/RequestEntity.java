@@ -17,6 +17,7 @@
 package org.ardverk.dht.io;
 
 import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.ardverk.dht.KUID;
 import org.ardverk.dht.lang.Identifier;
@@ -38,6 +39,8 @@ public class RequestEntity implements Identifier {
   
   private final RequestMessage request;
   
+  private final AtomicInteger retransmits = new AtomicInteger();
+  
   public RequestEntity(KUID contactId, RequestMessage request) {
     this.contactId = contactId;
     this.request = request;
@@ -62,6 +65,21 @@ public class RequestEntity implements Identifier {
     return request;
   }
   
+  /**
+   * Returns the number of times the {@link RequestMessage} was re-sent.
+   * The RTT is ambiguous if it's non-zero (Karn's algorithm).
+   */
+  public int getRetransmits() {
+    return retransmits.get();
+  }
+  
+  /**
+   * Called for every retransmission of the {@link RequestMessage}.
+   */
+  void retransmitted() {
+    retransmits.incrementAndGet();
+  }
+  
   /**
    * Returns the {@link RequestMessage}'s {@link MessageId}.
    * 
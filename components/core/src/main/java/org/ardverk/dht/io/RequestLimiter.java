@@ -0,0 +1,599 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ardverk.dht.message.RequestMessage;
+import org.ardverk.lang.Precoditions;
+
+/**
+ * The {@link RequestLimiter} limits the number of concurrent 
+ * {@link RequestMessage}s per destination and in total. Requests 
+ * that exceed either limit are queued and executed in the order of
+ * their {@link TrafficClass}, FIFO within a {@link TrafficClass} (and 
+ * round-robin across destinations) as soon as a slot becomes available.
+ * 
+ * <p>A quarter of the slots and of the queue is reserved for 
+ * {@link TrafficClass#FOREGROUND} requests, so a backlog of 
+ * maintenance traffic can't delay user facing operations.
+ * 
+ * <p>The destinations are spread across stripes with a lock each and
+ * the global limits are enforced with atomic counters. A released slot
+ * is offered to the other stripes only if there are queued requests, 
+ * and the FIFO order is therefore kept per stripe only.
+ */
+class RequestLimiter {
+  
+  private static final TrafficClass[] CLASSES = TrafficClass.values();
+  
+  /**
+   * The max number of stripes.
+   */
+  private static final int MAX_STRIPES = 16;
+  
+  /**
+   * The min number of concurrent requests per stripe.
+   */
+  private static final int MIN_STRIPE_SIZE = 32;
+  
+  /**
+   * The result of {@link RequestLimiter#acquire(Object, Runnable)}.
+   */
+  public static enum Result {
+    
+    /**
+     * A slot was acquired and the caller may send the request right away.
+     */
+    ACQUIRED,
+    
+    /**
+     * The request was queued.
+     */
+    QUEUED,
+    
+    /**
+     * The queue is full.
+     */
+    REJECTED;
+  }
+  
+  private final Stripe[] stripes;
+  
+  private final AtomicInteger inFlight = new AtomicInteger();
+  
+  private final AtomicInteger queued = new AtomicInteger();
+  
+  /**
+   * The stripe {@link #dispatchAll()} starts with.
+   */
+  private final AtomicInteger next = new AtomicInteger();
+  
+  private volatile int maxPerDestination;
+  
+  private volatile int maxInFlight;
+  
+  private volatile int maxQueueSize;
+  
+  public RequestLimiter(int maxPerDestination, 
+      int maxInFlight, int maxQueueSize) {
+    
+    int count = 1;
+    while (count < MAX_STRIPES 
+        && 2 * count * MIN_STRIPE_SIZE <= maxInFlight) {
+      count *= 2;
+    }
+    
+    stripes = new Stripe[count];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+    
+    setLimits(maxPerDestination, maxInFlight, maxQueueSize);
+  }
+  
+  /**
+   * Changes the limits and returns the queued tasks that were granted 
+   * a slot because of it. Lower limits don't affect the requests that
+   * are already in flight, they take effect as their slots are released.
+   */
+  public List<Runnable> setLimits(int maxPerDestination, 
+      int maxInFlight, int maxQueueSize) {
+    
+    if (maxPerDestination <= 0) {
+      throw new IllegalArgumentException(
+          "maxPerDestination=" + maxPerDestination);
+    }
+    
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("maxInFlight=" + maxInFlight);
+    }
+    
+    if (maxQueueSize < 0) {
+      throw new IllegalArgumentException("maxQueueSize=" + maxQueueSize);
+    }
+    
+    synchronized (this) {
+      this.maxPerDestination = maxPerDestination;
+      this.maxInFlight = maxInFlight;
+      this.maxQueueSize = maxQueueSize;
+    }
+    
+    for (Stripe stripe : stripes) {
+      stripe.markAllReady();
+    }
+    
+    return orEmpty(dispatchAll());
+  }
+  
+  /**
+   * Returns the max number of concurrent requests per destination.
+   */
+  public int getMaxPerDestination() {
+    return maxPerDestination;
+  }
+  
+  /**
+   * Returns the max number of concurrent requests.
+   */
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+  
+  /**
+   * Returns the max number of queued requests.
+   */
+  public int getMaxQueueSize() {
+    return maxQueueSize;
+  }
+  
+  /**
+   * Tries to acquire a slot of the default {@link TrafficClass}.
+   * 
+   * @see #acquire(Object, TrafficClass, Runnable)
+   */
+  public Result acquire(Object key, Runnable task) {
+    return acquire(key, TrafficClass.DEFAULT, task);
+  }
+  
+  /**
+   * Tries to acquire a slot for the given destination. The task is
+   * queued if no slot is available and it's handed out by 
+   * {@link #release(Object)} once a slot becomes available.
+   * 
+   * <p>NOTE: The task is never executed if a slot was acquired right
+   * away. It's the caller's responsibility to send the request in 
+   * that case.
+   */
+  public Result acquire(Object key, 
+      TrafficClass trafficClass, Runnable task) {
+    
+    Precoditions.notNull(key, "key");
+    Precoditions.notNull(trafficClass, "trafficClass");
+    Precoditions.notNull(task, "task");
+    
+    return stripe(key).acquire(key, trafficClass, task);
+  }
+  
+  /**
+   * Releases a slot for the given destination and returns the queued 
+   * tasks that were granted a slot. The caller is responsible for 
+   * executing them (outside of any locks).
+   */
+  public List<Runnable> release(Object key) {
+    stripe(key).release(key);
+    
+    // The queued requests of all stripes may be waiting for the
+    // global limit. It must be checked after the slot was released, 
+    // see Stripe#acquire().
+    if (0 < queued.get()) {
+      return orEmpty(dispatchAll());
+    }
+    
+    return Collections.emptyList();
+  }
+  
+  /**
+   * Removes the given task from the queue and returns {@code true} 
+   * if it was still waiting for a slot.
+   */
+  public boolean remove(Object key, Runnable task) {
+    return stripe(key).remove(key, task);
+  }
+  
+  /**
+   * Removes and returns all queued tasks.
+   */
+  public List<Runnable> clear() {
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    for (Stripe stripe : stripes) {
+      stripe.clear(tasks);
+    }
+    return tasks;
+  }
+  
+  /**
+   * Returns the number of requests that are in flight.
+   */
+  public int getInFlightCount() {
+    return inFlight.get();
+  }
+  
+  /**
+   * Returns the number of requests that are queued.
+   */
+  public int getQueuedCount() {
+    return queued.get();
+  }
+  
+  /**
+   * Returns the stripe of the given destination.
+   */
+  private Stripe stripe(Object key) {
+    int hashCode = key.hashCode();
+    hashCode ^= (hashCode >>> 16);
+    return stripes[hashCode & (stripes.length-1)];
+  }
+  
+  /**
+   * Hands out free slots to the queued requests of all stripes in the 
+   * order of their {@link TrafficClass} and returns their tasks or 
+   * {@code null} if there are none.
+   */
+  private List<Runnable> dispatchAll() {
+    List<Runnable> tasks = null;
+    
+    int offset = next.getAndIncrement();
+    for (TrafficClass trafficClass : CLASSES) {
+      for (int i = 0; i < stripes.length; i++) {
+        Stripe stripe = stripes[(offset + i) & (stripes.length-1)];
+        tasks = addAll(tasks, stripe.dispatch(trafficClass));
+      }
+    }
+    
+    return tasks;
+  }
+  
+  /**
+   * Returns the max number of concurrent requests of the given 
+   * {@link TrafficClass}.
+   */
+  private int getMaxInFlight(TrafficClass trafficClass) {
+    int maxInFlight = this.maxInFlight;
+    if (trafficClass == TrafficClass.FOREGROUND) {
+      return maxInFlight;
+    }
+    return maxInFlight - (maxInFlight - 1) / 4;
+  }
+  
+  /**
+   * Returns the max number of queued requests of the given 
+   * {@link TrafficClass}.
+   */
+  private int getMaxQueueSize(TrafficClass trafficClass) {
+    int maxQueueSize = this.maxQueueSize;
+    if (trafficClass == TrafficClass.FOREGROUND) {
+      return maxQueueSize;
+    }
+    return maxQueueSize - maxQueueSize / 4;
+  }
+  
+  /**
+   * Increments the given counter if it's below the given limit
+   * and returns {@code true} on success.
+   */
+  private static boolean tryIncrement(AtomicInteger counter, int limit) {
+    while (true) {
+      int value = counter.get();
+      if (value >= limit) {
+        return false;
+      }
+      
+      if (counter.compareAndSet(value, value + 1)) {
+        return true;
+      }
+    }
+  }
+  
+  private static List<Runnable> addAll(List<Runnable> tasks, 
+      List<Runnable> other) {
+    if (tasks == null) {
+      return other;
+    }
+    
+    if (other != null) {
+      tasks.addAll(other);
+    }
+    return tasks;
+  }
+  
+  private static List<Runnable> orEmpty(List<Runnable> tasks) {
+    if (tasks == null) {
+      return Collections.emptyList();
+    }
+    return tasks;
+  }
+  
+  /**
+   * A {@link Stripe} keeps track of a subset of the destinations.
+   */
+  private class Stripe {
+    
+    private final Map<Object, Destination> destinations 
+      = new HashMap<Object, Destination>();
+    
+    /**
+     * {@link Destination}s that have queued requests and free slots but
+     * are waiting for the global limit (one queue per {@link TrafficClass}).
+     */
+    private final Queue<Destination>[] ready;
+    
+    @SuppressWarnings("unchecked")
+    private Stripe() {
+      ready = new Queue[CLASSES.length];
+      for (int i = 0; i < ready.length; i++) {
+        ready[i] = new ArrayDeque<Destination>();
+      }
+    }
+    
+    public synchronized Result acquire(Object key, 
+        TrafficClass trafficClass, Runnable task) {
+      
+      Destination destination = destinations.get(key);
+      if (destination == null) {
+        destination = new Destination(key);
+        destinations.put(key, destination);
+      }
+      
+      if (tryAcquire(destination, trafficClass)) {
+        return Result.ACQUIRED;
+      }
+      
+      if (!tryIncrement(queued, getMaxQueueSize(trafficClass))) {
+        if (destination.isIdle()) {
+          destinations.remove(key);
+        }
+        return Result.REJECTED;
+      }
+      
+      // A slot of another stripe may have been released in the
+      // meantime by somebody who didn't see this request yet.
+      if (tryAcquire(destination, trafficClass)) {
+        queued.decrementAndGet();
+        return Result.ACQUIRED;
+      }
+      
+      destination.queues[trafficClass.ordinal()].add(task);
+      
+      if (destination.active < maxPerDestination) {
+        markReady(destination);
+      }
+      
+      return Result.QUEUED;
+    }
+    
+    /**
+     * Acquires a slot for the given {@link Destination} unless it has 
+     * queued requests of the same or a higher {@link TrafficClass}.
+     */
+    private boolean tryAcquire(Destination destination, 
+        TrafficClass trafficClass) {
+      
+      if (!destination.hasQueued(trafficClass) 
+          && destination.active < maxPerDestination 
+          && tryIncrement(inFlight, getMaxInFlight(trafficClass))) {
+        ++destination.active;
+        return true;
+      }
+      return false;
+    }
+    
+    public synchronized void release(Object key) {
+      Destination destination = destinations.get(key);
+      if (destination == null || destination.active <= 0) {
+        throw new IllegalStateException("key=" + key);
+      }
+      
+      --destination.active;
+      inFlight.decrementAndGet();
+      
+      markReady(destination);
+      
+      if (destination.isIdle()) {
+        destinations.remove(key);
+      }
+    }
+    
+    public synchronized boolean remove(Object key, Runnable task) {
+      Destination destination = destinations.get(key);
+      if (destination == null) {
+        return false;
+      }
+      
+      for (Queue<Runnable> queue : destination.queues) {
+        if (queue.remove(task)) {
+          queued.decrementAndGet();
+          
+          // It may stay in the ready queues for a while
+          // but dispatch() skips it if it's empty.
+          if (destination.isIdle()) {
+            destinations.remove(key);
+          }
+          return true;
+        }
+      }
+      return false;
+    }
+    
+    public synchronized void clear(List<Runnable> tasks) {
+      for (Iterator<Destination> it = destinations.values().iterator(); 
+          it.hasNext(); ) {
+        Destination destination = it.next();
+        for (Queue<Runnable> queue : destination.queues) {
+          queued.addAndGet(-queue.size());
+          tasks.addAll(queue);
+          queue.clear();
+        }
+        
+        Arrays.fill(destination.ready, false);
+        
+        if (destination.isIdle()) {
+          it.remove();
+        }
+      }
+      
+      for (Queue<Destination> queue : ready) {
+        queue.clear();
+      }
+    }
+    
+    /**
+     * Marks all {@link Destination}s with free slots as ready.
+     */
+    public synchronized void markAllReady() {
+      for (Destination destination : destinations.values()) {
+        if (destination.active < maxPerDestination) {
+          markReady(destination);
+        }
+      }
+    }
+    
+    /**
+     * Hands out free slots to the {@link Destination}s that are ready
+     * for the given {@link TrafficClass} and returns their tasks or 
+     * {@code null} if there are none.
+     */
+    public synchronized List<Runnable> dispatch(TrafficClass trafficClass) {
+      List<Runnable> tasks = null;
+      
+      int index = trafficClass.ordinal();
+      int max = getMaxInFlight(trafficClass);
+      
+      Queue<Destination> queue = ready[index];
+      while (!queue.isEmpty()) {
+        Destination next = queue.peek();
+        if (next.active >= maxPerDestination 
+            || next.queues[index].isEmpty()) {
+          queue.poll();
+          next.ready[index] = false;
+          continue;
+        }
+        
+        if (!tryIncrement(inFlight, max)) {
+          break;
+        }
+        
+        queue.poll();
+        next.ready[index] = false;
+        
+        if (tasks == null) {
+          tasks = new ArrayList<Runnable>();
+        }
+        
+        tasks.add(next.queues[index].poll());
+        queued.decrementAndGet();
+        
+        ++next.active;
+        
+        if (next.active < maxPerDestination) {
+          markReady(next);
+        }
+      }
+      return tasks;
+    }
+    
+    /**
+     * Adds the {@link Destination} to the ready queues of all 
+     * {@link TrafficClass}es it has queued requests for.
+     */
+    private void markReady(Destination destination) {
+      for (int i = 0; i < ready.length; i++) {
+        if (!destination.ready[i] && !destination.queues[i].isEmpty()) {
+          destination.ready[i] = true;
+          ready[i].add(destination);
+        }
+      }
+    }
+  }
+  
+  private static class Destination {
+    
+    private final Queue<Runnable>[] queues;
+    
+    private final Object key;
+    
+    private int active = 0;
+    
+    private final boolean[] ready = new boolean[CLASSES.length];
+    
+    @SuppressWarnings("unchecked")
+    private Destination(Object key) {
+      this.key = key;
+      
+      queues = new Queue[CLASSES.length];
+      for (int i = 0; i < queues.length; i++) {
+        queues[i] = new ArrayDeque<Runnable>();
+      }
+    }
+    
+    /**
+     * Returns {@code true} if there are queued requests of the 
+     * given or a higher {@link TrafficClass}.
+     */
+    public boolean hasQueued(TrafficClass trafficClass) {
+      for (int i = 0; i <= trafficClass.ordinal(); i++) {
+        if (!queues[i].isEmpty()) {
+          return true;
+        }
+      }
+      return false;
+    }
+    
+    public boolean isIdle() {
+      if (active != 0) {
+        return false;
+      }
+      
+      for (Queue<Runnable> queue : queues) {
+        if (!queue.isEmpty()) {
+          return false;
+        }
+      }
+      return true;
+    }
+    
+    @Override
+    public String toString() {
+      int size = 0;
+      for (Queue<Runnable> queue : queues) {
+        size += queue.size();
+      }
+      
+      return "Destination: key=" + key + ", active=" 
+          + active + ", queued=" + size;
+    }
+  }
+}
\ No newline at end of file
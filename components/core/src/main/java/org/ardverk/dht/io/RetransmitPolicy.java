@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ardverk.dht.message.MessageId;
+import org.ardverk.dht.message.RequestMessage;
+import org.ardverk.dht.routing.RoundTripTimeEstimator;
+
+/**
+ * The {@link RetransmitPolicy} defines how often and when the 
+ * {@link MessageDispatcher} re-sends a {@link RequestMessage} (with the 
+ * same {@link MessageId}) if it hasn't received a response yet.
+ * 
+ * <p>The first retransmission happens after SRTT + 4 * RTTVAR (or the 
+ * initial interval if the RTT is unknown) and every following interval
+ * is multiplied by the backoff factor. The interval stays backed off
+ * for the following requests until there is a new RTT sample.
+ */
+public class RetransmitPolicy {
+  
+  /**
+   * A {@link RetransmitPolicy} that re-sends a {@link RequestMessage}
+   * up to two times.
+   */
+  public static final RetransmitPolicy DEFAULT 
+    = new RetransmitPolicy(2, 200L, 1000L, TimeUnit.MILLISECONDS, 2d);
+  
+  private final int maxRetransmits;
+  
+  private final long minIntervalInMillis;
+  
+  private final long initialIntervalInMillis;
+  
+  private final double backoff;
+  
+  public RetransmitPolicy(int maxRetransmits, long minInterval, 
+      long initialInterval, TimeUnit unit, double backoff) {
+    
+    if (maxRetransmits < 0) {
+      throw new IllegalArgumentException(
+          "maxRetransmits=" + maxRetransmits);
+    }
+    
+    if (backoff < 1d) {
+      throw new IllegalArgumentException("backoff=" + backoff);
+    }
+    
+    this.maxRetransmits = maxRetransmits;
+    this.minIntervalInMillis = unit.toMillis(minInterval);
+    this.initialIntervalInMillis = unit.toMillis(initialInterval);
+    this.backoff = backoff;
+  }
+  
+  /**
+   * Returns the max number of retransmissions.
+   */
+  public int getMaxRetransmits() {
+    return maxRetransmits;
+  }
+  
+  /**
+   * Returns the delay between the previous transmission and the 
+   * given retransmission (starting with 1) or a negative value if 
+   * there should be no more retransmissions.
+   */
+  public long getRetransmitDelay(RoundTripTimeEstimator estimator, 
+      int retransmit, TimeUnit unit) {
+    return getRetransmitDelay(estimator, 0, retransmit, unit);
+  }
+  
+  /**
+   * Returns the delay between the previous transmission and the 
+   * given retransmission (starting with 1) or a negative value if 
+   * there should be no more retransmissions. The interval is backed 
+   * off the given number of times in addition.
+   * 
+   * @see RoundTripTimeEstimator#getBackoffs()
+   */
+  public long getRetransmitDelay(RoundTripTimeEstimator estimator, 
+      int backoffs, int retransmit, TimeUnit unit) {
+    
+    if (retransmit < 1 || maxRetransmits < retransmit) {
+      return -1L;
+    }
+    
+    long interval = initialIntervalInMillis;
+    
+    long srtt = estimator.getSmoothedRoundTripTime(TimeUnit.MILLISECONDS);
+    if (0L <= srtt) {
+      long rttvar = estimator.getRoundTripTimeVariance(
+          TimeUnit.MILLISECONDS);
+      interval = srtt + 4L * rttvar;
+    }
+    
+    interval = Math.max(minIntervalInMillis, interval);
+    
+    double delay = interval * Math.pow(backoff, backoffs + retransmit - 1);
+    return unit.convert((long)delay, TimeUnit.MILLISECONDS);
+  }
+}
\ No newline at end of file
@@ -72,7 +72,7 @@ public class StoreResponseHandler extends AbstractResponseHandler<StoreEntity> {
       Contact[] contacts, int k,
       Key key, Value value, 
       StoreConfig config) {
-    super(messageDispatcher);
+    super(messageDispatcher, config.getTrafficClass());
     
     this.contacts = contacts;
     this.it = Iterators.iterator(contacts);
@@ -144,8 +144,9 @@ public class StoreResponseHandler extends AbstractResponseHandler<StoreEntity> {
     StoreRequest request = factory.createStoreRequest(dst, key, value);
     
     long defaultTimeout = config.getStoreTimeoutInMillis();
-    long adaptiveTimeout = config.getAdaptiveTimeout(
-        dst, defaultTimeout, TimeUnit.MILLISECONDS);
+    long adaptiveTimeout = config.getAdaptiveTimeout(dst, 
+        getMessageDispatcher().getRoundTripTimeEstimator(), 
+        defaultTimeout, TimeUnit.MILLISECONDS);
     
     send(dst, request, adaptiveTimeout, TimeUnit.MILLISECONDS);
   }
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io;
+
+import org.ardverk.dht.message.RequestMessage;
+
+/**
+ * The {@link TrafficClass} of an outbound {@link RequestMessage}. 
+ * {@link RequestMessage}s of a higher {@link TrafficClass} are always
+ * sent before {@link RequestMessage}s of a lower {@link TrafficClass}.
+ */
+public enum TrafficClass {
+  
+  /**
+   * User facing operations such as lookups and stores.
+   */
+  FOREGROUND,
+  
+  /**
+   * Maintenance traffic such as route table pings and 
+   * bucket refreshes.
+   */
+  BACKGROUND;
+  
+  /**
+   * The default {@link TrafficClass} that should be used unless there
+   * is a reason not to use this {@link TrafficClass}.
+   */
+  public static final TrafficClass DEFAULT = TrafficClass.FOREGROUND;
+  
+  /**
+   * Returns {@code true} if this {@link TrafficClass} has a higher
+   * priority than the other {@link TrafficClass}.
+   */
+  public boolean isHigherThan(TrafficClass other) {
+    return ordinal() < other.ordinal();
+  }
+}
\ No newline at end of file
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.ardverk.dht.message.RequestMessage;
+import org.ardverk.lang.Precoditions;
+
+/**
+ * The {@link TrafficShaper} limits the rate of outbound 
+ * {@link RequestMessage}s with a token bucket and prioritizes them 
+ * strictly by their {@link TrafficClass}.
+ * 
+ * <p>Lower {@link TrafficClass}es may only use the tokens above the
+ * reserve. The reserve is kept for {@link TrafficClass#FOREGROUND} 
+ * traffic, so a backlog of maintenance traffic can't delay user 
+ * facing operations.
+ */
+class TrafficShaper {
+  
+  private static final TrafficClass[] CLASSES = TrafficClass.values();
+  
+  private final Queue<Runnable>[] queues;
+  
+  private double rate;
+  
+  private double capacity;
+  
+  private double reserve;
+  
+  private double tokens;
+  
+  private long lastRefill = System.nanoTime();
+  
+  private int queued = 0;
+  
+  /**
+   * Creates a {@link TrafficShaper} without a rate limit.
+   */
+  public TrafficShaper() {
+    this(0d, 1);
+  }
+  
+  /**
+   * Creates a {@link TrafficShaper}.
+   * 
+   * @param rate the number of packets per second or a non-positive
+   *    value for no limit.
+   * @param burst the max number of packets that may be sent at once.
+   */
+  @SuppressWarnings("unchecked")
+  public TrafficShaper(double rate, int burst) {
+    queues = new Queue[CLASSES.length];
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new ArrayDeque<Runnable>();
+    }
+    
+    setRate(rate, burst);
+    tokens = capacity;
+  }
+  
+  /**
+   * Changes the rate and burst.
+   * 
+   * @see #TrafficShaper(double, int)
+   */
+  public synchronized void setRate(double rate, int burst) {
+    if (burst <= 0) {
+      throw new IllegalArgumentException("burst=" + burst);
+    }
+    
+    refill();
+    
+    this.rate = rate;
+    this.capacity = burst;
+    this.reserve = (burst - 1) / 2d;
+    this.tokens = Math.min(tokens, capacity);
+  }
+  
+  /**
+   * Returns the number of packets per second.
+   */
+  public synchronized double getRate() {
+    return rate;
+  }
+  
+  /**
+   * Returns {@code true} if a packet of the given {@link TrafficClass}
+   * may be sent right away. The task is queued otherwise and handed out 
+   * by {@link #poll()} once there are enough tokens.
+   */
+  public synchronized boolean offer(TrafficClass trafficClass, Runnable task) {
+    Precoditions.notNull(task, "task");
+    
+    if (tryAcquire(trafficClass)) {
+      return true;
+    }
+    
+    queues[trafficClass.ordinal()].add(task);
+    ++queued;
+    return false;
+  }
+  
+  /**
+   * Takes a token if there are no queued tasks of the same or a 
+   * higher {@link TrafficClass} and returns {@code true} on success.
+   */
+  public synchronized boolean tryAcquire(TrafficClass trafficClass) {
+    if (rate <= 0d) {
+      return true;
+    }
+    
+    for (int i = 0; i <= trafficClass.ordinal(); i++) {
+      if (!queues[i].isEmpty()) {
+        return false;
+      }
+    }
+    
+    refill();
+    return take(trafficClass);
+  }
+  
+  /**
+   * Removes and returns the queued tasks that may run now. The 
+   * tasks are returned in the order of their {@link TrafficClass}.
+   */
+  public List<Runnable> poll() {
+    List<Runnable> tasks = null;
+    
+    synchronized (this) {
+      refill();
+      
+      for (TrafficClass trafficClass : CLASSES) {
+        Queue<Runnable> queue = queues[trafficClass.ordinal()];
+        while (!queue.isEmpty() && (rate <= 0d || take(trafficClass))) {
+          if (tasks == null) {
+            tasks = new ArrayList<Runnable>();
+          }
+          
+          tasks.add(queue.poll());
+          --queued;
+        }
+        
+        // Strict priority: Don't look at the lower classes
+        // if this one is still waiting for tokens.
+        if (!queue.isEmpty()) {
+          break;
+        }
+      }
+    }
+    
+    if (tasks == null) {
+      return Collections.emptyList();
+    }
+    return tasks;
+  }
+  
+  /**
+   * Returns the time until {@link #poll()} will hand out the next
+   * task or -1 if there are no queued tasks.
+   */
+  public synchronized long getDelay(TimeUnit unit) {
+    if (queued == 0) {
+      return -1L;
+    }
+    
+    if (rate <= 0d) {
+      return 0L;
+    }
+    
+    refill();
+    
+    TrafficClass trafficClass = null;
+    for (TrafficClass tc : CLASSES) {
+      if (!queues[tc.ordinal()].isEmpty()) {
+        trafficClass = tc;
+        break;
+      }
+    }
+    
+    double missing = required(trafficClass) - tokens;
+    if (missing <= 0d) {
+      return 0L;
+    }
+    
+    long delay = (long)Math.ceil(missing / rate * 1000000000d);
+    return unit.convert(delay, TimeUnit.NANOSECONDS);
+  }
+  
+  /**
+   * Removes and returns all queued tasks.
+   */
+  public synchronized List<Runnable> clear() {
+    List<Runnable> tasks = new ArrayList<Runnable>(queued);
+    for (Queue<Runnable> queue : queues) {
+      tasks.addAll(queue);
+      queue.clear();
+    }
+    queued = 0;
+    return tasks;
+  }
+  
+  /**
+   * Returns the number of queued tasks.
+   */
+  public synchronized int getQueuedCount() {
+    return queued;
+  }
+  
+  private boolean take(TrafficClass trafficClass) {
+    if (tokens >= required(trafficClass)) {
+      tokens -= 1d;
+      return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Returns the number of tokens that must be available to
+   * send a packet of the given {@link TrafficClass}.
+   */
+  private double required(TrafficClass trafficClass) {
+    if (trafficClass == TrafficClass.FOREGROUND) {
+      return 1d;
+    }
+    return 1d + reserve;
+  }
+  
+  private void refill() {
+    long now = System.nanoTime();
+    long elapsed = now - lastRefill;
+    lastRefill = now;
+    
+    if (0L < elapsed && 0d < rate) {
+      tokens = Math.min(capacity, 
+          tokens + rate * elapsed / 1000000000d);
+    }
+  }
+}
\ No newline at end of file
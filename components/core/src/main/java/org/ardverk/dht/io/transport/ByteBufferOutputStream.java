@@ -0,0 +1,52 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.io.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link OutputStream} that writes into a {@link ByteBuffer}. 
+ * It throws an {@link IOException} if the {@link ByteBuffer} has 
+ * no space left.
+ */
+class ByteBufferOutputStream extends OutputStream {
+  
+  private final ByteBuffer buffer;
+  
+  public ByteBufferOutputStream(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+  
+  @Override
+  public void write(int b) throws IOException {
+    if (!buffer.hasRemaining()) {
+      throw new IOException("Buffer overflow: " + buffer.capacity());
+    }
+    buffer.put((byte)b);
+  }
+  
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (buffer.remaining() < len) {
+      throw new IOException("Buffer overflow: " + buffer.capacity());
+    }
+    buffer.put(b, off, len);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.io.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of reusable {@link ByteBuffer}s of a fixed capacity. 
+ * Direct {@link ByteBuffer}s are expensive to allocate and free but 
+ * they spare the JVM a copy on every I/O operation.
+ */
+public class ByteBufferPool {
+  
+  private final Queue<ByteBuffer> buffers 
+    = new ConcurrentLinkedQueue<ByteBuffer>();
+  
+  private final AtomicInteger size = new AtomicInteger();
+  
+  private final int bufferSize;
+  
+  private final int maxSize;
+  
+  private final boolean direct;
+  
+  /**
+   * Creates a {@link ByteBufferPool}.
+   * 
+   * @param bufferSize The capacity of the {@link ByteBuffer}s
+   * @param maxSize The max number of idle {@link ByteBuffer}s
+   * @param direct Whether or not to allocate direct {@link ByteBuffer}s
+   */
+  public ByteBufferPool(int bufferSize, int maxSize, boolean direct) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize=" + bufferSize);
+    }
+    
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("maxSize=" + maxSize);
+    }
+    
+    this.bufferSize = bufferSize;
+    this.maxSize = maxSize;
+    this.direct = direct;
+  }
+  
+  /**
+   * Returns the capacity of the {@link ByteBuffer}s.
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+  
+  /**
+   * Returns the max number of idle {@link ByteBuffer}s.
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+  
+  /**
+   * Returns the number of idle {@link ByteBuffer}s.
+   */
+  public int size() {
+    return size.get();
+  }
+  
+  /**
+   * Returns a cleared {@link ByteBuffer} from the pool or allocates 
+   * a new one if the pool is empty.
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = buffers.poll();
+    if (buffer != null) {
+      size.decrementAndGet();
+      buffer.clear();
+      return buffer;
+    }
+    
+    return direct ? ByteBuffer.allocateDirect(bufferSize) 
+        : ByteBuffer.allocate(bufferSize);
+  }
+  
+  /**
+   * Returns the given {@link ByteBuffer} to the pool. The caller
+   * must not use the {@link ByteBuffer} afterwards.
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.capacity() != bufferSize
+        || buffer.isDirect() != direct) {
+      return;
+    }
+    
+    if (size.incrementAndGet() <= maxSize) {
+      buffers.offer(buffer);
+    } else {
+      size.decrementAndGet();
+    }
+  }
+  
+  /**
+   * Removes all idle {@link ByteBuffer}s from the pool.
+   */
+  public void clear() {
+    while (buffers.poll() != null) {
+      size.decrementAndGet();
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.io.transport;
+
+import java.io.Closeable;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of idle {@link SocketConnection}s that are keyed by their
+ * remote {@link SocketAddress}. {@link SocketConnection}s that haven't 
+ * been used for a while are closed and removed from the pool.
+ */
+class ConnectionPool implements Closeable {
+  
+  private final Map<SocketAddress, Deque<SocketConnection>> connections 
+    = new HashMap<SocketAddress, Deque<SocketConnection>>();
+  
+  private final int maxIdlePerEndpoint;
+  
+  private final long idleTimeoutInMillis;
+  
+  private int size = 0;
+  
+  private long lastEviction = System.currentTimeMillis();
+  
+  private boolean open = true;
+  
+  public ConnectionPool(int maxIdlePerEndpoint, 
+      long idleTimeout, TimeUnit unit) {
+    
+    if (maxIdlePerEndpoint < 0) {
+      throw new IllegalArgumentException(
+          "maxIdlePerEndpoint=" + maxIdlePerEndpoint);
+    }
+    
+    this.maxIdlePerEndpoint = maxIdlePerEndpoint;
+    this.idleTimeoutInMillis = unit.toMillis(idleTimeout);
+  }
+  
+  /**
+   * Returns the number of idle {@link SocketConnection}s.
+   */
+  public synchronized int size() {
+    return size;
+  }
+  
+  /**
+   * Removes and returns an idle and healthy {@link SocketConnection} 
+   * for the given {@link SocketAddress} or {@code null} if there is none.
+   */
+  public SocketConnection acquire(SocketAddress endpoint) {
+    while (true) {
+      SocketConnection connection = null;
+      
+      synchronized (this) {
+        long now = System.currentTimeMillis();
+        evict(now);
+        
+        Deque<SocketConnection> idle = connections.get(endpoint);
+        if (idle == null) {
+          return null;
+        }
+        
+        // The most recently used connection is the 
+        // one that is most likely still alive.
+        connection = idle.pollLast();
+        if (idle.isEmpty()) {
+          connections.remove(endpoint);
+        }
+        
+        --size;
+      }
+      
+      if (connection.isHealthy()) {
+        return connection;
+      }
+      
+      connection.close();
+    }
+  }
+  
+  /**
+   * Returns the given {@link SocketConnection} to the pool. It's 
+   * closed if the pool is full or closed.
+   */
+  public void release(SocketConnection connection) {
+    boolean pooled = false;
+    
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      evict(now);
+      
+      if (open && connection.isHealthy()) {
+        SocketAddress endpoint = connection.getEndpoint();
+        Deque<SocketConnection> idle = connections.get(endpoint);
+        if (idle == null) {
+          idle = new ArrayDeque<SocketConnection>();
+          connections.put(endpoint, idle);
+        }
+        
+        if (idle.size() < maxIdlePerEndpoint) {
+          idle.addLast(connection);
+          ++size;
+          pooled = true;
+        } else if (idle.isEmpty()) {
+          connections.remove(endpoint);
+        }
+      }
+    }
+    
+    if (!pooled) {
+      connection.close();
+    }
+  }
+  
+  /**
+   * Closes and removes all {@link SocketConnection}s that have 
+   * been idle for too long. It's done at most once per second.
+   */
+  private void evict(long now) {
+    if (now - lastEviction < 1000L) {
+      return;
+    }
+    
+    lastEviction = now;
+    
+    Iterator<Deque<SocketConnection>> it 
+      = connections.values().iterator();
+    while (it.hasNext()) {
+      Deque<SocketConnection> idle = it.next();
+      
+      // The least recently used connections are at the head
+      while (!idle.isEmpty()) {
+        SocketConnection connection = idle.peekFirst();
+        if (connection.getIdleTimeInMillis(now) < idleTimeoutInMillis) {
+          break;
+        }
+        
+        idle.pollFirst();
+        connection.close();
+        --size;
+      }
+      
+      if (idle.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+  
+  /**
+   * Closes and removes all idle {@link SocketConnection}s.
+   */
+  public synchronized void clear() {
+    for (Deque<SocketConnection> idle : connections.values()) {
+      for (SocketConnection connection : idle) {
+        connection.close();
+      }
+    }
+    
+    connections.clear();
+    size = 0;
+  }
+  
+  /**
+   * Closes the {@link ConnectionPool}. {@link SocketConnection}s 
+   * that are released afterwards are closed.
+   */
+  @Override
+  public synchronized void close() {
+    open = false;
+    clear();
+  }
+}
\ No newline at end of file
@@ -16,8 +16,6 @@
 
 package org.ardverk.dht.io.transport;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -25,6 +23,7 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -33,11 +32,14 @@ import org.ardverk.concurrent.DefaultExecutorQueue;
 import org.ardverk.concurrent.ExecutorQueue;
 import org.ardverk.concurrent.ExecutorUtils;
 import org.ardverk.dht.KUID;
+import org.ardverk.dht.codec.EncodeBuffer;
 import org.ardverk.dht.codec.MessageCodec;
 import org.ardverk.dht.codec.MessageCodec.Decoder;
 import org.ardverk.dht.codec.MessageCodec.Encoder;
 import org.ardverk.dht.codec.bencode.BencodeMessageCodec;
+import org.ardverk.dht.io.transport.ResponseCache.Response;
 import org.ardverk.dht.message.Message;
+import org.ardverk.dht.message.MessageId;
 import org.ardverk.dht.message.RequestMessage;
 import org.ardverk.dht.message.ResponseMessage;
 import org.ardverk.io.IoUtils;
@@ -58,9 +60,24 @@ public class DatagramTransport extends AbstractTransport implements Closeable {
   
   private final int MAX_SIZE = 8 * 1024;
   
+  /**
+   * The expected max number of {@link RequestMessage}s per second
+   * whose encoded {@link ResponseMessage}s are cached.
+   */
+  private static final int RESPONSE_CACHE_RATE = 1000;
+  
+  /**
+   * The time in seconds for which encoded {@link ResponseMessage}s 
+   * are kept for answering duplicate {@link RequestMessage}s.
+   */
+  private static final long RESPONSE_CACHE_TTL = 10L;
+  
   private final ExecutorQueue<Runnable> executor 
     = new DefaultExecutorQueue(EXECUTOR);
   
+  private volatile ResponseCache responses = ResponseCache.create(
+      RESPONSE_CACHE_RATE, RESPONSE_CACHE_TTL, TimeUnit.SECONDS);
+  
   private final MessageCodec codec;
   
   private final SocketAddress bindaddr;
@@ -99,6 +116,18 @@ public class DatagramTransport extends AbstractTransport implements Closeable {
   public SocketAddress getSocketAddress() {
     return bindaddr;
   }
+  
+  /**
+   * Replaces the {@link ResponseCache} with one that keeps the encoded
+   * {@link ResponseMessage}s for the given number of cacheable 
+   * {@link RequestMessage}s per second for the given amount of time.
+   * The time should cover the retransmissions of a {@link RequestMessage}.
+   */
+  public void setResponseCache(int requestsPerSecond, 
+      long timeToLive, TimeUnit unit) {
+    this.responses = ResponseCache.create(
+        requestsPerSecond, timeToLive, unit);
+  }
 
   @Override
   public synchronized void bind(TransportCallback callback) throws IOException {
@@ -133,6 +162,8 @@ public class DatagramTransport extends AbstractTransport implements Closeable {
     synchronized (executor) {
       executor.getQueue().clear();
     }
+    
+    responses.clear();
   }
 
   @Override
@@ -173,8 +204,7 @@ public class DatagramTransport extends AbstractTransport implements Closeable {
       public void run() {
         Decoder decoder = null;
         try {
-          decoder = codec.createDecoder(src, 
-              new ByteArrayInputStream(data));
+          decoder = codec.createDecoder(src, ByteBuffer.wrap(data));
           Message message = decoder.read();
           
           if (message instanceof RequestMessage) {
@@ -191,10 +221,36 @@ public class DatagramTransport extends AbstractTransport implements Closeable {
       }
       
       private void handleRequest(RequestMessage request) throws IOException {
-        ResponseMessage response = DatagramTransport.this.handleRequest(request);
-        if (response != null) {
-          KUID contactId = request.getContact().getId();
-          send(contactId, response, -1L, TimeUnit.MILLISECONDS);
+        MessageId messageId = request.getMessageId();
+        
+        // Duplicate requests are answered from the cache or are
+        // dropped if the original request is still being processed.
+        ResponseCache responses = null;
+        if (ResponseCache.isCacheable(request)) {
+          responses = DatagramTransport.this.responses;
+        }
+        
+        Response cached = (responses != null) 
+            ? responses.get(src, messageId) : null;
+        if (cached != null) {
+          if (!cached.isPending()) {
+            send(cached.getEndpoint(), cached.getData());
+          }
+          return;
+        }
+        
+        boolean success = false;
+        try {
+          ResponseMessage response = DatagramTransport.this.handleRequest(request);
+          if (response != null) {
+            KUID contactId = request.getContact().getId();
+            send(contactId, response, responses, src);
+          }
+          success = true;
+        } finally {
+          if (!success && responses != null) {
+            responses.remove(src, messageId);
+          }
         }
       }
       
@@ -208,8 +264,17 @@ public class DatagramTransport extends AbstractTransport implements Closeable {
   }
   
   @Override
-  public void send(final KUID contactId, final Message message,
+  public void send(KUID contactId, Message message,
       long timeout, TimeUnit unit) throws IOException {
+    send(contactId, message, null, null);
+  }
+  
+  /**
+   * Sends the given {@link Message}. The encoded {@link Message} is
+   * added to the given {@link ResponseCache} if it's non-null.
+   */
+  private void send(final KUID contactId, final Message message, 
+      final ResponseCache responses, final SocketAddress src) throws IOException {
     
     final DatagramSocket socket = this.socket;
     if (socket == null || socket.isClosed()) {
@@ -224,19 +289,27 @@ public class DatagramTransport extends AbstractTransport implements Closeable {
           SocketAddress addr = message.getAddress();
           SocketAddress endpoint = NetworkUtils.getResolved(addr);
           
-          ByteArrayOutputStream baos = new ByteArrayOutputStream();
-          Encoder encoder = codec.createEncoder(baos);
+          EncodeBuffer buffer = EncodeBuffer.get();
+          Encoder encoder = codec.createEncoder(buffer);
           encoder.write(message);
           encoder.close();
           
-          byte[] encoded = baos.toByteArray();
           DatagramPacket packet = new DatagramPacket(
-              encoded, 0, encoded.length, endpoint);
+              buffer.getBuffer(), 0, buffer.size(), endpoint);
           
           socket.send(packet);
           messageSent(contactId, message);
           
+          if (responses != null) {
+            MessageId messageId = message.getMessageId();
+            responses.put(src, messageId, endpoint, buffer.toByteArray());
+          }
+          
         } catch (IOException err) {
+          if (responses != null) {
+            responses.remove(src, message.getMessageId());
+          }
+          
           uncaughtException(socket, err);
           handleException(message, err);
         }
@@ -247,6 +320,33 @@ public class DatagramTransport extends AbstractTransport implements Closeable {
     //EXECUTOR.execute(task);
   }
   
+  /**
+   * Sends an already encoded {@link ResponseMessage}.
+   */
+  private void send(final SocketAddress endpoint, 
+      final byte[] encoded) throws IOException {
+    
+    final DatagramSocket socket = this.socket;
+    if (socket == null || socket.isClosed()) {
+      throw new IOException();
+    }
+    
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          DatagramPacket packet = new DatagramPacket(
+              encoded, 0, encoded.length, endpoint);
+          socket.send(packet);
+        } catch (IOException err) {
+          uncaughtException(socket, err);
+        }
+      }
+    };
+    
+    executor.execute(task);
+  }
+  
   protected void uncaughtException(DatagramSocket socket, Throwable t) {
     if (socket.isClosed()) {
       LOG.debug("Exception", t);
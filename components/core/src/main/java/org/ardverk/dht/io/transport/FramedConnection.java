@@ -0,0 +1,405 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.io.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ardverk.dht.codec.EncodeBuffer;
+import org.ardverk.dht.codec.MessageCodec;
+import org.ardverk.dht.codec.MessageCodec.Decoder;
+import org.ardverk.dht.codec.MessageCodec.Encoder;
+import org.ardverk.dht.message.Message;
+import org.ardverk.dht.message.MessageId;
+import org.ardverk.dht.message.RequestMessage;
+import org.ardverk.io.IoUtils;
+
+/**
+ * A {@link FramedConnection} reads and writes length-prefixed 
+ * {@link Message} frames over a single {@link Socket}. Any number of 
+ * {@link Thread}s may write frames concurrently and the outstanding 
+ * {@link RequestMessage}s are tracked by their {@link MessageId}.
+ */
+class FramedConnection implements Closeable {
+  
+  /**
+   * The max size of a value in bytes that can be sent 
+   * over a {@link FramedConnection}.
+   */
+  public static final int MAX_VALUE_SIZE = 1024 * 1024;
+  
+  /**
+   * The max size of a frame in bytes. It's the max value size plus
+   * room for the rest of a STORE request or a VALUE response.
+   */
+  public static final int MAX_FRAME_SIZE = MAX_VALUE_SIZE + 64 * 1024;
+  
+  /**
+   * The initial size of the read buffer in bytes. It grows as the
+   * bytes of a larger frame arrive.
+   */
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+  
+  private final AtomicBoolean open = new AtomicBoolean(true);
+  
+  private final Map<MessageId, Pending> pending 
+    = new ConcurrentHashMap<MessageId, Pending>();
+  
+  private final SocketAddress endpoint;
+  
+  private final Socket socket;
+  
+  private final MessageCodec codec;
+  
+  private final SocketAddress addr;
+  
+  private final DataInputStream in;
+  
+  private final DataOutputStream out;
+  
+  /**
+   * The number of {@link RequestMessage}s from the other side 
+   * that are being processed.
+   */
+  private final AtomicInteger processing = new AtomicInteger();
+  
+  private volatile long lastUseTime = System.currentTimeMillis();
+  
+  /**
+   * The number of frames that have been read.
+   */
+  private volatile long frameCount = 0L;
+  
+  /**
+   * Whether or not the other side closed the connection 
+   * in between two frames.
+   */
+  private volatile boolean endOfStream = false;
+  
+  public FramedConnection(SocketAddress endpoint, 
+      Socket socket, MessageCodec codec) throws IOException {
+    this.endpoint = endpoint;
+    this.socket = socket;
+    this.codec = codec;
+    
+    this.addr = socket.getRemoteSocketAddress();
+    this.in = new DataInputStream(new BufferedInputStream(
+        socket.getInputStream()));
+    this.out = new DataOutputStream(new BufferedOutputStream(
+        socket.getOutputStream()));
+  }
+  
+  /**
+   * Returns the remote {@link SocketAddress} the {@link FramedConnection}
+   * was established with.
+   */
+  public SocketAddress getEndpoint() {
+    return endpoint;
+  }
+  
+  /**
+   * Returns the {@link FramedConnection}'s {@link Socket}.
+   */
+  public Socket getSocket() {
+    return socket;
+  }
+  
+  /**
+   * Encodes the given {@link Message} and writes it as a single frame.
+   */
+  public void write(Message message) throws IOException {
+    EncodeBuffer buffer = EncodeBuffer.get();
+    
+    Encoder encoder = codec.createEncoder(buffer);
+    encoder.write(message);
+    encoder.close();
+    
+    int length = buffer.size();
+    if (MAX_FRAME_SIZE < length) {
+      throw new IOException("length=" + length);
+    }
+    
+    synchronized (out) {
+      out.writeInt(length);
+      out.write(buffer.getBuffer(), 0, length);
+      out.flush();
+    }
+    
+    lastUseTime = System.currentTimeMillis();
+  }
+  
+  /**
+   * Reads and returns the next {@link Message} or {@code null} if no
+   * frame started before the {@link Socket}'s timeout expired. This 
+   * method must be called by one {@link Thread} only.
+   */
+  public Message read() throws IOException {
+    int ch = 0;
+    try {
+      ch = in.read();
+    } catch (SocketTimeoutException err) {
+      return null;
+    }
+    
+    if (ch == -1) {
+      endOfStream = true;
+      throw new EOFException();
+    }
+    
+    int length = (ch << 24) | (in.readUnsignedByte() << 16)
+        | (in.readUnsignedShort());
+    
+    if (length <= 0 || MAX_FRAME_SIZE < length) {
+      throw new IOException("length=" + length);
+    }
+    
+    // The length is unauthenticated. Don't allocate more 
+    // than twice the number of bytes that actually arrived.
+    byte[] frame = new byte[Math.min(length, INITIAL_BUFFER_SIZE)];
+    int offset = 0;
+    while (offset < length) {
+      if (offset == frame.length) {
+        frame = Arrays.copyOf(frame, 
+            (int)Math.min(length, 2L * frame.length));
+      }
+      
+      int read = in.read(frame, offset, frame.length - offset);
+      if (read == -1) {
+        throw new EOFException();
+      }
+      
+      offset += read;
+    }
+    
+    lastUseTime = System.currentTimeMillis();
+    ++frameCount;
+    
+    Decoder decoder = codec.createDecoder(addr, ByteBuffer.wrap(frame));
+    try {
+      return decoder.read();
+    } finally {
+      IoUtils.close(decoder);
+    }
+  }
+  
+  /**
+   * Registers the given {@link RequestMessage} as outstanding until
+   * it's removed or the given deadline has passed. Returns {@code false}
+   * if the {@link FramedConnection} is closed.
+   * 
+   * @param retry whether or not the {@link RequestMessage} may be sent
+   *    again if the other side hasn't seen it.
+   */
+  public boolean addPending(RequestMessage request, 
+      long deadline, boolean retry) {
+    synchronized (pending) {
+      if (!open.get()) {
+        return false;
+      }
+      
+      pending.put(request.getMessageId(), 
+          new Pending(request, deadline, retry, frameCount));
+      return true;
+    }
+  }
+  
+  /**
+   * Removes the outstanding {@link RequestMessage} with the given
+   * {@link MessageId} and returns {@code true} on success.
+   */
+  public boolean removePending(MessageId messageId) {
+    return pending.remove(messageId) != null;
+  }
+  
+  /**
+   * Returns the number of outstanding {@link RequestMessage}s.
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+  
+  /**
+   * Removes all outstanding {@link RequestMessage}s whose deadline 
+   * has passed. The timeouts themselves are handled elsewhere.
+   */
+  public void purge(long now) {
+    Iterator<Pending> it = pending.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().deadline < now) {
+        it.remove();
+      }
+    }
+  }
+  
+  /**
+   * Removes and returns all outstanding {@link RequestMessage}s.
+   */
+  public List<Pending> drainPending() {
+    List<Pending> requests = new ArrayList<>();
+    
+    Iterator<Pending> it = pending.values().iterator();
+    while (it.hasNext()) {
+      requests.add(it.next());
+      it.remove();
+    }
+    
+    return requests;
+  }
+  
+  /**
+   * Returns {@code true} if the other side closed the 
+   * {@link FramedConnection} without sending a single frame after 
+   * the given {@link Pending} {@link RequestMessage} was registered.
+   * It hasn't seen the {@link RequestMessage} in that case.
+   */
+  public boolean isUnseen(Pending request) {
+    return endOfStream && request.frameCount == frameCount;
+  }
+  
+  /**
+   * Tries to reserve one of the given number of slots for processing 
+   * a {@link RequestMessage} from the other side.
+   * 
+   * @see #processed()
+   */
+  public boolean tryProcess(int maxProcessing) {
+    while (true) {
+      int count = processing.get();
+      if (maxProcessing <= count) {
+        return false;
+      }
+      
+      if (processing.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+  
+  /**
+   * Releases a slot that was reserved by {@link #tryProcess(int)}.
+   */
+  public void processed() {
+    processing.decrementAndGet();
+  }
+  
+  /**
+   * Marks the {@link FramedConnection} as closed if there are no 
+   * outstanding {@link RequestMessage}s in either direction and it 
+   * has been idle for the given time. It's done atomically with 
+   * respect to {@link #addPending(RequestMessage, long, boolean)}.
+   */
+  public boolean closeIfIdle(long now, long idleTimeout) {
+    synchronized (pending) {
+      if (pending.isEmpty() && processing.get() == 0 
+          && idleTimeout <= getIdleTimeInMillis(now)) {
+        return open.compareAndSet(true, false);
+      }
+      return false;
+    }
+  }
+  
+  /**
+   * Returns the time in milliseconds since the {@link FramedConnection}
+   * was used the last time.
+   */
+  public long getIdleTimeInMillis(long now) {
+    return now - lastUseTime;
+  }
+  
+  /**
+   * Returns {@code true} if the {@link FramedConnection} is open.
+   */
+  public boolean isOpen() {
+    return open.get() && !socket.isClosed();
+  }
+  
+  /**
+   * Closes the {@link FramedConnection} and returns {@code true} if
+   * it was open.
+   */
+  public boolean closeConnection() {
+    boolean success = open.getAndSet(false);
+    IoUtils.close(socket);
+    return success;
+  }
+  
+  @Override
+  public void close() {
+    closeConnection();
+  }
+  
+  @Override
+  public String toString() {
+    return endpoint + ", " + socket + ", pending=" + pending.size();
+  }
+  
+  /**
+   * An outstanding {@link RequestMessage}.
+   */
+  public static class Pending {
+    
+    private final RequestMessage request;
+    
+    private final long deadline;
+    
+    private final boolean retry;
+    
+    private final long frameCount;
+    
+    private Pending(RequestMessage request, long deadline, 
+        boolean retry, long frameCount) {
+      this.request = request;
+      this.deadline = deadline;
+      this.retry = retry;
+      this.frameCount = frameCount;
+    }
+    
+    public RequestMessage getRequest() {
+      return request;
+    }
+    
+    public long getDeadline() {
+      return deadline;
+    }
+    
+    /**
+     * Returns {@code true} if the {@link RequestMessage} may be sent 
+     * again if the other side hasn't seen it.
+     */
+    public boolean isRetry() {
+      return retry;
+    }
+  }
+}
\ No newline at end of file
@@ -38,20 +38,40 @@ import org.ardverk.io.IoUtils;
  * <li>UDP: Everything else
  * </ul>
  * 
+ * <p>The TCP {@link Message}s are either sent over connections that carry
+ * one {@link Message} at a time ({@link SocketTransport}) or multiplexed 
+ * over a few connections per destination ({@link MultiplexedSocketTransport}).
+ * Both sides must use the same mode.
+ * 
  * @see DatagramTransport
  * @see SocketTransport
+ * @see MultiplexedSocketTransport
  */
 public class HybridTransport extends DatagramTransport {
 
-  private final SocketTransport socket;
+  private final AbstractTransport socket;
   
   public HybridTransport(MessageCodec codec, int port) {
     this(codec, new InetSocketAddress(port));
   }
 
   public HybridTransport(MessageCodec codec, SocketAddress bindaddr) {
+    this(codec, bindaddr, false);
+  }
+  
+  public HybridTransport(MessageCodec codec, int port, boolean multiplexed) {
+    this(codec, new InetSocketAddress(port), multiplexed);
+  }
+  
+  public HybridTransport(MessageCodec codec, 
+      SocketAddress bindaddr, boolean multiplexed) {
     super(codec, bindaddr);
-    socket = new SocketTransport(codec, bindaddr);
+    
+    if (multiplexed) {
+      socket = new MultiplexedSocketTransport(codec, bindaddr);
+    } else {
+      socket = new SocketTransport(codec, bindaddr);
+    }
   }
 
   @Override
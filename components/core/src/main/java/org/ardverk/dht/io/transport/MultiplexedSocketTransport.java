@@ -0,0 +1,686 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.io.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.ardverk.concurrent.ExecutorUtils;
+import org.ardverk.dht.KUID;
+import org.ardverk.dht.codec.MessageCodec;
+import org.ardverk.dht.codec.bencode.BencodeMessageCodec;
+import org.ardverk.dht.io.transport.FramedConnection.Pending;
+import org.ardverk.dht.message.Message;
+import org.ardverk.dht.message.MessageId;
+import org.ardverk.dht.message.RequestMessage;
+import org.ardverk.dht.message.ResponseMessage;
+import org.ardverk.io.IoUtils;
+import org.ardverk.net.NetworkUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An implementation of {@link Transport} that multiplexes concurrent 
+ * {@link RequestMessage}s and {@link ResponseMessage}s to the same 
+ * destination over a small number of TCP {@link Socket}s.
+ * 
+ * <p>Each {@link Message} is sent as a frame that is prefixed with its 
+ * length. {@link ResponseMessage}s are correlated with their 
+ * {@link RequestMessage}s by {@link MessageId} and may arrive in any 
+ * order. The framing is not compatible with {@link SocketTransport}
+ * and both sides must therefore use a {@link MultiplexedSocketTransport}.
+ */
+public class MultiplexedSocketTransport extends AbstractTransport implements Closeable {
+  
+  private static final Logger LOG 
+    = LoggerFactory.getLogger(MultiplexedSocketTransport.class);
+  
+  private static final ExecutorService EXECUTOR 
+    = ExecutorUtils.newCachedThreadPool("MultiplexedSocketTransportThread");
+  
+  private static final int DEFAULT_TIMEOUT = 10000;
+  
+  /**
+   * The max number of outgoing connections per destination.
+   */
+  private static final int MAX_CONNECTIONS_PER_ENDPOINT = 2;
+  
+  /**
+   * The number of outstanding {@link RequestMessage}s per connection 
+   * above which another connection to the same destination is opened
+   * (up to {@link #MAX_CONNECTIONS_PER_ENDPOINT}).
+   */
+  private static final int MAX_PENDING_PER_CONNECTION = 64;
+  
+  /**
+   * The max number of {@link RequestMessage}s from the other side that 
+   * are processed concurrently per connection. Excess 
+   * {@link RequestMessage}s are dropped like on an overloaded UDP port.
+   */
+  private static final int MAX_REQUESTS_PER_CONNECTION = 64;
+  
+  /**
+   * The max number of incoming connections per remote 
+   * {@link InetAddress}. It's more than the 
+   * {@link #MAX_CONNECTIONS_PER_ENDPOINT} to leave room 
+   * for several nodes behind the same NAT.
+   */
+  private static final int MAX_CONNECTIONS_PER_ADDRESS = 8;
+  
+  /**
+   * The interval in milliseconds in which connections check whether 
+   * they've been idle for too long.
+   */
+  private static final int READ_TIMEOUT = 5000;
+  
+  /**
+   * The time in milliseconds after which idle outgoing 
+   * connections are closed.
+   */
+  private static final long CLIENT_IDLE_TIMEOUT = 20000L;
+  
+  /**
+   * The time in milliseconds after which idle incoming connections
+   * are closed. It's longer than the {@link #CLIENT_IDLE_TIMEOUT} 
+   * to make it more likely that the client side closes the connection.
+   */
+  private static final long SERVER_IDLE_TIMEOUT = 30000L;
+  
+  private final Map<SocketAddress, List<FramedConnection>> outgoing 
+    = new HashMap<SocketAddress, List<FramedConnection>>();
+  
+  private final Set<FramedConnection> incoming = Collections.newSetFromMap(
+      new ConcurrentHashMap<FramedConnection, Boolean>());
+  
+  /**
+   * The number of incoming connections per remote {@link InetAddress}.
+   */
+  private final Map<InetAddress, Integer> connectionsPerAddress 
+    = new HashMap<InetAddress, Integer>();
+  
+  private final MessageCodec codec;
+  
+  private final SocketAddress bindaddr;
+  
+  private volatile ServerSocket socket = null;
+  
+  private Future<?> future = null;
+  
+  private boolean open = true;
+  
+  public MultiplexedSocketTransport(MessageCodec codec, int port) {
+    this(codec, new InetSocketAddress(port));
+  }
+  
+  public MultiplexedSocketTransport(MessageCodec codec, 
+      String bindaddr, int port) {
+    this(codec, new InetSocketAddress(bindaddr, port));
+  }
+  
+  public MultiplexedSocketTransport(MessageCodec codec, 
+      InetAddress bindaddr, int port) {
+    this(codec, new InetSocketAddress(bindaddr, port));
+  }
+  
+  public MultiplexedSocketTransport(SocketAddress bindaddr) {
+    this(new BencodeMessageCodec(), bindaddr);
+  }
+  
+  public MultiplexedSocketTransport(MessageCodec codec, 
+      SocketAddress bindaddr) {
+    this.codec = codec;
+    this.bindaddr = bindaddr;
+  }
+  
+  @Override
+  public SocketAddress getSocketAddress() {
+    return bindaddr;
+  }
+  
+  @Override
+  public synchronized void bind(TransportCallback callback) throws IOException {
+    if (!open) {
+      throw new IOException();
+    }
+    
+    super.bind(callback);
+  
+    socket = new ServerSocket();
+    socket.setReuseAddress(true);
+    socket.bind(bindaddr);
+    
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        doServe();
+      }
+    };
+    
+    future = EXECUTOR.submit(task);
+  }
+  
+  @Override
+  public synchronized void unbind() {
+    super.unbind();
+    
+    IoUtils.close(socket);
+    
+    if (future != null) {
+      future.cancel(true);
+    }
+    
+    List<FramedConnection> connections = new ArrayList<>(incoming);
+    synchronized (outgoing) {
+      for (List<FramedConnection> list : outgoing.values()) {
+        connections.addAll(list);
+      }
+    }
+    
+    for (FramedConnection connection : connections) {
+      close(connection, null);
+    }
+  }
+  
+  @Override
+  public synchronized void close() {
+    open = false;
+    unbind();
+  }
+  
+  /**
+   * Returns the number of open outgoing connections.
+   */
+  public int getConnectionCount() {
+    int count = 0;
+    synchronized (outgoing) {
+      for (List<FramedConnection> list : outgoing.values()) {
+        count += list.size();
+      }
+    }
+    return count;
+  }
+  
+  private void doServe() {
+    ServerSocket socket = null;
+    Socket client = null;
+    
+    while ((socket = this.socket) != null 
+        && !socket.isClosed()) {
+      
+      boolean processing = false;
+      try {
+        client = socket.accept();
+        
+        configure(client);
+        processing = receive(client);
+        
+      } catch (IOException err) {
+        uncaughtException(socket, err);
+      } finally {
+        if (!processing) {
+          IoUtils.close(client);
+        }
+      }
+    }
+  }
+  
+  private boolean receive(Socket client) throws IOException {
+    SocketAddress addr = client.getRemoteSocketAddress();
+    
+    if (!acquire(client.getInetAddress())) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Too many connections: " + addr);
+      }
+      return false;
+    }
+    
+    boolean success = false;
+    try {
+      FramedConnection connection 
+        = new FramedConnection(addr, client, codec);
+      
+      incoming.add(connection);
+      start(connection, SERVER_IDLE_TIMEOUT);
+      success = true;
+    } finally {
+      if (!success) {
+        release(client.getInetAddress());
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Counts an incoming connection from the given {@link InetAddress} 
+   * and returns {@code true} if it's below the limit.
+   */
+  private boolean acquire(InetAddress address) {
+    synchronized (connectionsPerAddress) {
+      Integer count = connectionsPerAddress.get(address);
+      if (count == null) {
+        count = 0;
+      }
+      
+      if (MAX_CONNECTIONS_PER_ADDRESS <= count) {
+        return false;
+      }
+      
+      connectionsPerAddress.put(address, count + 1);
+      return true;
+    }
+  }
+  
+  /**
+   * Releases an incoming connection that was counted by 
+   * {@link #acquire(InetAddress)}.
+   */
+  private void release(InetAddress address) {
+    synchronized (connectionsPerAddress) {
+      Integer count = connectionsPerAddress.get(address);
+      if (count != null) {
+        if (count <= 1) {
+          connectionsPerAddress.remove(address);
+        } else {
+          connectionsPerAddress.put(address, count - 1);
+        }
+      }
+    }
+  }
+  
+  @Override
+  public void send(KUID contactId, final Message message, 
+      final long timeout, final TimeUnit unit) throws IOException {
+    
+    ServerSocket socket = this.socket;
+    if (socket == null || socket.isClosed()) {
+      throw new IOException();
+    }
+    
+    int timeoutInMillis = (int)unit.toMillis(timeout);
+    if (timeoutInMillis < 0) {
+      timeoutInMillis = DEFAULT_TIMEOUT;
+    }
+    
+    send(message, timeoutInMillis, 
+        System.currentTimeMillis() + timeoutInMillis, true);
+  }
+  
+  /**
+   * Sends the given {@link Message} over a new or an existing 
+   * {@link FramedConnection}.
+   * 
+   * @param retry whether or not a {@link RequestMessage} may be sent 
+   *    once more if it's certain the other side hasn't seen it.
+   */
+  private void send(final Message message, final int timeoutInMillis, 
+      final long deadline, final boolean retry) {
+    
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        FramedConnection connection = null;
+        
+        try {
+          SocketAddress addr = message.getAddress();
+          SocketAddress endpoint 
+            = NetworkUtils.getResolved(addr);
+          
+          connection = getConnection(endpoint, timeoutInMillis);
+          write(connection, message, deadline, retry);
+          
+        } catch (Exception err) {
+          uncaughtException(connection != null 
+              && connection.getSocket().isClosed(), err);
+          handleException(message, err);
+        }
+      }
+    };
+    
+    EXECUTOR.execute(task);
+  }
+  
+  /**
+   * Sends the given {@link RequestMessage} once more over a different
+   * {@link FramedConnection} unless the time is up.
+   */
+  private void retry(RequestMessage request, long deadline) {
+    ServerSocket socket = this.socket;
+    long timeoutInMillis = deadline - System.currentTimeMillis();
+    
+    if (socket == null || socket.isClosed() || timeoutInMillis <= 0L) {
+      handleException(request, new IOException("Connection closed"));
+      return;
+    }
+    
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Retrying: " + request);
+    }
+    
+    send(request, (int)timeoutInMillis, deadline, false);
+  }
+  
+  /**
+   * Writes the given {@link Message}. {@link RequestMessage}s are 
+   * registered with the {@link FramedConnection} before they're 
+   * written as the {@link ResponseMessage} may arrive at any time.
+   * 
+   * <p>A {@link RequestMessage} is retried if the {@link FramedConnection}
+   * was closed before it could be registered or written. The other
+   * side can't have seen it.
+   */
+  private void write(FramedConnection connection, Message message, 
+      long deadline, boolean retry) throws IOException {
+    
+    boolean request = (message instanceof RequestMessage);
+    if (request && !connection.addPending(
+        (RequestMessage)message, deadline, retry)) {
+      
+      // The connection was closed in the meantime.
+      IOException err = new IOException(
+          "Connection closed: " + connection);
+      if (!retry) {
+        throw err;
+      }
+      
+      retry((RequestMessage)message, deadline);
+      return;
+    }
+    
+    try {
+      connection.write(message);
+    } catch (IOException err) {
+      // The RequestMessage may have been failed already 
+      // by a concurrent close of the connection.
+      boolean owner = !request 
+          || connection.removePending(message.getMessageId());
+      
+      close(connection, err);
+      
+      if (owner) {
+        if (request && retry) {
+          retry((RequestMessage)message, deadline);
+          return;
+        }
+        throw err;
+      }
+    }
+  }
+  
+  /**
+   * Returns an outgoing {@link FramedConnection} for the given 
+   * destination. An existing {@link FramedConnection} is reused 
+   * unless all of them are busy and there is room for another one.
+   */
+  private FramedConnection getConnection(SocketAddress endpoint, 
+      int timeoutInMillis) throws IOException {
+    
+    synchronized (outgoing) {
+      List<FramedConnection> list = outgoing.get(endpoint);
+      FramedConnection connection = select(list);
+      
+      if (connection != null 
+          && (connection.getPendingCount() < MAX_PENDING_PER_CONNECTION
+            || MAX_CONNECTIONS_PER_ENDPOINT <= list.size())) {
+        return connection;
+      }
+    }
+    
+    FramedConnection connection = connect(endpoint, timeoutInMillis);
+    
+    synchronized (outgoing) {
+      List<FramedConnection> list = outgoing.get(endpoint);
+      if (list == null) {
+        list = new ArrayList<>(MAX_CONNECTIONS_PER_ENDPOINT);
+        outgoing.put(endpoint, list);
+      }
+      
+      // Somebody else opened a connection in the meantime
+      if (MAX_CONNECTIONS_PER_ENDPOINT <= list.size()) {
+        FramedConnection existing = select(list);
+        if (existing != null) {
+          connection.close();
+          return existing;
+        }
+      }
+      
+      list.add(connection);
+    }
+    
+    start(connection, CLIENT_IDLE_TIMEOUT);
+    return connection;
+  }
+  
+  /**
+   * Returns the open {@link FramedConnection} with the least
+   * number of outstanding {@link RequestMessage}s.
+   */
+  private static FramedConnection select(List<FramedConnection> list) {
+    if (list == null) {
+      return null;
+    }
+    
+    FramedConnection selected = null;
+    
+    Iterator<FramedConnection> it = list.iterator();
+    while (it.hasNext()) {
+      FramedConnection connection = it.next();
+      if (!connection.isOpen()) {
+        it.remove();
+        continue;
+      }
+      
+      if (selected == null || connection.getPendingCount() 
+          < selected.getPendingCount()) {
+        selected = connection;
+      }
+    }
+    
+    return selected;
+  }
+  
+  /**
+   * Opens and returns a new {@link FramedConnection}.
+   */
+  private FramedConnection connect(SocketAddress endpoint, 
+      int timeoutInMillis) throws IOException {
+    
+    Socket client = new Socket();
+    boolean success = false;
+    try {
+      configure(client);
+      client.connect(endpoint, timeoutInMillis);
+      
+      FramedConnection connection 
+        = new FramedConnection(endpoint, client, codec);
+      success = true;
+      return connection;
+    } finally {
+      if (!success) {
+        IoUtils.close(client);
+      }
+    }
+  }
+  
+  /**
+   * Starts reading {@link Message}s from the given {@link FramedConnection}.
+   */
+  private void start(final FramedConnection connection, final long idleTimeout) {
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        serve(connection, idleTimeout);
+      }
+    };
+    
+    EXECUTOR.execute(task);
+  }
+  
+  /**
+   * Reads {@link Message}s until the other side closes the connection 
+   * or the connection has been idle for too long. {@link RequestMessage}s
+   * are handled concurrently and their {@link ResponseMessage}s are 
+   * written back as soon as they're ready.
+   */
+  private void serve(FramedConnection connection, long idleTimeout) {
+    IOException cause = null;
+    try {
+      connection.getSocket().setSoTimeout(READ_TIMEOUT);
+      
+      while (connection.isOpen()) {
+        Message message = connection.read();
+        
+        if (message == null) {
+          long now = System.currentTimeMillis();
+          connection.purge(now);
+          
+          if (connection.closeIfIdle(now, idleTimeout)) {
+            break;
+          }
+          continue;
+        }
+        
+        if (message instanceof RequestMessage) {
+          if (connection.tryProcess(MAX_REQUESTS_PER_CONNECTION)) {
+            process(connection, (RequestMessage)message);
+          } else if (LOG.isDebugEnabled()) {
+            LOG.debug("Too many requests: " + connection);
+          }
+          
+        } else if (connection.removePending(message.getMessageId())) {
+          handleResponse((ResponseMessage)message);
+          
+        } else if (LOG.isDebugEnabled()) {
+          // We didn't ask for it or it's too late.
+          LOG.debug("Unexpected response: " + message);
+        }
+      }
+    } catch (IOException err) {
+      // The other side closed the connection or sent garbage.
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Connection closed: " + connection, err);
+      }
+      cause = err;
+    } finally {
+      close(connection, cause);
+    }
+  }
+  
+  /**
+   * Handles the given {@link RequestMessage} and writes 
+   * the {@link ResponseMessage} back.
+   */
+  private void process(final FramedConnection connection, 
+      final RequestMessage request) {
+    
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          ResponseMessage response = handleRequest(request);
+          if (response != null) {
+            connection.write(response);
+          }
+        } catch (IOException err) {
+          uncaughtException(connection.getSocket(), err);
+          close(connection, err);
+        } finally {
+          connection.processed();
+        }
+      }
+    };
+    
+    EXECUTOR.execute(task);
+  }
+  
+  /**
+   * Closes the given {@link FramedConnection} and fails all
+   * {@link RequestMessage}s that are still outstanding. The ones the
+   * other side hasn't seen are retried.
+   */
+  private void close(FramedConnection connection, IOException cause) {
+    if (incoming.remove(connection)) {
+      release(connection.getSocket().getInetAddress());
+    } else {
+      synchronized (outgoing) {
+        SocketAddress endpoint = connection.getEndpoint();
+        List<FramedConnection> list = outgoing.get(endpoint);
+        if (list != null && list.remove(connection) && list.isEmpty()) {
+          outgoing.remove(endpoint);
+        }
+      }
+    }
+    
+    if (!connection.closeConnection()) {
+      return;
+    }
+    
+    List<Pending> requests = connection.drainPending();
+    if (!requests.isEmpty()) {
+      IOException err = cause;
+      if (err == null) {
+        err = new IOException("Connection closed: " + connection);
+      }
+      
+      for (Pending request : requests) {
+        if (request.isRetry() && connection.isUnseen(request)) {
+          retry(request.getRequest(), request.getDeadline());
+        } else {
+          handleException(request.getRequest(), err);
+        }
+      }
+    }
+  }
+  
+  private static void configure(Socket client) throws SocketException {
+    client.setSoLinger(true, 0);
+    client.setTcpNoDelay(true);
+  }
+  
+  private static void uncaughtException(ServerSocket socket, Throwable t) {
+    uncaughtException(socket.isClosed(), t);
+  }
+  
+  private static void uncaughtException(Socket socket, Throwable t) {
+    uncaughtException(socket.isClosed(), t);
+  }
+  
+  private static void uncaughtException(boolean closed, Throwable t) {
+    if (closed) {
+      LOG.info("Exception", t);
+    } else {
+      LOG.error("Exception", t);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.io.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.ardverk.concurrent.ExecutorUtils;
+import org.ardverk.dht.KUID;
+import org.ardverk.dht.codec.MessageCodec;
+import org.ardverk.dht.codec.MessageCodec.Decoder;
+import org.ardverk.dht.codec.MessageCodec.Encoder;
+import org.ardverk.dht.codec.bencode.BencodeMessageCodec;
+import org.ardverk.dht.io.transport.ResponseCache.Response;
+import org.ardverk.dht.message.Message;
+import org.ardverk.dht.message.MessageId;
+import org.ardverk.dht.message.RequestMessage;
+import org.ardverk.dht.message.ResponseMessage;
+import org.ardverk.io.IoUtils;
+import org.ardverk.net.NetworkUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An implementation of {@link Transport} that uses a {@link DatagramChannel}.
+ * 
+ * <p>Unlike the {@link DatagramTransport} it has no central receive loop 
+ * and work queue. Each of its receiver {@link Thread}s reads packets into 
+ * its own direct {@link ByteBuffer} and decodes and processes them on the 
+ * spot. {@link Message}s are encoded into pooled direct {@link ByteBuffer}s 
+ * and sent on the caller's {@link Thread}.
+ * 
+ * <p>NOTE: All receiver {@link Thread}s share a single {@link DatagramChannel}.
+ * Binding several {@link DatagramChannel}s to the same port requires 
+ * {@code SO_REUSEPORT} which isn't available before Java 9.
+ */
+public class NioDatagramTransport extends AbstractTransport implements Closeable {
+  
+  private static final Logger LOG 
+    = LoggerFactory.getLogger(NioDatagramTransport.class);
+  
+  private static final ExecutorService EXECUTOR 
+    = ExecutorUtils.newCachedThreadPool("NioDatagramTransportThread");
+  
+  /**
+   * The max size of an UDP payload.
+   */
+  private static final int MAX_SIZE = 64 * 1024;
+  
+  /**
+   * The max number of idle {@link ByteBuffer}s in the pool.
+   */
+  private static final int MAX_POOL_SIZE = 64;
+  
+  /**
+   * The expected max number of {@link RequestMessage}s per second
+   * whose encoded {@link ResponseMessage}s are cached.
+   */
+  private static final int RESPONSE_CACHE_RATE = 1000;
+  
+  /**
+   * The time in seconds for which encoded {@link ResponseMessage}s 
+   * are kept for answering duplicate {@link RequestMessage}s.
+   */
+  private static final long RESPONSE_CACHE_TTL = 10L;
+  
+  private final ByteBufferPool pool 
+    = new ByteBufferPool(MAX_SIZE, MAX_POOL_SIZE, true);
+  
+  private volatile ResponseCache responses = ResponseCache.create(
+      RESPONSE_CACHE_RATE, RESPONSE_CACHE_TTL, TimeUnit.SECONDS);
+  
+  private final List<Future<?>> futures = new ArrayList<Future<?>>();
+  
+  private final MessageCodec codec;
+  
+  private final SocketAddress bindaddr;
+  
+  private volatile DatagramChannel channel = null;
+  
+  private int receiverCount = Runtime.getRuntime().availableProcessors();
+  
+  private int receiveBufferSize = -1;
+  
+  private int sendBufferSize = -1;
+  
+  private boolean open = true;
+  
+  public NioDatagramTransport(MessageCodec codec, int port) {
+    this(codec, new InetSocketAddress(port));
+  }
+  
+  public NioDatagramTransport(MessageCodec codec, 
+      String bindaddr, int port) {
+    this(codec, new InetSocketAddress(bindaddr, port));
+  }
+  
+  public NioDatagramTransport(MessageCodec codec, 
+      InetAddress bindaddr, int port) {
+    this(codec, new InetSocketAddress(bindaddr, port));
+  }
+  
+  public NioDatagramTransport(SocketAddress bindaddr) {
+    this(new BencodeMessageCodec(), bindaddr);
+  }
+  
+  public NioDatagramTransport(MessageCodec codec, 
+      SocketAddress bindaddr) {
+    this.codec = codec;
+    this.bindaddr = bindaddr;
+  }
+  
+  @Override
+  public SocketAddress getSocketAddress() {
+    return bindaddr;
+  }
+  
+  /**
+   * Replaces the {@link ResponseCache} with one that keeps the encoded
+   * {@link ResponseMessage}s for the given number of cacheable 
+   * {@link RequestMessage}s per second for the given amount of time.
+   * The time should cover the retransmissions of a {@link RequestMessage}.
+   */
+  public void setResponseCache(int requestsPerSecond, 
+      long timeToLive, TimeUnit unit) {
+    this.responses = ResponseCache.create(
+        requestsPerSecond, timeToLive, unit);
+  }
+  
+  /**
+   * Returns the number of receiver {@link Thread}s.
+   */
+  public synchronized int getReceiverCount() {
+    return receiverCount;
+  }
+  
+  /**
+   * Sets the number of receiver {@link Thread}s. It takes effect 
+   * the next time the {@link NioDatagramTransport} is bound.
+   */
+  public synchronized void setReceiverCount(int receiverCount) {
+    if (receiverCount <= 0) {
+      throw new IllegalArgumentException("receiverCount=" + receiverCount);
+    }
+    this.receiverCount = receiverCount;
+  }
+  
+  /**
+   * Returns the requested {@code SO_RCVBUF} size or a negative 
+   * value if the operating system's default is used.
+   */
+  public synchronized int getReceiveBufferSize() {
+    return receiveBufferSize;
+  }
+  
+  /**
+   * Sets the {@code SO_RCVBUF} size. It takes effect the next time
+   * the {@link NioDatagramTransport} is bound.
+   */
+  public synchronized void setReceiveBufferSize(int receiveBufferSize) {
+    this.receiveBufferSize = receiveBufferSize;
+  }
+  
+  /**
+   * Returns the requested {@code SO_SNDBUF} size or a negative 
+   * value if the operating system's default is used.
+   */
+  public synchronized int getSendBufferSize() {
+    return sendBufferSize;
+  }
+  
+  /**
+   * Sets the {@code SO_SNDBUF} size. It takes effect the next time
+   * the {@link NioDatagramTransport} is bound.
+   */
+  public synchronized void setSendBufferSize(int sendBufferSize) {
+    this.sendBufferSize = sendBufferSize;
+  }
+  
+  @Override
+  public synchronized void bind(TransportCallback callback) throws IOException {
+    if (!open) {
+      throw new IOException();
+    }
+    
+    super.bind(callback);
+    
+    boolean success = false;
+    try {
+      channel = DatagramChannel.open();
+      
+      if (0 < receiveBufferSize) {
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+      }
+      
+      if (0 < sendBufferSize) {
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+      }
+      
+      channel.bind(bindaddr);
+      
+      for (int i = 0; i < receiverCount; i++) {
+        Runnable task = new Runnable() {
+          @Override
+          public void run() {
+            doServe();
+          }
+        };
+        
+        futures.add(EXECUTOR.submit(task));
+      }
+      
+      success = true;
+    } finally {
+      if (!success) {
+        unbind();
+      }
+    }
+  }
+  
+  @Override
+  public synchronized void unbind() {
+    super.unbind();
+    
+    IoUtils.close(channel);
+    channel = null;
+    
+    for (Future<?> future : futures) {
+      future.cancel(true);
+    }
+    futures.clear();
+    
+    responses.clear();
+  }
+  
+  @Override
+  public synchronized void close() {
+    open = false;
+    unbind();
+    pool.clear();
+  }
+  
+  private void doServe() {
+    DatagramChannel channel = this.channel;
+    if (channel == null) {
+      return;
+    }
+    
+    ByteBuffer buffer = pool.acquire();
+    try {
+      while (channel.isOpen()) {
+        try {
+          buffer.clear();
+          SocketAddress src = channel.receive(buffer);
+          buffer.flip();
+          
+          process(src, buffer);
+        } catch (ClosedChannelException err) {
+          break;
+        } catch (IOException err) {
+          uncaughtException(channel, err);
+        } catch (RuntimeException err) {
+          uncaughtException(channel, err);
+        }
+      }
+    } finally {
+      pool.release(buffer);
+    }
+  }
+  
+  private void process(SocketAddress src, ByteBuffer buffer) throws IOException {
+    Decoder decoder = null;
+    try {
+      decoder = codec.createDecoder(src, buffer);
+      Message message = decoder.read();
+      
+      if (message instanceof RequestMessage) {
+        handleRequest(src, (RequestMessage)message);
+      } else {
+        handleResponse((ResponseMessage)message);
+      }
+    } finally {
+      IoUtils.close(decoder);
+    }
+  }
+  
+  private void handleRequest(SocketAddress src, 
+      RequestMessage request) throws IOException {
+    
+    MessageId messageId = request.getMessageId();
+    
+    // Duplicate requests are answered from the cache or are
+    // dropped if the original request is still being processed.
+    ResponseCache responses = null;
+    if (ResponseCache.isCacheable(request)) {
+      responses = NioDatagramTransport.this.responses;
+    }
+    
+    Response cached = (responses != null) 
+        ? responses.get(src, messageId) : null;
+    if (cached != null) {
+      if (!cached.isPending()) {
+        send(cached.getEndpoint(), ByteBuffer.wrap(cached.getData()));
+      }
+      return;
+    }
+    
+    boolean success = false;
+    try {
+      ResponseMessage response = handleRequest(request);
+      if (response != null) {
+        KUID contactId = request.getContact().getId();
+        send(contactId, response, responses, src);
+      }
+      success = true;
+    } finally {
+      if (!success && responses != null) {
+        responses.remove(src, messageId);
+      }
+    }
+  }
+  
+  @Override
+  public void send(KUID contactId, Message message,
+      long timeout, TimeUnit unit) throws IOException {
+    send(contactId, message, null, null);
+  }
+  
+  /**
+   * Encodes and sends the given {@link Message}. The encoded 
+   * {@link Message} is added to the given {@link ResponseCache} 
+   * if it's non-null.
+   */
+  private void send(KUID contactId, Message message, 
+      ResponseCache responses, SocketAddress src) throws IOException {
+    
+    SocketAddress addr = message.getAddress();
+    SocketAddress endpoint = NetworkUtils.getResolved(addr);
+    
+    ByteBuffer buffer = pool.acquire();
+    try {
+      Encoder encoder = codec.createEncoder(
+          new ByteBufferOutputStream(buffer));
+      encoder.write(message);
+      encoder.close();
+      
+      buffer.flip();
+      
+      byte[] encoded = null;
+      if (responses != null) {
+        encoded = new byte[buffer.remaining()];
+        buffer.duplicate().get(encoded);
+      }
+      
+      send(endpoint, buffer);
+      messageSent(contactId, message);
+      
+      if (responses != null) {
+        MessageId messageId = message.getMessageId();
+        responses.put(src, messageId, endpoint, encoded);
+      }
+    } finally {
+      pool.release(buffer);
+    }
+  }
+  
+  /**
+   * Sends an already encoded {@link Message}.
+   */
+  private void send(SocketAddress endpoint, 
+      ByteBuffer buffer) throws IOException {
+    
+    DatagramChannel channel = this.channel;
+    if (channel == null || !channel.isOpen()) {
+      throw new IOException();
+    }
+    
+    channel.send(buffer, endpoint);
+  }
+  
+  protected void uncaughtException(DatagramChannel channel, Throwable t) {
+    if (!channel.isOpen()) {
+      LOG.debug("Exception", t);
+    } else {
+      LOG.error("Exception", t);
+    }
+  }
+}
\ No newline at end of file
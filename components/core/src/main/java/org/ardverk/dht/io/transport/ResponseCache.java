@@ -0,0 +1,248 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io.transport;
+
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.ardverk.collection.FixedSizeHashMap;
+import org.ardverk.dht.message.MessageId;
+import org.ardverk.dht.message.RequestMessage;
+import org.ardverk.dht.message.ResponseMessage;
+import org.ardverk.dht.message.StoreRequest;
+import org.ardverk.lang.Precoditions;
+
+/**
+ * A short lived and bounded cache of encoded {@link ResponseMessage}s. 
+ * It's keyed by the {@link RequestMessage}'s source {@link SocketAddress}
+ * and {@link MessageId} and allows us to answer duplicate (e.g. re-sent)
+ * {@link RequestMessage}s without processing them again.
+ * 
+ * <p>The cache is split into stripes with a lock each to not serialize
+ * all receiver {@link Thread}s on a single lock.
+ */
+class ResponseCache {
+  
+  /**
+   * The max number of stripes.
+   */
+  private static final int MAX_STRIPES = 16;
+  
+  /**
+   * The min number of {@link Response}s per stripe.
+   */
+  private static final int MIN_STRIPE_SIZE = 64;
+  
+  /**
+   * Creates a {@link ResponseCache} that is large enough to keep the
+   * {@link Response}s for the given number of {@link RequestMessage}s 
+   * per second for the given amount of time.
+   */
+  public static ResponseCache create(int requestsPerSecond, 
+      long timeToLive, TimeUnit unit) {
+    long maxSize = requestsPerSecond * unit.toMillis(timeToLive) / 1000L;
+    return new ResponseCache((int)Math.max(1L, 
+        Math.min(maxSize, Integer.MAX_VALUE)), timeToLive, unit);
+  }
+  
+  /**
+   * Returns {@code true} if the {@link ResponseMessage} for the given 
+   * {@link RequestMessage} should be cached. Only {@link StoreRequest}s
+   * have side effects. Any other duplicate {@link RequestMessage} is 
+   * cheaper to process again than to cache.
+   */
+  public static boolean isCacheable(RequestMessage request) {
+    return request instanceof StoreRequest;
+  }
+  
+  private final FixedSizeHashMap<Key, Response>[] stripes;
+  
+  private final long timeToLiveInMillis;
+  
+  @SuppressWarnings("unchecked")
+  public ResponseCache(int maxSize, long timeToLive, TimeUnit unit) {
+    int count = 1;
+    while (count < MAX_STRIPES 
+        && 2 * count * MIN_STRIPE_SIZE <= maxSize) {
+      count *= 2;
+    }
+    
+    int stripeSize = (maxSize + count - 1) / count;
+    
+    this.stripes = new FixedSizeHashMap[count];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new FixedSizeHashMap<>(stripeSize, stripeSize);
+    }
+    
+    this.timeToLiveInMillis = unit.toMillis(timeToLive);
+  }
+  
+  /**
+   * Returns the {@link Response}'s stripe for the given {@link Key}.
+   */
+  private FixedSizeHashMap<Key, Response> stripe(Key key) {
+    int hashCode = key.hashCode();
+    hashCode ^= (hashCode >>> 16);
+    return stripes[hashCode & (stripes.length-1)];
+  }
+  
+  /**
+   * Returns the {@link Response} for the given {@link RequestMessage}
+   * or {@code null} if it's a new {@link RequestMessage}. In the latter
+   * case the {@link RequestMessage} is marked as pending and the caller
+   * is responsible for either calling {@link #put(SocketAddress, 
+   * MessageId, SocketAddress, byte[])} or {@link #remove(SocketAddress, 
+   * MessageId)}.
+   */
+  public Response get(SocketAddress src, MessageId messageId) {
+    Key key = new Key(src, messageId);
+    long now = System.currentTimeMillis();
+    
+    FixedSizeHashMap<Key, Response> responses = stripe(key);
+    synchronized (responses) {
+      Response response = responses.get(key);
+      if (response != null && !response.isExpired(now)) {
+        return response;
+      }
+      
+      responses.put(key, new Response(now));
+      return null;
+    }
+  }
+  
+  /**
+   * Adds the encoded {@link ResponseMessage} for the given 
+   * {@link RequestMessage}.
+   */
+  public void put(SocketAddress src, MessageId messageId, 
+      SocketAddress endpoint, byte[] data) {
+    Key key = new Key(src, messageId);
+    Response response = new Response(
+        System.currentTimeMillis(), endpoint, data);
+    
+    FixedSizeHashMap<Key, Response> responses = stripe(key);
+    synchronized (responses) {
+      responses.put(key, response);
+    }
+  }
+  
+  /**
+   * Removes the {@link Response} for the given {@link RequestMessage}.
+   */
+  public void remove(SocketAddress src, MessageId messageId) {
+    Key key = new Key(src, messageId);
+    
+    FixedSizeHashMap<Key, Response> responses = stripe(key);
+    synchronized (responses) {
+      responses.remove(key);
+    }
+  }
+  
+  /**
+   * Removes all {@link Response}s.
+   */
+  public void clear() {
+    for (FixedSizeHashMap<Key, Response> responses : stripes) {
+      synchronized (responses) {
+        responses.clear();
+      }
+    }
+  }
+  
+  /**
+   * An encoded {@link ResponseMessage} or a placeholder for a 
+   * {@link RequestMessage} that is still being processed.
+   */
+  public class Response {
+    
+    private final long creationTime;
+    
+    private final SocketAddress endpoint;
+    
+    private final byte[] data;
+    
+    private Response(long creationTime) {
+      this(creationTime, null, null);
+    }
+    
+    private Response(long creationTime, 
+        SocketAddress endpoint, byte[] data) {
+      this.creationTime = creationTime;
+      this.endpoint = endpoint;
+      this.data = data;
+    }
+    
+    /**
+     * Returns {@code true} if the {@link RequestMessage} is still
+     * being processed or didn't yield a {@link ResponseMessage}.
+     */
+    public boolean isPending() {
+      return data == null;
+    }
+    
+    /**
+     * Returns the {@link ResponseMessage}'s destination.
+     */
+    public SocketAddress getEndpoint() {
+      return endpoint;
+    }
+    
+    /**
+     * Returns the encoded {@link ResponseMessage}.
+     */
+    public byte[] getData() {
+      return data;
+    }
+    
+    private boolean isExpired(long now) {
+      return (now - creationTime) >= timeToLiveInMillis;
+    }
+  }
+  
+  private static class Key {
+    
+    private final SocketAddress src;
+    
+    private final MessageId messageId;
+    
+    private final int hashCode;
+    
+    public Key(SocketAddress src, MessageId messageId) {
+      this.src = Precoditions.notNull(src, "src");
+      this.messageId = Precoditions.notNull(messageId, "messageId");
+      this.hashCode = 31 * src.hashCode() + messageId.hashCode();
+    }
+    
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      } else if (!(o instanceof Key)) {
+        return false;
+      }
+      
+      Key other = (Key)o;
+      return src.equals(other.src) 
+          && messageId.equals(other.messageId);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.io.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+import org.ardverk.dht.codec.MessageCodec;
+import org.ardverk.dht.codec.MessageCodec.Decoder;
+import org.ardverk.dht.codec.MessageCodec.Encoder;
+import org.ardverk.dht.message.Message;
+import org.ardverk.io.IoUtils;
+
+/**
+ * A {@link SocketConnection} reads and writes a sequence of 
+ * {@link Message}s over a single {@link Socket}.
+ */
+class SocketConnection implements Closeable {
+  
+  private final SocketAddress endpoint;
+  
+  private final Socket socket;
+  
+  private final InputStream in;
+  
+  private final Decoder decoder;
+  
+  private final Encoder encoder;
+  
+  private volatile long lastUseTime = System.currentTimeMillis();
+  
+  public SocketConnection(SocketAddress endpoint, 
+      Socket socket, MessageCodec codec) throws IOException {
+    this.endpoint = endpoint;
+    this.socket = socket;
+    
+    SocketAddress addr = socket.getRemoteSocketAddress();
+    
+    this.in = new BufferedInputStream(socket.getInputStream());
+    this.decoder = codec.createDecoder(addr, in);
+    this.encoder = codec.createEncoder(new BufferedOutputStream(
+        socket.getOutputStream()));
+  }
+  
+  /**
+   * Returns the remote {@link SocketAddress} the {@link SocketConnection}
+   * was established with.
+   */
+  public SocketAddress getEndpoint() {
+    return endpoint;
+  }
+  
+  /**
+   * Returns the {@link SocketConnection}'s {@link Socket}.
+   */
+  public Socket getSocket() {
+    return socket;
+  }
+  
+  /**
+   * Writes and flushes the given {@link Message}.
+   */
+  public void write(Message message) throws IOException {
+    encoder.write(message);
+    encoder.flush();
+    lastUseTime = System.currentTimeMillis();
+  }
+  
+  /**
+   * Reads and returns the next {@link Message}.
+   */
+  public Message read() throws IOException {
+    Message message = decoder.read();
+    lastUseTime = System.currentTimeMillis();
+    return message;
+  }
+  
+  /**
+   * Blocks until the next {@link Message} starts to arrive and returns
+   * {@code true} or {@code false} if the other side closed the 
+   * {@link SocketConnection} without sending anything.
+   */
+  public boolean awaitMessage() throws IOException {
+    in.mark(1);
+    int value = in.read();
+    if (value == -1) {
+      return false;
+    }
+    
+    in.reset();
+    return true;
+  }
+  
+  /**
+   * Returns the time in milliseconds since the {@link SocketConnection}
+   * was used the last time.
+   */
+  public long getIdleTimeInMillis(long now) {
+    return now - lastUseTime;
+  }
+  
+  /**
+   * Returns {@code true} if the {@link SocketConnection} looks like it
+   * can be used for another request. An idle {@link SocketConnection} 
+   * must have no unread data. A {@link SocketConnection} that was closed 
+   * by the other side can't be detected without a blocking read.
+   */
+  public boolean isHealthy() {
+    if (socket.isClosed() || !socket.isConnected()
+        || socket.isInputShutdown() || socket.isOutputShutdown()) {
+      return false;
+    }
+    
+    try {
+      return in.available() == 0;
+    } catch (IOException err) {
+      return false;
+    }
+  }
+  
+  @Override
+  public void close() {
+    IoUtils.close(socket);
+  }
+  
+  @Override
+  public String toString() {
+    return endpoint + ", " + socket;
+  }
+}
\ No newline at end of file
@@ -16,18 +16,18 @@
 
 package org.ardverk.dht.io.transport;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.Closeable;
-import java.io.FilterInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -35,21 +35,28 @@ import java.util.concurrent.TimeUnit;
 import org.ardverk.concurrent.ExecutorUtils;
 import org.ardverk.dht.KUID;
 import org.ardverk.dht.codec.MessageCodec;
-import org.ardverk.dht.codec.MessageCodec.Decoder;
-import org.ardverk.dht.codec.MessageCodec.Encoder;
 import org.ardverk.dht.codec.bencode.BencodeMessageCodec;
 import org.ardverk.dht.message.Message;
 import org.ardverk.dht.message.RequestMessage;
 import org.ardverk.dht.message.ResponseMessage;
-import org.ardverk.dht.rsrc.NoValue;
-import org.ardverk.dht.rsrc.Value;
-import org.ardverk.dht.utils.Idle;
 import org.ardverk.io.IoUtils;
-import org.ardverk.io.ProgressInputStream;
 import org.ardverk.net.NetworkUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * An implementation of {@link Transport} that uses TCP {@link Socket}s.
+ * 
+ * <p>Connections are kept open and are reused for subsequent 
+ * {@link RequestMessage}s to the same destination. Each connection 
+ * carries one {@link RequestMessage} and its {@link ResponseMessage} 
+ * at a time.
+ * 
+ * <p>Each incoming connection is served by its own thread and holds it 
+ * for up to {@link #SERVER_IDLE_TIMEOUT} while idle. The number of 
+ * incoming connections is therefore limited to 
+ * {@link #MAX_INCOMING_CONNECTIONS}.
+ */
 public class SocketTransport extends AbstractTransport implements Closeable {
 
   private static final Logger LOG 
@@ -60,6 +67,37 @@ public class SocketTransport extends AbstractTransport implements Closeable {
   
   private static final int DEFAULT_TIMEOUT = 10000;
   
+  /**
+   * The max number of idle connections per destination.
+   */
+  private static final int MAX_IDLE_CONNECTIONS = 4;
+  
+  /**
+   * The time in milliseconds after which idle outgoing 
+   * connections are closed.
+   */
+  private static final long CLIENT_IDLE_TIMEOUT = 20000L;
+  
+  /**
+   * The time in milliseconds after which idle incoming connections
+   * are closed. It's longer than the {@link #CLIENT_IDLE_TIMEOUT} 
+   * to make it more likely that the client side closes the connection 
+   * and doesn't reuse a connection that is just being closed.
+   */
+  private static final int SERVER_IDLE_TIMEOUT = 30000;
+  
+  /**
+   * The max number of incoming connections. Connections beyond
+   * that are closed right away.
+   */
+  private static final int MAX_INCOMING_CONNECTIONS = 256;
+  
+  private final ConnectionPool connections = new ConnectionPool(
+      MAX_IDLE_CONNECTIONS, CLIENT_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+  
+  private final Set<SocketConnection> incoming = Collections.newSetFromMap(
+      new ConcurrentHashMap<SocketConnection, Boolean>());
+  
   private final MessageCodec codec;
   
   private final SocketAddress bindaddr;
@@ -132,12 +170,26 @@ public class SocketTransport extends AbstractTransport implements Closeable {
     if (future != null) {
       future.cancel(true);
     }
+    
+    connections.clear();
+    
+    for (SocketConnection connection : incoming) {
+      connection.close();
+    }
   }
   
   @Override
   public synchronized void close() {
     open = false;
     unbind();
+    connections.close();
+  }
+  
+  /**
+   * Returns the number of idle outgoing connections.
+   */
+  public int getIdleConnectionCount() {
+    return connections.size();
   }
   
   private void doServe() {
@@ -164,38 +216,85 @@ public class SocketTransport extends AbstractTransport implements Closeable {
     }
   }
   
-  private boolean receive(final Socket client) {
+  private boolean receive(final Socket client) throws IOException {
+    // Only the accept thread adds connections and it's therefore
+    // safe to check the size and add in two separate steps.
+    if (incoming.size() >= MAX_INCOMING_CONNECTIONS) {
+      if (LOG.isInfoEnabled()) {
+        LOG.info("Too many incoming connections: " + client);
+      }
+      return false;
+    }
+    
+    client.setSoTimeout(SERVER_IDLE_TIMEOUT);
+    
+    SocketAddress addr = client.getRemoteSocketAddress();
+    final SocketConnection connection 
+      = new SocketConnection(addr, client, codec);
+    
     Runnable task = new Runnable() {
       @Override
       public void run() {
-        Decoder decoder = null;
-        Encoder encoder = null;
-        
         try {
-          decoder = createDecoder(client);
-          
-          RequestMessage request = (RequestMessage)decoder.read();
-          ResponseMessage response = handleRequest(request);
-          
-          if (response != null) {
-            encoder = createEncoder(client);
-          
-            encoder.write(response);
-            encoder.flush();
-          }
-          
+          serve(connection);
         } catch (IOException err) {
           uncaughtException(client, err);
         } finally {
-          close(client, encoder, decoder);
+          incoming.remove(connection);
+          
+          IoUtils.close(connection);
+          IoUtils.close(client);
         }
       }
     };
     
-    EXECUTOR.execute(task);
+    incoming.add(connection);
+    boolean success = false;
+    try {
+      EXECUTOR.execute(task);
+      success = true;
+    } finally {
+      if (!success) {
+        incoming.remove(connection);
+        IoUtils.close(connection);
+      }
+    }
     return true;
   }
   
+  /**
+   * Reads and answers {@link RequestMessage}s until the other side
+   * closes the connection or the connection has been idle for too long.
+   * 
+   * <p>The connection stays open if there is no {@link ResponseMessage} 
+   * for a {@link RequestMessage}. Closing it would look like a stale 
+   * connection to the other side.
+   */
+  private void serve(SocketConnection connection) throws IOException {
+    for (int count = 0; ; count++) {
+      RequestMessage request = null;
+      try {
+        request = (RequestMessage)connection.read();
+      } catch (IOException err) {
+        if (count == 0) {
+          throw err;
+        }
+        
+        // The other side closed the connection after an
+        // earlier request or it has been idle for too long.
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Connection closed: " + connection, err);
+        }
+        return;
+      }
+      
+      ResponseMessage response = handleRequest(request);
+      if (response != null) {
+        connection.write(response);
+      }
+    }
+  }
+  
   @Override
   public void send(KUID contactId, final Message request, 
       final long timeout, final TimeUnit unit) throws IOException {
@@ -208,14 +307,9 @@ public class SocketTransport extends AbstractTransport implements Closeable {
     Runnable task = new Runnable() {
       @Override
       public void run() {
-        Socket client = null;
-        Encoder encoder = null;
-        Decoder decoder = null;
+        SocketConnection connection = null;
         
         try {
-          client = new Socket();
-          configure(client);
-          
           int timeoutInMillis = (int)unit.toMillis(timeout);
           if (timeoutInMillis < 0) {
             timeoutInMillis = DEFAULT_TIMEOUT;
@@ -225,30 +319,41 @@ public class SocketTransport extends AbstractTransport implements Closeable {
           SocketAddress endpoint 
             = NetworkUtils.getResolved(addr);
           
-          client.connect(endpoint, timeoutInMillis);
+          ResponseMessage response = null;
           
-          encoder = createEncoder(client);
-          encoder.write(request);
-          encoder.flush();
+          connection = connections.acquire(endpoint);
+          if (connection != null) {
+            try {
+              response = exchange(connection, request, timeoutInMillis);
+            } catch (StaleConnectionException err) {
+              // The request couldn't be written to the idle connection 
+              // and the other side hasn't seen it. Try again with a new one.
+              if (LOG.isDebugEnabled()) {
+                LOG.debug("Stale connection: " + connection, err);
+              }
+              
+              connection.close();
+              connection = null;
+            }
+          }
           
-          Idle idle = new Idle();
-          decoder = createDecoder(client, idle);
+          if (connection == null) {
+            connection = connect(endpoint, timeoutInMillis);
+            response = exchange(connection, request, timeoutInMillis);
+          }
           
-          ResponseMessage response = (ResponseMessage)decoder.read();
-          boolean hasContent = handleContent(response);
+          release(connection);
+          connection = null;
           
-          boolean success = handleResponse(response);
-          
-          if (success && hasContent) {
-            idle.await(10L, TimeUnit.SECONDS);
-          }
+          handleResponse(response);
           
         } catch (Exception err) {
-          uncaughtException(client, err);
+          uncaughtException(connection != null 
+              && connection.getSocket().isClosed(), err);
           handleException(request, err);
           
         } finally {
-          close(client, encoder, decoder);
+          IoUtils.close(connection);
         }
       }
     };
@@ -256,30 +361,73 @@ public class SocketTransport extends AbstractTransport implements Closeable {
     EXECUTOR.execute(task);
   }
   
-  private Encoder createEncoder(Socket client) throws IOException {
-    return codec.createEncoder(new BufferedOutputStream(
-          client.getOutputStream()));
-  }
-  
-  private Decoder createDecoder(Socket client) throws IOException {
-    return createDecoder(client, null);
+  /**
+   * Opens and returns a new {@link SocketConnection}.
+   */
+  private SocketConnection connect(SocketAddress endpoint, 
+      int timeoutInMillis) throws IOException {
+    
+    Socket client = new Socket();
+    boolean success = false;
+    try {
+      configure(client);
+      client.connect(endpoint, timeoutInMillis);
+      
+      SocketConnection connection 
+        = new SocketConnection(endpoint, client, codec);
+      success = true;
+      return connection;
+    } finally {
+      if (!success) {
+        IoUtils.close(client);
+      }
+    }
   }
   
-  private Decoder createDecoder(Socket client, final Idle idle) throws IOException {
-    SocketAddress addr = client.getRemoteSocketAddress();
+  /**
+   * Sends the given {@link Message} and returns the {@link ResponseMessage}.
+   * 
+   * <p>It throws a {@link StaleConnectionException} only if it failed 
+   * to write the {@link Message}. Anything else, including the other 
+   * side closing the connection without sending a response, is not 
+   * safe to retry because the {@link Message} may have been processed.
+   */
+  private static ResponseMessage exchange(SocketConnection connection, 
+      Message request, int timeoutInMillis) throws IOException {
     
-    InputStream in = new BufferedInputStream(
-        new SocketInputStream(client));
+    try {
+      connection.getSocket().setSoTimeout(timeoutInMillis);
+      connection.write(request);
+    } catch (IOException err) {
+      throw new StaleConnectionException(err);
+    }
+    
+    if (!connection.awaitMessage()) {
+      throw new EOFException("Connection closed: " + connection);
+    }
     
-    if (idle != null) {
-      in = new ProgressInputStream(in, idle);
+    ResponseMessage response = (ResponseMessage)connection.read();
+    if (!request.getMessageId().equals(response.getMessageId())) {
+      throw new IOException("Unexpected response: " + response);
     }
     
-    return codec.createDecoder(addr, in);
+    return response;
+  }
+  
+  /**
+   * Returns the given {@link SocketConnection} to the pool.
+   */
+  private void release(SocketConnection connection) {
+    if (isBound()) {
+      connections.release(connection);
+    } else {
+      connection.close();
+    }
   }
 
   private static void configure(Socket client) throws SocketException {
     client.setSoLinger(true, 0);
+    client.setTcpNoDelay(true);
   }
   
   private static void uncaughtException(ServerSocket socket, Throwable t) {
@@ -298,72 +446,16 @@ public class SocketTransport extends AbstractTransport implements Closeable {
     }
   }
   
-  private static boolean handleContent(Message message) {
-    Value value = message.getValue();
-    if (!(value instanceof NoValue)) {
-      return true;
-    }
-    return false;
-  }
-  
-  private static void close(Socket client, Closeable... closeable) {
-    IoUtils.closeAll(closeable);
-    IoUtils.close(client);
-  }
-  
-  /*private static InputStream getInputStream(final Socket client) throws IOException {
-    final Object lock = new Object();
-    synchronized (lock) {
-      IdleCallback callback = new IdleAdapter() {
-        @Override
-        public void idle(InputStream in, long time, TimeUnit unit) {
-          SocketTransport.close(client, in);
-        }
-
-        @Override
-        public void eof(InputStream in) {
-          SocketTransport.close(client, in);
-        }
-
-        @Override
-        public void closed(InputStream in) {
-          SocketTransport.close(client, in);
-        }
-      };
-      
-      return new IdleInputStream(new BufferedInputStream(
-          client.getInputStream()), 
-          callback, 5L, 5L, TimeUnit.SECONDS);
-    }
-  }*/
-  
-  private static class SocketInputStream extends FilterInputStream {
+  /**
+   * Thrown if a {@link RequestMessage} couldn't be written to a 
+   * reused {@link SocketConnection}.
+   */
+  private static class StaleConnectionException extends IOException {
     
-    private boolean open = true;
+    private static final long serialVersionUID = 2404569741427716232L;
     
-    public SocketInputStream(Socket socket) throws IOException {
-      super(socket.getInputStream());
-    }
-
-    @Override
-    public int read() throws IOException {
-      if (!open) {
-        throw new IOException();
-      }
-      return super.read();
-    }
-
-    @Override
-    public int read(byte[] b, int off, int len) throws IOException {
-      if (!open) {
-        throw new IOException();
-      }
-      return super.read(b, off, len);
-    }
-
-    @Override
-    public void close() throws IOException {
-      open = false;
+    public StaleConnectionException(IOException cause) {
+      super(cause);
     }
   }
 }
\ No newline at end of file
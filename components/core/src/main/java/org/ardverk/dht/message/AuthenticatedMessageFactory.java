@@ -0,0 +1,191 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.message;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.ardverk.dht.routing.Identity;
+import org.ardverk.dht.security.SecurityUtils;
+
+/**
+ * A {@link MessageFactory} that creates {@link MessageId}s which embed 
+ * a keyed MAC of the destination's {@link InetAddress} and the current
+ * time slot. This makes it possible to reject forged and misdirected
+ * {@link ResponseMessage}s in {@link #isFor(MessageId, SocketAddress)}
+ * without keeping any state.
+ * 
+ * <p>The {@link MessageId} consists of random bytes followed by the 
+ * truncated MAC. A {@link MessageId} is valid for at least one and at 
+ * most two time slots. The port number isn't part of the MAC because 
+ * NATs may rewrite it.
+ */
+@Singleton
+public class AuthenticatedMessageFactory extends DefaultMessageFactory {
+  
+  private static final String ALGORITHM = "HmacSHA256";
+  
+  /**
+   * The number of bytes of the MAC that are embedded in the {@link MessageId}.
+   */
+  private static final int MAC_LENGTH = 8;
+  
+  /**
+   * The min number of random bytes in a {@link MessageId}.
+   */
+  private static final int MIN_NONCE_LENGTH = 4;
+  
+  private static final long DEFAULT_TIME_SLOT = 60L * 1000L;
+  
+  private static final SecureRandom GENERATOR 
+    = SecurityUtils.createSecureRandom();
+  
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      return createMac(key);
+    }
+  };
+  
+  private final int length;
+  
+  private final long timeSlot;
+  
+  private final SecretKeySpec key;
+  
+  @Inject
+  public AuthenticatedMessageFactory(Identity localhost) {
+    this(localhost.getId().length(), localhost, 
+        DEFAULT_TIME_SLOT, TimeUnit.MILLISECONDS);
+  }
+  
+  /**
+   * Creates a {@link AuthenticatedMessageFactory}. The time slot must be 
+   * longer than the max time we're waiting for a {@link ResponseMessage}.
+   */
+  public AuthenticatedMessageFactory(int length, Identity localhost, 
+      long timeSlot, TimeUnit unit) {
+    super(length, localhost);
+    
+    if (length < MAC_LENGTH + MIN_NONCE_LENGTH) {
+      throw new IllegalArgumentException("length=" + length);
+    }
+    
+    if (timeSlot <= 0L) {
+      throw new IllegalArgumentException("timeSlot=" + timeSlot);
+    }
+    
+    this.length = length;
+    this.timeSlot = unit.toMillis(timeSlot);
+    
+    byte[] secret = new byte[32];
+    GENERATOR.nextBytes(secret);
+    this.key = new SecretKeySpec(secret, ALGORITHM);
+  }
+  
+  @Override
+  public MessageId createMessageId(SocketAddress dst) {
+    byte[] messageId = new byte[length];
+    
+    int nonceLength = length - MAC_LENGTH;
+    GENERATOR.nextBytes(messageId);
+    
+    byte[] mac = mac(messageId, nonceLength, dst, currentTimeSlot());
+    System.arraycopy(mac, 0, messageId, nonceLength, MAC_LENGTH);
+    
+    return MessageId.create(messageId);
+  }
+  
+  @Override
+  public boolean isFor(MessageId messageId, SocketAddress src) {
+    if (messageId.length() != length) {
+      return false;
+    }
+    
+    byte[] data = messageId.getBytes();
+    int nonceLength = length - MAC_LENGTH;
+    
+    long slot = currentTimeSlot();
+    for (int i = 0; i < 2; i++) {
+      byte[] mac = mac(data, nonceLength, src, slot - i);
+      if (isEqual(mac, data, nonceLength)) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  private long currentTimeSlot() {
+    return System.currentTimeMillis() / timeSlot;
+  }
+  
+  /**
+   * Computes and returns the MAC of the nonce, the {@link InetAddress}
+   * and the time slot.
+   */
+  private byte[] mac(byte[] nonce, int length, 
+      SocketAddress address, long slot) {
+    
+    Mac mac = macs.get();
+    mac.update(nonce, 0, length);
+    
+    if (address instanceof InetSocketAddress) {
+      InetAddress addr = ((InetSocketAddress)address).getAddress();
+      if (addr != null) {
+        mac.update(addr.getAddress());
+      }
+    }
+    
+    for (int i = Long.SIZE - Byte.SIZE; i >= 0; i -= Byte.SIZE) {
+      mac.update((byte)(slot >>> i));
+    }
+    
+    return mac.doFinal();
+  }
+  
+  /**
+   * Compares the first {@link #MAC_LENGTH} bytes of the MAC with the 
+   * MAC that is embedded in the {@link MessageId} in constant time.
+   */
+  private static boolean isEqual(byte[] mac, byte[] messageId, int offset) {
+    int diff = 0;
+    for (int i = 0; i < MAC_LENGTH; i++) {
+      diff |= mac[i] ^ messageId[offset + i];
+    }
+    return diff == 0;
+  }
+  
+  private static Mac createMac(SecretKeySpec key) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(key);
+      return mac;
+    } catch (GeneralSecurityException err) {
+      throw new IllegalStateException("GeneralSecurityException", err);
+    }
+  }
+}
\ No newline at end of file
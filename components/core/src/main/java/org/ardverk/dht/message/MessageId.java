@@ -84,6 +84,19 @@ public final class MessageId extends ByteArray<MessageId> implements Cloneable {
     return otherId != null && length() == otherId.length();
   }
   
+  /**
+   * Returns a 64-bit hash of the {@link MessageId}'s value.
+   */
+  public long longHashCode() {
+    // FNV-1a
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length; i++) {
+      hash ^= value[i] & 0xFFL;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+  
   @Override
   public MessageId clone() {
     return this;
@@ -31,7 +31,7 @@ public abstract class AbstractBucket implements Bucket {
   
   private final int depth;
   
-  private TimeStamp timeStamp = creationTime;
+  private volatile TimeStamp timeStamp = creationTime;
   
   public AbstractBucket(KUID bucketId, int depth) {
     this.bucketId = bucketId;
@@ -30,6 +30,12 @@ abstract class AbstractContact implements Contact {
   
   private volatile long rtt = -1L;
   
+  /**
+   * The {@link RoundTripTimeEstimator} of the {@link ContactEntry} 
+   * this {@link Contact} belongs to (if any).
+   */
+  private transient volatile RoundTripTimeEstimator estimator = null;
+  
   public AbstractContact(Identifier identifier) {
     this(identifier, -1L, TimeUnit.MILLISECONDS);
   }
@@ -84,6 +90,18 @@ abstract class AbstractContact implements Contact {
     this.rtt = unit.toMillis(rtt);
   }
   
+  /**
+   * Returns the {@link RoundTripTimeEstimator} or {@code null} if 
+   * the {@link Contact} isn't in the {@link RouteTable}.
+   */
+  RoundTripTimeEstimator getRoundTripTimeEstimator() {
+    return estimator;
+  }
+  
+  void setRoundTripTimeEstimator(RoundTripTimeEstimator estimator) {
+    this.estimator = estimator;
+  }
+  
   @Override
   public long getTimeSinceLastContact(TimeUnit unit) {
     return getTimeStamp().getAge(unit);
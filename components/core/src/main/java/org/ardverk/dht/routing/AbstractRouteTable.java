@@ -16,27 +16,180 @@
 
 package org.ardverk.dht.routing;
 
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.ardverk.concurrent.AsyncFuture;
+import org.ardverk.concurrent.AsyncFutureListener;
 import org.ardverk.concurrent.EventUtils;
+import org.ardverk.concurrent.FutureUtils;
 import org.ardverk.dht.KUID;
 import org.ardverk.dht.concurrent.DHTFuture;
 import org.ardverk.dht.concurrent.DHTValueFuture;
 import org.ardverk.dht.config.PingConfig;
 import org.ardverk.dht.entity.PingEntity;
+import org.ardverk.dht.lang.Identifier;
+import org.ardverk.dht.utils.ContactKey;
 import org.ardverk.lang.Precoditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-
+/**
+ * An abstract implementation of {@link RouteTable} that is guarded by 
+ * a {@link ReadWriteLock}. It implements the Kademlia logic to add, 
+ * update, ping and remove {@link Contact}s on top of the 
+ * {@link MutableBucket}s of its subclasses.
+ * 
+ * <p>{@link RouteTableEvent}s that are fired while holding the write 
+ * lock are delivered after it has been released.
+ */
 public abstract class AbstractRouteTable implements RouteTable {
   
+  private static final Logger LOG 
+    = LoggerFactory.getLogger(AbstractRouteTable.class);
+  
+  /**
+   * The default number of undelivered {@link RouteTableEvent}s 
+   * that are being buffered.
+   */
+  public static final int DEFAULT_EVENT_BUFFER_SIZE = 1024;
+  
   private final AtomicReference<ContactPinger> pingerRef 
     = new AtomicReference<ContactPinger>();
   
   private final List<RouteTableListener> listeners 
     = new CopyOnWriteArrayList<RouteTableListener>();
   
+  private final List<RouteTableBatchListener> batchListeners 
+    = new CopyOnWriteArrayList<RouteTableBatchListener>();
+  
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  
+  private final Lock readLock = lock.readLock();
+  
+  private final Lock writeLock = new WriteLock();
+  
+  private final ReadWriteLock readWriteLock = new ReadWriteLock() {
+    @Override
+    public Lock readLock() {
+      return readLock;
+    }
+    
+    @Override
+    public Lock writeLock() {
+      return writeLock;
+    }
+  };
+  
+  /**
+   * The {@link RouteTableEvent}s that were fired while holding the 
+   * write lock. They're guarded by the write lock.
+   */
+  private final List<RouteTableEvent> deferred = new ArrayList<>();
+  
+  private final Map<ContactKey, DHTFuture<PingEntity>> pingFutures = new HashMap<>();
+  
+  private int consecutiveErrors = 0;
+  
+  private final Object eventLock = new Object();
+  
+  /**
+   * A ring buffer of {@link RouteTableEvent}s that haven't been 
+   * delivered yet. It never grows. The oldest {@link RouteTableEvent}
+   * is discarded if it's full.
+   */
+  private final RouteTableEvent[] buffer;
+  
+  /**
+   * The buffer indices of the pending {@link RouteTableEvent.Type#CONTACT}
+   * and {@link RouteTableEvent.Type#CONTACT_CHANGED} events by 
+   * {@link Contact} ID. Newer events of the same type and {@link Contact}
+   * replace them in place.
+   */
+  private final Map<KUID, Integer> contactEvents = new HashMap<KUID, Integer>();
+  
+  private final Map<KUID, Integer> changedEvents = new HashMap<KUID, Integer>();
+  
+  private int head = 0;
+  
+  private int size = 0;
+  
+  private int dropped = 0;
+  
+  private boolean scheduled = false;
+  
+  private final Runnable deliver = new Runnable() {
+    @Override
+    public void run() {
+      deliverEvents();
+    }
+  };
+  
+  public AbstractRouteTable() {
+    this(DEFAULT_EVENT_BUFFER_SIZE);
+  }
+  
+  /**
+   * Creates an {@link AbstractRouteTable} that buffers up to the 
+   * given number of undelivered {@link RouteTableEvent}s.
+   */
+  public AbstractRouteTable(int eventBufferSize) {
+    if (eventBufferSize <= 0) {
+      throw new IllegalArgumentException("eventBufferSize=" + eventBufferSize);
+    }
+    
+    this.buffer = new RouteTableEvent[eventBufferSize];
+  }
+  
+  /**
+   * Returns the {@link RouteTable}'s {@link ReadWriteLock}.
+   * 
+   * <p>NOTE: Hold the read lock to access the {@link ContactEntry}s 
+   * and {@link Bucket}s returned by the {@link RouteTable}.
+   */
+  public ReadWriteLock getLock() {
+    return readWriteLock;
+  }
+  
+  /**
+   * Returns the {@link RouteTable}'s {@link RouteTableConfig}.
+   */
+  public abstract RouteTableConfig getRouteTableConfig();
+  
+  /**
+   * Returns the {@link MutableBucket} for the given {@link KUID}. It's
+   * called while holding the write lock.
+   */
+  protected abstract MutableBucket selectBucket(KUID contactId);
+  
+  /**
+   * Returns {@code true} if the given {@link MutableBucket} can be split.
+   */
+  protected boolean canSplit(MutableBucket bucket) {
+    return false;
+  }
+  
+  /**
+   * Splits the given {@link MutableBucket} and returns {@code true} on
+   * success. It's called while holding the write lock.
+   */
+  protected boolean split(MutableBucket bucket) {
+    return false;
+  }
+  
   @Override
   public void bind(ContactPinger pinger) {
     if (!pingerRef.compareAndSet(null, pinger)) {
@@ -53,7 +206,7 @@ public abstract class AbstractRouteTable implements RouteTable {
   public boolean isBound() {
     return pingerRef.get() != null;
   }
-
+  
   protected DHTFuture<PingEntity> ping(Contact contact, 
       PingConfig config) {
     ContactPinger pinger = pingerRef.get();
@@ -73,136 +226,889 @@ public abstract class AbstractRouteTable implements RouteTable {
     return new DHTValueFuture<PingEntity>(exception);
   }
   
-  @Override
-  public Contact[] select(KUID contactId) {
-    return select(contactId, getK());
+  /**
+   * Returns {@code true} if the {@link Identifier} is equal to localhost.
+   */
+  protected boolean isLocalhost(Identifier identifier) {
+    return getIdentity().getId().equals(identifier.getId());
   }
   
-  @Override
-  public void addRouteTableListener(RouteTableListener l) {
-    listeners.add(Precoditions.notNull(l, "l"));
+  /**
+   * Compares the localhost's {@link KUID} with the given {@link Contact}'s
+   * {@link KUID} and throws an {@link IllegalArgumentException} if the two
+   * have different lengths.
+   */
+  private void checkKeyLength(Contact other) throws IllegalArgumentException {
+    KUID contactId = getIdentity().getId();
+    KUID otherId = other.getId();
+    if (contactId.lengthInBits() 
+        != otherId.lengthInBits()) {
+      throw new IllegalArgumentException(
+          "Bits: " + contactId.lengthInBits() 
+          + " vs. " + otherId.lengthInBits());
+    }
   }
-
+  
   @Override
-  public void removeRouteTableListener(RouteTableListener l) {
-    listeners.remove(Precoditions.notNull(l, "l"));
+  public void add(Contact contact) {
+    if (!isAddable(contact)) {
+      return;
+    }
+    
+    StateEntity entity = null;
+    
+    writeLock.lock();
+    try {
+      entity = add1(contact);
+    } finally {
+      writeLock.unlock();
+    }
+    
+    fireContact(entity.bucket, entity.existing, contact);
   }
   
+  /**
+   * Adds the given {@link Contact}s under a single write lock. Only the
+   * first of several {@link Contact}s with the same {@link KUID} is added.
+   */
   @Override
-  public RouteTableListener[] getRouteTableListeners() {
-    return listeners.toArray(new RouteTableListener[0]);
+  public void addAll(Contact[] contacts) {
+    Set<KUID> seen = new HashSet<>(contacts.length);
+    
+    List<Contact> addable = new ArrayList<>(contacts.length);
+    for (Contact contact : contacts) {
+      if (isAddable(contact) && seen.add(contact.getId())) {
+        addable.add(contact);
+      }
+    }
+    
+    if (addable.isEmpty()) {
+      return;
+    }
+    
+    int size = addable.size();
+    Bucket[] selected = new Bucket[size];
+    Contact[] existing = new Contact[size];
+    Contact[] added = addable.toArray(new Contact[size]);
+    
+    writeLock.lock();
+    try {
+      for (int i = 0; i < size; i++) {
+        StateEntity entity = add1(added[i]);
+        selected[i] = entity.bucket;
+        existing[i] = entity.existing;
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    
+    fireContacts(selected, existing, added);
   }
-
-  protected void fireContact(final Bucket bucket, 
-      final Contact existing, final Contact contact) {
+  
+  /**
+   * Returns {@code true} if the given {@link Contact} may be added 
+   * to the {@link RouteTable} and throws an exception if it's invalid.
+   */
+  protected boolean isAddable(Contact contact) {
+    if (contact == null) {
+      throw new NullPointerException("contact");
+    }
     
-    if (!listeners.isEmpty()) {
-      Runnable event = new Runnable() {
-        @Override
-        public void run() {
-          for (RouteTableListener l : listeners) {
-            l.handleContact(bucket, existing, contact);
-          }
+    // Make sure the KUIDs of all Contacts have the
+    // same length in bits as the localhost Contact!
+    checkKeyLength(contact);
+    
+    // Nobody and nothing can add a Contact that has 
+    // the exact same KUID as the localhost Contact!
+    if (isLocalhost(contact)) {
+      return false;
+    }
+    
+    // Nobody and nothing can add a Contact that is 
+    // an instance of Localhost.
+    if (contact instanceof Identity) {
+      throw new IllegalArgumentException("contact=" + contact);
+    }
+    
+    // Don't add invisible contacts to the RouteTable.
+    return !contact.isHidden();
+  }
+  
+  private StateEntity add1(Contact contact) {
+    // Reset the consecutive errors counter every time
+    // we receive a "message" from an actual Contact.
+    if (contact.isActive()) {
+      consecutiveErrors = 0;
+    }
+    
+    return add0(contact);
+  }
+  
+  /**
+   * Adds the given {@link Contact}. It must be called while holding 
+   * the write lock.
+   */
+  protected StateEntity add0(Contact contact) {
+    KUID contactId = contact.getId();
+    MutableBucket bucket = selectBucket(contactId);
+    ContactEntry entry = bucket.get(contactId);
+    
+    Contact existing = null;
+    if (entry != null) {
+      existing = entry.getContact();
+    }
+    
+    if (contact.isAuthoritative()) {
+      authoritative(bucket, entry, contact);
+    } else {
+    
+      if (entry != null) {
+        updateContact(bucket, entry, contact);
+      } else if (!bucket.isActiveFull()) {
+        if (isOkayToAdd(bucket, contact)) {
+          addActive(bucket, contact);
+        } else if (!canSplit(bucket)) {
+          addCache(bucket, contact);
         }
-      };
+      } else if (split(bucket)) {
+        return add0(contact);
+      } else {
+        replaceCache(bucket, contact);
+      }
+    }
+    
+    return new StateEntity(bucket, existing);
+  }
+  
+  private void authoritative(MutableBucket bucket, 
+      ContactEntry entry, Contact contact) {
+    
+    assert (contact.isAuthoritative());
+    
+    if (entry != null) {
+      ContactEntry removed = bucket.remove(entry);
+      assert (removed == entry);
+    }
+    
+    if (bucket.isActiveFull()) {
+      ContactEntry lrs = bucket.getLeastRecentlySeenActiveContact();
+      ContactEntry removed = bucket.removeActive(lrs);
+      assert (removed == lrs);
       
-      EventUtils.fireEvent(event);
+      if (!lrs.isDead()) {
+        bucket.addCache(lrs);
+      }
     }
+    
+    bucket.addActive(new ContactEntry(getRouteTableConfig(), contact));
   }
   
-  protected void fireBucketSplit(final Bucket bucket, 
-      final Bucket left, final Bucket right) {
+  private void updateContact(MutableBucket bucket, 
+      ContactEntry entry, Contact contact) {
     
-    if (!listeners.isEmpty()) {
-      Runnable event = new Runnable() {
+    // Make sure neither is the localhost!
+    assert (!isLocalhost(entry) && !isLocalhost(contact));
+    
+    // Make sure non-ACTIVE contacts can never 
+    // replace an ACTIVE contact!
+    if (entry.isAlive() && !contact.isActive()) {
+      return;
+    }
+    
+    // Everything is fine if they've got the same address.
+    if (entry.isSameRemoteAddress(contact)) {
+      update(bucket, entry, contact);
+    } else {
+      checkContact(bucket, entry, contact);
+    }
+  }
+  
+  private void checkContact(MutableBucket bucket, 
+      ContactEntry entry, final Contact contact) {
+    
+    if (getRouteTableConfig().isCheckIdentity()) {
+      
+      final Contact previous = entry.getContact();
+      
+      DHTFuture<PingEntity> future = ping(entry);
+      future.addAsyncFutureListener(new AsyncFutureListener<PingEntity>() {
         @Override
-        public void run() {
-          for (RouteTableListener l : listeners) {
-            l.handleBucketSplit(bucket, left, right);
+        public void operationComplete(AsyncFuture<PingEntity> future) {
+          // Do nothing if there was *NO* error (in other words if
+          // we received a PONG). We're simply dropping the new 
+          // Contact's information!
+          if (!future.isCompletedAbnormally()) {
+            try {
+              Contact contact = future.get().getContact();
+              fireContactCollision(previous, contact);
+            } catch (InterruptedException e) {
+              LOG.error("InterruptedException", e);
+            } catch (ExecutionException e) {
+              LOG.error("ExecutionException", e);
+            }
+            return;
+          }
+          
+          // Cancellations are OK too
+          if (future.isCancelled()) {
+            return;
+          }
+          
+          KUID contactId = contact.getId();
+          
+          writeLock.lock();
+          try {
+            MutableBucket bucket = selectBucket(contactId);
+            ContactEntry current = bucket.get(contactId);
+            
+            // Make sure the pre-condition still holds and we're
+            // not replacing some other Contact.
+            if (current != null && current.getContact() == previous) {
+              update(bucket, current, contact);
+              
+              if (bucket.containsCached(contactId)) {
+                pingLeastRecentlySeenContact(bucket);
+              }
+              
+            } else {
+              add(contact);
+            }
+          } finally {
+            writeLock.unlock();
           }
         }
-      };
+      });
+    } else {
+      replace(bucket, entry, contact);
       
-      EventUtils.fireEvent(event);
+      if (bucket.containsCached(contact.getId())) {
+        pingLeastRecentlySeenContact(bucket);
+      }
     }
   }
   
-  protected void fireContactAdded(final Bucket bucket, final Contact contact) {
-    if (!listeners.isEmpty()) {
-      Runnable event = new Runnable() {
-        @Override
-        public void run() {
-          for (RouteTableListener l : listeners) {
-            l.handleContactAdded(bucket, contact);
-          }
-        }
-      };
+  /**
+   * Returns {@code true} if the given {@link Contact} doesn't exceed the
+   * max number of {@link Contact}s from the same network in the 
+   * {@link MutableBucket}'s active list.
+   */
+  protected boolean isOkayToAdd(MutableBucket bucket, Contact contact) {
+    int max = getRouteTableConfig().getMaxContactsFromSameNetwork();
+    return max < 0 || bucket.getContactCount(contact.getRemoteAddress()) < max;
+  }
+  
+  private void addActive(MutableBucket bucket, Contact contact) {
+    ContactEntry entry = new ContactEntry(getRouteTableConfig(), contact);
+    boolean success = bucket.addActive(entry);
+    
+    if (success) {
+      fireContactAdded(bucket, contact);
+    }
+  }
+  
+  private ContactEntry addCache(MutableBucket bucket, Contact contact) {
+    ContactEntry entry = new ContactEntry(getRouteTableConfig(), contact);
+    ContactEntry other = bucket.addCache(entry);
+    
+    if (other != null) {
+      if (entry == other) {
+        fireContactAdded(bucket, contact);
+      } else {
+        fireContactReplaced(bucket, other.getContact(), contact);
+      }
+    }
+    
+    return other;
+  }
+  
+  private void replaceCache(MutableBucket bucket, Contact contact) {
+    if (contact.isActive() && isOkayToAdd(bucket, contact)) {
+      ContactEntry lrs = bucket.getLeastRecentlySeenActiveContact();
       
-      EventUtils.fireEvent(event);
+      if (!isLocalhost(lrs) && (lrs.isUnknown() || lrs.isDead())) {
+        
+        ContactEntry entry = bucket.removeActive(lrs);
+        assert (entry == lrs);
+        
+        bucket.addActive(new ContactEntry(getRouteTableConfig(), contact));
+        
+        fireContactReplaced(bucket, lrs.getContact(), contact);
+        return;
+      }
     }
+    
+    addCache(bucket, contact);
+    pingLeastRecentlySeenContact(bucket);
   }
   
-  protected void fireContactReplaced(final Bucket bucket, 
-      final Contact existing, final Contact contact) {
+  private void update(MutableBucket bucket, 
+      ContactEntry entry, Contact contact) {
+    Contact previous = entry.update(contact);
+    bucket.touch();
     
-    if (!listeners.isEmpty()) {
-      Runnable event = new Runnable() {
+    fireContactChanged(bucket, previous, entry.getContact());
+  }
+  
+  private void replace(MutableBucket bucket, 
+      ContactEntry entry, Contact contact) {
+    Contact previous = entry.update(contact);
+    bucket.touch();
+    
+    fireContactChanged(bucket, previous, contact);
+  }
+  
+  private void pingLeastRecentlySeenContact(MutableBucket bucket) {
+    ContactEntry lrs = bucket.getLeastRecentlySeenActiveContact();
+    if (!isLocalhost(lrs)) {
+      ping(lrs);
+    }
+  }
+  
+  private DHTFuture<PingEntity> ping(ContactEntry entry) {
+    Contact contact = entry.getContact();
+    
+    // Make sure we're not pinging the same host in parallel.
+    // It is an unlikely but possible case...
+    final ContactKey pingKey = new ContactKey(contact);
+    DHTFuture<PingEntity> future 
+      = pingFutures.get(pingKey);
+    
+    if (future == null) {
+      PingConfig pingConfig = getRouteTableConfig().getPingConfig();
+      future = ping(contact, pingConfig);
+      
+      future.addAsyncFutureListener(new AsyncFutureListener<PingEntity>() {
         @Override
-        public void run() {
-          for (RouteTableListener l : listeners) {
-            l.handleContactReplaced(bucket, existing, contact);
+        public void operationComplete(AsyncFuture<PingEntity> future) {
+          writeLock.lock();
+          try {
+            pingFutures.remove(pingKey);
+          } finally {
+            writeLock.unlock();
           }
         }
-      };
-      
-      EventUtils.fireEvent(event);
+      });
+      pingFutures.put(pingKey, future);
     }
+    
+    return future;
   }
   
-  protected void fireContactChanged(final Bucket bucket, 
-      final Contact existing, final Contact contact) {
+  /**
+   * Cancels the pending ping of the given {@link ContactEntry} (if any).
+   */
+  private void cancelPing(ContactEntry entry) {
+    DHTFuture<PingEntity> future 
+      = pingFutures.remove(new ContactKey(entry.getContact()));
+    if (future != null) {
+      future.cancel(true);
+    }
+  }
+  
+  /**
+   * Cancels all pending pings and resets the consecutive errors
+   * counter. It must be called while holding the write lock.
+   */
+  protected void reset() {
+    FutureUtils.cancelAll(pingFutures.values(), true);
+    pingFutures.clear();
     
-    if (!listeners.isEmpty()) {
-      Runnable event = new Runnable() {
-        @Override
-        public void run() {
-          for (RouteTableListener l : listeners) {
-            l.handleContactChanged(bucket, existing, contact);
+    consecutiveErrors = 0;
+  }
+  
+  @Override
+  public void handleIoError(KUID contactId, SocketAddress address) {
+    // There is nothing we can do if we don't have the KUID.
+    // This is possible for PINGs that failed (that means we
+    // knew only the SocketAddress of the remote host).
+    if (contactId == null) {
+      return;
+    }
+    
+    if (isLocalhost(contactId)) {
+      return;
+    }
+    
+    writeLock.lock();
+    try {
+      handleIoError0(contactId);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+  
+  private void handleIoError0(KUID contactId) {
+    MutableBucket bucket = selectBucket(contactId);
+    ContactEntry entry = bucket.get(contactId);
+    
+    // Huh? There is no such contact for the given KUID?
+    if (entry == null) {
+      return;
+    }
+    
+    // Make sure we're not going kill the entire RouteTable 
+    // if the Network goes down!
+    if (++consecutiveErrors >= getRouteTableConfig().getMaxConsecutiveErrors()) {
+      return;
+    }
+    
+    boolean dead = entry.error();
+    if (dead) {
+      
+      if (bucket.containsActive(contactId)) {
+        
+        // Remove or replace Contacts in the *ACTIVE* RouteTable
+        // only if there is something in the replacement cache or
+        // if the Contact has just too many errors and there is
+        // simply no point in keeping it in the RouteTable.
+        
+        if (!bucket.isCacheEmpty()) {
+          ContactEntry mrs = null;
+          while ((mrs = bucket.getReplacementCachedContact()) != null) {
+            ContactEntry removed = bucket.removeCache(mrs);
+            assert (removed == mrs);
+            
+            if (isOkayToAdd(bucket, mrs.getContact())) {
+              removed = bucket.removeActive(entry);
+              assert (removed == entry 
+                  && !bucket.isActiveFull());
+              
+              bucket.addActive(mrs);
+              fireContactReplaced(bucket, 
+                  entry.getContact(), mrs.getContact());
+              break;
+            }
           }
+        } else if (entry.getErrorCount() 
+            >= getRouteTableConfig().getTooManyErrorsCount()) {
+          ContactEntry removed = bucket.removeActive(entry);
+          assert(removed == entry && !bucket.isActiveFull());
+          
+          fireContactRemoved(bucket, entry.getContact());
         }
-      };
+        
+      } else {
+        
+        // This looks strange as Contacts are never selected from the 
+        // RouteTable but it's however possible that FIND_NODE responses 
+        // return Contacts that happen to be in our RouteTable's cache 
+        // and if that's the case we want to remove them ASAP.
+        
+        ContactEntry removed = bucket.removeCache(contactId);
+        assert (removed == entry);
+      }
+    }
+  }
+  
+  /**
+   * Removes all DEAD {@link Contact}s from the given {@link Bucket}'s
+   * active list and fills the free slots with the most recently seen
+   * {@link Contact}s from its cache. It must be called while holding 
+   * the write lock.
+   */
+  protected void prune(MutableBucket bucket) {
+    for (ContactEntry entry : bucket.getActive()) {
+      if (entry.isDead() && !isLocalhost(entry)) {
+        ContactEntry removed = bucket.removeActive(entry);
+        assert (removed == entry);
+        
+        cancelPing(entry);
+        fireContactRemoved(bucket, entry.getContact());
+      }
+    }
+    
+    ContactEntry[] cached = LongevityUtils.byTimeStamp(bucket.getCached());
+    for (ContactEntry entry : cached) {
+      if (bucket.isActiveFull()) {
+        break;
+      }
       
-      EventUtils.fireEvent(event);
+      if (!entry.isDead() && isOkayToAdd(bucket, entry.getContact())) {
+        ContactEntry removed = bucket.removeCache(entry);
+        assert (removed == entry);
+        
+        bucket.addActive(entry);
+        fireContactAdded(bucket, entry.getContact());
+      }
     }
   }
   
-  protected void fireContactCollision(final Contact existing, final Contact contact) {
-    if (!listeners.isEmpty()) {
-      Runnable event = new Runnable() {
-        @Override
-        public void run() {
-          for (RouteTableListener l : listeners) {
-            l.handleContactCollision(existing, contact);
-          }
+  @Override
+  public Contact[] select(KUID contactId) {
+    return select(contactId, getK());
+  }
+  
+  @Override
+  public void addRouteTableListener(RouteTableListener l) {
+    listeners.add(Precoditions.notNull(l, "l"));
+  }
+  
+  @Override
+  public void removeRouteTableListener(RouteTableListener l) {
+    listeners.remove(Precoditions.notNull(l, "l"));
+  }
+  
+  @Override
+  public RouteTableListener[] getRouteTableListeners() {
+    return listeners.toArray(new RouteTableListener[0]);
+  }
+  
+  @Override
+  public void addRouteTableBatchListener(RouteTableBatchListener l) {
+    batchListeners.add(Precoditions.notNull(l, "l"));
+  }
+  
+  @Override
+  public void removeRouteTableBatchListener(RouteTableBatchListener l) {
+    batchListeners.remove(Precoditions.notNull(l, "l"));
+  }
+  
+  /**
+   * Fires a single {@link RouteTableEvent.Type#CONTACTS} event for all 
+   * the given {@link Contact}s. The arrays are parallel and must have 
+   * the same length.
+   */
+  protected void fireContacts(Bucket[] buckets, 
+      Contact[] existing, Contact[] contacts) {
+    
+    if (hasListeners() && 0 < contacts.length) {
+      fireEvent(RouteTableEvent.contacts(buckets, existing, contacts));
+    }
+  }
+  
+  protected void fireContact(Bucket bucket, 
+      Contact existing, Contact contact) {
+    
+    if (hasListeners()) {
+      fireEvent(RouteTableEvent.create(RouteTableEvent.Type.CONTACT, 
+          bucket, existing, contact));
+    }
+  }
+  
+  protected void fireBucketSplit(Bucket bucket, Bucket left, Bucket right) {
+    if (hasListeners()) {
+      fireEvent(RouteTableEvent.split(bucket, left, right));
+    }
+  }
+  
+  protected void fireContactAdded(Bucket bucket, Contact contact) {
+    if (hasListeners()) {
+      fireEvent(RouteTableEvent.create(RouteTableEvent.Type.CONTACT_ADDED, 
+          bucket, null, contact));
+    }
+  }
+  
+  protected void fireContactReplaced(Bucket bucket, 
+      Contact existing, Contact contact) {
+    
+    if (hasListeners()) {
+      fireEvent(RouteTableEvent.create(RouteTableEvent.Type.CONTACT_REPLACED, 
+          bucket, existing, contact));
+    }
+  }
+  
+  protected void fireContactChanged(Bucket bucket, 
+      Contact existing, Contact contact) {
+    
+    if (hasListeners()) {
+      fireEvent(RouteTableEvent.create(RouteTableEvent.Type.CONTACT_CHANGED, 
+          bucket, existing, contact));
+    }
+  }
+  
+  protected void fireContactCollision(Contact existing, Contact contact) {
+    if (hasListeners()) {
+      fireEvent(RouteTableEvent.create(RouteTableEvent.Type.CONTACT_COLLISION, 
+          null, existing, contact));
+    }
+  }
+  
+  protected void fireContactRemoved(Bucket bucket, Contact contact) {
+    if (hasListeners()) {
+      fireEvent(RouteTableEvent.create(RouteTableEvent.Type.CONTACT_REMOVED, 
+          bucket, null, contact));
+    }
+  }
+  
+  private boolean hasListeners() {
+    return !listeners.isEmpty() || !batchListeners.isEmpty();
+  }
+  
+  /**
+   * Defers the given {@link RouteTableEvent} until the write lock has 
+   * been released if the current {@link Thread} is holding it.
+   */
+  private void fireEvent(RouteTableEvent event) {
+    if (lock.isWriteLockedByCurrentThread()) {
+      deferred.add(event);
+    } else {
+      enqueue(event);
+    }
+  }
+  
+  /**
+   * Adds the given {@link RouteTableEvent} to the ring buffer and 
+   * schedules its delivery unless a delivery is already pending. 
+   * 
+   * <p>{@link RouteTableEvent.Type#CONTACT} and 
+   * {@link RouteTableEvent.Type#CONTACT_CHANGED} events are coalesced 
+   * per {@link Contact} while they're pending. If the buffer is full 
+   * then the oldest {@link RouteTableEvent} is discarded and the 
+   * {@link RouteTableBatchListener}s are told about it.
+   */
+  private void enqueue(RouteTableEvent event) {
+    boolean schedule = false;
+    
+    synchronized (eventLock) {
+      Map<KUID, Integer> pending = getPendingEvents(event.getType());
+      
+      KUID contactId = null;
+      if (pending != null) {
+        contactId = event.getContact().getId();
+        
+        Integer index = pending.get(contactId);
+        if (index != null) {
+          RouteTableEvent last = buffer[index];
+          buffer[index] = RouteTableEvent.create(event.getType(), 
+              event.getBucket(), last.getExisting(), event.getContact());
+          return;
         }
-      };
+      }
+      
+      if (size == buffer.length) {
+        dropOldest();
+      }
+      
+      int index = (head + size) % buffer.length;
+      buffer[index] = event;
+      ++size;
+      
+      if (pending != null) {
+        pending.put(contactId, index);
+      }
       
-      EventUtils.fireEvent(event);
+      if (!scheduled) {
+        scheduled = true;
+        schedule = true;
+      }
+    }
+    
+    if (schedule) {
+      EventUtils.fireEvent(deliver);
+    }
+  }
+  
+  /**
+   * Returns the index of the pending {@link RouteTableEvent}s of the 
+   * given {@link RouteTableEvent.Type} or {@code null} if it's a
+   * {@link RouteTableEvent.Type} that is never coalesced.
+   */
+  private Map<KUID, Integer> getPendingEvents(RouteTableEvent.Type type) {
+    switch (type) {
+      case CONTACT:
+        return contactEvents;
+      case CONTACT_CHANGED:
+        return changedEvents;
+      default:
+        return null;
     }
   }
   
-  protected void fireContactRemoved(final Bucket bucket, final Contact contact) {
+  /**
+   * Discards the oldest {@link RouteTableEvent}.
+   */
+  private void dropOldest() {
+    RouteTableEvent event = buffer[head];
+    
+    Map<KUID, Integer> pending = getPendingEvents(event.getType());
+    if (pending != null) {
+      pending.remove(event.getContact().getId());
+    }
+    
+    buffer[head] = null;
+    head = (head + 1) % buffer.length;
+    --size;
+    ++dropped;
+  }
+  
+  /**
+   * Delivers all buffered {@link RouteTableEvent}s.
+   */
+  private void deliverEvents() {
+    RouteTableEvent[] events = null;
+    int dropped = 0;
+    
+    synchronized (eventLock) {
+      int length = buffer.length;
+      
+      events = new RouteTableEvent[size];
+      for (int i = 0; i < events.length; i++) {
+        int index = (head + i) % length;
+        events[i] = buffer[index];
+        buffer[index] = null;
+      }
+      
+      dropped = this.dropped;
+      
+      contactEvents.clear();
+      changedEvents.clear();
+      
+      head = 0;
+      size = 0;
+      this.dropped = 0;
+      scheduled = false;
+    }
+    
     if (!listeners.isEmpty()) {
-      Runnable event = new Runnable() {
-        @Override
-        public void run() {
-          for (RouteTableListener l : listeners) {
-            l.handleContactRemoved(bucket, contact);
-          }
+      for (RouteTableEvent event : events) {
+        for (RouteTableListener l : listeners) {
+          event.dispatch(l);
         }
-      };
+      }
+    }
+    
+    for (RouteTableBatchListener l : batchListeners) {
+      l.handleEvents(events, dropped);
+    }
+  }
+  
+  /**
+   * The write {@link Lock} of the {@link AbstractRouteTable}. It fires
+   * the deferred {@link RouteTableEvent}s once it's been fully released.
+   */
+  private class WriteLock implements Lock {
+    
+    private final Lock delegate = lock.writeLock();
+    
+    @Override
+    public void lock() {
+      delegate.lock();
+    }
+    
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+      delegate.lockInterruptibly();
+    }
+    
+    @Override
+    public boolean tryLock() {
+      return delegate.tryLock();
+    }
+    
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) 
+        throws InterruptedException {
+      return delegate.tryLock(time, unit);
+    }
+    
+    @Override
+    public void unlock() {
+      RouteTableEvent[] events = null;
+      if (lock.getWriteHoldCount() == 1 && !deferred.isEmpty()) {
+        events = deferred.toArray(new RouteTableEvent[0]);
+        deferred.clear();
+      }
       
-      EventUtils.fireEvent(event);
+      delegate.unlock();
+      
+      if (events != null) {
+        for (RouteTableEvent event : events) {
+          enqueue(event);
+        }
+      }
+    }
+    
+    @Override
+    public Condition newCondition() {
+      return delegate.newCondition();
+    }
+  }
+  
+  /**
+   * A {@link Bucket} whose active list and cache can be modified by 
+   * the {@link AbstractRouteTable}. All modifications happen while
+   * holding the write lock.
+   */
+  protected abstract static class MutableBucket extends AbstractBucket {
+    
+    public MutableBucket(KUID bucketId, int depth) {
+      super(bucketId, depth);
+    }
+    
+    /**
+     * Returns {@code true} if the {@link Bucket}'s active list is full.
+     */
+    protected abstract boolean isActiveFull();
+    
+    /**
+     * Returns the number of {@link Contact}s in the {@link Bucket}'s 
+     * active list that are in the same network as the given 
+     * {@link SocketAddress}.
+     */
+    protected abstract int getContactCount(SocketAddress address);
+    
+    /**
+     * Adds the given {@link ContactEntry} to the {@link Bucket}'s active
+     * list and returns {@code true} on success.
+     */
+    protected abstract boolean addActive(ContactEntry entry);
+    
+    /**
+     * Adds the given {@link ContactEntry} to the cache and returns it,
+     * the {@link ContactEntry} it has replaced or {@code null} if the
+     * cache is full.
+     */
+    protected abstract ContactEntry addCache(ContactEntry entry);
+    
+    /**
+     * Removes the given {@link Identifier} from the {@link Bucket}'s 
+     * active list and returns it or {@code null} if it wasn't there.
+     */
+    protected abstract ContactEntry removeActive(Identifier identifier);
+    
+    /**
+     * Removes the given {@link Identifier} from the {@link Bucket}'s 
+     * cache and returns it or {@code null} if it wasn't there.
+     */
+    protected abstract ContactEntry removeCache(Identifier identifier);
+    
+    /**
+     * Returns the least recently seen {@link ContactEntry} in 
+     * the {@link Bucket}'s active list.
+     */
+    protected abstract ContactEntry getLeastRecentlySeenActiveContact();
+    
+    /**
+     * Returns the {@link ContactEntry} from the {@link Bucket}'s cache 
+     * that should replace a dead {@link Contact}.
+     */
+    protected abstract ContactEntry getReplacementCachedContact();
+    
+    /**
+     * Removes the given {@link Identifier} from the {@link Bucket}.
+     */
+    protected ContactEntry remove(Identifier identifier) {
+      ContactEntry entry = removeActive(identifier);
+      if (entry == null) {
+        entry = removeCache(identifier);
+      }
+      return entry;
+    }
+  }
+  
+  /**
+   * The {@link Bucket} and the existing {@link Contact} (if any) 
+   * of a {@link Contact} that was added.
+   */
+  protected static class StateEntity {
+    
+    private final Bucket bucket;
+    
+    private final Contact existing;
+    
+    public StateEntity(Bucket bucket, Contact existing) {
+      this.bucket = bucket;
+      this.existing = existing;
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,635 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.routing;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.ardverk.dht.KUID;
+import org.ardverk.dht.lang.Identifier;
+import org.ardverk.net.NetworkCounter;
+
+/**
+ * An alternative {@link RouteTable} that keeps its {@link Bucket}s in a
+ * flat array that is indexed by the length of the common prefix with the
+ * localhost's {@link KUID} (the classic Kademlia layout). The {@link KUID}s
+ * of the active {@link Contact}s are packed into primitive {@code long[]}
+ * blocks and {@link #select(KUID, int)} performs a bounded partial sort
+ * over their XOR distances. It visits the {@link Bucket}s from the closest
+ * to the farthest and stops as soon as no other {@link Bucket} can hold
+ * a closer {@link Contact}.
+ *
+ * <p>NOTE: Unlike in the {@link DefaultRouteTable} the {@link Bucket}s
+ * are never split and the {@link ArrayRouteTable} holds at most 
+ * {@code k * (bits + 1)} active {@link Contact}s.
+ */
+@Singleton
+public class ArrayRouteTable extends AbstractRouteTable {
+  
+  private final Lock readLock = getLock().readLock();
+  
+  private final Lock writeLock = getLock().writeLock();
+  
+  private final RouteTableConfig config;
+  
+  private final Identity localhost;
+  
+  /**
+   * The length of the {@link KUID}s in 64-bit words.
+   */
+  private final int words;
+  
+  /**
+   * The {@link Bucket}s indexed by the length of their common
+   * prefix with the localhost. They're created lazily.
+   */
+  private final ArrayBucket[] buckets;
+  
+  @Inject
+  public ArrayRouteTable(RouteTableConfig config, Identity localhost) {
+    super(config.getEventBufferSize());
+    
+    this.config = config;
+    this.localhost = localhost;
+    
+    KUID contactId = localhost.getId();
+    this.words = contactId.lengthInWords();
+    this.buckets = new ArrayBucket[contactId.lengthInBits() + 1];
+    
+    init();
+  }
+  
+  /**
+   * Initializes the {@link ArrayRouteTable}.
+   */
+  private void init() {
+    writeLock.lock();
+    try {
+      reset();
+      Arrays.fill(buckets, null);
+      
+      ArrayBucket bucket = getOrCreateBucket(localhost.getId());
+      bucket.addActive(new ContactEntry(config, localhost));
+    } finally {
+      writeLock.unlock();
+    }
+  }
+  
+  @Override
+  public RouteTableConfig getRouteTableConfig() {
+    return config;
+  }
+  
+  @Override
+  public int getK() {
+    return config.getK();
+  }
+  
+  @Override
+  public Identity getIdentity() {
+    return localhost;
+  }
+  
+  /**
+   * Returns the index of the {@link Bucket} for the given {@link KUID}.
+   */
+  private int indexOf(KUID contactId) {
+    return localhost.getId().commonPrefix(contactId);
+  }
+  
+  private ArrayBucket getBucket(KUID contactId) {
+    return buckets[indexOf(contactId)];
+  }
+  
+  @Override
+  protected MutableBucket selectBucket(KUID contactId) {
+    return getOrCreateBucket(contactId);
+  }
+  
+  private ArrayBucket getOrCreateBucket(KUID contactId) {
+    int index = indexOf(contactId);
+    
+    ArrayBucket bucket = buckets[index];
+    if (bucket == null) {
+      bucket = new ArrayBucket(createBucketId(index),
+          Math.min(index + 1, buckets.length - 1));
+      buckets[index] = bucket;
+    }
+    return bucket;
+  }
+  
+  /**
+   * Creates the {@link KUID} of the {@link Bucket} at the given index.
+   * It's the localhost's prefix up to the index with the bit at the
+   * index flipped. All remaining bits are zero.
+   */
+  private KUID createBucketId(int index) {
+    KUID contactId = localhost.getId();
+    if (index >= contactId.lengthInBits()) {
+      return contactId;
+    }
+    
+    byte[] data = contactId.getBytes();
+    
+    int byteIndex = index / Byte.SIZE;
+    int mask = 0x80 >>> (index % Byte.SIZE);
+    
+    data[byteIndex] = (byte)((data[byteIndex] & ~(mask - 1)) ^ mask);
+    Arrays.fill(data, byteIndex + 1, data.length, (byte)0);
+    
+    return KUID.create(data);
+  }
+  
+  @Override
+  public Contact get(KUID contactId) {
+    if (contactId == null) {
+      throw new NullPointerException("contactId");
+    }
+    
+    readLock.lock();
+    try {
+      ArrayBucket bucket = getBucket(contactId);
+      ContactEntry entry = (bucket != null ? bucket.get(contactId) : null);
+      return entry != null ? entry.getContact() : null;
+    } finally {
+      readLock.unlock();
+    }
+  }
+  
+  @Override
+  public Contact[] select(KUID contactId, int count) {
+    if (contactId == null) {
+      throw new NullPointerException("contactId");
+    }
+    
+    DistanceHeap heap = new DistanceHeap(contactId, words, count);
+    double probability = config.getProbability();
+    
+    // The Contacts in the Bucket at the index are the closest to the
+    // key. They're followed by the Contacts of all Buckets with a longer 
+    // prefix (they're all equally far from the key) and each Bucket with 
+    // a shorter prefix is farther away than all Buckets before it.
+    int index = indexOf(contactId);
+    
+    readLock.lock();
+    try {
+      select(heap, buckets[index], probability);
+      
+      if (!heap.isFull()) {
+        for (int i = index + 1; i < buckets.length; i++) {
+          select(heap, buckets[i], probability);
+        }
+      }
+      
+      for (int i = index - 1; i >= 0 && !heap.isFull(); --i) {
+        select(heap, buckets[i], probability);
+      }
+    } finally {
+      readLock.unlock();
+    }
+    
+    return heap.toContacts();
+  }
+  
+  /**
+   * Offers the active {@link ContactEntry}s of the given {@link ArrayBucket}
+   * to the {@link DistanceHeap}.
+   */
+  private void select(DistanceHeap heap, 
+      ArrayBucket bucket, double probability) {
+    if (bucket == null) {
+      return;
+    }
+    
+    for (int i = 0; i < bucket.activeCount; i++) {
+      ContactEntry entry = bucket.active[i];
+      
+      if (entry.isDead() && ThreadLocalRandom.current()
+          .nextDouble() < probability) {
+        continue;
+      }
+      
+      heap.offer(entry, bucket.ids, i * words);
+    }
+  }
+  
+  @Override
+  public Bucket[] getBuckets() {
+    List<Bucket> dst = new ArrayList<>();
+    
+    readLock.lock();
+    try {
+      for (ArrayBucket bucket : buckets) {
+        if (bucket != null) {
+          dst.add(bucket);
+        }
+      }
+    } finally {
+      readLock.unlock();
+    }
+    
+    return dst.toArray(new Bucket[0]);
+  }
+  
+  @Override
+  public int size() {
+    int size = 0;
+    
+    readLock.lock();
+    try {
+      for (ArrayBucket bucket : buckets) {
+        if (bucket != null) {
+          size += bucket.activeCount;
+        }
+      }
+    } finally {
+      readLock.unlock();
+    }
+    
+    return size;
+  }
+  
+  /**
+   * Prunes the {@link RouteTable} one {@link Bucket} at a time and
+   * releases the write lock between {@link Bucket}s.
+   */
+  @Override
+  public void prune() {
+    for (int i = 0; i < buckets.length; i++) {
+      writeLock.lock();
+      try {
+        ArrayBucket bucket = buckets[i];
+        if (bucket != null) {
+          prune(bucket);
+        }
+      } finally {
+        writeLock.unlock();
+      }
+    }
+  }
+  
+  /**
+   * Clears the {@link RouteTable}.
+   */
+  public void clear() {
+    init();
+  }
+  
+  /**
+   * A {@link Bucket} that stores its active {@link ContactEntry}s in
+   * an array and their {@link KUID}s packed into a {@code long[]}.
+   */
+  private class ArrayBucket extends MutableBucket {
+    
+    private final ContactEntry[] active = new ContactEntry[config.getK()];
+    
+    private final long[] ids = new long[active.length * words];
+    
+    private int activeCount = 0;
+    
+    private final ContactEntry[] cached
+      = new ContactEntry[config.getMaxCacheSize()];
+    
+    private int cachedCount = 0;
+    
+    private final NetworkCounter counter
+      = new NetworkCounter(config.getNetworkMask());
+    
+    private ArrayBucket(KUID bucketId, int depth) {
+      super(bucketId, depth);
+    }
+    
+    @Override
+    public int getActiveCount() {
+      return activeCount;
+    }
+    
+    @Override
+    public int getCachedCount() {
+      return cachedCount;
+    }
+    
+    @Override
+    public ContactEntry[] getActive() {
+      return Arrays.copyOf(active, activeCount);
+    }
+    
+    @Override
+    public ContactEntry[] getCached() {
+      return Arrays.copyOf(cached, cachedCount);
+    }
+    
+    @Override
+    public ContactEntry getActive(KUID contactId) {
+      int index = indexOf(active, activeCount, contactId);
+      return index != -1 ? active[index] : null;
+    }
+    
+    @Override
+    public ContactEntry getCached(KUID contactId) {
+      int index = indexOf(cached, cachedCount, contactId);
+      return index != -1 ? cached[index] : null;
+    }
+    
+    @Override
+    public boolean containsActive(KUID contactId) {
+      return indexOf(active, activeCount, contactId) != -1;
+    }
+    
+    @Override
+    public boolean containsCached(KUID contactId) {
+      return indexOf(cached, cachedCount, contactId) != -1;
+    }
+    
+    @Override
+    protected boolean isActiveFull() {
+      return activeCount >= active.length;
+    }
+    
+    @Override
+    protected int getContactCount(SocketAddress address) {
+      return counter.get(address);
+    }
+    
+    @Override
+    protected boolean addActive(ContactEntry entry) {
+      if (isActiveFull()) {
+        return false;
+      }
+      
+      active[activeCount] = entry;
+      entry.getId().getWords(ids, activeCount * words);
+      ++activeCount;
+      
+      if (0 < config.getMaxContactsFromSameNetwork()) {
+        counter.add(entry.getContact().getRemoteAddress());
+      }
+      
+      touch();
+      return true;
+    }
+    
+    @Override
+    protected ContactEntry addCache(ContactEntry entry) {
+      if (cached.length == 0) {
+        return null;
+      }
+      
+      if (cachedCount < cached.length) {
+        cached[cachedCount++] = entry;
+        return entry;
+      }
+      
+      int index = 0;
+      for (int i = 1; i < cachedCount; i++) {
+        if (cached[i].getTimeStamp().compareTo(
+            cached[index].getTimeStamp()) < 0) {
+          index = i;
+        }
+      }
+      
+      ContactEntry lrs = cached[index];
+      if (lrs.isDead() || (!lrs.hasBeenActiveRecently() && !entry.isDead())) {
+        cached[index] = entry;
+        return lrs;
+      }
+      
+      return null;
+    }
+    
+    @Override
+    protected ContactEntry removeActive(Identifier identifier) {
+      int index = indexOf(active, activeCount, identifier.getId());
+      if (index == -1) {
+        return null;
+      }
+      
+      ContactEntry entry = active[index];
+      
+      // Move the last element into the free slot
+      int last = --activeCount;
+      active[index] = active[last];
+      active[last] = null;
+      System.arraycopy(ids, last * words, ids, index * words, words);
+      
+      if (0 < config.getMaxContactsFromSameNetwork()) {
+        counter.remove(entry.getContact().getRemoteAddress());
+      }
+      
+      return entry;
+    }
+    
+    @Override
+    protected ContactEntry removeCache(Identifier identifier) {
+      int index = indexOf(cached, cachedCount, identifier.getId());
+      if (index == -1) {
+        return null;
+      }
+      
+      ContactEntry entry = cached[index];
+      
+      int last = --cachedCount;
+      cached[index] = cached[last];
+      cached[last] = null;
+      
+      return entry;
+    }
+    
+    @Override
+    protected ContactEntry getLeastRecentlySeenActiveContact() {
+      return ContactUtils.getLeastRecentlySeen(
+          Arrays.asList(active).subList(0, activeCount));
+    }
+    
+    @Override
+    protected ContactEntry getReplacementCachedContact() {
+      List<ContactEntry> entries
+        = Arrays.asList(cached).subList(0, cachedCount);
+      
+      if (config.isProximityRouting()) {
+        return ContactUtils.getLowestLatency(entries);
+      }
+      return ContactUtils.getMostRecentlySeen(entries);
+    }
+  }
+  
+  private static int indexOf(ContactEntry[] entries,
+      int count, KUID contactId) {
+    for (int i = 0; i < count; i++) {
+      if (entries[i].getId().equals(contactId)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+  
+  /**
+   * A bounded max-heap that keeps the {@link ContactEntry}s that are
+   * XOR closest to a key. The XOR distances are stored packed in a
+   * {@code long[]} alongside the heap.
+   */
+  private static class DistanceHeap {
+    
+    private final long[] key;
+    
+    private final int words;
+    
+    private final ContactEntry[] entries;
+    
+    /**
+     * The distances of the elements in the heap followed by
+     * a scratch slot for the candidate.
+     */
+    private final long[] distances;
+    
+    private int size = 0;
+    
+    public DistanceHeap(KUID key, int words, int count) {
+      this.key = key.getWords(new long[words], 0);
+      this.words = words;
+      this.entries = new ContactEntry[count];
+      this.distances = new long[(count + 1) * words];
+    }
+    
+    /**
+     * Offers the {@link ContactEntry} whose {@link KUID} is stored
+     * at the given offset in the given array.
+     */
+    public void offer(ContactEntry entry, long[] ids, int offset) {
+      if (entries.length == 0) {
+        return;
+      }
+      
+      int scratch = entries.length;
+      for (int i = 0; i < words; i++) {
+        distances[scratch * words + i] = ids[offset + i] ^ key[i];
+      }
+      
+      if (size < entries.length) {
+        copy(scratch, size);
+        entries[size] = entry;
+        siftUp(size++);
+        
+      } else if (compare(scratch, 0) < 0) {
+        // Closer than the farthest element
+        copy(scratch, 0);
+        entries[0] = entry;
+        siftDown(0);
+      }
+    }
+    
+    /**
+     * Returns {@code true} if the heap holds the requested number
+     * of {@link ContactEntry}s.
+     */
+    public boolean isFull() {
+      return size >= entries.length;
+    }
+    
+    /**
+     * Returns the {@link Contact}s sorted by their XOR distance.
+     */
+    public Contact[] toContacts() {
+      Contact[] dst = new Contact[size];
+      while (0 < size) {
+        dst[size-1] = entries[0].getContact();
+        
+        int last = --size;
+        entries[0] = entries[last];
+        entries[last] = null;
+        copy(last, 0);
+        siftDown(0);
+      }
+      return dst;
+    }
+    
+    private void siftUp(int index) {
+      while (0 < index) {
+        int parent = (index - 1) >>> 1;
+        if (compare(index, parent) <= 0) {
+          break;
+        }
+        
+        swap(index, parent);
+        index = parent;
+      }
+    }
+    
+    private void siftDown(int index) {
+      while (true) {
+        int left = 2 * index + 1;
+        if (left >= size) {
+          break;
+        }
+        
+        int largest = left;
+        int right = left + 1;
+        if (right < size && compare(right, left) > 0) {
+          largest = right;
+        }
+        
+        if (compare(index, largest) >= 0) {
+          break;
+        }
+        
+        swap(index, largest);
+        index = largest;
+      }
+    }
+    
+    /**
+     * Compares the (unsigned) distances at the given slots.
+     */
+    private int compare(int i, int j) {
+      int oi = i * words;
+      int oj = j * words;
+      
+      for (int w = 0; w < words; w++) {
+        long d1 = distances[oi + w];
+        long d2 = distances[oj + w];
+        
+        if (d1 != d2) {
+          return (d1 + Long.MIN_VALUE) < (d2 + Long.MIN_VALUE) ? -1 : 1;
+        }
+      }
+      return 0;
+    }
+    
+    private void copy(int from, int to) {
+      System.arraycopy(distances, from * words, distances, to * words, words);
+    }
+    
+    private void swap(int i, int j) {
+      ContactEntry entry = entries[i];
+      entries[i] = entries[j];
+      entries[j] = entry;
+      
+      for (int w = 0; w < words; w++) {
+        long tmp = distances[i * words + w];
+        distances[i * words + w] = distances[j * words + w];
+        distances[j * words + w] = tmp;
+      }
+    }
+  }
+}
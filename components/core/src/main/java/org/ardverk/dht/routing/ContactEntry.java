@@ -17,6 +17,7 @@
 package org.ardverk.dht.routing;
 
 import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
 
 import org.ardverk.dht.KUID;
 import org.ardverk.dht.lang.Identifier;
@@ -28,9 +29,9 @@ import org.ardverk.net.NetworkUtils;
  * The {@link DefaultRouteTable} uses internally {@link ContactEntry}s 
  * instead of {@link Contact}s directly.
  * 
- * <p>NOTE: This class is <b>NOT</b> Thread-safe! All read/write operations
- * must be done while a lock on the {@link DefaultRouteTable} instance
- * is being held.
+ * <p>NOTE: This class is <b>NOT</b> Thread-safe! Read operations must be 
+ * done while the {@link DefaultRouteTable}'s read lock is being held and
+ * write operations while its write lock is being held.
  * 
  * @see DefaultRouteTable
  */
@@ -38,15 +39,23 @@ public class ContactEntry implements Identifier, Longevity {
   
   private final RouteTableConfig config;
   
-  private Contact contact;
+  private final RoundTripTimeEstimator estimator 
+    = new RoundTripTimeEstimator();
   
-  private int errorCount = 0;
+  // The fields are modified under the RouteTable's lock but read
+  // without it by DefaultRouteTable#select(KUID, int).
+  private volatile Contact contact;
   
-  private TimeStamp errorTimeStamp = null;
+  private volatile int errorCount = 0;
+  
+  private volatile TimeStamp errorTimeStamp = null;
   
   ContactEntry(RouteTableConfig config, Contact contact) {
     this.config = config;
-    this.contact = contact;
+    this.contact = copy(contact);
+    
+    sample(contact);
+    attach(this.contact);
   }
   
   @Override
@@ -72,14 +81,23 @@ public class ContactEntry implements Identifier, Longevity {
   }
   
   /**
-   * Updates the current {@link Contact} with the given {@link Contact}.
+   * Updates the current {@link Contact} with the given {@link Contact}
+   * and returns the previous {@link Contact}. The time stamp and RTT 
+   * are updated in place and the previous {@link Contact} is the current
+   * {@link Contact} in that case. A new {@link Contact} is created only 
+   * if any of the other fields change. Either way the {@link Contact} 
+   * is owned by the {@link ContactEntry}.
+   * 
+   * @see Contact#merge(Contact)
    */
-  public Update update(Contact other) {
+  public Contact update(Contact other) {
     Contact previous = contact;
     
     if (other.getCreationTime().compareTo(
-        previous.getCreationTime()) >= 0) {
+        previous.getCreationTime()) >= 0 
+        && !mergeInPlace(previous, other)) {
       contact = previous.merge(other);
+      attach(contact);
     }
     
     if (other.isActive()) {
@@ -87,7 +105,56 @@ public class ContactEntry implements Identifier, Longevity {
       errorTimeStamp = null;
     }
     
-    return new Update(previous, other, contact);
+    sample(other);
+    
+    return previous;
+  }
+  
+  private static boolean mergeInPlace(Contact contact, Contact other) {
+    return contact instanceof DefaultContact 
+        && ((DefaultContact)contact).mergeInPlace(other);
+  }
+  
+  /**
+   * Returns the {@link ContactEntry}'s {@link RoundTripTimeEstimator}.
+   */
+  public RoundTripTimeEstimator getRoundTripTimeEstimator() {
+    return estimator;
+  }
+  
+  /**
+   * Feeds the RTT of the given {@link Contact} into the 
+   * {@link RoundTripTimeEstimator}. Only {@link Contact}s that 
+   * were received with a response have a RTT.
+   */
+  private void sample(Contact other) {
+    long rtt = other.getRoundTripTimeInMillis();
+    if (0L < rtt) {
+      estimator.sample(rtt, TimeUnit.MILLISECONDS);
+    }
+  }
+  
+  /**
+   * Makes the {@link RoundTripTimeEstimator} available through 
+   * the given {@link Contact}. It must be the {@link ContactEntry}'s 
+   * own copy and never a {@link Contact} that was passed in.
+   */
+  private void attach(Contact contact) {
+    if (contact instanceof DefaultContact) {
+      ((DefaultContact)contact).setRoundTripTimeEstimator(estimator);
+    }
+  }
+  
+  /**
+   * Returns a copy of the given {@link Contact} that is owned by the 
+   * {@link ContactEntry} or the {@link Contact} itself if it's not a 
+   * {@link DefaultContact}.
+   */
+  private static Contact copy(Contact contact) {
+    if (contact instanceof DefaultContact) {
+      return ((DefaultContact)contact).copy();
+    }
+    return contact;
   }
   
   /**
@@ -117,6 +184,15 @@ public class ContactEntry implements Identifier, Longevity {
     return isDead();
   }
   
+  /**
+   * Sets the error count. This is used to restore a {@link ContactEntry}
+   * from a snapshot.
+   */
+  void setErrorCount(int errorCount) {
+    this.errorCount = errorCount;
+    this.errorTimeStamp = (0 < errorCount) ? TimeStamp.now() : null;
+  }
+  
   /**
    * @see DefaultContact#isSolicited()
    */
@@ -189,31 +265,4 @@ public class ContactEntry implements Identifier, Longevity {
     SocketAddress b = other.getRemoteAddress();
     return NetworkUtils.isSameAddress(a, b);
   }
-  
-  public static class Update {
-    
-    private final Contact previous;
-    
-    private final Contact other;
-    
-    private final Contact merged;
-
-    private Update(Contact previous, Contact other, Contact merged) {
-      this.previous = previous;
-      this.other = other;
-      this.merged = merged;
-    }
-
-    public Contact getPrevious() {
-      return previous;
-    }
-
-    public Contact getOther() {
-      return other;
-    }
-
-    public Contact getMerged() {
-      return merged;
-    }
-  }
 }
\ No newline at end of file
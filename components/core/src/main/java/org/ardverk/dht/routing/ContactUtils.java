@@ -18,9 +18,12 @@ package org.ardverk.dht.routing;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import org.ardverk.dht.KUID;
 import org.ardverk.lang.TimeStamp;
 import org.ardverk.utils.ReverseComparator;
 
@@ -59,14 +62,58 @@ public class ContactUtils {
   private static final Comparator<ContactEntry> HEALTH_DESCENDING 
     = new ReverseComparator<ContactEntry>(HEALTH_ASCENDING);
   
-  public static long getAdaptiveTimeout(DefaultContact contact, 
+  /**
+   * Sorts {@link Contact}s from the lowest to the highest round trip
+   * time. {@link Contact}s with an unknown round trip time go last.
+   */
+  private static final Comparator<Contact> RTT_ASCENDING 
+    = new Comparator<Contact>() {
+      @Override
+      public int compare(Contact o1, Contact o2) {
+        long rtt1 = o1.getRoundTripTimeInMillis();
+        long rtt2 = o2.getRoundTripTimeInMillis();
+        
+        if (rtt1 < 0L) {
+          return (rtt2 < 0L) ? 0 : 1;
+        } else if (rtt2 < 0L) {
+          return -1;
+        }
+        return Long.compare(rtt1, rtt2);
+      }
+    };
+  
+  /**
+   * Returns the {@link Contact}'s {@link RoundTripTimeEstimator} or 
+   * the given default {@link RoundTripTimeEstimator} (may be 
+   * {@code null}) if there are no RTT samples for the {@link Contact}.
+   */
+  public static RoundTripTimeEstimator getRoundTripTimeEstimator(
+      Contact contact, RoundTripTimeEstimator defaultEstimator) {
+    if (contact instanceof AbstractContact) {
+      RoundTripTimeEstimator estimator 
+        = ((AbstractContact)contact).getRoundTripTimeEstimator();
+      if (estimator != null && estimator.hasSamples()) {
+        return estimator;
+      }
+    }
+    return defaultEstimator;
+  }
+  
+  /**
+   * Returns an adaptive timeout for the given {@link Contact} or 
+   * the default value if nothing is known about its RTT.
+   * 
+   * @see RoundTripTimeEstimator#getTimeout(long, TimeUnit)
+   */
+  public static long getAdaptiveTimeout(Contact contact, 
+      RoundTripTimeEstimator defaultEstimator, 
       long defaultValue, TimeUnit unit) {
-    long rtt = contact.getRoundTripTime(unit);
-    if (rtt < 0) {
+    RoundTripTimeEstimator estimator 
+      = getRoundTripTimeEstimator(contact, defaultEstimator);
+    if (estimator == null) {
       return defaultValue;
     }
-    
-    return Math.min((long)(rtt * 1.5f), defaultValue);
+    return estimator.getTimeout(defaultValue, unit);
   }
   
   public static ContactEntry[] byHealth(ContactEntry[] entries) {
@@ -78,6 +125,43 @@ public class ContactUtils {
     return entries;
   }
   
+  /**
+   * Sorts the given {@link List} of {@link Contact}s by their round 
+   * trip time. The sort is stable.
+   */
+  public static void byRoundTripTime(List<Contact> contacts) {
+    Collections.sort(contacts, RTT_ASCENDING);
+  }
+  
+  /**
+   * Sorts the given {@link List} of {@link Contact}s by their round 
+   * trip time but only among {@link Contact}s that share the same 
+   * common prefix with the given {@link KUID} and are therefore equally 
+   * useful in terms of XOR distance. The {@link List} must be sorted by 
+   * XOR distance to the {@link KUID}. The closest {@link Contact} (an 
+   * exact match in particular) stays first.
+   */
+  public static void byRoundTripTime(KUID key, List<Contact> contacts) {
+    int size = contacts.size();
+    
+    int start = 0;
+    while (start < size) {
+      int prefix = contacts.get(start).getId().commonPrefix(key);
+      
+      int end = start + 1;
+      while (end < size 
+          && contacts.get(end).getId().commonPrefix(key) == prefix) {
+        ++end;
+      }
+      
+      if (1 < end - start) {
+        byRoundTripTime(contacts.subList(start, end));
+      }
+      
+      start = end;
+    }
+  }
+  
   /**
    * Turns the given array of {@link ContactEntry}s into an array of {@link Contact}s.
    */
@@ -111,6 +195,32 @@ public class ContactUtils {
     return lrs;
   }
   
+  /**
+   * Returns the {@link ContactEntry} with the lowest known round trip
+   * time in the given {@link Collection} or the most recently seen
+   * {@link ContactEntry} if no round trip times are known.
+   */
+  public static ContactEntry getLowestLatency(
+      Collection<? extends ContactEntry> entries) {
+    ContactEntry fastest = null;
+    for (ContactEntry entry : entries) {
+      Contact contact = entry.getContact();
+      if (contact.getRoundTripTimeInMillis() < 0L) {
+        continue;
+      }
+      
+      if (fastest == null || RTT_ASCENDING.compare(
+          contact, fastest.getContact()) < 0) {
+        fastest = entry;
+      }
+    }
+    
+    if (fastest == null) {
+      fastest = getMostRecentlySeen(entries);
+    }
+    return fastest;
+  }
+  
   /**
    * Returns the most recently seen {@link ContactEntry} in the 
    * given {@link Collection}.
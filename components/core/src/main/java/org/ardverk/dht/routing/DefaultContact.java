@@ -36,7 +36,7 @@ public class DefaultContact extends AbstractContact {
   
   private final TimeStamp creationTime;
   
-  private final TimeStamp timeStamp;
+  private volatile TimeStamp timeStamp;
   
   private final int instanceId;
   
@@ -97,8 +97,8 @@ public class DefaultContact extends AbstractContact {
     this.instanceId = instanceId;
     this.hidden = hidden;
     this.socketAddress = socketAddress;
-    this.contactAddress = contactAddress;
-    this.remoteAddress = fixAddress(socketAddress, contactAddress);
+    this.contactAddress = share(socketAddress, contactAddress);
+    this.remoteAddress = fixAddress(socketAddress, this.contactAddress);
   }
   
   /**
@@ -125,9 +125,12 @@ public class DefaultContact extends AbstractContact {
     } else {
       this.instanceId = other.getInstanceId();
       this.hidden = other.isHidden();
-      this.socketAddress = other.getSocketAddress();
-      this.contactAddress = other.getContactAddress();
-      this.remoteAddress = other.getRemoteAddress();
+      this.socketAddress = share(existing.getSocketAddress(), 
+          other.getSocketAddress());
+      this.contactAddress = share(existing.getContactAddress(), 
+          other.getContactAddress());
+      this.remoteAddress = share(existing.getRemoteAddress(), 
+          other.getRemoteAddress());
       this.type = other.getType();
     }
   }
@@ -190,6 +193,64 @@ public class DefaultContact extends AbstractContact {
     return type;
   }
   
+  /**
+   * Returns a copy of this {@link DefaultContact}.
+   */
+  DefaultContact copy() {
+    return new DefaultContact(this, this);
+  }
+  
+  /**
+   * Sets the time when the {@link Contact} was seen the last time. 
+   * This is used to restore a {@link Contact} from a snapshot.
+   */
+  void setTimeStamp(TimeStamp timeStamp) {
+    this.timeStamp = Precoditions.notNull(timeStamp, "timeStamp");
+  }
+  
+  /**
+   * Merges the other {@link Contact} into this {@link DefaultContact}
+   * in place and returns {@code true} if only the time stamp and RTT 
+   * would change. It returns {@code false} if {@link #merge(Contact)}
+   * must be used instead.
+   * 
+   * <p>NOTE: It must be only called for an instance that isn't shared
+   * such as a {@link ContactEntry}'s own copy.
+   */
+  boolean mergeInPlace(Contact other) {
+    if (!equals(other) || other.isHidden()) {
+      throw new IllegalArgumentException("other=" + other);
+    }
+    
+    if (!isBetter(other) && !isSameFields(other)) {
+      return false;
+    }
+    
+    if (other.isActive()) {
+      timeStamp = other.getTimeStamp();
+    }
+    
+    long rtt = other.getRoundTripTimeInMillis();
+    if (0L < rtt) {
+      setRoundTripTime(rtt, TimeUnit.MILLISECONDS);
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Returns {@code true} if the other {@link Contact} has the same
+   * type, instance ID and addresses.
+   */
+  private boolean isSameFields(Contact other) {
+    return type == other.getType() 
+        && instanceId == other.getInstanceId()
+        && hidden == other.isHidden()
+        && isEqual(socketAddress, other.getSocketAddress())
+        && isEqual(contactAddress, other.getContactAddress())
+        && isEqual(remoteAddress, other.getRemoteAddress());
+  }
+  
   @Override
   public Contact merge(Contact other) {
     if (!equals(other) || other.isHidden()) {
@@ -199,6 +260,19 @@ public class DefaultContact extends AbstractContact {
     return other != this ? new DefaultContact(this, other) : this;
   }
   
+  private static boolean isEqual(SocketAddress a, SocketAddress b) {
+    return a != null ? a.equals(b) : b == null;
+  }
+  
+  /**
+   * Returns the first {@link SocketAddress} if it's equal to the 
+   * second {@link SocketAddress} and the second one otherwise. It's
+   * used to share equal {@link SocketAddress} instances.
+   */
+  private static SocketAddress share(SocketAddress a, SocketAddress b) {
+    return a != null && a.equals(b) ? a : b;
+  }
+  
   /**
    * Combines the socket addresses {@link InetAddress} and the
    * contact addresses port number.
@@ -18,12 +18,11 @@ package org.ardverk.dht.routing;
 
 import java.net.SocketAddress;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -33,27 +32,33 @@ import org.ardverk.collection.Cursor.Decision;
 import org.ardverk.collection.FixedSizeHashMap;
 import org.ardverk.collection.PatriciaTrie;
 import org.ardverk.collection.Trie;
-import org.ardverk.concurrent.AsyncFuture;
-import org.ardverk.concurrent.AsyncFutureListener;
-import org.ardverk.concurrent.FutureUtils;
 import org.ardverk.dht.KUID;
-import org.ardverk.dht.concurrent.DHTFuture;
-import org.ardverk.dht.config.PingConfig;
-import org.ardverk.dht.entity.PingEntity;
 import org.ardverk.dht.lang.Identifier;
-import org.ardverk.dht.routing.ContactEntry.Update;
-import org.ardverk.dht.utils.ContactKey;
 import org.ardverk.net.NetworkCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * The {@link DefaultRouteTable} is guarded by a {@link ReadWriteLock}. 
+ * Lookups such as {@link #get(KUID)} run concurrently under the read 
+ * lock and only operations that modify the {@link RouteTable} acquire 
+ * the exclusive write lock.
+ * 
+ * <p>{@link #select(KUID, int)} doesn't take any locks. It works on a 
+ * copy of the active lists that is re-created lazily (and only for the
+ * {@link Bucket}s that have changed) after {@link Contact}s were added 
+ * to or removed from them. Updates of existing {@link Contact}s don't 
+ * affect the copy because it shares the {@link ContactEntry}s.
+ */
 @Singleton
 public class DefaultRouteTable extends AbstractRouteTable {
   
   private static final Logger LOG 
     = LoggerFactory.getLogger(DefaultRouteTable.class);
   
-  private final Map<ContactKey, DHTFuture<PingEntity>> pingFutures = new HashMap<>();
+  private final Lock readLock = getLock().readLock();
+  
+  private final Lock writeLock = getLock().writeLock();
   
   private final RouteTableConfig config;
   
@@ -61,10 +66,16 @@ public class DefaultRouteTable extends AbstractRouteTable {
   
   private final Trie<KUID, DefaultBucket> buckets;
   
-  private int consecutiveErrors = 0;
+  /**
+   * A copy of the active lists of all {@link Bucket}s for 
+   * {@link #select(KUID, int)} or {@code null} if it must be re-created.
+   */
+  private volatile Trie<KUID, Trie<KUID, ContactEntry>> snapshot = null;
   
   @Inject
   public DefaultRouteTable(RouteTableConfig config, Identity localhost) {
+    super(config.getEventBufferSize());
+    
     this.config = config;
     this.localhost = localhost;
     
@@ -76,21 +87,25 @@ public class DefaultRouteTable extends AbstractRouteTable {
   /**
    * Initializes the {@link DefaultRouteTable}.
    */
-  private synchronized void init() {
-    consecutiveErrors = 0;
-    
-    KUID contactId = localhost.getId();
-    KUID bucketId = contactId.min();
-    
-    DefaultBucket bucket = new DefaultBucket(bucketId, 0);
-    buckets.put(bucketId, bucket);
-    
-    add0(localhost);
+  private void init() {
+    writeLock.lock();
+    try {
+      reset();
+      
+      KUID contactId = localhost.getId();
+      KUID bucketId = contactId.min();
+      
+      DefaultBucket bucket = new DefaultBucket(bucketId, 0);
+      buckets.put(bucketId, bucket);
+      snapshot = null;
+      
+      add0(localhost);
+    } finally {
+      writeLock.unlock();
+    }
   }
   
-  /**
-   * Returns the {@link DefaultRouteTable}'s {@link RouteTableConfig}.
-   */
+  @Override
   public RouteTableConfig getRouteTableConfig() {
     return config;
   }
@@ -101,291 +116,67 @@ public class DefaultRouteTable extends AbstractRouteTable {
   }
   
   /**
-   * Returns {@code true} if the {@link Identifier} is equal to localhost.
+   * Adds the given {@link Contact} and sets its error count. This is
+   * used to restore the {@link RouteTable} from a snapshot. Unlike 
+   * {@link #add(Contact)} it never pings any {@link Contact}s. The 
+   * {@link Contact} goes into the replacement cache if there is no 
+   * room for it.
    */
-  private boolean isLocalhost(Identifier identifier) {
-    return localhost.getId().equals(identifier.getId());
-  }
-  
-  /**
-   * Compares the localhost's {@link KUID} with the given {@link Contact}'s
-   * {@link KUID} and throws an {@link IllegalArgumentException} if the two
-   * have different lengths.
-   */
-  private void checkKeyLength(Contact other) throws IllegalArgumentException {
-    KUID contactId = localhost.getId();
-    KUID otherId = other.getId();
-    if (contactId.lengthInBits() 
-        != otherId.lengthInBits()) {
-      throw new IllegalArgumentException(
-          "Bits: " + contactId.lengthInBits() 
-          + " vs. " + contactId.lengthInBits());
-    }
-  }
-  
-  @Override
-  public synchronized void add(Contact contact) {
-    if (contact == null) {
-      throw new NullPointerException("contact");
-    }
-    
-    // Make sure the KUIDs of all Contacts have the
-    // same length in bits as the localhost Contact!
-    checkKeyLength(contact);
-    
-    // Nobody and nothing can add a Contact that has 
-    // the exact same KUID as the localhost Contact!
-    if (isLocalhost(contact)) {
+  void restore(Contact contact, int errorCount) {
+    if (!isAddable(contact)) {
       return;
     }
     
-    // Nobody and nothing can add a Contact that is 
-    // an instance of Localhost.
-    if (contact instanceof Identity) {
-      throw new IllegalArgumentException("contact=" + contact);
+    writeLock.lock();
+    try {
+      restore0(contact, errorCount);
+    } finally {
+      writeLock.unlock();
     }
-    
-    // Don't add invisible contacts to the RouteTable.
-    if (contact.isHidden()) {
-      return;
-    }
-    
-    // Reset the consecutive errors counter every time
-    // we receive a "message" from an actual Contact.
-    if (contact.isActive()) {
-      consecutiveErrors = 0;
-    }
-    
-    StateEntity entity = add0(contact);
-    fireContact(entity.bucket, entity.existing, contact);
   }
   
-  private synchronized StateEntity  add0(Contact contact) {
+  private void restore0(Contact contact, int errorCount) {
     KUID contactId = contact.getId();
     DefaultBucket bucket = buckets.selectValue(contactId);
-    ContactEntry entry = bucket.get(contactId);
-    
-    Contact existing = null;
-    if (entry != null) {
-      existing = entry.getContact();
-    }
-    
-    if (contact.isAuthoritative()) {
-      authoritative(bucket, entry, contact);
-    } else {
-    
-      if (entry != null) {
-        updateContact(bucket, entry, contact);
-      } else if (!bucket.isActiveFull()) {
-        if (isOkayToAdd(bucket, contact)) {
-          addActive(bucket, contact);
-        } else if (!canSplit(bucket)) {
-          addCache(bucket, contact);
-        }
-      } else if (split(bucket)) {
-        return add0(contact);
-      } else {
-        replaceCache(bucket, contact);
-      }
-    }
-    
-    return new StateEntity(bucket, existing);
-  }
-  
-  private synchronized void authoritative(DefaultBucket bucket, 
-      ContactEntry entry, Contact contact) {
-    
-    assert (contact.isAuthoritative());
-    
-    if (entry != null) {
-      ContactEntry removed = bucket.remove(entry);
-      assert (removed == entry);
-    }
-    
-    if (bucket.isActiveFull()) {
-      ContactEntry lrs = bucket.getLeastRecentlySeenActiveContact();
-      ContactEntry removed = bucket.removeActive(lrs);
-      assert (removed == lrs);
-      
-      if (!lrs.isDead()) {
-        bucket.addCache(lrs);
-      }
-    }
-    
-    bucket.addActive(new ContactEntry(config, contact));
-  }
-  
-  private synchronized void updateContact(DefaultBucket bucket, 
-      ContactEntry entry, Contact contact) {
-    
-    // Make sure neither is the localhost!
-    assert (!entry.isSameContact(localhost) 
-        && !contact.equals(localhost));
-    
-    // Make sure non-ACTIVE contacts can never 
-    // replace an ACTIVE contact!
-    if (entry.isAlive() && !contact.isActive()) {
+    if (bucket.get(contactId) != null) {
       return;
     }
     
-    // Everything is fine if they've got the same address.
-    if (entry.isSameRemoteAddress(contact)) {
-      update(bucket, entry, contact);
-    } else {
-      checkContact(bucket, entry, contact);
-    }
-  }
-  
-  private synchronized void checkContact(DefaultBucket bucket, 
-      ContactEntry entry, final Contact contact) {
-    
-    if (config.isCheckIdentity()) {
-      
-      final Contact previous = entry.getContact();
-      
-      DHTFuture<PingEntity> future = ping(entry);
-      future.addAsyncFutureListener(new AsyncFutureListener<PingEntity>() {
-        @Override
-        public void operationComplete(AsyncFuture<PingEntity> future) {
-          // Do nothing if there was *NO* error (in other words if
-          // we received a PONG). We're simply dropping the new 
-          // Contact's information!
-          if (!future.isCompletedAbnormally()) {
-            try {
-              Contact contact = future.get().getContact();
-              fireContactCollision(previous, contact);
-            } catch (InterruptedException e) {
-              LOG.error("InterruptedException", e);
-            } catch (ExecutionException e) {
-              LOG.error("ExecutionException", e);
-            }
-            return;
-          }
-          
-          // Cancellations are OK too
-          if (future.isCancelled()) {
-            return;
-          }
-          
-          KUID contactId = contact.getId();
-          
-          synchronized (DefaultRouteTable.this) {
-            DefaultBucket bucket = buckets.selectValue(contactId);
-            ContactEntry current = bucket.get(contactId);
-            
-            // Make sure the pre-condition still holds and we're
-            // not replacing some other Contact.
-            if (current != null && current.getContact() == previous) {
-              update(bucket, current, contact);
-              
-              if (bucket.containsCached(contactId)) {
-                pingLeastRecentlySeenContact(bucket);
-              }
-              
-            } else {
-              add(contact);
-            }
-          }
-        }
-      });
-    } else {
-      replace(bucket, entry, contact);
-      
-      if (bucket.containsCached(contact.getId())) {
-        pingLeastRecentlySeenContact(bucket);
-      }
+    if (bucket.isActiveFull() && split(bucket)) {
+      restore0(contact, errorCount);
+      return;
     }
-  }
-  
-  private synchronized boolean isOkayToAdd(DefaultBucket bucket, ContactEntry entry) {
-    return isOkayToAdd(bucket, entry.getContact());
-  }
-  
-  private synchronized boolean isOkayToAdd(DefaultBucket bucket, Contact contact) {
-    return isOkayToAdd(bucket, contact.getRemoteAddress());
-  }
-  
-  private synchronized boolean isOkayToAdd(DefaultBucket bucket, 
-      SocketAddress remoteAddress) {
-    int max = config.getMaxContactsFromSameNetwork();
-    return max < 0 || bucket.getContactCount(remoteAddress) < max;
-  }
-  
-  private synchronized void addActive(DefaultBucket bucket, Contact contact) {
-    ContactEntry entry = new ContactEntry(config, contact);
-    boolean success = bucket.addActive(entry);
     
-    if (success) {
-      fireContactAdded(bucket, contact);
-    }
-  }
-  
-  private synchronized ContactEntry addCache(DefaultBucket bucket, Contact contact) {
     ContactEntry entry = new ContactEntry(config, contact);
-    ContactEntry other = bucket.addCache(entry);
+    entry.setErrorCount(errorCount);
     
-    if (other != null) {
-      if (entry == other) {
+    if (!bucket.isActiveFull() && isOkayToAdd(bucket, contact)) {
+      if (bucket.addActive(entry)) {
         fireContactAdded(bucket, contact);
-      } else {
-        fireContactReplaced(bucket, other.getContact(), contact);
       }
-    }
-    
-    return other;
-  }
-  
-  private synchronized void replaceCache(DefaultBucket bucket, Contact contact) {
-    if (contact.isActive() && isOkayToAdd(bucket, contact)) {
-      ContactEntry lrs = bucket.getLeastRecentlySeenActiveContact();
-      
-      if (!isLocalhost(lrs) && (lrs.isUnknown() || lrs.isDead())) {
-        
-        ContactEntry entry = bucket.removeActive(lrs);
-        assert (entry == lrs);
-        
-        bucket.addActive(new ContactEntry(config, contact));
-        
-        fireContactReplaced(bucket, lrs.getContact(), contact);
-        return;
+    } else {
+      ContactEntry other = bucket.addCache(entry);
+      if (other == entry) {
+        fireContactAdded(bucket, contact);
+      } else if (other != null) {
+        fireContactReplaced(bucket, other.getContact(), contact);
       }
     }
-    
-    addCache(bucket, contact);
-    pingLeastRecentlySeenContact(bucket);
-  }
-  
-  private synchronized void update(DefaultBucket bucket, 
-      ContactEntry entry, Contact contact) {
-    ContactEntry.Update update = entry.update(contact);
-    bucket.touch();
-    
-    fireContactChanged(bucket, 
-        update.getPrevious(), update.getMerged());
-  }
-  
-  private synchronized void replace(DefaultBucket bucket, 
-      ContactEntry entry, Contact contact) {
-    Update update = entry.update(contact);
-    bucket.touch();
-    
-    fireContactChanged(bucket, update.getPrevious(), contact);
   }
   
-  private synchronized void pingLeastRecentlySeenContact(DefaultBucket bucket) {
-    ContactEntry lrs = bucket.getLeastRecentlySeenActiveContact();
-    if (!isLocalhost(lrs)) {
-      ping(lrs);
-    }
+  @Override
+  protected MutableBucket selectBucket(KUID contactId) {
+    return buckets.selectValue(contactId);
   }
   
-  private synchronized boolean split(DefaultBucket bucket) {
+  @Override
+  protected boolean split(MutableBucket bucket) {
     if (canSplit(bucket)) {
       if (LOG.isInfoEnabled()) {
         LOG.info("Splitting Bucket: " + bucket);
       }
       
-      DefaultBucket[] split = bucket.split();
+      DefaultBucket[] split = ((DefaultBucket)bucket).split();
       assert (split.length == 2);
       
       DefaultBucket left = split[0];
@@ -399,6 +190,8 @@ public class DefaultRouteTable extends AbstractRouteTable {
       DefaultBucket oldRight = buckets.put(right.getId(), right);
       assert (oldRight == null);
       
+      snapshot = null;
+      
       fireBucketSplit(bucket, left, right);
       return true;
     }
@@ -406,7 +199,8 @@ public class DefaultRouteTable extends AbstractRouteTable {
     return false;
   }
   
-  private synchronized boolean canSplit(DefaultBucket bucket) {
+  @Override
+  protected boolean canSplit(MutableBucket bucket) {
     
     // We *split* the Bucket if:
     // 1. Bucket contains the localhost Contact
@@ -426,7 +220,7 @@ public class DefaultRouteTable extends AbstractRouteTable {
    * Returns true if the given {@link DefaultBucket} has reached its maximum
    * depth in the RoutingTable Tree.
    */
-  private synchronized boolean isTooDeep(DefaultBucket bucket) {
+  private boolean isTooDeep(Bucket bucket) {
     return bucket.getDepth() >= config.getMaxDepth();
   }
   
@@ -435,7 +229,7 @@ public class DefaultRouteTable extends AbstractRouteTable {
    * or right hand sibling of the {@link DefaultBucket} which contains 
    * the localhost {@link Contact}.
    */
-  private synchronized boolean isSmallestSubtree(DefaultBucket bucket) {
+  private boolean isSmallestSubtree(Bucket bucket) {
     KUID contactId = localhost.getId();
     KUID bucketId = bucket.getId();
     int prefixLength = contactId.commonPrefix(bucketId);
@@ -448,255 +242,262 @@ public class DefaultRouteTable extends AbstractRouteTable {
   }
   
   @Override
-  public synchronized Contact get(KUID contactId) {
+  public Contact get(KUID contactId) {
     if (contactId == null) {
       throw new NullPointerException("contactId");
     }
     
-    DefaultBucket bucket = buckets.selectValue(contactId);
-    ContactEntry entry = bucket.get(contactId);
-    return entry != null ? entry.getContact() : null;
+    readLock.lock();
+    try {
+      DefaultBucket bucket = buckets.selectValue(contactId);
+      ContactEntry entry = bucket.get(contactId);
+      return entry != null ? entry.getContact() : null;
+    } finally {
+      readLock.unlock();
+    }
   }
   
   @Override
   public int getK() {
     return config.getK();
   }
-
+  
   @Override
-  public synchronized Contact[] select(KUID contactId, int count) {
+  public Contact[] select(KUID contactId, int count) {
+    if (contactId == null) {
+      throw new NullPointerException("contactId");
+    }
+    
+    Trie<KUID, Trie<KUID, ContactEntry>> snapshot = this.snapshot;
+    if (snapshot == null) {
+      snapshot = createSnapshot();
+    }
+    
     List<Contact> dst = new ArrayList<>(count);
-    selectR(contactId, dst, count);
+    selectR(snapshot, contactId, dst, count);
     return dst.toArray(new Contact[0]);
   }
   
-  private synchronized void selectR(final KUID contactId, 
-      final Collection<Contact> dst, final int count) {
-    
-    if (contactId == null) {
-      throw new NullPointerException("contactId");
+  /**
+   * Creates and returns a copy of the active lists of all {@link Bucket}s.
+   * The copy is published under the read lock and can therefore never
+   * overwrite the invalidation by a writer.
+   */
+  private Trie<KUID, Trie<KUID, ContactEntry>> createSnapshot() {
+    readLock.lock();
+    try {
+      Trie<KUID, Trie<KUID, ContactEntry>> snapshot = this.snapshot;
+      if (snapshot == null) {
+        snapshot = new PatriciaTrie<>();
+        for (DefaultBucket bucket : buckets.values()) {
+          snapshot.put(bucket.getId(), bucket.getSnapshot());
+        }
+        this.snapshot = snapshot;
+      }
+      return snapshot;
+    } finally {
+      readLock.unlock();
     }
+  }
+  
+  private void selectR(Trie<KUID, Trie<KUID, ContactEntry>> snapshot, 
+      final KUID contactId, final List<Contact> dst, final int count) {
     
     if (dst.size() >= count) {
       return;
     }
      
-    buckets.select(contactId, new Cursor<KUID, DefaultBucket>() {
+    snapshot.select(contactId, new Cursor<KUID, Trie<KUID, ContactEntry>>() {
       @Override
-      public Decision select(Entry<? extends KUID, ? extends DefaultBucket> entry) {
-        DefaultBucket bucket = entry.getValue();
-        return bucket.select(contactId, dst, count);
+      public Decision select(Entry<? extends KUID, 
+          ? extends Trie<KUID, ContactEntry>> entry) {
+        return DefaultRouteTable.this.select(
+            entry.getValue(), contactId, dst, count);
       }
     });
   }
   
-  private synchronized DHTFuture<PingEntity> ping(ContactEntry entry) {
-    Contact contact = entry.getContact();
-    
-    // Make sure we're not pinging the same host in parallel.
-    // It is an unlikely but possible case...
-    final ContactKey pingKey = new ContactKey(contact);
-    DHTFuture<PingEntity> future 
-      = pingFutures.get(pingKey);
-    
-    if (future == null) {
-      PingConfig pingConfig = config.getPingConfig();
-      future = ping(contact, pingConfig);
-      
-      future.addAsyncFutureListener(new AsyncFutureListener<PingEntity>() {
-        @Override
-        public void operationComplete(AsyncFuture<PingEntity> future) {
-          synchronized (DefaultRouteTable.this) {
-            pingFutures.remove(pingKey);
-          }
-        }
-      });
-      pingFutures.put(pingKey, future);
-    }
-    
-    return future;
-  }
-  
-  @Override
-  public synchronized void handleIoError(KUID contactId, SocketAddress address) {
-    // There is nothing we can do if we don't have the KUID.
-    // This is possible for PINGs that failed (that means we
-    // knew only the SocketAddress of the remote host).
-    if (contactId == null) {
-      return;
-    }
-    
-    if (isLocalhost(contactId)) {
-      return;
-    }
-    
-    DefaultBucket bucket = buckets.selectValue(contactId);
-    ContactEntry entry = bucket.get(contactId);
-    
-    // Huh? There is no such contact for the given KUID?
-    if (entry == null) {
-      return;
-    }
+  /**
+   * Selects and adds {@link Contact}s from a {@link Bucket}'s active 
+   * list by their XOR distance to the given {@link List} until its max 
+   * capacity has been reached.
+   * 
+   * <p>NOTE: If proximity routing is enabled then the {@link Contact}s
+   * that were selected from this {@link Bucket} and are equally close 
+   * in terms of their common prefix are sorted by their round trip time.
+   */
+  private Decision select(Trie<KUID, ContactEntry> active, 
+      KUID contactId, final List<Contact> dst, final int count) {
     
-    // Make sure we're not going kill the entire RouteTable 
-    // if the Network goes down!
-    if (++consecutiveErrors >= config.getMaxConsecutiveErrors()) {
-      return;
-    }
+    int offset = dst.size();
     
-    boolean dead = entry.error();
-    if (dead) {
-      
-      if (bucket.containsActive(contactId)) {
+    final double probability = config.getProbability();
+    active.select(contactId, new Cursor<KUID, ContactEntry>() {
+      @Override
+      public Decision select(Entry<? extends KUID, 
+          ? extends ContactEntry> entry) {
         
-        // Remove or replace Contacts in the *ACTIVE* RouteTable
-        // only if there is something in the replacement cache or
-        // if the Contact has just too many errors and there is
-        // simply no point in keeping it in the RouteTable.
+        ContactEntry value = entry.getValue();
         
-        if (!bucket.isCacheEmpty()) {
-          ContactEntry mrs = null;
-          while ((mrs = bucket.getMostRecentlySeenCachedContact()) != null) {
-            ContactEntry removed = bucket.removeCache(mrs);
-            assert (removed == mrs);
-            
-            if (isOkayToAdd(bucket, mrs)) {
-              removed = bucket.removeActive(entry);
-              assert (removed == entry 
-                  && !bucket.isActiveFull());
-              
-              bucket.addActive(mrs);
-              fireContactReplaced(bucket, 
-                  entry.getContact(), mrs.getContact());
-              break;
-            }
-          }
-        } else if (entry.getErrorCount() 
-            >= config.getTooManyErrorsCount()) {
-          ContactEntry removed = bucket.removeActive(entry);
-          assert(removed == entry && !bucket.isActiveFull());
-          
-          fireContactRemoved(bucket, entry.getContact());
+        double random = 1.0d;
+        if (value.isDead()) {
+          random = ThreadLocalRandom.current().nextDouble();
         }
         
-      } else {
-        
-        // This looks strange as Contacts are never selected from the 
-        // RouteTable but it's however possible that FIND_NODE responses 
-        // return Contacts that happen to be in our RouteTable's cache 
-        // and if that's the case we want to remove them ASAP.
+        if (random >= probability) {
+          dst.add(value.getContact());
+        }
         
-        ContactEntry removed = bucket.removeCache(contactId);
-        assert (removed == entry);
+        return (dst.size() < count ? Decision.CONTINUE : Decision.EXIT);
       }
+    });
+    
+    if (config.isProximityRouting()) {
+      ContactUtils.byRoundTripTime(contactId, 
+          dst.subList(offset, dst.size()));
     }
+    
+    return (dst.size() < count ? Decision.CONTINUE : Decision.EXIT);
   }
   
   /**
    * Returns all ACTIVE {@link ContactEntry}s.
    */
-  public synchronized ContactEntry[] getActiveContacts() {
+  public ContactEntry[] getActiveContacts() {
     return getContacts(true);
   }
-
+  
   /**
    * Returns all CACHED {@link ContactEntry}s.
    */
-  public synchronized ContactEntry[] getCachedContacts() {
+  public ContactEntry[] getCachedContacts() {
     return getContacts(false);
   }
-
+  
   /**
    * Returns {@link ContactEntry}ies of the given {@link ContactType}.
    */
   private ContactEntry[] getContacts(boolean active) {
     List<ContactEntry> contacts = new ArrayList<>();
-    for (DefaultBucket bucket : buckets.values()) {
-      
-      ContactEntry[] entitis = active ? bucket.getActive() : bucket.getCached();
-      
-      for (ContactEntry entry : entitis) {
-        contacts.add(entry);
+    
+    readLock.lock();
+    try {
+      for (DefaultBucket bucket : buckets.values()) {
+        
+        ContactEntry[] entitis = active ? bucket.getActive() : bucket.getCached();
+        
+        for (ContactEntry entry : entitis) {
+          contacts.add(entry);
+        }
       }
+    } finally {
+      readLock.unlock();
     }
     
     return contacts.toArray(new ContactEntry[0]);
   }
   
+  /**
+   * Prunes the {@link RouteTable} one {@link Bucket} at a time. The
+   * write lock is released between {@link Bucket}s and only the pings
+   * of {@link Contact}s that are being removed get cancelled.
+   * 
+   * <p>NOTE: Unlike {@link #clear()} this doesn't re-create (or merge)
+   * the {@link Bucket}s.
+   */
   @Override
-  public synchronized void prune() {
-    ContactEntry[] active = getActiveContacts();
-    ContactEntry[] cached = getCachedContacts();
-    
-    clear();
-    
-    // Sort the ACTIVE contacts by their health (most healthy to least healthy)
-    // and exit the loop as soon as we encounter the first DEAD contact.
-    ContactUtils.byHealth(active);
-    for (ContactEntry entry : active) {
-      if (entry.isDead()) {
-        break;
+  public void prune() {
+    KUID[] bucketIds = null;
+    
+    readLock.lock();
+    try {
+      bucketIds = buckets.keySet().toArray(new KUID[0]);
+    } finally {
+      readLock.unlock();
+    }
+    
+    for (KUID bucketId : bucketIds) {
+      writeLock.lock();
+      try {
+        // The Bucket may have been split in the meantime in
+        // which case we're pruning its left half.
+        DefaultBucket bucket = buckets.get(bucketId);
+        if (bucket != null) {
+          prune(bucket);
+        }
+      } finally {
+        writeLock.unlock();
       }
-      
-      add(entry.getContact());
-    }
-    
-    // Sort the CACHED contacts by their time stamp (most recently encountered
-    // to least recently encountered) and try to add them to the RouteTable.
-    LongevityUtils.byTimeStamp(cached);
-    for (ContactEntry entry : cached) {
-      add(entry.getContact());
     }
   }
   
   /**
    * Clears the {@link RouteTable}.
    */
-  public synchronized void clear() {
-    FutureUtils.cancelAll(pingFutures.values(), true);
-    pingFutures.clear();
-    
-    buckets.clear();
-    init();
+  public void clear() {
+    writeLock.lock();
+    try {
+      buckets.clear();
+      snapshot = null;
+      
+      init();
+    } finally {
+      writeLock.unlock();
+    }
   }
   
   @Override
-  public synchronized int size() {
+  public int size() {
     int size = 0;
     
-    for (Bucket bucket : buckets.values()) {
-      size += bucket.getActiveCount();
+    readLock.lock();
+    try {
+      for (Bucket bucket : buckets.values()) {
+        size += bucket.getActiveCount();
+      }
+    } finally {
+      readLock.unlock();
     }
     
     return size;
   }
   
   @Override
-  public synchronized Bucket[] getBuckets() {
-    return buckets.values().toArray(new Bucket[0]);
+  public Bucket[] getBuckets() {
+    readLock.lock();
+    try {
+      return buckets.values().toArray(new Bucket[0]);
+    } finally {
+      readLock.unlock();
+    }
   }
   
   @Override
-  public synchronized String toString() {
+  public String toString() {
     StringBuilder buffer = new StringBuilder();
     
-    int bucketIndex = 0;
-    for (Bucket bucket : getBuckets()) {
-      buffer.append(bucketIndex++).append(")")
-        .append(bucket.getId()).append("[")
-        .append(bucket.getDepth()).append("]\n");
-      
-      int contactIndex = 0;
-      for (ContactEntry entry : bucket.getActive()) {
-        buffer.append(" ").append(contactIndex++).append(") ")
-          .append(entry.getContact()).append("\n");
+    readLock.lock();
+    try {
+      int bucketIndex = 0;
+      for (Bucket bucket : getBuckets()) {
+        buffer.append(bucketIndex++).append(")")
+          .append(bucket.getId()).append("[")
+          .append(bucket.getDepth()).append("]\n");
+        
+        int contactIndex = 0;
+        for (ContactEntry entry : bucket.getActive()) {
+          buffer.append(" ").append(contactIndex++).append(") ")
+            .append(entry.getContact()).append("\n");
+        }
       }
+    } finally {
+      readLock.unlock();
     }
     
     return buffer.toString();
   }
   
-  private class DefaultBucket extends AbstractBucket {
+  private class DefaultBucket extends MutableBucket {
     
     private final Trie<KUID, ContactEntry> active;
     
@@ -704,6 +505,11 @@ public class DefaultRouteTable extends AbstractRouteTable {
     
     private final NetworkCounter counter;
     
+    /**
+     * A copy of the active list or {@code null} if it has changed.
+     */
+    private volatile Trie<KUID, ContactEntry> snapshot = null;
+    
     private DefaultBucket(KUID bucketId, int depth) {
       super(bucketId, depth);
       
@@ -729,7 +535,7 @@ public class DefaultRouteTable extends AbstractRouteTable {
     public boolean containsActive(KUID contactId) {
       return active.containsKey(contactId);
     }
-
+    
     @Override
     public boolean containsCached(KUID contactId) {
       return cached.containsKey(contactId);
@@ -739,12 +545,12 @@ public class DefaultRouteTable extends AbstractRouteTable {
     public ContactEntry getActive(KUID contactId) {
       return active.get(contactId);
     }
-
+    
     @Override
     public ContactEntry getCached(KUID contactId) {
       return cached.get(contactId);
     }
-
+    
     @Override
     public ContactEntry[] getActive() {
       return active.values().toArray(new ContactEntry[0]);
@@ -756,56 +562,41 @@ public class DefaultRouteTable extends AbstractRouteTable {
     }
     
     /**
-     * Returns {@code true} if the {@link Bucket}'s cache is full.
+     * Returns a copy of the {@link Bucket}'s active list. It must be
+     * called while holding the read or write lock.
      */
-    private boolean isCacheFull() {
-      return cached.isFull();
+    private Trie<KUID, ContactEntry> getSnapshot() {
+      Trie<KUID, ContactEntry> snapshot = this.snapshot;
+      if (snapshot == null) {
+        snapshot = new PatriciaTrie<>();
+        snapshot.putAll(active);
+        this.snapshot = snapshot;
+      }
+      return snapshot;
     }
     
     /**
-     * Returns {@code true} if the {@link Bucket} is full.
+     * Discards the copies of the active list.
      */
-    private boolean isActiveFull() {
-      return active.size() >= config.getK();
+    private void invalidate() {
+      snapshot = null;
+      DefaultRouteTable.this.snapshot = null;
     }
     
     /**
-     * Selects and adds {@link Contact}s by their XOR distance to the
-     * given {@link Collection} until its max capacity has been reached.
+     * Returns {@code true} if the {@link Bucket}'s cache is full.
      */
-    private Decision select(KUID contactId, 
-        final Collection<Contact> dst, final int count) {
-      
-      final double probability = config.getProbability();
-      active.select(contactId, new Cursor<KUID, ContactEntry>() {
-        @Override
-        public Decision select(Entry<? extends KUID, 
-            ? extends ContactEntry> entry) {
-          
-          ContactEntry value = entry.getValue();
-          
-          double random = 1.0d;
-          if (value.isDead()) {
-            random = Math.random();
-          }
-          
-          if (random >= probability) {
-            dst.add(value.getContact());
-          }
-          
-          return (dst.size() < count ? Decision.CONTINUE : Decision.EXIT);
-        }
-      });
-      
-      return (dst.size() < count ? Decision.CONTINUE : Decision.EXIT);
+    private boolean isCacheFull() {
+      return cached.isFull();
     }
     
-    /**
-     * Returns the number of {@link Contact}s in the {@link Bucket}'s 
-     * active list that are in the same network as the given 
-     * {@link SocketAddress}.
-     */
-    private int getContactCount(SocketAddress address) {
+    @Override
+    protected boolean isActiveFull() {
+      return active.size() >= config.getK();
+    }
+    
+    @Override
+    protected int getContactCount(SocketAddress address) {
       return counter.get(address);
     }
     
@@ -826,10 +617,8 @@ public class DefaultRouteTable extends AbstractRouteTable {
       }
     }
     
-    /**
-     * Adds the given {@link ContactEntry} to the {@link Bucket}'s active list.
-     */
-    private boolean addActive(ContactEntry entry) {
+    @Override
+    protected boolean addActive(ContactEntry entry) {
       KUID contactId = entry.getId();
       
       // Make sure Bucket does not contain the Contact!
@@ -837,6 +626,7 @@ public class DefaultRouteTable extends AbstractRouteTable {
         
       if (hasOrMakeSpace()) {
         active.put(contactId, entry);
+        invalidate();
         
         Contact contact = entry.getContact();
         
@@ -852,10 +642,8 @@ public class DefaultRouteTable extends AbstractRouteTable {
       return false;
     }
     
-    /**
-     * Adds the {@link ContactEntry} to the {@link Bucket}'s cache list.
-     */
-    private ContactEntry addCache(ContactEntry entry) {
+    @Override
+    protected ContactEntry addCache(ContactEntry entry) {
       Contact contact = entry.getContact();
       KUID contactId = contact.getId();
       
@@ -887,11 +675,8 @@ public class DefaultRouteTable extends AbstractRouteTable {
       return ContactUtils.getLeastRecentlySeen(cached.values());
     }
     
-    /**
-     * Returns the least recently seen {@link ContactEntry} in 
-     * the {@link Bucket}'s active list.
-     */
-    private ContactEntry getLeastRecentlySeenActiveContact() {
+    @Override
+    protected ContactEntry getLeastRecentlySeenActiveContact() {
       return ContactUtils.getLeastRecentlySeen(active.values());
     }
     
@@ -903,6 +688,18 @@ public class DefaultRouteTable extends AbstractRouteTable {
       return ContactUtils.getMostRecentlySeen(cached.values());
     }
     
+    /**
+     * Returns the most recently seen or, if proximity routing is 
+     * enabled, the fastest {@link ContactEntry}.
+     */
+    @Override
+    protected ContactEntry getReplacementCachedContact() {
+      if (config.isProximityRouting()) {
+        return ContactUtils.getLowestLatency(cached.values());
+      }
+      return getMostRecentlySeenCachedContact();
+    }
+    
     /**
      * Returns {@code true} if the {@link Bucket} has or was able
      * to make space in the active list.
@@ -920,22 +717,14 @@ public class DefaultRouteTable extends AbstractRouteTable {
       return !isActiveFull();
     }
     
-    /**
-     * Removes the given {@link Identifier} from the {@link Bucket}.
-     */
-    private ContactEntry remove(Identifier identifer) {
-      ContactEntry entry = removeActive(identifer);
+    @Override
+    protected ContactEntry removeActive(Identifier identifier) {
+      ContactEntry entry = active.remove(identifier.getId());
       if (entry == null) {
-        entry = removeCache(identifer);
+        return null;
       }
-      return entry;
-    }
-    
-    /**
-     * Removes the given {@link Identifier} from the {@link Bucket}'s active list.
-     */
-    private ContactEntry removeActive(Identifier identifier) {
-      ContactEntry entry = active.remove(identifier.getId());
+      
+      invalidate();
       
       Contact contact = entry.getContact();
       
@@ -947,10 +736,8 @@ public class DefaultRouteTable extends AbstractRouteTable {
       return entry;
     }
     
-    /**
-     * Removes the given {@link Identifier} from the {@link Bucket}'s cache list.
-     */
-    private ContactEntry removeCache(Identifier identifier) {
+    @Override
+    protected ContactEntry removeCache(Identifier identifier) {
       return cached.remove(identifier.getId());
     }
     
@@ -986,16 +773,4 @@ public class DefaultRouteTable extends AbstractRouteTable {
       return new DefaultBucket[] { left, right };
     }
   }
-  
-  private static class StateEntity {
-    
-    private final Bucket bucket;
-    
-    private final Contact existing;
-
-    public StateEntity(Bucket bucket, Contact existing) {
-      this.bucket = bucket;
-      this.existing = existing;
-    }
-  }
 }
\ No newline at end of file
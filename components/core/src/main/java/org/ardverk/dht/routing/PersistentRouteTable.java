@@ -0,0 +1,436 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.routing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.ardverk.concurrent.ExecutorUtils;
+import org.ardverk.concurrent.FutureUtils;
+import org.ardverk.dht.KUID;
+import org.ardverk.dht.routing.Contact.Type;
+import org.ardverk.io.IoUtils;
+import org.ardverk.lang.TimeStamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DefaultRouteTable} that periodically writes a snapshot of
+ * its {@link Contact}s to disk and restores itself from it upon
+ * construction.
+ *
+ * <p>Restored {@link Contact}s are not pinged up front. They're added
+ * as {@link Type#UNSOLICITED} (or {@link Type#UNKNOWN}) {@link Contact}s
+ * and get verified (and eventually replaced) lazily through the regular
+ * lookup and maintenance traffic. The time stamps of the restored
+ * {@link Contact}s are set to when they were seen the last time.
+ * 
+ * <p>Use {@link PersistentRouteTableModule} to create the 
+ * {@link RouteTable} of a {@link org.ardverk.dht.DHT} this way.
+ */
+public class PersistentRouteTable extends DefaultRouteTable implements Closeable {
+  
+  private static final Logger LOG
+    = LoggerFactory.getLogger(PersistentRouteTable.class);
+  
+  private static final ScheduledThreadPoolExecutor EXECUTOR
+    = ExecutorUtils.newSingleThreadScheduledExecutor(
+        "PersistentRouteTableThread");
+  
+  private static final int MAGIC = 0x52544253; // RTBS
+  
+  private static final int VERSION = 1;
+  
+  private final File file;
+  
+  private final ScheduledFuture<?> future;
+  
+  public PersistentRouteTable(RouteTableConfig config,
+      Identity localhost, File file, long frequency, TimeUnit unit) {
+    super(config, localhost);
+    
+    this.file = file;
+    
+    if (file.exists()) {
+      try {
+        int count = load(file);
+        
+        if (LOG.isInfoEnabled()) {
+          LOG.info("Restored " + count + " Contacts from " + file);
+        }
+      } catch (IOException err) {
+        // A corrupt snapshot is treated like a missing one
+        LOG.error("Ignoring the snapshot " + file, err);
+      } catch (RuntimeException err) {
+        LOG.error("Ignoring the snapshot " + file, err);
+      }
+    }
+    
+    ScheduledFuture<?> future = null;
+    if (0L < frequency) {
+      Runnable task = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            save();
+          } catch (IOException err) {
+            LOG.error("IOException", err);
+          }
+        }
+      };
+      
+      future = EXECUTOR.scheduleWithFixedDelay(
+          task, frequency, frequency, unit);
+    }
+    
+    this.future = future;
+  }
+  
+  /**
+   * Returns the snapshot {@link File}.
+   */
+  public File getFile() {
+    return file;
+  }
+  
+  /**
+   * Cancels the periodic snapshots and writes a final snapshot to disk.
+   */
+  @Override
+  public void close() throws IOException {
+    FutureUtils.cancel(future, true);
+    save();
+  }
+  
+  /**
+   * Writes a snapshot of the {@link RouteTable} to disk. The snapshot is
+   * written to a temporary {@link File} first and renamed afterwards.
+   */
+  public void save() throws IOException {
+    File tmp = new File(file.getAbsolutePath() + ".tmp");
+    try {
+      OutputStream out = new BufferedOutputStream(
+          new FileOutputStream(tmp));
+      try {
+        writeSnapshot(out);
+      } finally {
+        IoUtils.close(out);
+      }
+      
+      if (file.exists() && !file.delete()) {
+        throw new IOException("Failed to delete " + file);
+      }
+      
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Failed to rename " + tmp + " to " + file);
+      }
+    } finally {
+      tmp.delete();
+    }
+  }
+  
+  private int load(File file) throws IOException {
+    InputStream in = new BufferedInputStream(
+        new FileInputStream(file));
+    try {
+      return readSnapshot(in);
+    } finally {
+      IoUtils.close(in);
+    }
+  }
+  
+  /**
+   * Writes all ACTIVE and CACHED {@link ContactEntry}s to the
+   * given {@link OutputStream}. Dead {@link Contact}s and 
+   * {@link Contact}s without a resolved address are omitted.
+   */
+  public void writeSnapshot(OutputStream out) throws IOException {
+    ContactEntry[] active = null;
+    ContactEntry[] cached = null;
+    
+    Lock readLock = getLock().readLock();
+    readLock.lock();
+    try {
+      active = getActiveContacts();
+      cached = getCachedContacts();
+    } finally {
+      readLock.unlock();
+    }
+    
+    KUID localhostId = getIdentity().getId();
+    
+    List<ContactEntry> entries = new ArrayList<>(active.length + cached.length);
+    for (ContactEntry entry : active) {
+      if (isPersistable(entry) && !entry.getId().equals(localhostId)) {
+        entries.add(entry);
+      }
+    }
+    
+    int activeCount = entries.size();
+    for (ContactEntry entry : cached) {
+      if (isPersistable(entry)) {
+        entries.add(entry);
+      }
+    }
+    
+    DataOutputStream dos = new DataOutputStream(out);
+    dos.writeInt(MAGIC);
+    dos.writeByte(VERSION);
+    dos.writeInt(activeCount);
+    dos.writeInt(entries.size() - activeCount);
+    
+    for (ContactEntry entry : entries) {
+      writeEntry(dos, entry);
+    }
+    
+    dos.flush();
+  }
+  
+  /**
+   * Returns {@code true} if the given {@link ContactEntry} is alive
+   * and its {@link Contact}'s address can be written to a snapshot.
+   */
+  private static boolean isPersistable(ContactEntry entry) {
+    if (entry.isDead()) {
+      return false;
+    }
+    
+    SocketAddress address = entry.getContact().getSocketAddress();
+    return address instanceof InetSocketAddress 
+        && ((InetSocketAddress)address).getAddress() != null;
+  }
+  
+  /**
+   * Reads a snapshot from the given {@link InputStream} and adds its
+   * {@link Contact}s to the {@link RouteTable}. Returns the number of
+   * {@link Contact}s that were read.
+   */
+  public int readSnapshot(InputStream in) throws IOException {
+    DataInputStream dis = new DataInputStream(in);
+    
+    int magic = dis.readInt();
+    if (magic != MAGIC) {
+      throw new IOException("magic=" + magic);
+    }
+    
+    int version = dis.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("version=" + version);
+    }
+    
+    int activeCount = dis.readInt();
+    int cachedCount = dis.readInt();
+    
+    // The counts are checked against the max size of the RouteTable
+    // to not allocate huge arrays for a corrupt snapshot.
+    RouteTableConfig config = getRouteTableConfig();
+    int maxBuckets = getMaxBucketCount();
+    
+    if (activeCount < 0 || (long)getK() * maxBuckets < activeCount 
+        || cachedCount < 0 
+        || (long)config.getMaxCacheSize() * maxBuckets < cachedCount) {
+      throw new IOException("activeCount=" + activeCount
+          + ", cachedCount=" + cachedCount);
+    }
+    
+    int length = getIdentity().getId().length();
+    Snapshot[] active = readEntries(dis, activeCount, length);
+    Snapshot[] cached = readEntries(dis, cachedCount, length);
+    
+    Lock writeLock = getLock().writeLock();
+    writeLock.lock();
+    try {
+      // The ACTIVE Contacts go first to re-create the Buckets and
+      // the CACHED Contacts afterwards to fill the replacement caches.
+      restoreAll(active);
+      restoreAll(cached);
+    } finally {
+      writeLock.unlock();
+    }
+    
+    return active.length + cached.length;
+  }
+  
+  /**
+   * Returns the max number of {@link Bucket}s a snapshot may describe.
+   * A {@link RouteTable} has about one {@link Bucket} per bit of the 
+   * {@link KUID} and some more if the smallest subtree gets split.
+   */
+  private int getMaxBucketCount() {
+    int lengthInBits = getIdentity().getId().lengthInBits();
+    return 2 * (lengthInBits + 1);
+  }
+  
+  /**
+   * Adds the {@link Contact}s from the least recently seen to the
+   * most recently seen {@link Contact}.
+   */
+  private void restoreAll(Snapshot[] snapshots) {
+    Arrays.sort(snapshots, new Comparator<Snapshot>() {
+      @Override
+      public int compare(Snapshot o1, Snapshot o2) {
+        return Long.compare(o2.age, o1.age);
+      }
+    });
+    
+    for (Snapshot snapshot : snapshots) {
+      restore(snapshot.contact, snapshot.errorCount);
+    }
+  }
+  
+  private static void writeEntry(DataOutputStream out,
+      ContactEntry entry) throws IOException {
+    Contact contact = entry.getContact();
+    
+    byte[] contactId = contact.getId().getBytes();
+    out.writeByte(contactId.length);
+    out.write(contactId);
+    
+    out.writeBoolean(contact.isActive());
+    out.writeInt(contact.getInstanceId());
+    out.writeBoolean(contact.isHidden());
+    
+    writeAddress(out, contact.getSocketAddress());
+    writeAddress(out, contact.getContactAddress());
+    
+    out.writeLong(contact.getRoundTripTimeInMillis());
+    out.writeInt(entry.getErrorCount());
+    out.writeLong(contact.getTimeSinceLastContactInMillis());
+  }
+  
+  private static Snapshot[] readEntries(DataInputStream in,
+      int count, int length) throws IOException {
+    Snapshot[] snapshots = new Snapshot[count];
+    for (int i = 0; i < snapshots.length; i++) {
+      snapshots[i] = readEntry(in, length);
+    }
+    return snapshots;
+  }
+  
+  private static Snapshot readEntry(DataInputStream in, 
+      int length) throws IOException {
+    
+    int contactIdLength = in.readUnsignedByte();
+    if (contactIdLength != length) {
+      throw new IOException("length=" + contactIdLength);
+    }
+    
+    byte[] contactId = new byte[contactIdLength];
+    in.readFully(contactId);
+    
+    boolean active = in.readBoolean();
+    int instanceId = in.readInt();
+    boolean hidden = in.readBoolean();
+    
+    SocketAddress socketAddress = readAddress(in);
+    SocketAddress contactAddress = readAddress(in);
+    
+    if (socketAddress == null) {
+      throw new IOException("socketAddress=null");
+    }
+    
+    long rtt = in.readLong();
+    int errorCount = in.readInt();
+    long age = in.readLong();
+    
+    if (errorCount < 0 || age < 0L) {
+      throw new IOException("errorCount=" + errorCount + ", age=" + age);
+    }
+    
+    Type type = active ? Type.UNSOLICITED : Type.UNKNOWN;
+    DefaultContact contact = new DefaultContact(type, KUID.create(contactId),
+        instanceId, hidden, socketAddress, contactAddress,
+        rtt, TimeUnit.MILLISECONDS);
+    
+    // The snapshot has the age at the time it was written rather 
+    // than an absolute time that depends on the previous wall clock.
+    contact.setTimeStamp(new TimeStamp(System.currentTimeMillis() - age));
+    
+    return new Snapshot(contact, errorCount, age);
+  }
+  
+  private static void writeAddress(DataOutputStream out,
+      SocketAddress address) throws IOException {
+    
+    InetAddress addr = null;
+    if (address instanceof InetSocketAddress) {
+      addr = ((InetSocketAddress)address).getAddress();
+    }
+    
+    if (addr == null) {
+      out.writeByte(0);
+      return;
+    }
+    
+    byte[] data = addr.getAddress();
+    out.writeByte(data.length);
+    out.write(data);
+    out.writeShort(((InetSocketAddress)address).getPort());
+  }
+  
+  private static SocketAddress readAddress(DataInputStream in) throws IOException {
+    int length = in.readUnsignedByte();
+    if (length == 0) {
+      return null;
+    }
+    
+    byte[] data = new byte[length];
+    in.readFully(data);
+    int port = in.readUnsignedShort();
+    
+    return new InetSocketAddress(InetAddress.getByAddress(data), port);
+  }
+  
+  /**
+   * A {@link Contact} that was read from a snapshot.
+   */
+  private static class Snapshot {
+    
+    private final Contact contact;
+    
+    private final int errorCount;
+    
+    private final long age;
+    
+    public Snapshot(Contact contact, int errorCount, long age) {
+      this.contact = contact;
+      this.errorCount = errorCount;
+      this.age = age;
+    }
+  }
+}
+  
\ No newline at end of file
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.routing;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Singleton;
+
+import org.ardverk.lang.Precoditions;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+
+/**
+ * A {@link com.google.inject.Module} that replaces the 
+ * {@link DefaultRouteTable} with a {@link PersistentRouteTable}.
+ */
+public class PersistentRouteTableModule extends AbstractModule {
+  
+  private final File file;
+  
+  private final long frequency;
+  
+  private final TimeUnit unit;
+  
+  public PersistentRouteTableModule(File file) {
+    this(file, 5L, TimeUnit.MINUTES);
+  }
+  
+  public PersistentRouteTableModule(File file, 
+      long frequency, TimeUnit unit) {
+    this.file = Precoditions.notNull(file, "file");
+    this.frequency = frequency;
+    this.unit = Precoditions.notNull(unit, "unit");
+  }
+  
+  @Override
+  protected void configure() {
+  }
+  
+  @Provides @Singleton
+  RouteTable getRouteTable(RouteTableConfig config, Identity localhost) {
+    return new PersistentRouteTable(config, localhost, file, frequency, unit);
+  }
+}
\ No newline at end of file
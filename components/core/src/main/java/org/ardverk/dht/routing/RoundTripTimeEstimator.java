@@ -0,0 +1,152 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.routing;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of a smoothed Round-Trip-Time (RTT) and its variance 
+ * using the Jacobson/Karels algorithm (see RFC 6298) and computes 
+ * retransmission timeouts from them.
+ */
+public class RoundTripTimeEstimator {
+  
+  /**
+   * The min timeout in milliseconds.
+   */
+  private static final long MIN_TIMEOUT = 1000L;
+  
+  /**
+   * The clock granularity in milliseconds.
+   */
+  private static final long GRANULARITY = 10L;
+  
+  private static final double ALPHA = 1d/8d;
+  
+  private static final double BETA = 1d/4d;
+  
+  /**
+   * The max number of consecutive backoffs.
+   */
+  private static final int MAX_BACKOFFS = 16;
+  
+  private double srtt = -1d;
+  
+  private double rttvar = -1d;
+  
+  private int backoffs = 0;
+  
+  /**
+   * Adds a RTT sample. Samples of retransmitted requests are ambiguous 
+   * and must not be added (Karn's algorithm).
+   */
+  public void sample(long rtt, TimeUnit unit) {
+    double sample = unit.toMillis(rtt);
+    if (sample <= 0d) {
+      return;
+    }
+    
+    synchronized (this) {
+      backoffs = 0;
+      
+      if (srtt < 0d) {
+        srtt = sample;
+        rttvar = sample / 2d;
+      } else {
+        rttvar = (1d - BETA) * rttvar + BETA * Math.abs(srtt - sample);
+        srtt = (1d - ALPHA) * srtt + ALPHA * sample;
+      }
+    }
+  }
+  
+  /**
+   * Called for every retransmission. The retransmission interval
+   * stays backed off until the next RTT sample.
+   */
+  public synchronized void backoff() {
+    if (backoffs < MAX_BACKOFFS) {
+      ++backoffs;
+    }
+  }
+  
+  /**
+   * Returns the number of retransmissions since the most recent 
+   * RTT sample.
+   */
+  public synchronized int getBackoffs() {
+    return backoffs;
+  }
+  
+  /**
+   * Returns {@code true} if the {@link RoundTripTimeEstimator} 
+   * has any RTT samples.
+   */
+  public synchronized boolean hasSamples() {
+    return 0d <= srtt;
+  }
+  
+  /**
+   * Returns the smoothed RTT or a negative value if it's unknown.
+   */
+  public synchronized long getSmoothedRoundTripTime(TimeUnit unit) {
+    if (srtt < 0d) {
+      return -1L;
+    }
+    return unit.convert((long)srtt, TimeUnit.MILLISECONDS);
+  }
+  
+  /**
+   * Returns the RTT variance or a negative value if it's unknown.
+   */
+  public synchronized long getRoundTripTimeVariance(TimeUnit unit) {
+    if (rttvar < 0d) {
+      return -1L;
+    }
+    return unit.convert((long)rttvar, TimeUnit.MILLISECONDS);
+  }
+  
+  /**
+   * Returns the timeout (SRTT + max(G, 4 * RTTVAR)) which is at least
+   * one second and at most the given default timeout. The default 
+   * timeout is returned if there are no RTT samples.
+   */
+  public long getTimeout(long defaultTimeout, TimeUnit unit) {
+    double srtt = -1d;
+    double rttvar = -1d;
+    
+    synchronized (this) {
+      srtt = this.srtt;
+      rttvar = this.rttvar;
+    }
+    
+    if (srtt < 0d) {
+      return defaultTimeout;
+    }
+    
+    long timeout = (long)Math.ceil(srtt 
+        + Math.max(GRANULARITY, 4d * rttvar));
+    timeout = Math.max(MIN_TIMEOUT, timeout);
+    
+    return Math.min(unit.convert(timeout, 
+        TimeUnit.MILLISECONDS), defaultTimeout);
+  }
+  
+  @Override
+  public synchronized String toString() {
+    return "srtt=" + srtt + ", rttvar=" + rttvar + ", backoffs=" + backoffs;
+  }
+}
\ No newline at end of file
@@ -44,6 +44,12 @@ public interface RouteTable extends Bindable<ContactPinger>, IoErrorCallback {
    */
   public void add(Contact contact);
   
+  /**
+   * Adds all given {@link Contact}s to the {@link RouteTable} in
+   * a single batch.
+   */
+  public void addAll(Contact[] contacts);
+  
   /**
    * Returns a {@link Contact} for the given {@link KUID}.
    */
@@ -92,6 +98,16 @@ public interface RouteTable extends Bindable<ContactPinger>, IoErrorCallback {
    */
   public RouteTableListener[] getRouteTableListeners();
   
+  /**
+   * Adds the given {@link RouteTableBatchListener}.
+   */
+  public void addRouteTableBatchListener(RouteTableBatchListener l);
+  
+  /**
+   * Removes the given {@link RouteTableBatchListener}.
+   */
+  public void removeRouteTableBatchListener(RouteTableBatchListener l);
+  
   /**
    * A callback interface the {@link RouteTable} uses to send 
    * ping requests to {@link Contact}s.
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.routing;
+
+/**
+ * A {@link RouteTableBatchListener} receives {@link RouteTableEvent}s 
+ * in batches rather than one callback per change.
+ */
+public interface RouteTableBatchListener {
+  
+  /**
+   * Called with all {@link RouteTableEvent}s that have accumulated 
+   * since the previous call in the order they occurred.
+   * 
+   * @param events the {@link RouteTableEvent}s
+   * @param dropped the number of {@link RouteTableEvent}s that were 
+   * discarded because the event buffer overflowed. A listener that 
+   * mirrors the {@link RouteTable} must re-read it if it's non-zero.
+   */
+  public void handleEvents(RouteTableEvent[] events, int dropped);
+}
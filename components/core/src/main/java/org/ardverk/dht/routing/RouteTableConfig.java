@@ -20,6 +20,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.ardverk.dht.concurrent.ExecutorKey;
 import org.ardverk.dht.config.PingConfig;
+import org.ardverk.dht.io.TrafficClass;
 import org.ardverk.net.NetworkMask;
 import org.ardverk.utils.TimeUtils;
 
@@ -48,6 +49,11 @@ public class RouteTableConfig {
   
   private volatile boolean checkIdentity = true;
   
+  private volatile boolean proximityRouting = false;
+  
+  private volatile int eventBufferSize 
+    = AbstractRouteTable.DEFAULT_EVENT_BUFFER_SIZE;
+  
   private volatile int maxContactErrors = 5;
   
   private volatile long hasBeenActiveTimeoutInMillis 
@@ -56,6 +62,7 @@ public class RouteTableConfig {
   // INIT
   {
     pingConfig.setExecutorKey(ExecutorKey.BACKEND);
+    pingConfig.setTrafficClass(TrafficClass.BACKGROUND);
   }
   
   public RouteTableConfig() {
@@ -134,6 +141,30 @@ public class RouteTableConfig {
     this.checkIdentity = checkIdentity;
   }
 
+  public boolean isProximityRouting() {
+    return proximityRouting;
+  }
+  
+  /**
+   * Turns proximity routing on or off for the {@link RouteTable}. It
+   * affects the order of {@link RouteTable#select(org.ardverk.dht.KUID)} 
+   * and which cached {@link Contact} replaces a dead one. The lookups 
+   * are configured separately and per operation through 
+   * {@link org.ardverk.dht.config.NodeConfig#setProximityRouting(boolean)}
+   * because the {@link RouteTable} is shared by all operations.
+   */
+  public void setProximityRouting(boolean proximityRouting) {
+    this.proximityRouting = proximityRouting;
+  }
+  
+  public int getEventBufferSize() {
+    return eventBufferSize;
+  }
+  
+  public void setEventBufferSize(int eventBufferSize) {
+    this.eventBufferSize = eventBufferSize;
+  }
+  
   public PingConfig getPingConfig() {
     return pingConfig;
   }
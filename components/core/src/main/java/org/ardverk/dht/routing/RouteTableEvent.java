@@ -0,0 +1,220 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.routing;
+
+/**
+ * A {@link RouteTableEvent} describes a single change of the 
+ * {@link RouteTable}.
+ * 
+ * @see RouteTableBatchListener
+ */
+public class RouteTableEvent {
+  
+  /**
+   * The type of the {@link RouteTableEvent}. Each type corresponds
+   * to a callback method of the {@link RouteTableListener}.
+   */
+  public static enum Type {
+    CONTACT,
+    CONTACTS,
+    BUCKET_SPLIT,
+    CONTACT_ADDED,
+    CONTACT_REPLACED,
+    CONTACT_CHANGED,
+    CONTACT_REMOVED,
+    CONTACT_COLLISION;
+  }
+  
+  private final Type type;
+  
+  private final Bucket bucket;
+  
+  private final Bucket left;
+  
+  private final Bucket right;
+  
+  private final Contact existing;
+  
+  private final Contact contact;
+  
+  private final Bucket[] buckets;
+  
+  private final Contact[] existingContacts;
+  
+  private final Contact[] contacts;
+  
+  private RouteTableEvent(Type type, Bucket bucket, Bucket left, 
+      Bucket right, Contact existing, Contact contact) {
+    this(type, bucket, left, right, existing, contact, null, null, null);
+  }
+  
+  private RouteTableEvent(Type type, Bucket bucket, Bucket left, 
+      Bucket right, Contact existing, Contact contact, 
+      Bucket[] buckets, Contact[] existingContacts, Contact[] contacts) {
+    this.type = type;
+    this.bucket = bucket;
+    this.left = left;
+    this.right = right;
+    this.existing = existing;
+    this.contact = contact;
+    this.buckets = buckets;
+    this.existingContacts = existingContacts;
+    this.contacts = contacts;
+  }
+  
+  /**
+   * Creates a {@link RouteTableEvent} for the given {@link Type} and
+   * {@link Contact}s.
+   */
+  static RouteTableEvent create(Type type, Bucket bucket, 
+      Contact existing, Contact contact) {
+    return new RouteTableEvent(type, bucket, null, null, existing, contact);
+  }
+  
+  /**
+   * Creates a {@link Type#BUCKET_SPLIT} {@link RouteTableEvent}.
+   */
+  static RouteTableEvent split(Bucket bucket, Bucket left, Bucket right) {
+    return new RouteTableEvent(Type.BUCKET_SPLIT, 
+        bucket, left, right, null, null);
+  }
+  
+  /**
+   * Creates a {@link Type#CONTACTS} {@link RouteTableEvent}. The 
+   * arrays are parallel and must have the same length.
+   */
+  static RouteTableEvent contacts(Bucket[] buckets, 
+      Contact[] existingContacts, Contact[] contacts) {
+    return new RouteTableEvent(Type.CONTACTS, null, null, null, 
+        null, null, buckets, existingContacts, contacts);
+  }
+  
+  public Type getType() {
+    return type;
+  }
+  
+  /**
+   * Returns the {@link Bucket} or {@code null} for 
+   * {@link Type#CONTACT_COLLISION} events.
+   */
+  public Bucket getBucket() {
+    return bucket;
+  }
+  
+  /**
+   * Returns the left {@link Bucket} of a {@link Type#BUCKET_SPLIT} event.
+   */
+  public Bucket getLeft() {
+    return left;
+  }
+  
+  /**
+   * Returns the right {@link Bucket} of a {@link Type#BUCKET_SPLIT} event.
+   */
+  public Bucket getRight() {
+    return right;
+  }
+  
+  /**
+   * Returns the existing {@link Contact} (may be {@code null}).
+   */
+  public Contact getExisting() {
+    return existing;
+  }
+  
+  /**
+   * Returns the {@link Contact} (may be {@code null}).
+   */
+  public Contact getContact() {
+    return contact;
+  }
+  
+  /**
+   * Returns the number of {@link Contact}s of a {@link Type#CONTACTS}
+   * event or {@code 1} for all other events.
+   */
+  public int size() {
+    return contacts != null ? contacts.length : 1;
+  }
+  
+  /**
+   * Returns the {@link Bucket}s of a {@link Type#CONTACTS} event.
+   */
+  public Bucket[] getBuckets() {
+    return buckets;
+  }
+  
+  /**
+   * Returns the existing {@link Contact}s of a {@link Type#CONTACTS} 
+   * event. The elements may be {@code null}.
+   */
+  public Contact[] getExistingContacts() {
+    return existingContacts;
+  }
+  
+  /**
+   * Returns the {@link Contact}s of a {@link Type#CONTACTS} event.
+   */
+  public Contact[] getContacts() {
+    return contacts;
+  }
+  
+  /**
+   * Dispatches the {@link RouteTableEvent} to the matching callback
+   * method of the given {@link RouteTableListener}. A {@link Type#CONTACTS}
+   * event calls {@link RouteTableListener#handleContact(Bucket, Contact, Contact)}
+   * once for each of its {@link Contact}s.
+   */
+  public void dispatch(RouteTableListener l) {
+    switch (type) {
+      case CONTACT:
+        l.handleContact(bucket, existing, contact);
+        break;
+      case CONTACTS:
+        for (int i = 0; i < contacts.length; i++) {
+          l.handleContact(buckets[i], existingContacts[i], contacts[i]);
+        }
+        break;
+      case BUCKET_SPLIT:
+        l.handleBucketSplit(bucket, left, right);
+        break;
+      case CONTACT_ADDED:
+        l.handleContactAdded(bucket, contact);
+        break;
+      case CONTACT_REPLACED:
+        l.handleContactReplaced(bucket, existing, contact);
+        break;
+      case CONTACT_CHANGED:
+        l.handleContactChanged(bucket, existing, contact);
+        break;
+      case CONTACT_REMOVED:
+        l.handleContactRemoved(bucket, contact);
+        break;
+      case CONTACT_COLLISION:
+        l.handleContactCollision(existing, contact);
+        break;
+      default:
+        throw new IllegalStateException("type=" + type);
+    }
+  }
+  
+  @Override
+  public String toString() {
+    return type + ": bucket=" + bucket + ", existing=" 
+        + existing + ", contact=" + contact;
+  }
+}
@@ -26,6 +26,11 @@ public interface RouteTableListener {
   
   public void handleContactReplaced(Bucket bucket, Contact existing, Contact contact);
   
+  /**
+   * Called if a {@link Contact} was updated. The existing and the updated
+   * {@link Contact} are the same instance if only its time stamp and RTT 
+   * changed.
+   */
   public void handleContactChanged(Bucket bucket, Contact existing, Contact contact);
   
   public void handleContactRemoved(Bucket bucket, Contact contact);
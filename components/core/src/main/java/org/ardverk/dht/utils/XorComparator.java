@@ -41,12 +41,9 @@ public class XorComparator implements Comparator<Identifier> {
     return identifier;
   }
   
-  private KUID xor(Identifier id) {
-    return identifier.getId().xor(id.getId());
-  }
-  
   @Override
   public int compare(Identifier o1, Identifier o2) {
-    return xor(o1).compareTo(xor(o2));
+    KUID id1 = o1.getId();
+    return id1.compareTo(identifier.getId(), o2.getId());
   }
 }
\ No newline at end of file
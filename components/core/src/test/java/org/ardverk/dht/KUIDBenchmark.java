@@ -0,0 +1,197 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht;
+
+import org.ardverk.collection.KeyAnalyzer;
+
+/**
+ * A simple benchmark that compares {@link KUID#bitIndex(KUID)}, 
+ * {@link KUID#commonPrefix(KUID)} and {@link KUID#compareTo(KUID, KUID)} 
+ * with the byte-by-byte implementations they replaced. The 
+ * {@link KeyAnalyzer} of the PATRICIA Trie is built on top of 
+ * {@link KUID#bitIndex(KUID)} and {@link KUID#isBitSet(int)}.
+ * 
+ * <pre>
+ * java -cp ... org.ardverk.dht.KUIDBenchmark [iterations]
+ * </pre>
+ */
+public class KUIDBenchmark {
+  
+  private static final int COUNT = 1024;
+  
+  private static final int ROUNDS = 5;
+  
+  private static volatile long sink = 0L;
+  
+  public static void main(String[] args) {
+    int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 20000000;
+    
+    // Share a common prefix to make the comparisons 
+    // look at more than just the first byte.
+    KUID prefix = KUID.createRandom(20);
+    
+    KUID[] ids = new KUID[COUNT];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = KUID.createWithPrefix(prefix, 63);
+    }
+    
+    for (int round = 0; round < ROUNDS; round++) {
+      boolean warmup = (round < ROUNDS - 1);
+      
+      report(warmup, "bitIndex (words)", iterations, bitIndexWords(ids, iterations));
+      report(warmup, "bitIndex (bytes)", iterations, bitIndexBytes(ids, iterations));
+      report(warmup, "commonPrefix (words)", iterations, commonPrefix(ids, iterations));
+      report(warmup, "compareTo (words)", iterations, compareToWords(ids, iterations));
+      report(warmup, "compareTo (bytes)", iterations, compareToBytes(ids, iterations));
+      report(warmup, "xor (words)", iterations / 10, xor(ids, iterations / 10));
+    }
+  }
+  
+  private static void report(boolean warmup, String name, 
+      int iterations, long time) {
+    if (!warmup) {
+      System.out.printf("%-24s %8.2f ns/op%n", name, (double)time / iterations);
+    }
+  }
+  
+  private static long bitIndexWords(KUID[] ids, int iterations) {
+    long result = 0L;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      result += ids[i & (COUNT-1)].bitIndex(ids[(i+1) & (COUNT-1)]);
+    }
+    long time = System.nanoTime() - start;
+    sink += result;
+    return time;
+  }
+  
+  private static long bitIndexBytes(KUID[] ids, int iterations) {
+    byte[][] values = toBytes(ids);
+    
+    long result = 0L;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      result += bitIndex(values[i & (COUNT-1)], values[(i+1) & (COUNT-1)]);
+    }
+    long time = System.nanoTime() - start;
+    sink += result;
+    return time;
+  }
+  
+  private static long commonPrefix(KUID[] ids, int iterations) {
+    long result = 0L;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      result += ids[i & (COUNT-1)].commonPrefix(ids[(i+1) & (COUNT-1)]);
+    }
+    long time = System.nanoTime() - start;
+    sink += result;
+    return time;
+  }
+  
+  private static long compareToWords(KUID[] ids, int iterations) {
+    KUID key = ids[0];
+    
+    long result = 0L;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      result += ids[i & (COUNT-1)].compareTo(key, ids[(i+1) & (COUNT-1)]);
+    }
+    long time = System.nanoTime() - start;
+    sink += result;
+    return time;
+  }
+  
+  private static long compareToBytes(KUID[] ids, int iterations) {
+    byte[][] values = toBytes(ids);
+    byte[] key = values[0];
+    
+    long result = 0L;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      result += compareTo(values[i & (COUNT-1)], key, values[(i+1) & (COUNT-1)]);
+    }
+    long time = System.nanoTime() - start;
+    sink += result;
+    return time;
+  }
+  
+  private static long xor(KUID[] ids, int iterations) {
+    long result = 0L;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      result += ids[i & (COUNT-1)].xor(ids[(i+1) & (COUNT-1)]).length();
+    }
+    long time = System.nanoTime() - start;
+    sink += result;
+    return time;
+  }
+  
+  private static byte[][] toBytes(KUID[] ids) {
+    byte[][] values = new byte[ids.length][];
+    for (int i = 0; i < ids.length; i++) {
+      values[i] = ids[i].getBytes();
+    }
+    return values;
+  }
+  
+  /**
+   * The original byte-by-byte implementation of {@link KUID#bitIndex(KUID)}.
+   */
+  private static int bitIndex(byte[] value, byte[] other) {
+    boolean allNull = true;
+    for (int i = 0; i < value.length; i++) {
+      byte b1 = value[i];
+      byte b2 = other[i];
+      
+      if (b1 != b2) {
+        int xor = b1 ^ b2;
+        for (int j = 0; j < Byte.SIZE; j++) {
+          if ((xor & (0x80 >>> j)) != 0) {
+            return (i * Byte.SIZE) + j;
+          }
+        }
+      }
+      
+      if (b1 != 0) {
+        allNull = false;
+      }
+    }
+    
+    if (allNull) {
+      return KeyAnalyzer.NULL_BIT_KEY;
+    }
+    
+    return KeyAnalyzer.EQUAL_BIT_KEY;
+  }
+  
+  /**
+   * A byte-by-byte implementation of {@link KUID#compareTo(KUID, KUID)}.
+   */
+  private static int compareTo(byte[] value, byte[] key, byte[] other) {
+    for (int i = 0; i < value.length; i++) {
+      int d1 = (value[i] ^ key[i]) & 0xFF;
+      int d2 = (other[i] ^ key[i]) & 0xFF;
+      
+      if (d1 != d2) {
+        return d1 < d2 ? -1 : 1;
+      }
+    }
+    return 0;
+  }
+}
\ No newline at end of file
@@ -16,6 +16,7 @@
 
 package org.ardverk.dht;
 
+import java.math.BigInteger;
 import java.util.Arrays;
 
 import junit.framework.TestCase;
@@ -81,6 +82,28 @@ public class KUIDTest {
     TestCase.assertEquals(12, bitIndex2);
   }
   
+  @Test
+  public void bitIndexOddLength() {
+    // 13 bytes span two words where the second one is zero-padded
+    for (int i = 0; i < 1000; i++) {
+      KUID id1 = KUID.createRandom(13);
+      KUID id2 = id1.flip((int)(id1.lengthInBits() * Math.random()));
+      
+      int bitIndex = id1.bitIndex(id2);
+      TestCase.assertTrue(id1.isBitSet(bitIndex) != id2.isBitSet(bitIndex));
+      
+      for (int j = 0; j < bitIndex; j++) {
+        TestCase.assertEquals(id1.isBitSet(j), id2.isBitSet(j));
+      }
+      
+      BigInteger value = id1.toBigInteger();
+      for (int j = 0; j < id1.lengthInBits(); j++) {
+        TestCase.assertEquals(value.testBit(id1.lengthInBits() - j - 1), 
+            id1.isBitSet(j));
+      }
+    }
+  }
+  
   @Test
   public void equalBitIndex() {
     KUID contactId = KUID.create(new byte[] { 
@@ -125,6 +148,44 @@ public class KUIDTest {
     TestCase.assertFalse(contactId.isCloserTo(valueId, contactId));
   }
   
+  @Test
+  public void compareToXor() {
+    for (int i = 0; i < 1000; i++) {
+      KUID lookupId = KUID.createRandom(20);
+      KUID id1 = KUID.createRandom(20);
+      KUID id2 = KUID.createRandom(20);
+      
+      int expected = id1.xor(lookupId).toBigInteger().compareTo(
+          id2.xor(lookupId).toBigInteger());
+      
+      TestCase.assertEquals(Integer.signum(expected), 
+          Integer.signum(id1.compareTo(lookupId, id2)));
+    }
+  }
+  
+  @Test
+  public void xorNegate() {
+    // 20 bytes are not a multiple of the word size
+    KUID contactId = KUID.createRandom(20);
+    KUID otherId = KUID.createRandom(20);
+    
+    byte[] expected = new byte[contactId.length()];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = (byte)(contactId.getBytes()[i] ^ otherId.getBytes()[i]);
+    }
+    
+    KUID xor = contactId.xor(otherId);
+    TestCase.assertTrue(Arrays.equals(expected, xor.getBytes()));
+    TestCase.assertEquals(contactId, xor.xor(otherId));
+    
+    KUID min = KUID.min(20);
+    TestCase.assertTrue(min.negate().isMax());
+    TestCase.assertTrue(min.negate().negate().isMin());
+    TestCase.assertEquals(contactId, contactId.negate().negate());
+    TestCase.assertEquals(KeyAnalyzer.NULL_BIT_KEY, 
+        min.bitIndex(min.negate().negate()));
+  }
+  
   @Test
   public void commonPrefix() {
     for (int i = 0; i < 1000; i++) {
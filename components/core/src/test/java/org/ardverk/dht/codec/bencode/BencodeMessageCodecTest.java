@@ -21,6 +21,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
@@ -28,12 +31,18 @@ import org.ardverk.dht.KUID;
 import org.ardverk.dht.codec.MessageCodec.Decoder;
 import org.ardverk.dht.codec.MessageCodec.Encoder;
 import org.ardverk.dht.message.DefaultPingRequest;
+import org.ardverk.dht.message.DefaultStoreRequest;
 import org.ardverk.dht.message.Message;
 import org.ardverk.dht.message.MessageId;
 import org.ardverk.dht.message.PingRequest;
+import org.ardverk.dht.message.StoreRequest;
 import org.ardverk.dht.routing.Contact;
 import org.ardverk.dht.routing.Contact.Type;
 import org.ardverk.dht.routing.DefaultContact;
+import org.ardverk.dht.rsrc.ByteArrayValue;
+import org.ardverk.dht.rsrc.Key;
+import org.ardverk.dht.rsrc.KeyFactory;
+import org.ardverk.dht.rsrc.Value;
 import org.junit.Test;
 
 
@@ -65,5 +74,97 @@ public class BencodeMessageCodecTest {
     decoder.close();
     
     TestCase.assertTrue(message instanceof PingRequest);
+  }  
+  @Test
+  public void encodeDecodeByteBuffer() throws IOException {
+    BencodeMessageCodec codec 
+      = new BencodeMessageCodec();
+    
+    MessageId messageId = MessageId.createRandom(20);
+    KUID contactId = KUID.createRandom(20);
+    
+    Contact contact = new DefaultContact(Type.SOLICITED, 
+        contactId, 0, false,
+        new InetSocketAddress("localhost", 6666));
+    
+    SocketAddress address = new InetSocketAddress("localhost", 6666);
+    byte[] data = "Hello World".getBytes("UTF-8");
+    StoreRequest request = new DefaultStoreRequest(messageId, contact, 
+        address, KeyFactory.parseKey("ardverk:///hello"), 
+        new ByteArrayValue(data));
+    
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Encoder encoder = codec.createEncoder(baos);
+    encoder.write(request);
+    encoder.close();
+    
+    ByteBuffer buffer = ByteBuffer.wrap(baos.toByteArray());
+    Decoder decoder = codec.createDecoder(address, buffer);
+    Message message = decoder.read();
+    decoder.close();
+    
+    TestCase.assertTrue(message instanceof StoreRequest);
+    TestCase.assertFalse(buffer.hasRemaining());
+    
+    ByteArrayValue value = (ByteArrayValue)((StoreRequest)message).getValue();
+    TestCase.assertTrue(Arrays.equals(data, value.getContentAsBytes()));
+  }  
+  @Test
+  public void encodeSharedBody() throws IOException {
+    BencodeMessageCodec codec 
+      = new BencodeMessageCodec();
+    
+    KUID contactId = KUID.createRandom(20);
+    Contact contact = new DefaultContact(Type.SOLICITED, 
+        contactId, 0, false,
+        new InetSocketAddress("localhost", 6666));
+    
+    Key key = KeyFactory.parseKey("ardverk:///hello");
+    Value value = new ByteArrayValue("Hello World".getBytes("UTF-8"));
+    
+    for (int i = 0; i < 3; i++) {
+      SocketAddress address = new InetSocketAddress("localhost", 7000 + i);
+      StoreRequest request = new DefaultStoreRequest(
+          MessageId.createRandom(20), contact, address, key, value);
+      
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      MessageOutputStream out = new MessageOutputStream(expected);
+      out.writeMessage(request);
+      out.close();
+      
+      ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      Encoder encoder = codec.createEncoder(actual);
+      encoder.write(request);
+      encoder.close();
+      
+      TestCase.assertTrue(Arrays.equals(
+          expected.toByteArray(), actual.toByteArray()));
+    }
+  }
+  
+  @Test
+  public void bodyCacheTimeout() throws IOException {
+    KUID contactId = KUID.createRandom(20);
+    Contact contact = new DefaultContact(Type.SOLICITED, 
+        contactId, 0, false,
+        new InetSocketAddress("localhost", 6666));
+    
+    Key key = KeyFactory.parseKey("ardverk:///hello");
+    Value value = new ByteArrayValue("Hello World".getBytes("UTF-8"));
+    
+    StoreRequest request = new DefaultStoreRequest(
+        MessageId.createRandom(20), contact, 
+        new InetSocketAddress("localhost", 7000), key, value);
+    
+    BodyCache bodies = new BodyCache(16, 10L, TimeUnit.SECONDS);
+    byte[] body = bodies.getBody(request);
+    TestCase.assertSame(body, bodies.getBody(request));
+    TestCase.assertEquals(1, bodies.size());
+    
+    // Expired bodies are encoded again
+    bodies = new BodyCache(16, 0L, TimeUnit.SECONDS);
+    body = bodies.getBody(request);
+    TestCase.assertNotSame(body, bodies.getBody(request));
+    TestCase.assertEquals(0, bodies.size());
   }
 }
\ No newline at end of file
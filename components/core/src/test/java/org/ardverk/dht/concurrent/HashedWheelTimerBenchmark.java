@@ -0,0 +1,178 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.concurrent;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.ardverk.concurrent.ExecutorUtils;
+import org.ardverk.dht.concurrent.HashedWheelTimer.Timeout;
+
+/**
+ * A simple benchmark that compares the {@link HashedWheelTimer} with 
+ * the {@link ScheduledExecutorService} it replaced in the 
+ * {@link org.ardverk.dht.io.MessageDispatcher}. It keeps a number of 
+ * timeouts outstanding and measures the schedule and cancel cycle of 
+ * a request that receives its response in time. The cycle includes
+ * getting rid of the cancelled timeouts: the {@link HashedWheelTimer}
+ * unlinks them on its next tick and the {@link ScheduledExecutorService}
+ * is purged.
+ * 
+ * <pre>
+ * java -cp ... org.ardverk.dht.concurrent.HashedWheelTimerBenchmark [outstanding]
+ * </pre>
+ */
+public class HashedWheelTimerBenchmark {
+  
+  private static final int ITERATIONS = 1000000;
+  
+  private static final int ROUNDS = 5;
+  
+  private static final long TIMEOUT = 60L;
+  
+  private static final long TICK = 10L;
+  
+  private static final Runnable TASK = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+  
+  public static void main(String[] args) throws InterruptedException {
+    int outstanding = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+    
+    HashedWheelTimer timer = new HashedWheelTimer("HashedWheelTimerBenchmark", 
+        TICK, TimeUnit.MILLISECONDS, 512);
+    ScheduledExecutorService executor 
+      = ExecutorUtils.newSingleThreadScheduledExecutor(
+          "HashedWheelTimerBenchmark");
+    
+    try {
+      for (int round = 0; round < ROUNDS; round++) {
+        boolean warmup = (round < ROUNDS - 1);
+        
+        report(warmup, "schedule (timer)", outstanding, 
+            scheduleTimer(timer, outstanding));
+        report(warmup, "schedule+cancel (timer)", ITERATIONS, 
+            cycleTimer(timer, ITERATIONS));
+        
+        report(warmup, "schedule (executor)", outstanding, 
+            scheduleExecutor(executor, outstanding));
+        report(warmup, "schedule+cancel (executor)", ITERATIONS, 
+            cycleExecutor(executor, ITERATIONS));
+        
+        clear(timer, executor);
+      }
+    } finally {
+      timer.close();
+      executor.shutdownNow();
+    }
+  }
+  
+  private static void report(boolean warmup, String name, 
+      int iterations, long time) {
+    if (!warmup) {
+      System.out.printf("%-28s %8.2f ns/op%n", 
+          name, (double)time / iterations);
+    }
+  }
+  
+  private static Timeout[] outstanding;
+  
+  private static ScheduledFuture<?>[] futures;
+  
+  private static long scheduleTimer(HashedWheelTimer timer, int count) {
+    outstanding = new Timeout[count];
+    
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      outstanding[i] = timer.schedule(TASK, TIMEOUT, TimeUnit.SECONDS);
+    }
+    return System.nanoTime() - start;
+  }
+  
+  private static long cycleTimer(HashedWheelTimer timer, 
+      int iterations) throws InterruptedException {
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      timer.schedule(TASK, TIMEOUT, TimeUnit.SECONDS).cancel();
+    }
+    
+    // The cancelled timeouts are gone one tick after the
+    // pending ones were moved into the wheel.
+    while (0 < timer.getPendingCount()) {
+      Thread.sleep(1L);
+    }
+    Thread.sleep(TICK);
+    
+    return System.nanoTime() - start;
+  }
+  
+  private static long scheduleExecutor(
+      ScheduledExecutorService executor, int count) {
+    futures = new ScheduledFuture<?>[count];
+    
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      futures[i] = executor.schedule(TASK, TIMEOUT, TimeUnit.SECONDS);
+    }
+    return System.nanoTime() - start;
+  }
+  
+  private static long cycleExecutor(
+      ScheduledExecutorService executor, int iterations) {
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      executor.schedule(TASK, TIMEOUT, TimeUnit.SECONDS).cancel(true);
+    }
+    purge(executor);
+    
+    return System.nanoTime() - start;
+  }
+  
+  /**
+   * Cancels all outstanding timeouts and waits for the timer and 
+   * the executor to get rid of them.
+   */
+  private static void clear(HashedWheelTimer timer, 
+      ScheduledExecutorService executor) throws InterruptedException {
+    for (Timeout timeout : outstanding) {
+      timeout.cancel();
+    }
+    
+    for (ScheduledFuture<?> future : futures) {
+      future.cancel(true);
+    }
+    
+    purge(executor);
+    
+    while (0 < timer.getPendingCount()) {
+      Thread.sleep(TICK);
+    }
+  }
+  
+  /**
+   * Removes the cancelled tasks from the executor's queue.
+   */
+  private static void purge(ScheduledExecutorService executor) {
+    if (executor instanceof ScheduledThreadPoolExecutor) {
+      ((ScheduledThreadPoolExecutor)executor).purge();
+    }
+  }
+}
\ No newline at end of file
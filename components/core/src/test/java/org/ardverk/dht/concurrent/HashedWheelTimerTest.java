@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.ardverk.dht.concurrent.HashedWheelTimer.Timeout;
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+  
+  @Test
+  public void expire() throws InterruptedException {
+    HashedWheelTimer timer = new HashedWheelTimer("HashedWheelTimerTest", 
+        10L, TimeUnit.MILLISECONDS, 8);
+    try {
+      final CountDownLatch latch = new CountDownLatch(1);
+      Runnable task = new Runnable() {
+        @Override
+        public void run() {
+          latch.countDown();
+        }
+      };
+      
+      // The delay is longer than one rotation of the wheel
+      long startTime = System.currentTimeMillis();
+      Timeout timeout = timer.schedule(task, 250L, TimeUnit.MILLISECONDS);
+      
+      TestCase.assertTrue(latch.await(5L, TimeUnit.SECONDS));
+      TestCase.assertTrue(System.currentTimeMillis() - startTime >= 250L);
+      TestCase.assertTrue(timeout.isExpired());
+      TestCase.assertFalse(timeout.cancel());
+    } finally {
+      timer.close();
+    }
+  }
+  
+  @Test
+  public void cancel() throws InterruptedException {
+    HashedWheelTimer timer = new HashedWheelTimer("HashedWheelTimerTest", 
+        10L, TimeUnit.MILLISECONDS, 512);
+    try {
+      final AtomicInteger counter = new AtomicInteger();
+      Runnable task = new Runnable() {
+        @Override
+        public void run() {
+          counter.incrementAndGet();
+        }
+      };
+      
+      // Every other of the 100k outstanding timeouts gets cancelled
+      Timeout[] timeouts = new Timeout[100000];
+      for (int i = 0; i < timeouts.length; i++) {
+        timeouts[i] = timer.schedule(task, 1000L, TimeUnit.MILLISECONDS);
+      }
+      
+      for (int i = 0; i < timeouts.length; i += 2) {
+        TestCase.assertTrue(timeouts[i].cancel());
+      }
+      
+      long deadline = System.currentTimeMillis() + 5000L;
+      while (counter.get() < timeouts.length/2 
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50L);
+      }
+      
+      Thread.sleep(100L);
+      TestCase.assertEquals(timeouts.length/2, counter.get());
+      
+      for (int i = 0; i < timeouts.length; i++) {
+        TestCase.assertEquals(i % 2 == 0, timeouts[i].isCancelled());
+        TestCase.assertEquals(i % 2 != 0, timeouts[i].isExpired());
+      }
+    } finally {
+      timer.close();
+    }
+  }
+}
\ No newline at end of file
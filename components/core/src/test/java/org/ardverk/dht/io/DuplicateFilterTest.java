@@ -0,0 +1,63 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.ardverk.dht.message.MessageId;
+import org.junit.Test;
+
+public class DuplicateFilterTest {
+  
+  @Test
+  public void duplicates() {
+    DuplicateFilter filter = new DuplicateFilter(
+        1024, 30L, TimeUnit.SECONDS);
+    
+    MessageId[] messageIds = new MessageId[1000];
+    for (int i = 0; i < messageIds.length; i++) {
+      messageIds[i] = MessageId.createRandom(20);
+      TestCase.assertTrue(filter.add(messageIds[i]));
+    }
+    
+    for (MessageId messageId : messageIds) {
+      TestCase.assertFalse(filter.add(messageId));
+    }
+    
+    TestCase.assertEquals(2L * messageIds.length, filter.getCheckedCount());
+    TestCase.assertEquals(messageIds.length, filter.getDuplicateCount());
+  }
+  
+  @Test
+  public void window() throws InterruptedException {
+    DuplicateFilter filter = new DuplicateFilter(
+        16, 50L, TimeUnit.MILLISECONDS);
+    
+    MessageId messageId = MessageId.createRandom(20);
+    TestCase.assertTrue(filter.add(messageId));
+    
+    // The MessageId is remembered for at least one window...
+    Thread.sleep(60L);
+    TestCase.assertFalse(filter.add(messageId));
+    
+    // ... and at most two windows.
+    Thread.sleep(120L);
+    TestCase.assertTrue(filter.add(messageId));
+  }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.ardverk.dht.KUID;
+import org.ardverk.dht.io.transport.AbstractTransport;
+import org.ardverk.dht.message.DefaultMessageFactory;
+import org.ardverk.dht.message.Message;
+import org.ardverk.dht.message.MessageFactory;
+import org.ardverk.dht.message.PingRequest;
+import org.ardverk.dht.message.RequestMessage;
+import org.ardverk.dht.message.ResponseMessage;
+import org.ardverk.dht.routing.Identity;
+import org.ardverk.dht.routing.RoundTripTimeEstimator;
+import org.junit.Test;
+
+public class MessageDispatcherTest {
+  
+  private static final SocketAddress DST
+    = new InetSocketAddress("127.0.0.1", 3000);
+  
+  @Test
+  public void defaults() {
+    MessageDispatcher dispatcher = createMessageDispatcher();
+    
+    TestCase.assertEquals(8, dispatcher.getMaxRequestsPerDestination());
+    TestCase.assertEquals(512, dispatcher.getMaxRequestsInFlight());
+    TestCase.assertEquals(4096, dispatcher.getMaxQueuedRequests());
+    
+    // No rate limit
+    TestCase.assertTrue(dispatcher.getRateLimit() <= 0d);
+  }
+  
+  @Test
+  public void foregroundOvertakesBackground() 
+      throws IOException, InterruptedException {
+    MessageDispatcher dispatcher = createMessageDispatcher();
+    
+    // One token for FOREGROUND and two for BACKGROUND
+    dispatcher.setRateLimit(20d, 3);
+    
+    TestTransport transport = new TestTransport();
+    dispatcher.bind(transport);
+    
+    try {
+      MessageCallback callback = new MessageCallbackAdapter();
+      MessageFactory factory = dispatcher.getMessageFactory();
+      
+      RequestMessage background1 = factory.createPingRequest(DST);
+      RequestMessage background2 = factory.createPingRequest(DST);
+      RequestMessage foreground1 = factory.createPingRequest(DST);
+      RequestMessage foreground2 = factory.createPingRequest(DST);
+      
+      dispatcher.send(callback, TrafficClass.BACKGROUND, 
+          KUID.createRandom(20), background1, 10L, TimeUnit.SECONDS);
+      dispatcher.send(callback, TrafficClass.BACKGROUND, 
+          KUID.createRandom(20), background2, 10L, TimeUnit.SECONDS);
+      dispatcher.send(callback, TrafficClass.FOREGROUND, 
+          KUID.createRandom(20), foreground1, 10L, TimeUnit.SECONDS);
+      
+      // The queued BACKGROUND requests are waiting for the 
+      // reserve but the FOREGROUND request may use it.
+      TestCase.assertEquals(1, transport.sent.size());
+      TestCase.assertSame(foreground1, transport.sent.get(0));
+      TestCase.assertEquals(2, dispatcher.getQueuedCount());
+      
+      dispatcher.send(callback, TrafficClass.FOREGROUND, 
+          KUID.createRandom(20), foreground2, 10L, TimeUnit.SECONDS);
+      
+      for (int i = 0; i < 100 && transport.sent.size() < 4; i++) {
+        Thread.sleep(50L);
+      }
+      
+      TestCase.assertEquals(4, transport.sent.size());
+      TestCase.assertSame(foreground2, transport.sent.get(1));
+      TestCase.assertSame(background1, transport.sent.get(2));
+      TestCase.assertSame(background2, transport.sent.get(3));
+    } finally {
+      dispatcher.close();
+    }
+  }
+  
+  @Test
+  public void foregroundFirstWithoutRateLimit() 
+      throws IOException, InterruptedException {
+    MessageDispatcher dispatcher = createMessageDispatcher();
+    dispatcher.setRequestLimits(1, 1, 16);
+    
+    TestTransport transport = new TestTransport();
+    dispatcher.bind(transport);
+    
+    try {
+      MessageCallback callback = new MessageCallbackAdapter();
+      MessageFactory factory = dispatcher.getMessageFactory();
+      
+      PingRequest background1 = factory.createPingRequest(DST);
+      PingRequest background2 = factory.createPingRequest(DST);
+      PingRequest foreground = factory.createPingRequest(DST);
+      
+      dispatcher.send(callback, TrafficClass.BACKGROUND, 
+          KUID.createRandom(20), background1, 10L, TimeUnit.SECONDS);
+      dispatcher.send(callback, TrafficClass.BACKGROUND, 
+          KUID.createRandom(20), background2, 10L, TimeUnit.SECONDS);
+      dispatcher.send(callback, TrafficClass.FOREGROUND, 
+          KUID.createRandom(20), foreground, 10L, TimeUnit.SECONDS);
+      
+      TestCase.assertEquals(1, transport.sent.size());
+      TestCase.assertEquals(2, dispatcher.getQueuedCount());
+      
+      // The FOREGROUND request gets the next free slot
+      TestCase.assertTrue(dispatcher.handleResponse(
+          factory.createPingResponse(background1)));
+      awaitSent(transport, 2);
+      TestCase.assertSame(foreground, transport.sent.get(1));
+      
+      TestCase.assertTrue(dispatcher.handleResponse(
+          factory.createPingResponse(foreground)));
+      awaitSent(transport, 3);
+      TestCase.assertSame(background2, transport.sent.get(2));
+    } finally {
+      dispatcher.close();
+    }
+  }
+  
+  @Test
+  public void immediateTimeout() throws IOException, InterruptedException {
+    MessageDispatcher dispatcher = createMessageDispatcher();
+    
+    TestTransport transport = new TestTransport();
+    dispatcher.bind(transport);
+    
+    try {
+      final CountDownLatch latch = new CountDownLatch(10);
+      MessageCallback callback = new MessageCallbackAdapter() {
+        @Override
+        public void handleTimeout(RequestEntity entity, 
+            long time, TimeUnit unit) {
+          latch.countDown();
+        }
+      };
+      
+      // The timeouts may fire before send() returns
+      MessageFactory factory = dispatcher.getMessageFactory();
+      for (int i = 0; i < 10; i++) {
+        dispatcher.send(callback, KUID.createRandom(20), 
+            factory.createPingRequest(DST), 0L, TimeUnit.MILLISECONDS);
+      }
+      
+      TestCase.assertTrue(latch.await(5L, TimeUnit.SECONDS));
+      
+      for (int i = 0; i < 100 && 0 < dispatcher.getInFlightCount(); i++) {
+        Thread.sleep(50L);
+      }
+      
+      TestCase.assertEquals(0, dispatcher.getInFlightCount());
+    } finally {
+      dispatcher.close();
+    }
+  }
+  
+  @Test
+  public void queuedExpires() throws IOException, InterruptedException {
+    MessageDispatcher dispatcher = createMessageDispatcher();
+    dispatcher.setRequestLimits(1, 1, 16);
+    
+    TestTransport transport = new TestTransport();
+    dispatcher.bind(transport);
+    
+    try {
+      final CountDownLatch latch = new CountDownLatch(1);
+      final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+      
+      MessageCallback callback = new MessageCallbackAdapter() {
+        @Override
+        public void handleException(RequestEntity entity, Throwable t) {
+          errors.add(t);
+          latch.countDown();
+        }
+      };
+      
+      MessageFactory factory = dispatcher.getMessageFactory();
+      dispatcher.send(callback, KUID.createRandom(20), 
+          factory.createPingRequest(DST), 10L, TimeUnit.SECONDS);
+      dispatcher.send(callback, KUID.createRandom(20), 
+          factory.createPingRequest(DST), 100L, TimeUnit.MILLISECONDS);
+      
+      TestCase.assertEquals(1, dispatcher.getQueuedCount());
+      
+      // The queued request fails without ever being sent
+      TestCase.assertTrue(latch.await(5L, TimeUnit.SECONDS));
+      TestCase.assertEquals(0, dispatcher.getQueuedCount());
+      TestCase.assertEquals(1, transport.sent.size());
+      TestCase.assertEquals("Expired while queued", 
+          errors.get(0).getMessage());
+    } finally {
+      dispatcher.close();
+    }
+  }
+  
+  @Test
+  public void closeFailsQueued() throws IOException, InterruptedException {
+    MessageDispatcher dispatcher = createMessageDispatcher();
+    dispatcher.setRequestLimits(1, 1, 16);
+    
+    TestTransport transport = new TestTransport();
+    dispatcher.bind(transport);
+    
+    final CountDownLatch latch = new CountDownLatch(2);
+    final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+    
+    MessageCallback callback = new MessageCallbackAdapter() {
+      @Override
+      public void handleException(RequestEntity entity, Throwable t) {
+        errors.add(t);
+        latch.countDown();
+      }
+    };
+    
+    MessageFactory factory = dispatcher.getMessageFactory();
+    for (int i = 0; i < 3; i++) {
+      dispatcher.send(callback, KUID.createRandom(20),
+          factory.createPingRequest(DST), 10L, TimeUnit.SECONDS);
+    }
+    
+    TestCase.assertEquals(1, transport.sent.size());
+    TestCase.assertEquals(2, dispatcher.getQueuedCount());
+    
+    dispatcher.close();
+    
+    TestCase.assertTrue(latch.await(5L, TimeUnit.SECONDS));
+    TestCase.assertEquals(1, transport.sent.size());
+    TestCase.assertEquals(0, dispatcher.getQueuedCount());
+    TestCase.assertEquals(2, errors.size());
+    
+    for (Throwable t : errors) {
+      TestCase.assertTrue(t instanceof IOException);
+      TestCase.assertEquals("closed", t.getMessage());
+    }
+  }
+  
+  @Test
+  public void retransmit() throws IOException, InterruptedException {
+    MessageDispatcher dispatcher = createMessageDispatcher();
+    dispatcher.setRetransmitPolicy(new RetransmitPolicy(
+        2, 50L, 50L, TimeUnit.MILLISECONDS, 1d));
+    
+    TestTransport transport = new TestTransport();
+    dispatcher.bind(transport);
+    
+    try {
+      final List<RequestEntity> entities 
+        = new CopyOnWriteArrayList<RequestEntity>();
+      MessageCallback callback = new MessageCallbackAdapter() {
+        @Override
+        public boolean handleResponse(RequestEntity entity,
+            ResponseMessage response, long time, TimeUnit unit) {
+          entities.add(entity);
+          return true;
+        }
+      };
+      
+      MessageFactory factory = dispatcher.getMessageFactory();
+      PingRequest request = factory.createPingRequest(DST);
+      dispatcher.send(callback, KUID.createRandom(20), 
+          request, 10L, TimeUnit.SECONDS);
+      
+      for (int i = 0; i < 100 && transport.sent.size() < 3; i++) {
+        Thread.sleep(50L);
+      }
+      
+      // No more than the max number of retransmissions
+      Thread.sleep(250L);
+      TestCase.assertEquals(3, transport.sent.size());
+      
+      for (Message message : transport.sent) {
+        TestCase.assertEquals(request.getMessageId(), 
+            message.getMessageId());
+      }
+      
+      TestCase.assertTrue(dispatcher.handleResponse(
+          factory.createPingResponse(request)));
+      
+      TestCase.assertEquals(1, entities.size());
+      TestCase.assertEquals(2, entities.get(0).getRetransmits());
+      
+      // The RTT is ambiguous (Karn's algorithm)
+      RoundTripTimeEstimator estimator 
+        = dispatcher.getRoundTripTimeEstimator();
+      TestCase.assertFalse(estimator.hasSamples());
+      TestCase.assertEquals(2, estimator.getBackoffs());
+    } finally {
+      dispatcher.close();
+    }
+  }
+  
+  @Test
+  public void retransmitUntilResponse() 
+      throws IOException, InterruptedException {
+    MessageDispatcher dispatcher = createMessageDispatcher();
+    dispatcher.setRetransmitPolicy(new RetransmitPolicy(
+        8, 100L, 100L, TimeUnit.MILLISECONDS, 1d));
+    
+    TestTransport transport = new TestTransport();
+    dispatcher.bind(transport);
+    
+    try {
+      MessageFactory factory = dispatcher.getMessageFactory();
+      PingRequest request = factory.createPingRequest(DST);
+      dispatcher.send(new MessageCallbackAdapter(), KUID.createRandom(20), 
+          request, 10L, TimeUnit.SECONDS);
+      
+      for (int i = 0; i < 100 && transport.sent.size() < 2; i++) {
+        Thread.sleep(50L);
+      }
+      
+      TestCase.assertTrue(dispatcher.handleResponse(
+          factory.createPingResponse(request)));
+      
+      int count = transport.sent.size();
+      TestCase.assertTrue(2 <= count);
+      
+      Thread.sleep(500L);
+      TestCase.assertEquals(count, transport.sent.size());
+    } finally {
+      dispatcher.close();
+    }
+  }
+  
+  private static void awaitSent(TestTransport transport, int count) 
+      throws InterruptedException {
+    for (int i = 0; i < 100 && transport.sent.size() < count; i++) {
+      Thread.sleep(50L);
+    }
+    TestCase.assertEquals(count, transport.sent.size());
+  }
+  
+  private static MessageDispatcher createMessageDispatcher() {
+    Identity localhost = new Identity(20, new InetSocketAddress(2000));
+    MessageFactory factory = new DefaultMessageFactory(localhost);
+    
+    return new MessageDispatcher(factory) {
+      @Override
+      protected ResponseMessage handleRequest0(RequestMessage request) {
+        return null;
+      }
+      
+      @Override
+      protected void lateResponse(ResponseMessage response) {
+      }
+    };
+  }
+  
+  private static class TestTransport extends AbstractTransport {
+    
+    private final List<Message> sent
+      = new CopyOnWriteArrayList<Message>();
+    
+    @Override
+    public SocketAddress getSocketAddress() {
+      return null;
+    }
+    
+    @Override
+    public void send(KUID contactId, Message message,
+        long timeout, TimeUnit unit) {
+      sent.add(message);
+    }
+  }
+  
+  private static class MessageCallbackAdapter implements MessageCallback {
+    
+    @Override
+    public boolean handleResponse(RequestEntity entity,
+        ResponseMessage response, long time, TimeUnit unit) {
+      return true;
+    }
+    
+    @Override
+    public void handleTimeout(RequestEntity entity,
+        long time, TimeUnit unit) {
+    }
+    
+    @Override
+    public void handleIllegalResponse(RequestEntity entity,
+        ResponseMessage response, long time, TimeUnit unit) {
+    }
+    
+    @Override
+    public void handleException(RequestEntity entity, Throwable t) {
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.ardverk.dht.KUID;
+import org.ardverk.dht.io.MessageEventBus.OverflowPolicy;
+import org.ardverk.dht.message.Message;
+import org.junit.Test;
+
+public class MessageEventBusTest {
+  
+  @Test
+  public void overflow() throws InterruptedException {
+    for (OverflowPolicy policy : OverflowPolicy.values()) {
+      overflow(policy);
+    }
+  }
+  
+  private static void overflow(OverflowPolicy policy) 
+      throws InterruptedException {
+    
+    final MessageEventBus bus = new MessageEventBus(4, policy);
+    
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    
+    final List<KUID> received = new ArrayList<KUID>();
+    final int[] dropped = { 0 };
+    
+    bus.addMessageBatchListener(new MessageBatchListener() {
+      @Override
+      public void handleEvents(MessageEvent[] events, 
+          int length, int count) {
+        
+        // Block the first delivery to let the buffer overflow
+        if (blocked.getCount() != 0L) {
+          blocked.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException err) {
+            throw new IllegalStateException(err);
+          }
+          return;
+        }
+        
+        for (int i = 0; i < length; i++) {
+          TestCase.assertEquals(MessageEvent.Type.MESSAGE_SENT, 
+              events[i].getType());
+          received.add(events[i].getContactId());
+        }
+        
+        dropped[0] += count;
+        done.countDown();
+      }
+    });
+    
+    Message message = null;
+    bus.fireMessageSent(KUID.createRandom(20), message);
+    TestCase.assertTrue(blocked.await(5L, TimeUnit.SECONDS));
+    
+    KUID[] contactIds = new KUID[6];
+    for (int i = 0; i < contactIds.length; i++) {
+      contactIds[i] = KUID.createRandom(20);
+      bus.fireMessageSent(contactIds[i], message);
+    }
+    
+    release.countDown();
+    TestCase.assertTrue(done.await(5L, TimeUnit.SECONDS));
+    
+    TestCase.assertEquals(7L, bus.getFiredCount());
+    TestCase.assertEquals(2L, bus.getDroppedCount());
+    TestCase.assertEquals(2, dropped[0]);
+    TestCase.assertEquals(4, received.size());
+    
+    int offset = (policy == OverflowPolicy.DROP_OLDEST) ? 2 : 0;
+    for (int i = 0; i < received.size(); i++) {
+      TestCase.assertEquals(contactIds[i + offset], received.get(i));
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.ardverk.dht.io.RequestLimiter.Result;
+import org.junit.Test;
+
+public class RequestLimiterTest {
+  
+  private static final Runnable TASK = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+  
+  @Test
+  public void perDestination() {
+    RequestLimiter limiter = new RequestLimiter(2, 100, 100);
+    
+    TestCase.assertEquals(Result.ACQUIRED, limiter.acquire("A", TASK));
+    TestCase.assertEquals(Result.ACQUIRED, limiter.acquire("A", TASK));
+    TestCase.assertEquals(Result.QUEUED, limiter.acquire("A", TASK));
+    
+    // Other destinations are not affected
+    TestCase.assertEquals(Result.ACQUIRED, limiter.acquire("B", TASK));
+    
+    TestCase.assertEquals(3, limiter.getInFlightCount());
+    TestCase.assertEquals(1, limiter.getQueuedCount());
+    
+    // B's slot doesn't help A
+    TestCase.assertTrue(limiter.release("B").isEmpty());
+    
+    List<Runnable> tasks = limiter.release("A");
+    TestCase.assertEquals(1, tasks.size());
+    TestCase.assertEquals(2, limiter.getInFlightCount());
+    TestCase.assertEquals(0, limiter.getQueuedCount());
+  }
+  
+  @Test
+  public void global() {
+    RequestLimiter limiter = new RequestLimiter(2, 2, 2);
+    
+    TestCase.assertEquals(Result.ACQUIRED, limiter.acquire("A", TASK));
+    TestCase.assertEquals(Result.ACQUIRED, limiter.acquire("B", TASK));
+    TestCase.assertEquals(Result.QUEUED, limiter.acquire("C", TASK));
+    TestCase.assertEquals(Result.QUEUED, limiter.acquire("D", TASK));
+    TestCase.assertEquals(Result.REJECTED, limiter.acquire("E", TASK));
+    
+    // The freed slot goes to the request that has waited the longest
+    TestCase.assertEquals(1, limiter.release("A").size());
+    TestCase.assertEquals(1, limiter.release("C").size());
+    TestCase.assertTrue(limiter.release("D").isEmpty());
+    TestCase.assertTrue(limiter.release("B").isEmpty());
+    
+    TestCase.assertEquals(0, limiter.getInFlightCount());
+    TestCase.assertEquals(0, limiter.getQueuedCount());
+  }
+  
+  @Test
+  public void foreground() {
+    // Two of the nine slots are reserved for FOREGROUND requests
+    RequestLimiter limiter = new RequestLimiter(100, 9, 100);
+    
+    for (int i = 0; i < 7; i++) {
+      TestCase.assertEquals(Result.ACQUIRED, limiter.acquire(
+          "B" + i, TrafficClass.BACKGROUND, TASK));
+    }
+    
+    TestCase.assertEquals(Result.QUEUED, limiter.acquire(
+        "B", TrafficClass.BACKGROUND, TASK));
+    TestCase.assertEquals(Result.ACQUIRED, limiter.acquire(
+        "F1", TrafficClass.FOREGROUND, TASK));
+    TestCase.assertEquals(Result.ACQUIRED, limiter.acquire(
+        "F2", TrafficClass.FOREGROUND, TASK));
+    
+    final Runnable foreground = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+    
+    TestCase.assertEquals(Result.QUEUED, limiter.acquire(
+        "F3", TrafficClass.FOREGROUND, foreground));
+    
+    // The FOREGROUND request overtakes the BACKGROUND request
+    List<Runnable> tasks = limiter.release("B0");
+    TestCase.assertEquals(1, tasks.size());
+    TestCase.assertSame(foreground, tasks.get(0));
+    
+    // The BACKGROUND request has to wait for a non-reserved slot
+    TestCase.assertTrue(limiter.release("F1").isEmpty());
+    TestCase.assertTrue(limiter.release("B1").isEmpty());
+    TestCase.assertEquals(1, limiter.release("B2").size());
+    TestCase.assertEquals(0, limiter.getQueuedCount());
+  }
+  
+  @Test
+  public void setLimits() {
+    RequestLimiter limiter = new RequestLimiter(1, 100, 100);
+    
+    TestCase.assertEquals(Result.ACQUIRED, limiter.acquire("A", TASK));
+    TestCase.assertEquals(Result.QUEUED, limiter.acquire("A", TASK));
+    TestCase.assertEquals(Result.QUEUED, limiter.acquire("A", TASK));
+    
+    // Raising the limit hands out the queued tasks right away
+    TestCase.assertEquals(2, limiter.setLimits(3, 100, 100).size());
+    TestCase.assertEquals(3, limiter.getInFlightCount());
+    TestCase.assertEquals(0, limiter.getQueuedCount());
+    
+    // Lowering it affects only new requests
+    TestCase.assertTrue(limiter.setLimits(1, 100, 0).isEmpty());
+    TestCase.assertEquals(Result.REJECTED, limiter.acquire("A", TASK));
+    TestCase.assertEquals(3, limiter.getInFlightCount());
+  }
+  
+  @Test
+  public void remove() {
+    RequestLimiter limiter = new RequestLimiter(1, 100, 100);
+    
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+    
+    TestCase.assertEquals(Result.ACQUIRED, limiter.acquire("A", TASK));
+    TestCase.assertEquals(Result.QUEUED, limiter.acquire("A", task));
+    
+    TestCase.assertTrue(limiter.remove("A", task));
+    TestCase.assertFalse(limiter.remove("A", task));
+    TestCase.assertEquals(0, limiter.getQueuedCount());
+    
+    // The removed task doesn't get the slot
+    TestCase.assertTrue(limiter.release("A").isEmpty());
+    TestCase.assertEquals(0, limiter.getInFlightCount());
+  }
+  
+  @Test
+  public void striped() {
+    // 16 stripes that share the slots and the queue
+    RequestLimiter limiter = new RequestLimiter(1, 512, 16);
+    
+    String first = null;
+    int acquired = 0;
+    int queued = 0;
+    for (int i = 0; i < 1024; i++) {
+      switch (limiter.acquire("D" + i, TASK)) {
+        case ACQUIRED:
+          if (first == null) {
+            first = "D" + i;
+          }
+          ++acquired;
+          break;
+        case QUEUED:
+          ++queued;
+          break;
+        default:
+          break;
+      }
+    }
+    
+    // The global limits hold across all stripes
+    TestCase.assertEquals(512, acquired);
+    TestCase.assertEquals(16, queued);
+    TestCase.assertEquals(512, limiter.getInFlightCount());
+    
+    // The slot goes to a request of any stripe
+    TestCase.assertEquals(1, limiter.release(first).size());
+    TestCase.assertEquals(512, limiter.getInFlightCount());
+    TestCase.assertEquals(15, limiter.getQueuedCount());
+  }
+}
\ No newline at end of file
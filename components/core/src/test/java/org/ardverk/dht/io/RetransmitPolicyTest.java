@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.ardverk.dht.routing.RoundTripTimeEstimator;
+import org.junit.Test;
+
+public class RetransmitPolicyTest {
+  
+  @Test
+  public void backoff() {
+    RetransmitPolicy policy = new RetransmitPolicy(
+        3, 200L, 1000L, TimeUnit.MILLISECONDS, 2d);
+    
+    // Nothing is known about the RTT
+    RoundTripTimeEstimator estimator = new RoundTripTimeEstimator();
+    TestCase.assertEquals(1000L, policy.getRetransmitDelay(
+        estimator, 1, TimeUnit.MILLISECONDS));
+    TestCase.assertEquals(2000L, policy.getRetransmitDelay(
+        estimator, 2, TimeUnit.MILLISECONDS));
+    TestCase.assertEquals(4000L, policy.getRetransmitDelay(
+        estimator, 3, TimeUnit.MILLISECONDS));
+    TestCase.assertEquals(-1L, policy.getRetransmitDelay(
+        estimator, 4, TimeUnit.MILLISECONDS));
+    
+    // A fast and stable Contact is bound by the min interval
+    for (int i = 0; i < 32; i++) {
+      estimator.sample(20L, TimeUnit.MILLISECONDS);
+    }
+    
+    TestCase.assertEquals(200L, policy.getRetransmitDelay(
+        estimator, 1, TimeUnit.MILLISECONDS));
+    TestCase.assertEquals(400L, policy.getRetransmitDelay(
+        estimator, 2, TimeUnit.MILLISECONDS));
+  }
+  
+  @Test
+  public void karn() {
+    RetransmitPolicy policy = new RetransmitPolicy(
+        3, 200L, 1000L, TimeUnit.MILLISECONDS, 2d);
+    
+    RoundTripTimeEstimator estimator = new RoundTripTimeEstimator();
+    estimator.backoff();
+    estimator.backoff();
+    
+    // The next request starts with the backed-off interval...
+    TestCase.assertEquals(2, estimator.getBackoffs());
+    TestCase.assertEquals(4000L, policy.getRetransmitDelay(estimator, 
+        estimator.getBackoffs(), 1, TimeUnit.MILLISECONDS));
+    TestCase.assertEquals(-1L, policy.getRetransmitDelay(estimator, 
+        estimator.getBackoffs(), 4, TimeUnit.MILLISECONDS));
+    
+    // ... until there is a new RTT sample
+    estimator.sample(20L, TimeUnit.MILLISECONDS);
+    TestCase.assertEquals(0, estimator.getBackoffs());
+  }
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class TrafficShaperTest {
+  
+  private static final Runnable FOREGROUND = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+  
+  private static final Runnable BACKGROUND = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+  
+  @Test
+  public void priority() {
+    // One token per second and a reserve of 1.5 tokens
+    TrafficShaper shaper = new TrafficShaper(1d, 4);
+    
+    TestCase.assertTrue(shaper.offer(TrafficClass.BACKGROUND, BACKGROUND));
+    TestCase.assertTrue(shaper.offer(TrafficClass.BACKGROUND, BACKGROUND));
+    
+    // The remaining tokens are reserved for the foreground
+    TestCase.assertFalse(shaper.offer(TrafficClass.BACKGROUND, BACKGROUND));
+    TestCase.assertTrue(shaper.offer(TrafficClass.FOREGROUND, FOREGROUND));
+    TestCase.assertTrue(shaper.offer(TrafficClass.FOREGROUND, FOREGROUND));
+    TestCase.assertFalse(shaper.offer(TrafficClass.FOREGROUND, FOREGROUND));
+    
+    TestCase.assertEquals(2, shaper.getQueuedCount());
+    TestCase.assertTrue(shaper.poll().isEmpty());
+    TestCase.assertTrue(shaper.getDelay(TimeUnit.MILLISECONDS) > 0L);
+    
+    // Queued tasks come out in the order of their TrafficClass
+    shaper.setRate(1000000000d, 4);
+    
+    List<Runnable> tasks = shaper.poll();
+    TestCase.assertEquals(2, tasks.size());
+    TestCase.assertSame(FOREGROUND, tasks.get(0));
+    TestCase.assertSame(BACKGROUND, tasks.get(1));
+    
+    TestCase.assertEquals(0, shaper.getQueuedCount());
+    TestCase.assertEquals(-1L, shaper.getDelay(TimeUnit.MILLISECONDS));
+  }
+  
+  @Test
+  public void unlimited() {
+    TrafficShaper shaper = new TrafficShaper(0d, 1);
+    
+    for (int i = 0; i < 1000; i++) {
+      TestCase.assertTrue(shaper.offer(TrafficClass.BACKGROUND, BACKGROUND));
+    }
+  }
+}
\ No newline at end of file
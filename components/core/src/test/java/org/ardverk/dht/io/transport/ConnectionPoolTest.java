@@ -0,0 +1,84 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.io.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.ardverk.dht.codec.bencode.BencodeMessageCodec;
+import org.ardverk.io.IoUtils;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+  
+  private static SocketConnection connect(ServerSocket server) throws IOException {
+    SocketAddress endpoint = server.getLocalSocketAddress();
+    Socket socket = new Socket();
+    socket.connect(endpoint);
+    return new SocketConnection(endpoint, socket, new BencodeMessageCodec());
+  }
+  
+  @Test
+  public void acquireRelease() throws IOException {
+    ServerSocket server = new ServerSocket(0, 16, 
+        new InetSocketAddress("localhost", 0).getAddress());
+    ConnectionPool pool = new ConnectionPool(1, 1L, TimeUnit.MINUTES);
+    try {
+      SocketAddress endpoint = server.getLocalSocketAddress();
+      TestCase.assertNull(pool.acquire(endpoint));
+      
+      SocketConnection connection1 = connect(server);
+      SocketConnection connection2 = connect(server);
+      
+      pool.release(connection1);
+      TestCase.assertEquals(1, pool.size());
+      
+      // The pool is full and the second connection is closed
+      pool.release(connection2);
+      TestCase.assertEquals(1, pool.size());
+      TestCase.assertTrue(connection2.getSocket().isClosed());
+      
+      TestCase.assertSame(connection1, pool.acquire(endpoint));
+      TestCase.assertEquals(0, pool.size());
+      TestCase.assertNull(pool.acquire(endpoint));
+      
+      // Closed connections are never handed out
+      pool.release(connection1);
+      connection1.close();
+      TestCase.assertNull(pool.acquire(endpoint));
+      TestCase.assertEquals(0, pool.size());
+      
+      // Connections that are released after close() are closed
+      SocketConnection connection3 = connect(server);
+      pool.close();
+      pool.release(connection3);
+      TestCase.assertEquals(0, pool.size());
+      TestCase.assertTrue(connection3.getSocket().isClosed());
+      
+    } finally {
+      pool.close();
+      IoUtils.close(server);
+    }
+  }
+}
\ No newline at end of file
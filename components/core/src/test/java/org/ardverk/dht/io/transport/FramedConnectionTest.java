@@ -0,0 +1,257 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.io.transport;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.ardverk.dht.KUID;
+import org.ardverk.dht.codec.bencode.BencodeMessageCodec;
+import org.ardverk.dht.io.transport.FramedConnection.Pending;
+import org.ardverk.dht.message.DefaultPingRequest;
+import org.ardverk.dht.message.Message;
+import org.ardverk.dht.message.MessageId;
+import org.ardverk.dht.message.PingRequest;
+import org.ardverk.dht.routing.Contact;
+import org.ardverk.dht.routing.Contact.Type;
+import org.ardverk.dht.routing.DefaultContact;
+import org.ardverk.io.IoUtils;
+import org.junit.Test;
+
+public class FramedConnectionTest {
+  
+  private static PingRequest createPingRequest() {
+    MessageId messageId = MessageId.createRandom(20);
+    KUID contactId = KUID.createRandom(20);
+    
+    SocketAddress address = new InetSocketAddress("localhost", 6666);
+    Contact contact = new DefaultContact(Type.SOLICITED, 
+        contactId, 0, false, address);
+    
+    return new DefaultPingRequest(messageId, contact, address);
+  }
+  
+  @Test
+  public void readWrite() throws IOException {
+    ServerSocket server = new ServerSocket(0, 16, 
+        new InetSocketAddress("localhost", 0).getAddress());
+    
+    FramedConnection client = null;
+    FramedConnection connection = null;
+    try {
+      SocketAddress endpoint = server.getLocalSocketAddress();
+      Socket socket = new Socket();
+      socket.connect(endpoint);
+      
+      BencodeMessageCodec codec = new BencodeMessageCodec();
+      client = new FramedConnection(endpoint, socket, codec);
+      
+      Socket accepted = server.accept();
+      connection = new FramedConnection(
+          accepted.getRemoteSocketAddress(), accepted, codec);
+      
+      PingRequest[] requests = new PingRequest[4];
+      for (int i = 0; i < requests.length; i++) {
+        requests[i] = createPingRequest();
+        TestCase.assertTrue(client.addPending(
+            requests[i], Long.MAX_VALUE, true));
+        client.write(requests[i]);
+      }
+      
+      TestCase.assertEquals(requests.length, client.getPendingCount());
+      
+      for (PingRequest request : requests) {
+        Message message = connection.read();
+        TestCase.assertTrue(message instanceof PingRequest);
+        TestCase.assertEquals(request.getMessageId(), message.getMessageId());
+      }
+      
+      // Nothing to read before the timeout expires
+      accepted.setSoTimeout(100);
+      TestCase.assertNull(connection.read());
+      
+      // Responses may arrive in any order
+      TestCase.assertTrue(client.removePending(requests[2].getMessageId()));
+      TestCase.assertFalse(client.removePending(requests[2].getMessageId()));
+      
+      client.purge(System.currentTimeMillis());
+      TestCase.assertEquals(requests.length - 1, client.getPendingCount());
+      
+      TestCase.assertEquals(requests.length - 1, client.drainPending().size());
+      TestCase.assertEquals(0, client.getPendingCount());
+      
+      TestCase.assertTrue(client.closeConnection());
+      TestCase.assertFalse(client.closeConnection());
+      TestCase.assertFalse(client.isOpen());
+      
+    } finally {
+      IoUtils.close(client);
+      IoUtils.close(connection);
+      IoUtils.close(server);
+    }
+  }
+  
+  @Test
+  public void frameSize() throws IOException {
+    ServerSocket server = new ServerSocket(0, 16, 
+        new InetSocketAddress("localhost", 0).getAddress());
+    
+    FramedConnection client = null;
+    try {
+      SocketAddress endpoint = server.getLocalSocketAddress();
+      Socket socket = new Socket();
+      socket.connect(endpoint);
+      
+      client = new FramedConnection(endpoint, 
+          socket, new BencodeMessageCodec());
+      
+      Socket accepted = server.accept();
+      try {
+        // A legitimate length but the other side gives up early
+        DataOutputStream out = new DataOutputStream(
+            accepted.getOutputStream());
+        out.writeInt(FramedConnection.MAX_FRAME_SIZE);
+        out.write(new byte[100]);
+        out.flush();
+        accepted.shutdownOutput();
+        
+        try {
+          client.read();
+          TestCase.fail("Should have failed!");
+        } catch (EOFException expected) {
+        }
+      } finally {
+        IoUtils.close(accepted);
+      }
+      
+      IoUtils.close(client);
+      
+      socket = new Socket();
+      socket.connect(endpoint);
+      client = new FramedConnection(endpoint, 
+          socket, new BencodeMessageCodec());
+      
+      accepted = server.accept();
+      try {
+        // Frames larger than the max frame size are rejected
+        DataOutputStream out = new DataOutputStream(
+            accepted.getOutputStream());
+        out.writeInt(FramedConnection.MAX_FRAME_SIZE + 1);
+        out.flush();
+        
+        try {
+          client.read();
+          TestCase.fail("Should have failed!");
+        } catch (EOFException err) {
+          TestCase.fail("Shouldn't have read the frame!");
+        } catch (IOException expected) {
+        }
+      } finally {
+        IoUtils.close(accepted);
+      }
+    } finally {
+      IoUtils.close(client);
+      IoUtils.close(server);
+    }
+  }
+  
+  @Test
+  public void unseen() throws IOException {
+    ServerSocket server = new ServerSocket(0, 16, 
+        new InetSocketAddress("localhost", 0).getAddress());
+    
+    FramedConnection client = null;
+    try {
+      SocketAddress endpoint = server.getLocalSocketAddress();
+      Socket socket = new Socket();
+      socket.connect(endpoint);
+      
+      client = new FramedConnection(endpoint, 
+          socket, new BencodeMessageCodec());
+      
+      PingRequest request = createPingRequest();
+      TestCase.assertTrue(client.addPending(request, Long.MAX_VALUE, true));
+      
+      // The other side closes the connection without a response
+      server.accept().close();
+      
+      try {
+        client.read();
+        TestCase.fail("Should have failed!");
+      } catch (EOFException expected) {
+      }
+      
+      List<Pending> pending = client.drainPending();
+      TestCase.assertEquals(1, pending.size());
+      TestCase.assertTrue(pending.get(0).isRetry());
+      TestCase.assertTrue(client.isUnseen(pending.get(0)));
+      
+    } finally {
+      IoUtils.close(client);
+      IoUtils.close(server);
+    }
+  }
+  
+  @Test
+  public void closeIfIdle() throws IOException {
+    ServerSocket server = new ServerSocket(0, 16, 
+        new InetSocketAddress("localhost", 0).getAddress());
+    
+    FramedConnection client = null;
+    try {
+      SocketAddress endpoint = server.getLocalSocketAddress();
+      Socket socket = new Socket();
+      socket.connect(endpoint);
+      
+      client = new FramedConnection(endpoint, 
+          socket, new BencodeMessageCodec());
+      
+      PingRequest request = createPingRequest();
+      TestCase.assertTrue(client.addPending(request, Long.MAX_VALUE, true));
+      
+      // Not idle while there are outstanding requests
+      long now = System.currentTimeMillis();
+      TestCase.assertFalse(client.closeIfIdle(now, 0L));
+      TestCase.assertTrue(client.removePending(request.getMessageId()));
+      
+      TestCase.assertTrue(client.tryProcess(1));
+      TestCase.assertFalse(client.tryProcess(1));
+      TestCase.assertFalse(client.closeIfIdle(now, 0L));
+      client.processed();
+      
+      TestCase.assertTrue(client.closeIfIdle(now, 0L));
+      TestCase.assertFalse(client.isOpen());
+      
+      // A closed connection doesn't take new requests
+      TestCase.assertFalse(client.addPending(
+          createPingRequest(), Long.MAX_VALUE, true));
+      
+    } finally {
+      IoUtils.close(client);
+      IoUtils.close(server);
+    }
+  }
+}
\ No newline at end of file
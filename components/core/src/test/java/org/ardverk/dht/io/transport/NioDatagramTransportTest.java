@@ -0,0 +1,84 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ardverk.dht.io.transport;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.ardverk.dht.DHT;
+import org.ardverk.dht.Factory;
+import org.ardverk.dht.codec.bencode.BencodeMessageCodec;
+import org.ardverk.dht.config.PingConfig;
+import org.ardverk.dht.entity.PingEntity;
+import org.ardverk.io.IoUtils;
+import org.junit.Test;
+
+public class NioDatagramTransportTest {
+  
+  @Test
+  public void ping() throws Exception {
+    Factory factory = Factory.sha1();
+    
+    DHT dht1 = factory.newDHT(3000);
+    DHT dht2 = factory.newDHT(3001);
+    try {
+      NioDatagramTransport transport1 = new NioDatagramTransport(
+          new BencodeMessageCodec(), 3000);
+      transport1.setReceiverCount(2);
+      transport1.setReceiveBufferSize(256 * 1024);
+      dht1.bind(transport1);
+      
+      dht2.bind(new NioDatagramTransport(
+          new BencodeMessageCodec(), 3001));
+      
+      for (int i = 0; i < 10; i++) {
+        PingEntity entity = dht1.ping(
+            "localhost", 3001, new PingConfig()).get();
+        TestCase.assertEquals(dht2.getIdentity().getId(), 
+            entity.getContact().getId());
+      }
+    } finally {
+      IoUtils.closeAll(dht1, dht2);
+    }
+  }
+  
+  @Test
+  public void pool() {
+    ByteBufferPool pool = new ByteBufferPool(1024, 1, true);
+    
+    ByteBuffer buffer1 = pool.acquire();
+    ByteBuffer buffer2 = pool.acquire();
+    TestCase.assertTrue(buffer1.isDirect());
+    TestCase.assertNotSame(buffer1, buffer2);
+    
+    buffer1.putInt(42);
+    pool.release(buffer1);
+    pool.release(buffer2);
+    TestCase.assertEquals(1, pool.size());
+    
+    // Buffers that didn't come from the pool are ignored
+    pool.release(ByteBuffer.allocate(1024));
+    TestCase.assertEquals(1, pool.size());
+    
+    ByteBuffer buffer3 = pool.acquire();
+    TestCase.assertSame(buffer1, buffer3);
+    TestCase.assertEquals(0, buffer3.position());
+    TestCase.assertEquals(0, pool.size());
+  }
+}
\ No newline at end of file
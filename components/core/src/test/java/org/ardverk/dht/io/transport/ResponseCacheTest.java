@@ -0,0 +1,91 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.io.transport;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.ardverk.dht.io.transport.ResponseCache.Response;
+import org.ardverk.dht.message.MessageId;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+  
+  @Test
+  public void duplicates() {
+    ResponseCache cache = new ResponseCache(16, 10L, TimeUnit.SECONDS);
+    
+    SocketAddress src = new InetSocketAddress("localhost", 2000);
+    SocketAddress other = new InetSocketAddress("localhost", 3000);
+    MessageId messageId = MessageId.createRandom(20);
+    
+    // The first request is new and a duplicate is pending
+    TestCase.assertNull(cache.get(src, messageId));
+    
+    Response pending = cache.get(src, messageId);
+    TestCase.assertNotNull(pending);
+    TestCase.assertTrue(pending.isPending());
+    
+    // Same MessageId but from somebody else
+    TestCase.assertNull(cache.get(other, messageId));
+    
+    byte[] data = { 1, 2, 3 };
+    cache.put(src, messageId, src, data);
+    
+    Response response = cache.get(src, messageId);
+    TestCase.assertFalse(response.isPending());
+    TestCase.assertSame(data, response.getData());
+    TestCase.assertEquals(src, response.getEndpoint());
+    
+    cache.remove(src, messageId);
+    TestCase.assertNull(cache.get(src, messageId));
+  }
+  
+  @Test
+  public void striped() {
+    // 1000 requests per second for 10 seconds
+    ResponseCache cache = ResponseCache.create(1000, 10L, TimeUnit.SECONDS);
+    
+    SocketAddress src = new InetSocketAddress("localhost", 2000);
+    MessageId[] messageIds = new MessageId[5000];
+    for (int i = 0; i < messageIds.length; i++) {
+      messageIds[i] = MessageId.createRandom(20);
+      cache.put(src, messageIds[i], src, new byte[] { 1, 2, 3 });
+    }
+    
+    // Nothing was evicted from any of the stripes
+    for (MessageId messageId : messageIds) {
+      Response response = cache.get(src, messageId);
+      TestCase.assertNotNull(response);
+      TestCase.assertFalse(response.isPending());
+    }
+  }
+  
+  @Test
+  public void expire() {
+    ResponseCache cache = new ResponseCache(16, 0L, TimeUnit.SECONDS);
+    
+    SocketAddress src = new InetSocketAddress("localhost", 2000);
+    MessageId messageId = MessageId.createRandom(20);
+    
+    cache.put(src, messageId, src, new byte[] { 1, 2, 3 });
+    TestCase.assertNull(cache.get(src, messageId));
+  }
+}
\ No newline at end of file
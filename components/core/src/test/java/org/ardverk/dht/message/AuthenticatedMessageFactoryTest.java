@@ -0,0 +1,54 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.message;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import junit.framework.TestCase;
+
+import org.ardverk.dht.routing.Identity;
+import org.junit.Test;
+
+public class AuthenticatedMessageFactoryTest {
+  
+  @Test
+  public void isFor() {
+    Identity localhost = new Identity(20, new InetSocketAddress(2000));
+    MessageFactory factory = new AuthenticatedMessageFactory(localhost);
+    
+    SocketAddress dst = new InetSocketAddress("127.0.0.1", 3000);
+    MessageId messageId = factory.createMessageId(dst);
+    
+    TestCase.assertEquals(20, messageId.length());
+    TestCase.assertTrue(factory.isFor(messageId, dst));
+    
+    // The port number isn't part of the MAC
+    TestCase.assertTrue(factory.isFor(messageId, 
+        new InetSocketAddress("127.0.0.1", 4000)));
+    
+    TestCase.assertFalse(factory.isFor(messageId, 
+        new InetSocketAddress("127.0.0.2", 3000)));
+    
+    TestCase.assertFalse(factory.isFor(
+        MessageId.createRandom(20), dst));
+    
+    // A different factory has a different key
+    MessageFactory other = new AuthenticatedMessageFactory(localhost);
+    TestCase.assertFalse(other.isFor(messageId, dst));
+  }
+}
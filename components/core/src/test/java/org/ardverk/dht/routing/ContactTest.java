@@ -17,10 +17,12 @@
 package org.ardverk.dht.routing;
 
 import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
 import org.ardverk.dht.KUID;
+import org.ardverk.dht.config.PingConfig;
 import org.ardverk.dht.routing.Contact.Type;
 import org.junit.Test;
 
@@ -59,4 +61,142 @@ public class ContactTest {
     TestCase.assertFalse(contact3.equals(contact1));
     TestCase.assertFalse(contact3.equals(contact4));
   }
+  
+  @Test
+  public void merge() {
+    KUID contactId = KUID.createRandom(20);
+    
+    Contact existing = new DefaultContact(Type.SOLICITED, contactId, 
+        0, false, new InetSocketAddress("localhost", 2000), 
+        null, 100L, TimeUnit.MILLISECONDS);
+    
+    // The merged Contact is a copy of the other Contact that
+    // shares the existing Contact's addresses.
+    Contact other = new DefaultContact(Type.SOLICITED, contactId, 
+        0, false, new InetSocketAddress("localhost", 2000), 
+        null, 50L, TimeUnit.MILLISECONDS);
+    
+    Contact copy = existing.merge(other);
+    TestCase.assertNotSame(other, copy);
+    TestCase.assertEquals(50L, copy.getRoundTripTimeInMillis());
+    TestCase.assertSame(existing.getCreationTime(), copy.getCreationTime());
+    TestCase.assertSame(existing.getSocketAddress(), copy.getSocketAddress());
+    
+    // The existing Contact is better and keeps its address
+    Contact unsolicited = new DefaultContact(Type.UNSOLICITED, contactId, 
+        2, false, new InetSocketAddress("localhost", 2000));
+    
+    Contact merged = existing.merge(unsolicited);
+    TestCase.assertNotSame(existing, merged);
+    TestCase.assertNotSame(unsolicited, merged);
+    TestCase.assertEquals(Type.SOLICITED, merged.getType());
+    TestCase.assertEquals(100L, merged.getRoundTripTimeInMillis());
+    TestCase.assertSame(unsolicited.getTimeStamp(), merged.getTimeStamp());
+    TestCase.assertSame(existing.getSocketAddress(), merged.getSocketAddress());
+  }
+  
+  @Test
+  public void updateInPlace() {
+    KUID contactId = KUID.createRandom(20);
+    
+    Contact contact = new DefaultContact(Type.UNSOLICITED, contactId, 
+        0, false, new InetSocketAddress("localhost", 2000));
+    ContactEntry entry = new ContactEntry(new RouteTableConfig(), contact);
+    
+    // Only the time stamp and the RTT change
+    Contact other = new DefaultContact(Type.UNSOLICITED, contactId, 
+        0, false, new InetSocketAddress("localhost", 2000), 
+        null, 50L, TimeUnit.MILLISECONDS);
+    
+    Contact existing = entry.getContact();
+    TestCase.assertSame(existing, entry.update(other));
+    TestCase.assertSame(existing, entry.getContact());
+    TestCase.assertSame(other.getTimeStamp(), existing.getTimeStamp());
+    TestCase.assertEquals(50L, existing.getRoundTripTimeInMillis());
+    
+    // The Contact that was passed in is never touched
+    TestCase.assertEquals(-1L, contact.getRoundTripTimeInMillis());
+    
+    // A better Contact with a new address needs a new Contact
+    Contact moved = new DefaultContact(Type.SOLICITED, contactId, 
+        1, false, new InetSocketAddress("localhost", 2001));
+    
+    TestCase.assertSame(existing, entry.update(moved));
+    TestCase.assertNotSame(existing, entry.getContact());
+    TestCase.assertNotSame(moved, entry.getContact());
+    TestCase.assertEquals(moved.getRemoteAddress(), 
+        entry.getContact().getRemoteAddress());
+    TestCase.assertEquals(50L, entry.getContact().getRoundTripTimeInMillis());
+  }
+  
+  @Test
+  public void roundTripTimeEstimator() {
+    RoundTripTimeEstimator estimator = new RoundTripTimeEstimator();
+    TestCase.assertFalse(estimator.hasSamples());
+    TestCase.assertEquals(10000L, estimator.getTimeout(
+        10000L, TimeUnit.MILLISECONDS));
+    
+    for (int i = 0; i < 100; i++) {
+      estimator.sample(200L + (i % 2) * 100L, TimeUnit.MILLISECONDS);
+    }
+    
+    long srtt = estimator.getSmoothedRoundTripTime(TimeUnit.MILLISECONDS);
+    TestCase.assertTrue(200L <= srtt && srtt <= 300L);
+    
+    long timeout = estimator.getTimeout(10000L, TimeUnit.MILLISECONDS);
+    TestCase.assertTrue(1000L <= timeout && timeout < 10000L);
+    
+    // The estimator sticks with the ContactEntry's own Contact...
+    Contact contact = new DefaultContact(Type.SOLICITED, 
+        KUID.createRandom(20), 0, false, 
+        new InetSocketAddress("localhost", 2000), 
+        null, 5000L, TimeUnit.MILLISECONDS);
+    
+    ContactEntry entry = new ContactEntry(new RouteTableConfig(), contact);
+    TestCase.assertNotSame(contact, entry.getContact());
+    TestCase.assertSame(entry.getRoundTripTimeEstimator(), 
+        ContactUtils.getRoundTripTimeEstimator(
+            entry.getContact(), estimator));
+    
+    // ... and not with the Contact that was passed in
+    TestCase.assertSame(estimator, 
+        ContactUtils.getRoundTripTimeEstimator(contact, estimator));
+    TestCase.assertEquals(5000L, entry.getRoundTripTimeEstimator()
+        .getSmoothedRoundTripTime(TimeUnit.MILLISECONDS));
+  }
+  
+  @Test
+  public void adaptiveTimeout() {
+    RoundTripTimeEstimator estimator = new RoundTripTimeEstimator();
+    estimator.sample(100L, TimeUnit.MILLISECONDS);
+    
+    Contact unknown = new DefaultContact(Type.UNKNOWN, 
+        KUID.createRandom(20), 0, false, 
+        new InetSocketAddress("localhost", 2000));
+    
+    // Adaptive timeouts are on by default and fall back to 
+    // the given estimator for unknown Contacts
+    PingConfig config = new PingConfig();
+    TestCase.assertTrue(config.isAdaptiveTimeout());
+    TestCase.assertEquals(1000L, config.getAdaptiveTimeout(
+        unknown, estimator, 10000L, TimeUnit.MILLISECONDS));
+    TestCase.assertEquals(10000L, config.getAdaptiveTimeout(
+        unknown, 10000L, TimeUnit.MILLISECONDS));
+    
+    // The multiplier is only used if there are no estimates
+    Contact single = new DefaultContact(Type.SOLICITED, 
+        KUID.createRandom(20), 0, false, 
+        new InetSocketAddress("localhost", 2000), 
+        null, 3000L, TimeUnit.MILLISECONDS);
+    TestCase.assertEquals(10000L, config.getAdaptiveTimeout(
+        single, 10000L, TimeUnit.MILLISECONDS));
+    
+    config.setRountTripTimeMultiplier(2d);
+    TestCase.assertEquals(6000L, config.getAdaptiveTimeout(
+        single, 10000L, TimeUnit.MILLISECONDS));
+    
+    config.setAdaptiveTimeout(false);
+    TestCase.assertEquals(10000L, config.getAdaptiveTimeout(
+        unknown, estimator, 10000L, TimeUnit.MILLISECONDS));
+  }
 }
\ No newline at end of file
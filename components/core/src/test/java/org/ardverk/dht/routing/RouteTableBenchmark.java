@@ -0,0 +1,117 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.routing;
+
+import java.net.InetSocketAddress;
+
+import org.ardverk.dht.KUID;
+import org.ardverk.dht.routing.Contact.Type;
+
+/**
+ * A simple benchmark that compares {@link RouteTable#select(KUID)} of
+ * the {@link ArrayRouteTable} with the {@link DefaultRouteTable}. The
+ * {@link DefaultRouteTable} is filled with the active {@link Contact}s 
+ * of the {@link ArrayRouteTable} so that both hold the same number of 
+ * {@link Contact}s and both run the same number of iterations.
+ * 
+ * <pre>
+ * java -cp ... org.ardverk.dht.routing.RouteTableBenchmark [iterations]
+ * </pre>
+ */
+public class RouteTableBenchmark {
+  
+  private static final int K = 20;
+  
+  private static final int ID_SIZE = 20;
+  
+  private static final int[] CONTACTS = { 1000, 10000, 50000 };
+  
+  private static final int KEYS = 1024;
+  
+  private static final int ROUNDS = 5;
+  
+  private static volatile long sink = 0L;
+  
+  public static void main(String[] args) {
+    int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+    
+    for (int count : CONTACTS) {
+      Identity localhost = new Identity(ID_SIZE, 
+          new InetSocketAddress("localhost", 2000));
+      
+      RouteTable array = new ArrayRouteTable(
+          new RouteTableConfig(K), localhost);
+      RouteTable trie = new DefaultRouteTable(
+          new RouteTableConfig(K), localhost);
+      
+      for (int i = 0; i < count; i++) {
+        Contact contact = new DefaultContact(Type.SOLICITED, 
+            KUID.createRandom(ID_SIZE), 0, false, 
+            new InetSocketAddress("localhost", 3000 + (i % 60000)));
+        
+        array.add(contact);
+      }
+      
+      for (Bucket bucket : array.getBuckets()) {
+        for (ContactEntry entry : bucket.getActive()) {
+          trie.add(entry.getContact());
+        }
+      }
+      
+      // Every other key shares a random length prefix with the localhost
+      KUID[] keys = new KUID[KEYS];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = (i % 2 == 0) ? KUID.createRandom(ID_SIZE) 
+            : KUID.createWithPrefix(localhost.getId(), i % 32);
+      }
+      
+      System.out.printf("%d contacts (array: size=%d, buckets=%d, "
+          + "default: size=%d, buckets=%d)%n", count, 
+          array.size(), array.getBuckets().length,
+          trie.size(), trie.getBuckets().length);
+      
+      for (int round = 0; round < ROUNDS; round++) {
+        boolean warmup = (round < ROUNDS - 1);
+        
+        report(warmup, "select (array)", iterations, 
+            select(array, keys, iterations));
+        report(warmup, "select (default)", iterations, 
+            select(trie, keys, iterations));
+      }
+    }
+  }
+  
+  private static void report(boolean warmup, String name, 
+      int iterations, long time) {
+    if (!warmup) {
+      System.out.printf("  %-20s %10.2f ns/op%n", 
+          name, (double)time / iterations);
+    }
+  }
+  
+  private static long select(RouteTable routeTable, 
+      KUID[] keys, int iterations) {
+    long result = 0L;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      result += routeTable.select(keys[i & (KEYS-1)]).length;
+    }
+    long time = System.nanoTime() - start;
+    sink += result;
+    return time;
+  }
+}
\ No newline at end of file
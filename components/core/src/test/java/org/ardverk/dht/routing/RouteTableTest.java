@@ -16,19 +16,38 @@
 
 package org.ardverk.dht.routing;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 import junit.framework.TestCase;
 
 import org.ardverk.dht.KUID;
+import org.ardverk.dht.concurrent.DHTFuture;
+import org.ardverk.dht.concurrent.DHTValueFuture;
+import org.ardverk.dht.config.PingConfig;
+import org.ardverk.dht.entity.PingEntity;
 import org.ardverk.dht.routing.Contact.Type;
+import org.ardverk.dht.routing.RouteTable.ContactPinger;
+import org.ardverk.dht.utils.XorComparator;
+import org.ardverk.lang.TimeStamp;
 import org.junit.Test;
 
 
 public class RouteTableTest {
-
+  
   private static final int K = 20;
   
   private static final int ID_SIZE = 20;
@@ -102,6 +121,156 @@ public class RouteTableTest {
     TestCase.assertEquals(2, routeTable.getBuckets()[0].getActiveCount());
   }
   
+  @Test
+  public void batchListener() throws InterruptedException {
+    DefaultRouteTable routeTable = createRouteTable();
+    
+    final AtomicInteger count = new AtomicInteger();
+    final CountDownLatch latch = new CountDownLatch(1);
+    routeTable.addRouteTableBatchListener(new RouteTableBatchListener() {
+      @Override
+      public void handleEvents(RouteTableEvent[] events, int dropped) {
+        for (RouteTableEvent event : events) {
+          if (event.getType() == RouteTableEvent.Type.CONTACT_ADDED) {
+            if (count.incrementAndGet() == 10) {
+              latch.countDown();
+            }
+          }
+        }
+      }
+    });
+    
+    for (int i = 0; i < 10; i++) {
+      routeTable.add(createContact());
+    }
+    
+    if (!latch.await(1L, TimeUnit.SECONDS)) {
+      TestCase.fail("Shouldn't have failed!");
+    }
+  }
+  
+  @Test
+  public void eventBufferOverflow() throws InterruptedException {
+    RouteTableConfig config = new RouteTableConfig(K);
+    config.setEventBufferSize(4);
+    
+    DefaultRouteTable routeTable = new DefaultRouteTable(
+        config, createLocalhost());
+    
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch blocked = block(routeTable, release);
+    
+    final AtomicInteger dropped = new AtomicInteger();
+    final AtomicInteger maxSize = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(1);
+    routeTable.addRouteTableBatchListener(new RouteTableBatchListener() {
+      @Override
+      public void handleEvents(RouteTableEvent[] events, int count) {
+        maxSize.set(Math.max(maxSize.get(), events.length));
+        dropped.addAndGet(count);
+        if (0 < count) {
+          done.countDown();
+        }
+      }
+    });
+    
+    // Block the delivery of the first event...
+    routeTable.add(createContact());
+    TestCase.assertTrue(blocked.await(1L, TimeUnit.SECONDS));
+    
+    // ... and overflow the buffer with many more events. Each 
+    // new Contact fires a CONTACT_ADDED and a CONTACT event.
+    for (int i = 0; i < K-3; i++) {
+      routeTable.add(createContact());
+    }
+    
+    release.countDown();
+    
+    if (!done.await(1L, TimeUnit.SECONDS)) {
+      TestCase.fail("Shouldn't have failed!");
+    }
+    
+    // The buffer never grows
+    TestCase.assertTrue(maxSize.get() <= 4);
+    TestCase.assertTrue(2*(K-3) - 4 <= dropped.get());
+  }
+  
+  @Test
+  public void eventCoalescing() throws InterruptedException {
+    RouteTableConfig config = new RouteTableConfig(K);
+    config.setEventBufferSize(4);
+    
+    DefaultRouteTable routeTable = new DefaultRouteTable(
+        config, createLocalhost());
+    
+    Contact contact = createContact();
+    routeTable.add(contact);
+    
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch blocked = block(routeTable, release);
+    
+    final AtomicInteger dropped = new AtomicInteger();
+    final List<RouteTableEvent> changed = new CopyOnWriteArrayList<>();
+    final CountDownLatch done = new CountDownLatch(1);
+    routeTable.addRouteTableBatchListener(new RouteTableBatchListener() {
+      @Override
+      public void handleEvents(RouteTableEvent[] events, int count) {
+        dropped.addAndGet(count);
+        for (RouteTableEvent event : events) {
+          if (event.getType() == RouteTableEvent.Type.CONTACT_CHANGED) {
+            changed.add(event);
+            done.countDown();
+          }
+        }
+      }
+    });
+    
+    routeTable.add(createContact());
+    TestCase.assertTrue(blocked.await(1L, TimeUnit.SECONDS));
+    
+    // Every update fires a CONTACT_CHANGED and a CONTACT event
+    for (int i = 0; i < 100; i++) {
+      routeTable.add(contact);
+    }
+    
+    release.countDown();
+    
+    if (!done.await(1L, TimeUnit.SECONDS)) {
+      TestCase.fail("Shouldn't have failed!");
+    }
+    
+    TestCase.assertEquals(0, dropped.get());
+    TestCase.assertEquals(1, changed.size());
+    TestCase.assertEquals(contact.getId(), 
+        changed.get(0).getContact().getId());
+  }
+  
+  /**
+   * Blocks the delivery of {@link RouteTableEvent}s in the first 
+   * {@link RouteTableListener#handleContactAdded(Bucket, Contact)}
+   * callback until the given {@link CountDownLatch} is released.
+   */
+  private static CountDownLatch block(RouteTable routeTable, 
+      final CountDownLatch release) {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    routeTable.addRouteTableListener(new RouteTableAdapter() {
+      @Override
+      public void handleContactAdded(Bucket bucket, Contact contact) {
+        if (blocked.getCount() == 0L) {
+          return;
+        }
+        
+        blocked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException err) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    return blocked;
+  }
+  
   @Test
   public void split() throws InterruptedException {
     final DefaultRouteTable routeTable = createRouteTable();
@@ -134,6 +303,175 @@ public class RouteTableTest {
     TestCase.assertEquals(2, routeTable.getBuckets().length);
   }
   
+  @Test
+  public void addAll() throws InterruptedException {
+    DefaultRouteTable routeTable = createRouteTable();
+    
+    Contact[] contacts = new Contact[routeTable.getK()];
+    for (int i = 0; i < contacts.length-1; i++) {
+      contacts[i] = createContact();
+    }
+    
+    // Duplicates are ignored
+    contacts[contacts.length-1] = contacts[0];
+    
+    final CountDownLatch latch = new CountDownLatch(contacts.length-1);
+    routeTable.addRouteTableListener(new RouteTableAdapter() {
+      @Override
+      public void handleContact(Bucket bucket, Contact existing, Contact contact) {
+        latch.countDown();
+      }
+    });
+    
+    // The whole batch is a single event
+    final List<RouteTableEvent> batch = new CopyOnWriteArrayList<>();
+    final CountDownLatch batchLatch = new CountDownLatch(1);
+    routeTable.addRouteTableBatchListener(new RouteTableBatchListener() {
+      @Override
+      public void handleEvents(RouteTableEvent[] events, int dropped) {
+        for (RouteTableEvent event : events) {
+          if (event.getType() == RouteTableEvent.Type.CONTACTS) {
+            batch.add(event);
+            batchLatch.countDown();
+          }
+        }
+      }
+    });
+    
+    routeTable.addAll(contacts);
+    
+    if (!latch.await(1L, TimeUnit.SECONDS) 
+        || !batchLatch.await(1L, TimeUnit.SECONDS)) {
+      TestCase.fail("Shouldn't have failed!");
+    }
+    
+    TestCase.assertEquals(routeTable.getK(), routeTable.size());
+    TestCase.assertEquals(1, routeTable.getBuckets().length);
+    
+    TestCase.assertEquals(1, batch.size());
+    TestCase.assertEquals(contacts.length-1, batch.get(0).size());
+  }
+  
+  @Test
+  public void snapshot() throws IOException {
+    Identity localhost = createLocalhost();
+    File file = File.createTempFile("RouteTableTest", ".snapshot");
+    file.delete();
+    
+    try {
+      PersistentRouteTable routeTable = new PersistentRouteTable(
+          new RouteTableConfig(K), localhost, file, -1L, TimeUnit.SECONDS);
+      
+      while (routeTable.size() < 2 * routeTable.getK()) {
+        routeTable.add(createContact());
+      }
+      
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      routeTable.writeSnapshot(baos);
+      
+      PersistentRouteTable restored = new PersistentRouteTable(
+          new RouteTableConfig(K), localhost, file, -1L, TimeUnit.SECONDS);
+      
+      int count = restored.readSnapshot(
+          new ByteArrayInputStream(baos.toByteArray()));
+      
+      TestCase.assertEquals(routeTable.size() - 1, count);
+      TestCase.assertEquals(routeTable.size(), restored.size());
+      
+      for (ContactEntry entry : routeTable.getActiveContacts()) {
+        TestCase.assertNotNull(restored.get(entry.getId()));
+      }
+      
+      // Restore from the File
+      routeTable.save();
+      
+      PersistentRouteTable loaded = new PersistentRouteTable(
+          new RouteTableConfig(K), localhost, file, -1L, TimeUnit.SECONDS);
+      TestCase.assertEquals(routeTable.size(), loaded.size());
+      
+    } finally {
+      file.delete();
+    }
+  }
+  
+  @Test
+  public void snapshotTimeStamps() throws IOException {
+    Identity localhost = createLocalhost();
+    DefaultRouteTable routeTable = new DefaultRouteTable(
+        new RouteTableConfig(K), localhost);
+    
+    Contact contact = createContact();
+    routeTable.add(contact);
+    
+    DefaultContact existing = (DefaultContact)routeTable.get(contact.getId());
+    existing.setTimeStamp(new TimeStamp(System.currentTimeMillis() - 60000L));
+    
+    // It's not possible to restore a Contact without an address
+    Contact unresolved = new DefaultContact(Type.SOLICITED, 
+        KUID.createRandom(ID_SIZE), 0, false, 
+        InetSocketAddress.createUnresolved("unresolved.invalid", DEFAULT_PORT));
+    routeTable.add(unresolved);
+    TestCase.assertNotNull(routeTable.get(unresolved.getId()));
+    
+    File file = File.createTempFile("RouteTableTest", ".snapshot");
+    file.delete();
+    
+    try {
+      PersistentRouteTable persistent = new PersistentRouteTable(
+          new RouteTableConfig(K), localhost, file, -1L, TimeUnit.SECONDS);
+      
+      for (ContactEntry entry : routeTable.getActiveContacts()) {
+        persistent.restore(entry.getContact(), 0);
+      }
+      
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      persistent.writeSnapshot(baos);
+      
+      PersistentRouteTable restored = new PersistentRouteTable(
+          new RouteTableConfig(K), localhost, file, -1L, TimeUnit.SECONDS);
+      
+      int count = restored.readSnapshot(
+          new ByteArrayInputStream(baos.toByteArray()));
+      TestCase.assertEquals(1, count);
+      TestCase.assertNull(restored.get(unresolved.getId()));
+      
+      long age = restored.get(contact.getId())
+          .getTimeStamp().getAgeInMillis();
+      TestCase.assertTrue(60000L <= age && age < 70000L);
+      
+    } finally {
+      file.delete();
+    }
+  }
+  
+  @Test
+  public void corruptSnapshot() throws IOException {
+    Identity localhost = createLocalhost();
+    File file = File.createTempFile("RouteTableTest", ".snapshot");
+    
+    try {
+      // A valid header with an absurd number of Contacts
+      DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+      try {
+        out.writeInt(0x52544253);
+        out.writeByte(1);
+        out.writeInt(Integer.MAX_VALUE);
+        out.writeInt(0);
+      } finally {
+        out.close();
+      }
+      
+      PersistentRouteTable routeTable = new PersistentRouteTable(
+          new RouteTableConfig(K), localhost, file, -1L, TimeUnit.SECONDS);
+      
+      // It's treated like a missing snapshot
+      TestCase.assertEquals(1, routeTable.size());
+      
+    } finally {
+      file.delete();
+    }
+  }
+  
   @Test
   public void select() {
     Identity localhost = createLocalhost();
@@ -150,6 +488,195 @@ public class RouteTableTest {
     TestCase.assertEquals(localhost, contacts[0]);
   }
   
+  @Test
+  public void proximity() {
+    RouteTableConfig config = new RouteTableConfig(K);
+    config.setProximityRouting(true);
+    
+    Identity localhost = createLocalhost();
+    DefaultRouteTable routeTable = new DefaultRouteTable(config, localhost);
+    
+    for (int i = 0; i < routeTable.getK()-1; i++) {
+      Contact contact = createContact();
+      contact.setRoundTripTime(100L + (i * 37L) % 500L, TimeUnit.MILLISECONDS);
+      routeTable.add(contact);
+    }
+    
+    Contact[] contacts = routeTable.select(localhost.getId());
+    TestCase.assertEquals(routeTable.getK(), contacts.length);
+    
+    // The exact match stays first
+    KUID contactId = localhost.getId();
+    TestCase.assertEquals(localhost, contacts[0]);
+    
+    // The Contacts are in XOR order and only those that are equally 
+    // close are sorted by their RTT.
+    for (int i = 2; i < contacts.length; i++) {
+      int p1 = contacts[i-1].getId().commonPrefix(contactId);
+      int p2 = contacts[i].getId().commonPrefix(contactId);
+      
+      TestCase.assertTrue(p1 >= p2);
+      if (p1 == p2) {
+        TestCase.assertTrue(contacts[i-1].getRoundTripTimeInMillis() 
+            <= contacts[i].getRoundTripTimeInMillis());
+      }
+    }
+  }
+  
+  @Test
+  public void prune() {
+    Identity localhost = createLocalhost();
+    DefaultRouteTable routeTable = createRouteTable(localhost);
+    
+    for (int i = 0; i < 200; i++) {
+      routeTable.add(createContact());
+    }
+    
+    int size = routeTable.size();
+    int buckets = routeTable.getBuckets().length;
+    
+    routeTable.prune();
+    
+    // There are no DEAD Contacts and nothing should've changed
+    TestCase.assertEquals(size, routeTable.size());
+    TestCase.assertEquals(buckets, routeTable.getBuckets().length);
+    TestCase.assertSame(localhost, routeTable.get(localhost.getId()));
+  }
+  
+  @Test
+  public void arraySelect() {
+    Identity localhost = createLocalhost();
+    ArrayRouteTable routeTable = new ArrayRouteTable(
+        new RouteTableConfig(K), localhost);
+    
+    for (int i = 0; i < 500; i++) {
+      routeTable.add(createContact());
+    }
+    
+    List<Contact> expected = new ArrayList<>();
+    for (Bucket bucket : routeTable.getBuckets()) {
+      for (ContactEntry entry : bucket.getActive()) {
+        expected.add(entry.getContact());
+      }
+    }
+    
+    TestCase.assertEquals(expected.size(), routeTable.size());
+    
+    for (int i = 0; i < 20; i++) {
+      // Every other key shares a prefix with the localhost
+      KUID lookupId = (i % 2 == 0) ? KUID.createRandom(ID_SIZE) 
+          : KUID.createWithPrefix(localhost.getId(), i);
+      Collections.sort(expected, new XorComparator(lookupId));
+      
+      Contact[] contacts = routeTable.select(lookupId);
+      TestCase.assertEquals(routeTable.getK(), contacts.length);
+      
+      for (int j = 0; j < contacts.length; j++) {
+        TestCase.assertSame(expected.get(j), contacts[j]);
+      }
+    }
+  }
+  
+  @Test
+  public void arrayAddressConflict() {
+    Identity localhost = createLocalhost();
+    RouteTableConfig config = new RouteTableConfig(K);
+    ArrayRouteTable routeTable = new ArrayRouteTable(config, localhost);
+    
+    final List<Contact> pinged = new ArrayList<>();
+    routeTable.bind(new ContactPinger() {
+      @Override
+      public DHTFuture<PingEntity> ping(Contact contact, PingConfig config) {
+        pinged.add(contact);
+        return new DHTValueFuture<PingEntity>();
+      }
+    });
+    
+    Contact contact = new DefaultContact(Type.UNSOLICITED, 
+        KUID.createRandom(ID_SIZE), 0, false, 
+        new InetSocketAddress("localhost", DEFAULT_PORT + 1));
+    routeTable.add(contact);
+    
+    // The existing Contact is kept while it's being PINGed
+    Contact other = createContact(contact.getId(), DEFAULT_PORT + 2);
+    routeTable.add(other);
+    
+    TestCase.assertEquals(1, pinged.size());
+    TestCase.assertEquals(contact.getRemoteAddress(), 
+        pinged.get(0).getRemoteAddress());
+    TestCase.assertEquals(contact.getRemoteAddress(), 
+        routeTable.get(contact.getId()).getRemoteAddress());
+    
+    // ... and replaced right away if we're not checking identities.
+    config.setCheckIdentity(false);
+    routeTable.add(other);
+    
+    TestCase.assertEquals(2, routeTable.size());
+    TestCase.assertEquals(other.getRemoteAddress(), 
+        routeTable.get(contact.getId()).getRemoteAddress());
+  }
+  
+  @Test
+  public void arrayAddAll() throws InterruptedException {
+    ArrayRouteTable routeTable = new ArrayRouteTable(
+        new RouteTableConfig(K), createLocalhost());
+    
+    Contact contact = createContact();
+    Contact[] contacts = { contact, createContact(), contact };
+    
+    final List<RouteTableEvent> batch = new CopyOnWriteArrayList<>();
+    final CountDownLatch latch = new CountDownLatch(1);
+    routeTable.addRouteTableBatchListener(new RouteTableBatchListener() {
+      @Override
+      public void handleEvents(RouteTableEvent[] events, int dropped) {
+        for (RouteTableEvent event : events) {
+          if (event.getType() == RouteTableEvent.Type.CONTACTS) {
+            batch.add(event);
+            latch.countDown();
+          }
+        }
+      }
+    });
+    
+    routeTable.addAll(contacts);
+    
+    if (!latch.await(1L, TimeUnit.SECONDS)) {
+      TestCase.fail("Shouldn't have failed!");
+    }
+    
+    // Duplicates are ignored
+    TestCase.assertEquals(3, routeTable.size());
+    TestCase.assertEquals(2, batch.get(0).size());
+  }
+  
+  @Test
+  public void eventsAfterUnlock() throws InterruptedException {
+    DefaultRouteTable routeTable = createRouteTable();
+    
+    final CountDownLatch latch = new CountDownLatch(1);
+    routeTable.addRouteTableListener(new RouteTableAdapter() {
+      @Override
+      public void handleContact(Bucket bucket, Contact existing, Contact contact) {
+        latch.countDown();
+      }
+    });
+    
+    Lock writeLock = routeTable.getLock().writeLock();
+    writeLock.lock();
+    try {
+      routeTable.add(createContact());
+      
+      // The event is held back while the write lock is held
+      TestCase.assertFalse(latch.await(100L, TimeUnit.MILLISECONDS));
+    } finally {
+      writeLock.unlock();
+    }
+    
+    if (!latch.await(1L, TimeUnit.SECONDS)) {
+      TestCase.fail("Shouldn't have failed!");
+    }
+  }
+  
   private static DefaultRouteTable createRouteTable() {
     Identity localhost = createLocalhost();
     return createRouteTable(localhost);
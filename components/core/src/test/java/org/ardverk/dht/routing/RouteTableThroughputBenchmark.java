@@ -0,0 +1,156 @@
+/*
+ * Copyright 2009-2012 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.dht.routing;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ardverk.dht.KUID;
+import org.ardverk.dht.routing.Contact.Type;
+
+/**
+ * Measures the {@link RouteTable#select(KUID)} throughput of the 
+ * {@link DefaultRouteTable} with 1, 2 and 4 reader {@link Thread}s 
+ * while a single writer {@link Thread} keeps re-adding known and 
+ * adding new {@link Contact}s.
+ * 
+ * <pre>
+ * java -cp ... org.ardverk.dht.routing.RouteTableThroughputBenchmark [millis]
+ * </pre>
+ */
+public class RouteTableThroughputBenchmark {
+  
+  private static final int K = 20;
+  
+  private static final int ID_SIZE = 20;
+  
+  private static final int CONTACTS = 10000;
+  
+  private static final int KEYS = 1024;
+  
+  private static final int[] READERS = { 1, 2, 4 };
+  
+  private static final int ROUNDS = 3;
+  
+  private static volatile long sink = 0L;
+  
+  public static void main(String[] args) throws InterruptedException {
+    long duration = (args.length > 0) ? Long.parseLong(args[0]) : 2000L;
+    
+    Identity localhost = new Identity(ID_SIZE, 
+        new InetSocketAddress("localhost", 2000));
+    
+    final RouteTable routeTable = new DefaultRouteTable(
+        new RouteTableConfig(K), localhost);
+    
+    final Contact[] contacts = new Contact[CONTACTS];
+    for (int i = 0; i < contacts.length; i++) {
+      contacts[i] = createContact(i);
+      routeTable.add(contacts[i]);
+    }
+    
+    final KUID[] keys = new KUID[KEYS];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = (i % 2 == 0) ? KUID.createRandom(ID_SIZE) 
+          : KUID.createWithPrefix(localhost.getId(), i % 32);
+    }
+    
+    System.out.printf("%d contacts (size=%d, buckets=%d)%n", CONTACTS, 
+        routeTable.size(), routeTable.getBuckets().length);
+    
+    for (int round = 0; round < ROUNDS; round++) {
+      boolean warmup = (round < ROUNDS - 1);
+      
+      for (int readers : READERS) {
+        long[] result = run(routeTable, contacts, keys, readers, duration);
+        
+        if (!warmup) {
+          System.out.printf("  %d reader(s) %12.0f selects/s "
+              + "%10.0f adds/s%n", readers, 
+              result[0] * 1000d / duration, 
+              result[1] * 1000d / duration);
+        }
+      }
+    }
+  }
+  
+  private static long[] run(final RouteTable routeTable, 
+      final Contact[] contacts, final KUID[] keys, 
+      int readers, long duration) throws InterruptedException {
+    
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final AtomicLong selects = new AtomicLong();
+    final AtomicLong adds = new AtomicLong();
+    final CountDownLatch latch = new CountDownLatch(readers + 1);
+    
+    for (int i = 0; i < readers; i++) {
+      final int offset = i * 31;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          long count = 0L;
+          long result = 0L;
+          try {
+            while (running.get()) {
+              result += routeTable.select(
+                  keys[(int)(offset + count) & (KEYS-1)]).length;
+              ++count;
+            }
+          } finally {
+            selects.addAndGet(count);
+            sink += result;
+            latch.countDown();
+          }
+        }
+      }, "ReaderThread-" + i).start();
+    }
+    
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long count = 0L;
+        try {
+          while (running.get()) {
+            // Every 8th add is a new Contact, the others are updates
+            Contact contact = (count % 8 == 0) 
+                ? createContact((int)count) 
+                : contacts[(int)(count % contacts.length)];
+            routeTable.add(contact);
+            ++count;
+          }
+        } finally {
+          adds.addAndGet(count);
+          latch.countDown();
+        }
+      }
+    }, "WriterThread").start();
+    
+    Thread.sleep(duration);
+    running.set(false);
+    latch.await();
+    
+    return new long[] { selects.get(), adds.get() };
+  }
+  
+  private static Contact createContact(int i) {
+    return new DefaultContact(Type.SOLICITED, 
+        KUID.createRandom(ID_SIZE), 0, false, 
+        new InetSocketAddress("localhost", 3000 + (i % 60000)));
+  }
+}
\ No newline at end of file
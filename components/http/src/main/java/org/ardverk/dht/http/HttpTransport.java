@@ -16,7 +16,6 @@
 
 package org.ardverk.dht.http;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -224,8 +223,7 @@ public class HttpTransport extends AbstractTransport {
       SocketAddress src = e.getRemoteAddress();
       ChannelBuffer content = httpRequest.getContent();
       
-      ByteArrayInputStream bais = new ByteArrayInputStream(content.array());
-      Decoder decoder = codec.createDecoder(src, bais);
+      Decoder decoder = codec.createDecoder(src, content.toByteBuffer());
       RequestMessage request = (RequestMessage)decoder.read();
       decoder.close();
       
@@ -266,8 +264,7 @@ public class HttpTransport extends AbstractTransport {
         
         ChannelBuffer content = httpResponse.getContent();
         
-        ByteArrayInputStream bais = new ByteArrayInputStream(content.array());
-        Decoder decoder = codec.createDecoder(src, bais);
+        Decoder decoder = codec.createDecoder(src, content.toByteBuffer());
         ResponseMessage response = (ResponseMessage)decoder.read();
         decoder.close();
         